@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.Block;
+import org.neoscoinj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing and serializing the blocks of the full block test suite, see {@link Fixtures#fullBlockTestBlocks()},
+ * and hashing freshly parsed transactions. Throughput is in whole passes over the suite.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockBenchmark {
+    private List<Block> blocks;
+    private List<byte[]> blockBytes;
+    private List<byte[]> transactionBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        blocks = Fixtures.fullBlockTestBlocks();
+        blockBytes = new ArrayList<byte[]>(blocks.size());
+        transactionBytes = new ArrayList<byte[]>();
+        for (Block block : blocks) {
+            blockBytes.add(block.neoscoinSerialize());
+            for (Transaction tx : block.getTransactions())
+                transactionBytes.add(tx.neoscoinSerialize());
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : blockBytes)
+            blackhole.consume(new Block(Fixtures.PARAMS, bytes));
+    }
+
+    /** Serializes blocks that were built in memory rather than parsed, so no cached bytes can be reused. */
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        for (Block block : blocks)
+            blackhole.consume(block.neoscoinSerialize());
+    }
+
+    @Benchmark
+    public void transactionGetHash(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : transactionBytes)
+            blackhole.consume(new Transaction(Fixtures.PARAMS, bytes).getHash());
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.Block;
+import org.neoscoinj.core.NetworkParameters;
+import org.neoscoinj.core.Transaction;
+import org.neoscoinj.core.TransactionOutput;
+import org.neoscoinj.params.MainNetParams;
+import org.neoscoinj.utils.BlockFileLoader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares eager and lazy decoding of real blocks, read from the reference client's block files with
+ * {@link BlockFileLoader}. Set the <tt>blockFiles</tt> parameter to a directory of <tt>blk*.dat</tt> files, or leave it
+ * empty to use the default data directory. The first <tt>blocks</tt> blocks are loaded once and then decoded
+ * repeatedly.</p>
+ *
+ * <p>The <tt>access</tt> parameter is how much of each block is used after decoding: only its hash, as a node relaying
+ * blocks does; the hashes of its transactions, as an SPV client matching against its wallet does; or every output,
+ * as full verification does. Reserialization is measured separately.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockParsingBenchmark {
+    public enum Access { HEADER, TX_HASHES, FULL }
+
+    @Param({""})
+    public String blockFiles;
+
+    @Param({"2000"})
+    public int blocks;
+
+    @Param({"HEADER", "TX_HASHES", "FULL"})
+    public Access access;
+
+    private NetworkParameters params;
+    private List<byte[]> blockBytes;
+
+    @Setup
+    public void setUp() {
+        params = MainNetParams.get();
+        List<File> files;
+        if (blockFiles.isEmpty()) {
+            files = BlockFileLoader.getReferenceClientBlockFileList();
+        } else {
+            files = new ArrayList<File>();
+            for (int i = 0; ; i++) {
+                File file = new File(blockFiles, String.format("blk%05d.dat", i));
+                if (!file.exists())
+                    break;
+                files.add(file);
+            }
+        }
+        if (files.isEmpty())
+            throw new IllegalStateException("No block files found, set the blockFiles parameter");
+        // Lazily loaded blocks reserialize to the exact bytes they were read as.
+        blockBytes = new ArrayList<byte[]>(blocks);
+        for (Block block : new BlockFileLoader(params, files, true)) {
+            blockBytes.add(block.neoscoinSerialize());
+            if (blockBytes.size() == blocks)
+                break;
+        }
+    }
+
+    @Benchmark
+    public void eager(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : blockBytes)
+            use(new Block(params, bytes, false, false, bytes.length), blackhole);
+    }
+
+    @Benchmark
+    public void lazy(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : blockBytes)
+            use(new Block(params, bytes, true, true, bytes.length), blackhole);
+    }
+
+    @Benchmark
+    public void eagerReserialize(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : blockBytes)
+            blackhole.consume(new Block(params, bytes, false, false, bytes.length).neoscoinSerialize());
+    }
+
+    @Benchmark
+    public void lazyReserialize(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : blockBytes)
+            blackhole.consume(new Block(params, bytes, true, true, bytes.length).neoscoinSerialize());
+    }
+
+    private void use(Block block, Blackhole blackhole) {
+        blackhole.consume(block.getHash());
+        if (access == Access.HEADER)
+            return;
+        for (Transaction tx : block.getTransactions()) {
+            blackhole.consume(tx.getHash());
+            if (access == Access.FULL)
+                for (TransactionOutput output : tx.getOutputs())
+                    blackhole.consume(output.getValue());
+        }
+    }
+}
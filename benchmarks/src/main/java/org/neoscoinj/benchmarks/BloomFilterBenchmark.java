@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.BloomFilter;
+import org.neoscoinj.core.ECKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BloomFilter} lookups of 20 byte items, the size of the pubkey hashes a wallet filter mostly holds,
+ * against a filter sized for <tt>elements</tt> items, and inserting keys into it. Half of the looked up items are in
+ * the filter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BloomFilterBenchmark {
+    private static final int ITEMS = 1024;
+
+    @Param({"1000", "100000"})
+    public int elements;
+
+    private BloomFilter filter;
+    private byte[][] items;
+    private boolean[] results = new boolean[ITEMS];
+    private ECKey[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        filter = new BloomFilter(elements, 0.0001, 1);
+        items = new byte[ITEMS][];
+        for (int i = 0; i < ITEMS; i++) {
+            items[i] = new byte[20];
+            random.nextBytes(items[i]);
+            if (i % 2 == 0)
+                filter.insert(items[i]);
+        }
+        keys = new ECKey[ITEMS];
+        for (int i = 0; i < ITEMS; i++)
+            keys[i] = new ECKey();
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return filter.contains(items[next++ & (ITEMS - 1)]);
+    }
+
+    /** Looks up all the items in one call, as a node filtering blocks for a peer does. Scored per batch. */
+    @Benchmark
+    public int containsAll() {
+        return filter.containsAll(items, results);
+    }
+
+    @Benchmark
+    public void insert() {
+        filter.insert(items[next++ & (ITEMS - 1)]);
+    }
+
+    /** Inserts both the public key and its hash, as a wallet does for each of its keys. */
+    @Benchmark
+    public void insertKey() {
+        filter.insert(keys[next++ & (ITEMS - 1)]);
+    }
+}
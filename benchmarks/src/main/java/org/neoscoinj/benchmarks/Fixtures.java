@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.params.UnitTestParams;
+import org.neoscoinj.store.BlockStoreException;
+import org.neoscoinj.testing.FakeTxBuilder;
+import org.neoscoinj.utils.BlockFileLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test data shared by the benchmarks. Everything is generated deterministically where the library allows it, so runs
+ * are comparable, and on the {@link UnitTestParams} network, whose easy difficulty makes blocks cheap to solve.
+ */
+class Fixtures {
+    static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private static List<Block> fullBlockTestBlocks;
+
+    /**
+     * Returns the blocks of the full block test suite made by {@link FullBlockTestGenerator}: chains of blocks with
+     * realistic signed transactions, including the forks and invalid blocks used to test consensus rules. The blocks
+     * are generated once per JVM.
+     */
+    static synchronized List<Block> fullBlockTestBlocks() throws Exception {
+        if (fullBlockTestBlocks == null) {
+            File file = File.createTempFile("fullblocktest", ".dat");
+            file.deleteOnExit();
+            new FullBlockTestGenerator(PARAMS).getBlocksToTest(false, false, file);
+            List<Block> blocks = new ArrayList<Block>();
+            for (Block block : new BlockFileLoader(PARAMS, Collections.singletonList(file)))
+                blocks.add(block);
+            if (!file.delete())
+                throw new IOException("Could not delete " + file);
+            fullBlockTestBlocks = Collections.unmodifiableList(blocks);
+        }
+        return fullBlockTestBlocks;
+    }
+
+    /** Returns a chain of the given number of empty solved blocks on top of the genesis block. */
+    static List<StoredBlock> headerChain(int count) throws BlockStoreException, VerificationException {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>(count);
+        Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        StoredBlock previous = new StoredBlock(genesis, genesis.getWork(), 0);
+        Address to = new ECKey().toAddress(PARAMS);
+        for (int i = 0; i < count; i++) {
+            Block block = previous.getHeader().createNextBlock(to, genesis.getTimeSeconds() + (i + 1) * 600);
+            block.solve();
+            previous = previous.build(block.cloneAsHeader());
+            chain.add(previous);
+        }
+        return chain;
+    }
+
+    /** Returns a transaction spending a pay-to-address output of the given key, signed with SIGHASH_ALL. */
+    static Transaction signedSpend(ECKey key) throws ScriptException {
+        Transaction funding = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, key.toAddress(PARAMS));
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+        spend.addSignedInput(funding.getOutput(0), key);
+        return spend;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.HashEngine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures double SHA-256 throughput of the {@link HashEngine} implementations against a single digest guarded by a
+ * global lock, which is how the library used to hash. Run the main method to repeat the suite for 1, 2, 4 ... up to
+ * the number of available cores, so the scaling (or lack of it) is visible in one report.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashingBenchmark {
+    /** 80 bytes is a block header, 250 a typical transaction, 64 a merkle tree node. */
+    @Param({"64", "80", "250", "1024"})
+    public int size;
+
+    private byte[] input;
+    private final MessageDigest lockedDigest = HashEngine.newDigest();
+    private final HashEngine threadLocalEngine = HashEngine.threadLocal();
+    private final HashEngine pooledEngine = HashEngine.pooled(64);
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        public byte[] out = new byte[32];
+        public ByteBuffer direct;
+    }
+
+    @Setup
+    public void setUp() {
+        input = new byte[size];
+        new Random(size).nextBytes(input);
+    }
+
+    @Benchmark
+    public byte[] globalLock() {
+        synchronized (lockedDigest) {
+            lockedDigest.reset();
+            lockedDigest.update(input, 0, input.length);
+            byte[] first = lockedDigest.digest();
+            return lockedDigest.digest(first);
+        }
+    }
+
+    @Benchmark
+    public byte[] threadLocal() {
+        return threadLocalEngine.doubleDigest(input, 0, input.length);
+    }
+
+    @Benchmark
+    public byte[] pooled() {
+        return pooledEngine.doubleDigest(input, 0, input.length);
+    }
+
+    @Benchmark
+    public byte[] threadLocalInto(PerThread state) {
+        threadLocalEngine.doubleDigestInto(state.out, 0, input, 0, input.length);
+        return state.out;
+    }
+
+    @Benchmark
+    public byte[] threadLocalDirectBuffer(PerThread state) {
+        if (state.direct == null) {
+            state.direct = ByteBuffer.allocateDirect(size);
+            state.direct.put(input);
+        }
+        state.direct.rewind();
+        threadLocalEngine.doubleDigestInto(state.out, 0, state.direct);
+        return state.out;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            Options options = new OptionsBuilder()
+                    .include(HashingBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+            if (threads == cores)
+                break;
+        }
+    }
+}
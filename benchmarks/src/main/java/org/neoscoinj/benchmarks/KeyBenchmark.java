@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.Base58;
+import org.neoscoinj.core.ECKey;
+import org.neoscoinj.crypto.DeterministicKey;
+import org.neoscoinj.crypto.HDKeyDerivation;
+import org.neoscoinj.wallet.DeterministicKeyChain;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the key handling done for every address a wallet hands out or recognises: deriving the next child of an
+ * account key, with and without its private key, and encoding and decoding addresses in Base58.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyBenchmark {
+    private DeterministicKey accountKey, watchingKey;
+    private int childNumber;
+
+    private byte[] addressBytes;
+    private String address;
+
+    @Setup
+    public void setUp() {
+        DeterministicKeyChain chain = new DeterministicKeyChain(new byte[16], "", 0);
+        accountKey = chain.getWatchingKey();
+        watchingKey = accountKey.getPubOnly();
+
+        addressBytes = Base58.decode(new ECKey().toAddress(Fixtures.PARAMS).toString());
+        address = Base58.encode(addressBytes);
+    }
+
+    @Benchmark
+    public DeterministicKey deriveChildKey() {
+        return HDKeyDerivation.deriveChildKey(accountKey, nextChildNumber());
+    }
+
+    @Benchmark
+    public DeterministicKey deriveWatchingChildKey() {
+        return HDKeyDerivation.deriveChildKey(watchingKey, nextChildNumber());
+    }
+
+    @Benchmark
+    public String base58Encode() {
+        return Base58.encode(addressBytes);
+    }
+
+    @Benchmark
+    public byte[] base58Decode() throws Exception {
+        return Base58.decode(address);
+    }
+
+    // Deriving a different child each time keeps the JIT from hoisting the derivation out of the loop.
+    private int nextChildNumber() {
+        return childNumber = (childNumber + 1) & Integer.MAX_VALUE;
+    }
+}
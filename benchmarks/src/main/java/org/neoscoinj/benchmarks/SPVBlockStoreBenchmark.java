@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.Sha256Hash;
+import org.neoscoinj.core.StoredBlock;
+import org.neoscoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SPVBlockStore} lookups and inserts on a store that already holds <tt>chainLength</tt> headers, see
+ * {@link Fixtures#headerChain(int)}. Lookups are of headers that are in the store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SPVBlockStoreBenchmark {
+    @Param({"1000", "4000"})
+    public int chainLength;
+
+    private File file;
+    private SPVBlockStore store;
+    private List<StoredBlock> chain;
+    private Sha256Hash[] hashes;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        chain = Fixtures.headerChain(chainLength);
+        hashes = new Sha256Hash[chain.size()];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = chain.get(i).getHeader().getHash();
+        file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new SPVBlockStore(Fixtures.PARAMS, file);
+        for (StoredBlock block : chain)
+            store.put(block);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public StoredBlock get() throws Exception {
+        return store.get(hashes[nextIndex()]);
+    }
+
+    /** Puts headers the store already has, so it stays the same size however long the benchmark runs. */
+    @Benchmark
+    public void put() throws Exception {
+        store.put(chain.get(nextIndex()));
+    }
+
+    private int nextIndex() {
+        if (next == hashes.length)
+            next = 0;
+        return next++;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.ECKey;
+import org.neoscoinj.core.Sha256Hash;
+import org.neoscoinj.core.Transaction;
+import org.neoscoinj.core.TransactionInput;
+import org.neoscoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures signature checking: verifying a pay-to-address input with {@link Script#correctlySpends}, running the
+ * same scripts through {@link Script#executeScript} directly, and the bare {@link ECKey#verify} that dominates both.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptBenchmark {
+    private Transaction spend;
+    private Script scriptSig, scriptPubKey;
+
+    private byte[] hash, signature, pubKey;
+
+    @Setup
+    public void setUp() throws Exception {
+        ECKey key = new ECKey();
+        spend = Fixtures.signedSpend(key);
+        TransactionInput input = spend.getInput(0);
+        scriptSig = input.getScriptSig();
+        scriptPubKey = input.getConnectedOutput().getScriptPubKey();
+
+        hash = Sha256Hash.create("benchmark".getBytes()).getBytes();
+        signature = key.sign(new Sha256Hash(hash)).encodeToDER();
+        pubKey = key.getPubKey();
+    }
+
+    @Benchmark
+    public void correctlySpends() throws Exception {
+        scriptSig.correctlySpends(spend, 0, scriptPubKey);
+    }
+
+    @Benchmark
+    public LinkedList<byte[]> executeScript() throws Exception {
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(spend, 0, scriptSig, stack, true);
+        Script.executeScript(spend, 0, scriptPubKey, stack, true);
+        return stack;
+    }
+
+    @Benchmark
+    public boolean ecKeyVerify() {
+        return ECKey.verify(hash, signature, pubKey);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.benchmarks;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.store.MemoryBlockStore;
+import org.neoscoinj.testing.FakeTxBuilder;
+import org.neoscoinj.wallet.DeterministicSeed;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Wallet#receiveFromBlock} for a block of <tt>transactions</tt> payments to the wallet. Each
+ * invocation starts from a fresh wallet restored from the same seed and freshly parsed copies of the transactions,
+ * so the wallet's work does not grow with the number of invocations. Results are per received transaction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WalletBenchmark {
+    private static final int TRANSACTIONS = 100;
+
+    private DeterministicSeed seed;
+    private StoredBlock storedBlock;
+    private List<byte[]> transactionBytes;
+
+    private Wallet wallet;
+    private List<Transaction> transactions;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        seed = new DeterministicSeed(new byte[16], "", 0);
+        Address to = Wallet.fromSeed(Fixtures.PARAMS, seed).currentReceiveAddress();
+        Transaction[] payments = new Transaction[TRANSACTIONS];
+        transactionBytes = new ArrayList<byte[]>(TRANSACTIONS);
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            payments[i] = FakeTxBuilder.createFakeTx(Fixtures.PARAMS, Coin.CENT, to);
+            transactionBytes.add(payments[i].neoscoinSerialize());
+        }
+        storedBlock = FakeTxBuilder.createFakeBlock(new MemoryBlockStore(Fixtures.PARAMS), payments).storedBlock;
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws Exception {
+        wallet = Wallet.fromSeed(Fixtures.PARAMS, seed);
+        transactions = new ArrayList<Transaction>(TRANSACTIONS);
+        for (byte[] bytes : transactionBytes)
+            transactions.add(new Transaction(Fixtures.PARAMS, bytes));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSACTIONS)
+    public Wallet receiveFromBlock() throws Exception {
+        for (int i = 0; i < TRANSACTIONS; i++)
+            wallet.receiveFromBlock(transactions.get(i), storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        return wallet;
+    }
+}
@@ -108,11 +108,23 @@ public abstract class AbstractBlockChain {
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
 
+    // Best chain blocks held back from batch listeners whilst a listener batch is open, see beginListenerBatch().
+    // The batch is bounded so a long import doesn't pin an unbounded number of full blocks in memory.
+    private static final int MAX_LISTENER_BATCH_BLOCKS = 1000;
+    private static final int MAX_LISTENER_BATCH_TRANSACTIONS = 50000;
+    private int listenerBatchDepth;
+    private final List<BlockChainBatchListener.NewBestBlock> listenerBatch = new ArrayList<BlockChainBatchListener.NewBestBlock>();
+    private final Set<BlockChainBatchListener> listenerBatchTargets = new LinkedHashSet<BlockChainBatchListener>();
+    private int listenerBatchTransactions;
+
     // Holds a block header and, optionally, a list of tx hashes or block's transactions
     class OrphanBlock {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Rough number of bytes held on to, and when the block was put aside.
+        final int size;
+        final long timeSecs;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -123,11 +135,29 @@ public abstract class AbstractBlockChain {
                 this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = this.block.transactions == null ? Block.HEADER_SIZE : this.block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getOptimalEncodingMessageSize();
+            }
+            this.size = size;
+            this.timeSecs = Utils.currentTimeSeconds();
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. Iteration order is arrival order, so the oldest are evicted first. They are
+    // also indexed by the block they build on, so connecting a block only has to look at its own children.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final Map<Sha256Hash, List<OrphanBlock>> orphanBlocksByPrev = new HashMap<Sha256Hash, List<OrphanBlock>>();
+    private long orphanBlockBytes;
+
+    /** Orphan blocks beyond this many are evicted, oldest first. */
+    public static final int MAX_ORPHAN_BLOCKS = 10000;
+    /** Orphan blocks are evicted, oldest first, once their estimated total size goes beyond this many bytes. */
+    public static final long MAX_ORPHAN_BLOCK_BYTES = 32 * 1024 * 1024;
+    /** Orphan blocks that have been waiting for their parent longer than this are evicted. */
+    public static final long MAX_ORPHAN_BLOCK_AGE_SECS = 60 * 60;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -418,17 +448,26 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
                 checkDifficultyTransitions(storedPrev, block);
-                connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
+                // If orphans are waiting on this block a whole run of them may connect now, so hand them to the
+                // listeners in one go.
+                boolean batch = tryConnecting && orphanBlocksByPrev.containsKey(block.getHash());
+                if (batch)
+                    beginListenerBatch();
+                try {
+                    connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
+                    if (tryConnecting)
+                        tryConnectingOrphans(block.getHash());
+                } finally {
+                    if (batch)
+                        endListenerBatch();
+                }
             }
 
-            if (tryConnecting)
-                tryConnectingOrphans();
-
             statsBlocksAdded++;
             return true;
         } finally {
@@ -446,6 +485,8 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanBlocksByPrev.clear();
+            orphanBlockBytes = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -542,11 +583,24 @@ public abstract class AbstractBlockChain {
         // Notify the listeners of the new block, so the depth and workDone of stored transactions can be updated
         // (in the case of the listener being a wallet). Wallets need to know how deep each transaction is so
         // coinbases aren't used before maturity.
+        boolean batching = listenerBatchDepth > 0 && newBlockType == NewBlockType.BEST_CHAIN;
+        if (!batching)
+            flushListenerBatch();
+        BlockChainListener firstListener = null;
         boolean first = true;
+        List<BlockChainBatchListener> batchTargets = null;
         Set<Sha256Hash> falsePositives = Sets.newHashSet();
         if (filteredTxHashList != null) falsePositives.addAll(filteredTxHashList);
         for (final ListenerRegistration<BlockChainListener> registration : listeners) {
-            if (registration.executor == Threading.SAME_THREAD) {
+            if (first)
+                firstListener = registration.listener;
+            if (batching && registration.executor == Threading.SAME_THREAD
+                    && registration.listener instanceof BlockChainBatchListener) {
+                // Held back until the batch is flushed, the transactions are sent to it then.
+                if (batchTargets == null)
+                    batchTargets = new ArrayList<BlockChainBatchListener>(1);
+                batchTargets.add((BlockChainBatchListener) registration.listener);
+            } else if (registration.executor == Threading.SAME_THREAD) {
                 informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
                         newStoredBlock, first, registration.listener, falsePositives);
                 if (newBlockType == NewBlockType.BEST_CHAIN)
@@ -576,10 +630,86 @@ public abstract class AbstractBlockChain {
             first = false;
         }
 
-        trackFalsePositives(falsePositives.size());
+        if (batchTargets != null) {
+            // False positives can only be counted once the batch listeners have seen the transactions.
+            BlockChainBatchListener.NewBestBlock held = new BlockChainBatchListener.NewBestBlock(newStoredBlock, block,
+                    filteredTxHashList, filteredTxn, firstListener, batchTargets, falsePositives);
+            listenerBatch.add(held);
+            listenerBatchTargets.addAll(batchTargets);
+            listenerBatchTransactions += held.getTransactionCount();
+            if (listenerBatch.size() >= MAX_LISTENER_BATCH_BLOCKS
+                    || listenerBatchTransactions >= MAX_LISTENER_BATCH_TRANSACTIONS)
+                flushListenerBatch();
+        } else {
+            trackFalsePositives(falsePositives.size());
+        }
+    }
+
+    /**
+     * <p>Starts holding back new best chain blocks from listeners that implement {@link BlockChainBatchListener}, so
+     * they can be delivered in one call to {@link BlockChainBatchListener#notifyNewBestBlocks(List)} instead of one at
+     * a time. This makes importing a long run of blocks much cheaper for a {@link Wallet}, which then only has to
+     * update itself, run its event listeners and save once per batch.</p>
+     *
+     * <p>Every call must be matched by a call to {@link #endListenerBatch()} on the same thread, in a finally block:
+     * blocks still held back when the batch ends are delivered then, and until that happens the listeners are behind
+     * the chain. Batches nest, and the outermost one is the one that counts. The held back blocks are also delivered
+     * early when a block arrives that doesn't simply extend the best chain, or when the batch grows large.</p>
+     */
+    public void beginListenerBatch() {
+        lock.lock();
+        try {
+            listenerBatchDepth++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Ends a batch started by {@link #beginListenerBatch()}, delivering any blocks that were held back. */
+    public void endListenerBatch() throws VerificationException {
+        lock.lock();
+        try {
+            checkState(listenerBatchDepth > 0, "endListenerBatch without beginListenerBatch");
+            if (--listenerBatchDepth == 0)
+                flushListenerBatch();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
+    private void flushListenerBatch() throws VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        if (listenerBatch.isEmpty())
+            return;
+        List<BlockChainBatchListener.NewBestBlock> blocks = new ArrayList<BlockChainBatchListener.NewBestBlock>(listenerBatch);
+        List<BlockChainBatchListener> targets = new ArrayList<BlockChainBatchListener>(listenerBatchTargets);
+        listenerBatch.clear();
+        listenerBatchTargets.clear();
+        listenerBatchTransactions = 0;
+        log.debug("Delivering {} held back blocks to {} listeners", blocks.size(), targets.size());
+        for (BlockChainBatchListener listener : targets) {
+            // Listeners that were removed whilst the blocks were held back don't get them, as they'd not have
+            // been sent them later on either. Likewise those added part way through only get the later blocks.
+            if (!isListenerRegistered(listener))
+                continue;
+            List<BlockChainBatchListener.NewBestBlock> forListener = new ArrayList<BlockChainBatchListener.NewBestBlock>(blocks.size());
+            for (BlockChainBatchListener.NewBestBlock block : blocks)
+                if (block.targets.contains(listener))
+                    forListener.add(block);
+            listener.notifyNewBestBlocks(Collections.unmodifiableList(forListener));
+        }
+        for (BlockChainBatchListener.NewBestBlock block : blocks)
+            trackFalsePositives(block.falsePositives.size());
+    }
+
+    private boolean isListenerRegistered(BlockChainListener listener) {
+        for (ListenerRegistration<BlockChainListener> registration : listeners)
+            if (registration.listener == listener)
+                return true;
+        return false;
+    }
+
+    static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
                                                          @Nullable List<Sha256Hash> filteredTxHashList,
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
                                                          StoredBlock newStoredBlock, boolean first,
@@ -690,6 +820,8 @@ public abstract class AbstractBlockChain {
             // (Finally) write block to block store
             storedNewHead = addToBlockStore(storedPrev, newChainHead.getHeader());
         }
+        // Blocks held back from batch listeners come before the re-organize.
+        flushListenerBatch();
         // Now inform the listeners. This is necessary so the set of currently active transactions (that we can spend)
         // can be updated to take into account the re-organize. We might also have received new coins we didn't have
         // before and our previous spends might have been undone.
@@ -802,40 +934,66 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the given, just connected, block, then the ones building on those and
+     * so on. Only the descendants of the block are looked at, not the whole orphan pool.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
-                }
-                // Otherwise we can connect it now.
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            Sha256Hash parent = parents.poll();
+            List<OrphanBlock> children = orphanBlocksByPrev.get(parent);
+            if (children == null)
+                continue;
+            // Unindex the children one at a time, so that if one fails to connect its siblings are still reachable.
+            while (!children.isEmpty()) {
+                OrphanBlock orphanBlock = children.remove(0);
+                if (children.isEmpty())
+                    orphanBlocksByPrev.remove(parent);
+                Sha256Hash hash = orphanBlock.block.getHash();
+                orphanBlocks.remove(hash);
+                orphanBlockBytes -= orphanBlock.size;
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                log.info("Connected orphan {}", orphanBlock.block.getHash());
+                log.info("Connected orphan {}", hash);
                 add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                parents.add(hash);
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    private void addOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash prevHash = orphanBlock.block.getPrevBlockHash();
+        orphanBlocks.put(orphanBlock.block.getHash(), orphanBlock);
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(prevHash);
+        if (siblings == null) {
+            siblings = new ArrayList<OrphanBlock>(1);
+            orphanBlocksByPrev.put(prevHash, siblings);
+        }
+        siblings.add(orphanBlock);
+        orphanBlockBytes += orphanBlock.size;
+        // Evict the oldest orphans until we are within bounds again, but never the one we just added.
+        long expiryTimeSecs = Utils.currentTimeSeconds() - MAX_ORPHAN_BLOCK_AGE_SECS;
+        Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
+        while (orphanBlocks.size() > 1) {
+            OrphanBlock oldest = iter.next();
+            if (orphanBlocks.size() <= MAX_ORPHAN_BLOCKS && orphanBlockBytes <= MAX_ORPHAN_BLOCK_BYTES
+                    && oldest.timeSecs >= expiryTimeSecs)
+                break;
+            log.info("Evicting orphan block {}", oldest.block.getHash());
+            iter.remove();
+            orphanBlockBytes -= oldest.size;
+            List<OrphanBlock> oldestSiblings = orphanBlocksByPrev.get(oldest.block.getPrevBlockHash());
+            oldestSiblings.remove(oldest);
+            if (oldestSiblings.isEmpty())
+                orphanBlocksByPrev.remove(oldest.block.getPrevBlockHash());
+        }
     }
 
     // February 16th 2012
@@ -994,6 +1152,26 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /** Returns how many orphan blocks are waiting for their parents to arrive. */
+    public int getOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated number of bytes held by orphan blocks that are waiting for their parents to arrive. */
+    public long getOrphanBlockBytes() {
+        lock.lock();
+        try {
+            return orphanBlockBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** Returns true if the given block is currently in the orphan blocks list. */
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
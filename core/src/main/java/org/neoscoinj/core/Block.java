@@ -37,8 +37,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import static org.neoscoinj.core.Coin.FIFTY_COINS;
-import static org.neoscoinj.core.Utils.doubleDigest;
-import static org.neoscoinj.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Neoscoin system.
@@ -133,6 +131,16 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Contruct a block object from the Neoscoin wire format, starting at the given offset into the array. Unless
+     * the array is retained, the block only reads from it while being constructed.
+     * @see #Block(NetworkParameters, byte[], boolean, boolean, int)
+     */
+    Block(NetworkParameters params, byte[] payloadBytes, int offset, boolean parseLazy, boolean parseRetain, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, offset, parseLazy, parseRetain, length);
+    }
+
 
     /**
      * Construct a block initialized with all the given fields.
@@ -191,7 +199,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(payload, offset, cursor)));
+        hash = Sha256Hash.createDoubleReversed(payload, offset, cursor - offset);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -203,7 +211,8 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        int end = length == UNKNOWN_LENGTH ? payload.length : offset + length;
+        if (end == cursor) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -272,7 +281,7 @@ public class Block extends Message {
      * there are some interdependencies. For example altering a tx requires invalidating the Merkle root and therefore
      * the cached header bytes.
      */
-    private void maybeParseHeader() {
+    private synchronized void maybeParseHeader() {
         if (headerParsed || payload == null)
             return;
         try {
@@ -286,7 +295,7 @@ public class Block extends Message {
         }
     }
 
-    private void maybeParseTransactions() {
+    private synchronized void maybeParseTransactions() {
         if (transactionsParsed || payload == null)
             return;
         try {
@@ -463,7 +472,7 @@ public class Block extends Message {
      */
     private int guessTransactionsLength() {
         if (transactionBytesValid)
-            return payload.length - HEADER_SIZE;
+            return length - HEADER_SIZE;
         if (transactions == null)
             return 0;
         int len = VarInt.sizeOf(transactions.size());
@@ -508,10 +517,13 @@ public class Block extends Message {
      * resulting bytes.
      */
     private Sha256Hash calculateHash() {
+        // Hash straight out of the cached payload if we can, to avoid copying the header.
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE)
+            return Sha256Hash.createDoubleReversed(payload, offset, HEADER_SIZE);
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            return Sha256Hash.createDoubleReversed(bos.toByteArray(), 0, HEADER_SIZE);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -735,6 +747,8 @@ public class Block extends Message {
             tree.add(t.getHash().getBytes());
         }
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
+        HashEngine engine = HashEngine.get();
+        byte[] pair = new byte[64];  // Scratch space for the concatenated, byte reversed children.
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
@@ -742,9 +756,16 @@ public class Block extends Message {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
                 // transactions.
                 int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+                byte[] leftBytes = tree.get(levelOffset + left);
+                byte[] rightBytes = tree.get(levelOffset + right);
+                for (int i = 0; i < 32; i++) {
+                    pair[i] = leftBytes[31 - i];
+                    pair[32 + i] = rightBytes[31 - i];
+                }
+                byte[] parent = new byte[32];
+                engine.doubleDigestInto(parent, 0, pair, 0, 64);
+                Utils.reverseBytesInPlace(parent);
+                tree.add(parent);
             }
             // Move to the next level.
             levelOffset += levelSize;
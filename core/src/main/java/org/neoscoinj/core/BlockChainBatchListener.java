@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A {@link BlockChainListener} that can take a run of new best chain blocks in one go. Whilst a batch is open on
+ * the chain (see {@link AbstractBlockChain#beginListenerBatch()}), blocks that extend the best chain are not passed
+ * to listeners implementing this interface one at a time. They are collected instead and handed over together to
+ * {@link #notifyNewBestBlocks(List)}, which lets the listener do its own book keeping once per batch rather than once
+ * per block.</p>
+ *
+ * <p>Batching only applies to listeners registered with {@link org.neoscoinj.utils.Threading#SAME_THREAD}. A batch is
+ * always delivered before any side chain block or re-organize is, so listeners still see events in chain order.</p>
+ */
+public interface BlockChainBatchListener extends BlockChainListener {
+    /**
+     * Called with a run of blocks that extended the best chain, oldest first. It replaces the calls to
+     * {@link #receiveFromBlock(Transaction, StoredBlock, AbstractBlockChain.NewBlockType, int)},
+     * {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, AbstractBlockChain.NewBlockType, int)} and
+     * {@link #notifyNewBestBlock(StoredBlock)} that would otherwise have been made for each of them. The
+     * implementation must call {@link NewBestBlock#sendTransactionsTo(BlockChainListener)} for every block, in order,
+     * to find out about the relevant transactions it contains.
+     */
+    void notifyNewBestBlocks(List<NewBestBlock> blocks) throws VerificationException;
+
+    /** A block that extended the best chain, and whatever transactions of it were downloaded. */
+    public static class NewBestBlock {
+        private final StoredBlock storedBlock;
+        private final Block block;
+        @Nullable private final List<Sha256Hash> filteredTxHashList;
+        @Nullable private final Map<Sha256Hash, Transaction> filteredTxn;
+        // The listener that may be given the transaction objects themselves; all others are sent copies.
+        private final BlockChainListener firstListener;
+        // The batch listeners this block was held back from.
+        final List<BlockChainBatchListener> targets;
+        final Set<Sha256Hash> falsePositives;
+
+        NewBestBlock(StoredBlock storedBlock, Block block, @Nullable List<Sha256Hash> filteredTxHashList,
+                     @Nullable Map<Sha256Hash, Transaction> filteredTxn, BlockChainListener firstListener,
+                     List<BlockChainBatchListener> targets, Set<Sha256Hash> falsePositives) {
+            this.storedBlock = storedBlock;
+            this.block = block;
+            this.filteredTxHashList = filteredTxHashList;
+            this.filteredTxn = filteredTxn;
+            this.firstListener = firstListener;
+            this.targets = targets;
+            this.falsePositives = falsePositives;
+        }
+
+        /** Returns the block as it was stored in the chain. */
+        public StoredBlock getBlock() {
+            return storedBlock;
+        }
+
+        /**
+         * Sends the relevant transactions of this block to the given listener exactly as the chain would have done
+         * without batching, via {@link BlockChainListener#receiveFromBlock(Transaction, StoredBlock,
+         * AbstractBlockChain.NewBlockType, int)} and {@link BlockChainListener#notifyTransactionIsInBlock(Sha256Hash,
+         * StoredBlock, AbstractBlockChain.NewBlockType, int)}.
+         */
+        public void sendTransactionsTo(BlockChainListener listener) throws VerificationException {
+            AbstractBlockChain.informListenerForNewTransactions(block, AbstractBlockChain.NewBlockType.BEST_CHAIN,
+                    filteredTxHashList, filteredTxn, storedBlock, listener == firstListener, listener, falsePositives);
+        }
+
+        int getTransactionCount() {
+            if (block.transactions != null)
+                return block.transactions.size();
+            return filteredTxn == null ? 0 : filteredTxn.size();
+        }
+
+        @Override
+        public String toString() {
+            return "NewBestBlock " + storedBlock.getHeight() + " " + storedBlock.getHeader().getHashAsString();
+        }
+    }
+}
@@ -50,11 +50,18 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    // The bit array, packed little endian into longs so that bit i of the serialized byte array is bit i of the words.
+    // dataLength is the length of the serialized array in bytes.
+    private long[] words;
+    private int dataLength;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
 
+    // Scratch space so that probing the filter doesn't allocate. Guarded by the object lock like everything else.
+    private final int[] hashScratch = new int[MAX_HASH_FUNCS];
+    private final byte[] outPointScratch = new byte[36];
+
     // Same value as the reference client
     // A filter of 20,000 items and a false positive rate of 0.1% or one of 10,000 items and 0.0001% is just under 36,000 bytes
     private static final long MAX_FILTER_SIZE = 36000;
@@ -109,9 +116,9 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = (int)(-1  / (pow(log(2), 2)) * elements * log(falsePositiveRate));
         size = max(1, min(size, (int) MAX_FILTER_SIZE * 8) / 8);
-        data = new byte[size];
+        setData(new byte[size]);
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = (int)(data.length * 8 / (double)elements * log(2));
+        hashFuncs = (int)(dataLength * 8 / (double)elements * log(2));
         hashFuncs = max(1, min(hashFuncs, MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
@@ -121,19 +128,34 @@ public class BloomFilter extends Message {
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (dataLength * 8)), hashFuncs);
     }
 
     @Override
     public String toString() {
-        return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
+        return "Bloom Filter of size " + dataLength + " with " + hashFuncs + " hash functions.";
+    }
+
+    private void setData(byte[] data) {
+        words = new long[(data.length + 7) / 8];
+        for (int i = 0; i < data.length; i++)
+            words[i >>> 3] |= (data[i] & 0xFFL) << ((i & 7) * 8);
+        dataLength = data.length;
+    }
+
+    private byte[] getData() {
+        byte[] data = new byte[dataLength];
+        for (int i = 0; i < dataLength; i++)
+            data[i] = (byte) (words[i >>> 3] >>> ((i & 7) * 8));
+        return data;
     }
 
     @Override
     void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
+        setData(data);
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -147,8 +169,8 @@ public class BloomFilter extends Message {
      */
     @Override
     void neoscoinSerializeToStream(OutputStream stream) throws IOException {
-        stream.write(new VarInt(data.length).encode());
-        stream.write(data);
+        stream.write(new VarInt(dataLength).encode());
+        stream.write(getData());
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
         Utils.uint32ToByteStreamLE(nTweak, stream);
         stream.write(nFlags);
@@ -218,22 +240,117 @@ public class BloomFilter extends Message {
         return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
     }
     
+    /**
+     * Calculates the bit index of the object for hash functions first (inclusive) to last (exclusive) and writes them
+     * into {@link #hashScratch}. This is the same as calling {@link #murmurHash3(byte[], long, int, byte[])} for each
+     * hash function, but only passes over the object once: mixing each block of the input doesn't depend on the hash
+     * function, so it's done once and folded into all of the running hashes in a tight loop.
+     */
+    private void hashIndexes(byte[] object, int first, int last) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        final int[] h = hashScratch;
+        for (int i = first; i < last; i++)
+            h[i] = (int)(i * 0xFBA4C795L + nTweak);
+
+        int numBlocks = (object.length / 4) * 4;
+        for (int b = 0; b < numBlocks; b += 4) {
+            int k1 = (object[b] & 0xFF) |
+                  ((object[b+1] & 0xFF) << 8) |
+                  ((object[b+2] & 0xFF) << 16) |
+                  ((object[b+3] & 0xFF) << 24);
+            k1 *= c1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= c2;
+            for (int i = first; i < last; i++) {
+                int h1 = h[i] ^ k1;
+                h1 = rotateLeft32(h1, 13);
+                h[i] = h1*5+0xe6546b64;
+            }
+        }
+
+        int k1 = 0;
+        switch (object.length & 3) {
+            case 3:
+                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (object[numBlocks] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+                // Fall through.
+            default:
+                break;
+        }
+
+        final long numBits = dataLength * 8L;
+        for (int i = first; i < last; i++) {
+            int h1 = h[i] ^ k1 ^ object.length;
+            h1 ^= h1 >>> 16;
+            h1 *= 0x85ebca6b;
+            h1 ^= h1 >>> 13;
+            h1 *= 0xc2b2ae35;
+            h1 ^= h1 >>> 16;
+            h[i] = (int)((h1&0xFFFFFFFFL) % numBits);
+        }
+    }
+
+    private boolean checkBit(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private boolean containsLocked(byte[] object) {
+        if (hashFuncs == 0)
+            return true;
+        // Most objects don't match, and the first hash function is usually enough to tell, so try it on its own
+        // before paying for the rest.
+        hashIndexes(object, 0, 1);
+        if (!checkBit(hashScratch[0]))
+            return false;
+        int numHashFuncs = (int) hashFuncs;
+        hashIndexes(object, 1, numHashFuncs);
+        for (int i = 1; i < numHashFuncs; i++) {
+            if (!checkBit(hashScratch[i]))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
     public synchronized boolean contains(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
-                return false;
+        return containsLocked(object);
+    }
+
+    /**
+     * Checks each of the given objects against the filter, as {@link #contains(byte[])} would, setting the
+     * corresponding entry of results. The filter is only locked once for the whole batch and nothing is allocated.
+     *
+     * @return the number of objects that matched.
+     */
+    public synchronized int containsAll(byte[][] objects, boolean[] results) {
+        checkArgument(results.length >= objects.length);
+        int matched = 0;
+        for (int i = 0; i < objects.length; i++) {
+            results[i] = containsLocked(objects[i]);
+            if (results[i])
+                matched++;
         }
-        return true;
+        return matched;
     }
-    
+
     /** Insert the given arbitrary data into the filter */
     public synchronized void insert(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+        int numHashFuncs = (int) hashFuncs;
+        hashIndexes(object, 0, numHashFuncs);
+        for (int i = 0; i < numHashFuncs; i++) {
+            int index = hashScratch[i];
+            words[index >>> 6] |= 1L << index;
+        }
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
@@ -250,7 +367,7 @@ public class BloomFilter extends Message {
      * transaction instead of 100-300 bytes as per usual.
      */
     public synchronized void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+        setData(new byte[] {(byte) 0xff});
     }
 
     /**
@@ -259,13 +376,13 @@ public class BloomFilter extends Message {
      */
     public synchronized void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            checkArgument(filter.dataLength == this.dataLength &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            for (int i = 0; i < words.length; i++)
+                this.words[i] |= filter.words[i];
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            setData(new byte[] {(byte) 0xff});
         }
     }
 
@@ -274,10 +391,14 @@ public class BloomFilter extends Message {
      * for when this can be a useful thing to do.
      */
     public synchronized boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
+        int fullWords = dataLength / 8;
+        for (int i = 0; i < fullWords; i++)
+            if (words[i] != -1L)
                 return false;
-        return true;
+        if (fullWords == words.length)
+            return true;
+        long mask = (1L << ((dataLength % 8) * 8)) - 1;
+        return (words[fullWords] & mask) == mask;
     }
 
     /**
@@ -306,10 +427,11 @@ public class BloomFilter extends Message {
         List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
         List<Transaction> matched = Lists.newArrayList();
         byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
+        boolean[] matches = applyAndUpdate(txns);
         for (int i = 0; i < txns.size(); i++) {
             Transaction tx = txns.get(i);
             txHashes.add(tx.getHash());
-            if (applyAndUpdate(tx)) {
+            if (matches[i]) {
                 Utils.setBitLE(bits, i);
                 matched.add(tx);
             }
@@ -321,37 +443,67 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
+    /**
+     * Applies the filter to each of the given transactions in order, as {@link #applyAndUpdate(Transaction)} would,
+     * but holding the lock once for the whole batch. Matches update the filter before later transactions are
+     * checked, so a transaction spending an earlier match in the list is matched too.
+     *
+     * @return whether each transaction matched.
+     */
+    public synchronized boolean[] applyAndUpdate(List<Transaction> txns) {
+        BloomUpdate flag = getUpdateFlag();
+        boolean[] matches = new boolean[txns.size()];
+        for (int i = 0; i < matches.length; i++)
+            matches[i] = applyAndUpdateLocked(txns.get(i), flag);
+        return matches;
+    }
+
     public synchronized boolean applyAndUpdate(Transaction tx) {
-        if (contains(tx.getHash().getBytes()))
+        return applyAndUpdateLocked(tx, getUpdateFlag());
+    }
+
+    private boolean applyAndUpdateLocked(Transaction tx, BloomUpdate flag) {
+        Sha256Hash txHash = tx.getHash();
+        if (containsLocked(txHash.getBytes()))
             return true;
         boolean found = false;
-        BloomUpdate flag = getUpdateFlag();
-        for (TransactionOutput output : tx.getOutputs()) {
-            Script script = output.getScriptPubKey();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            Script script = outputs.get(i).getScriptPubKey();
             for (ScriptChunk chunk : script.getChunks()) {
                 if (!chunk.isPushData())
                     continue;
-                if (contains(chunk.data)) {
+                if (containsLocked(chunk.data)) {
                     boolean isSendingToPubKeys = script.isSentToRawPubKey() || script.isSentToMultiSig();
                     if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))
-                        insert(output.getOutPointFor().neoscoinSerialize());
+                        insert(serializeOutPoint(txHash, i));
                     found = true;
                 }
             }
         }
         if (found) return true;
         for (TransactionInput input : tx.getInputs()) {
-            if (contains(input.getOutpoint().neoscoinSerialize())) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            if (containsLocked(serializeOutPoint(outPoint.getHash(), outPoint.getIndex()))) {
                 return true;
             }
             for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
-                if (chunk.isPushData() && contains(chunk.data))
+                if (chunk.isPushData() && containsLocked(chunk.data))
                     return true;
             }
         }
         return false;
     }
-    
+
+    /** Serializes an outpoint the same way {@link TransactionOutPoint} does, into scratch space. */
+    private byte[] serializeOutPoint(Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        for (int i = 0; i < 32; i++)
+            outPointScratch[i] = hashBytes[31 - i];
+        Utils.uint32ToByteArrayLE(index, outPointScratch, 32);
+        return outPointScratch;
+    }
+
     @Override
     public synchronized boolean equals(Object o) {
         if (this == o) return true;
@@ -359,11 +511,12 @@ public class BloomFilter extends Message {
         BloomFilter other = (BloomFilter) o;
         return hashFuncs == other.hashFuncs &&
                nTweak == other.nTweak &&
-               Arrays.equals(data, other.data);
+               dataLength == other.dataLength &&
+               Arrays.equals(words, other.words);
     }
 
     @Override
     public synchronized int hashCode() {
-        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
+        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(words));
     }
 }
@@ -24,24 +24,27 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.DigestInputStream;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -67,19 +70,36 @@ import static com.google.common.base.Preconditions.*;
  * <p>After the signatures come an int32 containing the number of checkpoints in the file. Then each checkpoint follows
  * one after the other. A checkpoint is 12 bytes for the total work done field, 4 bytes for the height, 80 bytes
  * for the block header and then 1 zero byte at the end (i.e. number of transactions in the block: always zero).</p>
+ *
+ * <p>The compact format, "CHECKPOINTS 2", has the same layout but each checkpoint is a fixed size record of
+ * {@link #COMPACT_RECORD_SIZE} bytes: the 12 byte total work, 4 byte height and 80 byte header, followed by a 32 byte
+ * header commitment (see {@link #extendHeaderCommitment(Sha256Hash, Sha256Hash)}). Checkpoints are in ascending order
+ * of height, so they can be binary searched in place by height or time without deserializing them first.</p>
  */
 public class CheckpointManager {
     private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
 
     private static final String BINARY_MAGIC = "CHECKPOINTS 1";
+    private static final String COMPACT_MAGIC = "CHECKPOINTS 2";
     private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
     private static final int MAX_SIGNATURES = 256;
 
-    // Map of block header time to data.
-    protected final TreeMap<Long, StoredBlock> checkpoints = new TreeMap<Long, StoredBlock>();
+    /** Size of a checkpoint in the compact format: the stored block followed by its header commitment. */
+    public static final int COMPACT_RECORD_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE + 32;
+    // Where fields of a record are, see StoredBlock.serializeCompact(ByteBuffer).
+    private static final int HEIGHT_OFFSET = StoredBlock.CHAIN_WORK_BYTES;
+    private static final int TIME_OFFSET = StoredBlock.CHAIN_WORK_BYTES + 4 + 68;
+
+    // Serialized checkpoints in ascending order of height (and therefore time), which is the order BuildCheckpoints
+    // writes them in. Only ever read with absolute gets or through duplicates, so it's safe to share between threads.
+    private ByteBuffer records;
+    private int recordSize;
+    private int numCheckpoints;
+    // The bytes covered by the data hash, which is only calculated when asked for.
+    private ByteBuffer hashedData;
+    private volatile Sha256Hash dataHash;
 
     protected final NetworkParameters params;
-    protected final Sha256Hash dataHash;
 
     public static final BaseEncoding BASE64 = BaseEncoding.base64().omitPadding();
 
@@ -90,57 +110,74 @@ public class CheckpointManager {
         inputStream.mark(1);
         int first = inputStream.read();
         inputStream.reset();
+        if (first == BINARY_MAGIC.charAt(0)) {
+            try {
+                readBinary(ByteBuffer.wrap(ByteStreams.toByteArray(inputStream)));
+            } finally {
+                inputStream.close();
+            }
+        } else if (first == TEXTUAL_MAGIC.charAt(0)) {
+            readTextual(inputStream);
+        } else {
+            throw new IOException("Unsupported format.");
+        }
+    }
+
+    /**
+     * Loads checkpoints from a file. Binary files are memory mapped and checkpoints are only deserialized when they're
+     * looked up, so this is cheap however many checkpoints there are.
+     */
+    public CheckpointManager(NetworkParameters params, File file) throws IOException {
+        this.params = checkNotNull(params);
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        int first = buffer.hasRemaining() ? buffer.get(0) : -1;
         if (first == BINARY_MAGIC.charAt(0))
-            dataHash = readBinary(inputStream);
+            readBinary(buffer);
         else if (first == TEXTUAL_MAGIC.charAt(0))
-            dataHash = readTextual(inputStream);
+            readTextual(new FileInputStream(file));
         else
             throw new IOException("Unsupported format.");
     }
 
-    private Sha256Hash readBinary(InputStream inputStream) throws IOException {
-        DataInputStream dis = null;
+    private void readBinary(ByteBuffer buffer) throws IOException {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            DigestInputStream digestInputStream = new DigestInputStream(inputStream, digest);
-            dis = new DataInputStream(digestInputStream);
-            digestInputStream.on(false);
+            buffer.order(ByteOrder.BIG_ENDIAN);
             byte[] header = new byte[BINARY_MAGIC.length()];
-            dis.readFully(header);
-            if (!Arrays.equals(header, BINARY_MAGIC.getBytes("US-ASCII")))
+            buffer.get(header);
+            if (Arrays.equals(header, BINARY_MAGIC.getBytes("US-ASCII")))
+                recordSize = StoredBlock.COMPACT_SERIALIZED_SIZE;
+            else if (Arrays.equals(header, COMPACT_MAGIC.getBytes("US-ASCII")))
+                recordSize = COMPACT_RECORD_SIZE;
+            else
                 throw new IOException("Header bytes did not match expected version");
-            int numSignatures = checkPositionIndex(dis.readInt(), MAX_SIGNATURES, "Num signatures out of range");
-            for (int i = 0; i < numSignatures; i++) {
-                byte[] sig = new byte[65];
-                dis.readFully(sig);
-                // TODO: Do something with the signature here.
-            }
-            digestInputStream.on(true);
-            int numCheckpoints = dis.readInt();
+            int numSignatures = checkPositionIndex(buffer.getInt(), MAX_SIGNATURES, "Num signatures out of range");
+            // TODO: Do something with the signatures here.
+            buffer.position(buffer.position() + numSignatures * 65);
+            int hashedStart = buffer.position();
+            numCheckpoints = buffer.getInt();
             checkState(numCheckpoints > 0);
-            final int size = StoredBlock.COMPACT_SERIALIZED_SIZE;
-            ByteBuffer buffer = ByteBuffer.allocate(size);
-            for (int i = 0; i < numCheckpoints; i++) {
-                if (dis.read(buffer.array(), 0, size) < size)
-                    throw new IOException("Incomplete read whilst loading checkpoints.");
-                StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
-                buffer.position(0);
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
-            }
-            Sha256Hash dataHash = new Sha256Hash(digest.digest());
-            log.info("Read {} checkpoints, hash is {}", checkpoints.size(), dataHash);
-            return dataHash;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        } catch (ProtocolException e) {
-            throw new IOException(e);
-        } finally {
-            if (dis != null) dis.close();
-            inputStream.close();
+            if (buffer.remaining() < (long) numCheckpoints * recordSize)
+                throw new IOException("Incomplete read whilst loading checkpoints.");
+            buffer.limit(buffer.position() + numCheckpoints * recordSize);
+            records = buffer.slice();
+            buffer.position(hashedStart);
+            hashedData = buffer.slice();
+            log.info("Read {} checkpoints", numCheckpoints);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Incomplete read whilst loading checkpoints.");
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);  // Signatures run past the end of the data.
         }
     }
 
-    private Sha256Hash readTextual(InputStream inputStream) throws IOException {
+    private void readTextual(InputStream inputStream) throws IOException {
         Hasher hasher = Hashing.sha256().newHasher();
         BufferedReader reader = null;
         try {
@@ -151,39 +188,67 @@ public class CheckpointManager {
             int numSigs = Integer.parseInt(reader.readLine());
             for (int i = 0; i < numSigs; i++)
                 reader.readLine(); // Skip sigs for now.
-            int numCheckpoints = Integer.parseInt(reader.readLine());
+            numCheckpoints = Integer.parseInt(reader.readLine());
             checkState(numCheckpoints > 0);
             // Hash numCheckpoints in a way compatible to the binary format.
             hasher.putBytes(ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(numCheckpoints).array());
-            final int size = StoredBlock.COMPACT_SERIALIZED_SIZE;
-            ByteBuffer buffer = ByteBuffer.allocate(size);
+            recordSize = StoredBlock.COMPACT_SERIALIZED_SIZE;
+            records = ByteBuffer.allocate(numCheckpoints * recordSize);
             for (int i = 0; i < numCheckpoints; i++) {
                 byte[] bytes = BASE64.decode(reader.readLine());
+                if (bytes.length != recordSize)
+                    throw new IOException("Checkpoint " + i + " has the wrong length: " + bytes.length);
                 hasher.putBytes(bytes);
-                buffer.position(0);
-                buffer.put(bytes);
-                buffer.position(0);
-                StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
+                records.put(bytes);
             }
+            records.position(0);
             HashCode hash = hasher.hash();
-            log.info("Read {} checkpoints, hash is {}", checkpoints.size(), hash);
-            return new Sha256Hash(hash.asBytes());
+            dataHash = new Sha256Hash(hash.asBytes());
+            log.info("Read {} checkpoints, hash is {}", numCheckpoints, dataHash);
         } finally {
             if (reader != null) reader.close();
         }
     }
 
-    /**
-     * Returns a {@link StoredBlock} representing the last checkpoint before the given time, for example, normally
-     * you would want to know the checkpoint before the earliest wallet birthday.
-     */
-    public StoredBlock getCheckpointBefore(long time) {
+    private int getHeight(int index) {
+        return records.getInt(index * recordSize + HEIGHT_OFFSET);
+    }
+
+    private long getTimeSeconds(int index) {
+        // Block headers are little endian.
+        return Integer.reverseBytes(records.getInt(index * recordSize + TIME_OFFSET)) & 0xFFFFFFFFL;
+    }
+
+    private StoredBlock getCheckpoint(int index) {
+        ByteBuffer buffer = records.duplicate();
+        buffer.position(index * recordSize);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Only a header is parsed, which can't really fail.
+        }
+    }
+
+    /** Returns the index of the last checkpoint with a height (or time) no greater than the given one, or -1. */
+    private int floorIndex(long value, boolean byHeight) {
+        int low = 0, high = numCheckpoints - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midValue = byHeight ? getHeight(mid) : getTimeSeconds(mid);
+            if (midValue <= value) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private StoredBlock getCheckpointOrGenesis(int index) {
+        if (index >= 0)
+            return getCheckpoint(index);
         try {
-            checkArgument(time > params.getGenesisBlock().getTimeSeconds());
-            // This is thread safe because the map never changes after creation.
-            Map.Entry<Long, StoredBlock> entry = checkpoints.floorEntry(time);
-            if (entry != null) return entry.getValue();
             Block genesis = params.getGenesisBlock().cloneAsHeader();
             return new StoredBlock(genesis, genesis.getWork(), 0);
         } catch (VerificationException e) {
@@ -191,13 +256,75 @@ public class CheckpointManager {
         }
     }
 
+    /**
+     * Returns a {@link StoredBlock} representing the last checkpoint before the given time, for example, normally
+     * you would want to know the checkpoint before the earliest wallet birthday.
+     */
+    public StoredBlock getCheckpointBefore(long time) {
+        checkArgument(time > params.getGenesisBlock().getTimeSeconds());
+        return getCheckpointOrGenesis(floorIndex(time, false));
+    }
+
+    /**
+     * Returns a {@link StoredBlock} representing the last checkpoint at or below the given height, or the genesis block
+     * if there is none.
+     */
+    public StoredBlock getCheckpointBeforeHeight(int height) {
+        checkArgument(height >= 0);
+        return getCheckpointOrGenesis(floorIndex(height, true));
+    }
+
+    /**
+     * Returns the header commitment recorded for the checkpoint at exactly the given height, or null if there is no
+     * checkpoint at that height or the checkpoints were loaded from a format that doesn't record commitments. See
+     * {@link #extendHeaderCommitment(Sha256Hash, Sha256Hash)} for what is committed to.
+     */
+    @Nullable
+    public Sha256Hash getHeaderCommitment(int height) {
+        if (recordSize != COMPACT_RECORD_SIZE)
+            return null;
+        int index = floorIndex(height, true);
+        if (index < 0 || getHeight(index) != height)
+            return null;
+        byte[] bytes = new byte[32];
+        ByteBuffer buffer = records.duplicate();
+        buffer.position(index * recordSize + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        buffer.get(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    /**
+     * <p>Folds the hash of the next block header into a header commitment. The commitment recorded for a checkpoint
+     * starts at {@link Sha256Hash#ZERO_HASH} and is extended by the hash of every header on the best chain from the
+     * genesis block up to and including the checkpoint, so that it commits to the whole chain of headers without
+     * saying anything about the UTXO set.</p>
+     *
+     * <p>A client that downloads headers from the genesis block (or from an earlier checkpoint whose commitment it
+     * trusts) can fold them in as they arrive and compare the result when it reaches the next checkpoint.</p>
+     */
+    public static Sha256Hash extendHeaderCommitment(Sha256Hash commitment, Sha256Hash blockHash) {
+        byte[] bytes = new byte[64];
+        System.arraycopy(commitment.getBytes(), 0, bytes, 0, 32);
+        System.arraycopy(blockHash.getBytes(), 0, bytes, 32, 32);
+        return Sha256Hash.createDouble(bytes);
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
-        return checkpoints.size();
+        return numCheckpoints;
     }
 
     /** Returns a hash of the concatenated checkpoint data. */
     public Sha256Hash getDataHash() {
+        if (dataHash == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(hashedData.duplicate());
+                dataHash = new Sha256Hash(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
         return dataHash;
     }
 
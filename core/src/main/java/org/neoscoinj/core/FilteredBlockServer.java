@@ -0,0 +1,410 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.net.MessageWriteTarget;
+import org.neoscoinj.net.NioServer;
+import org.neoscoinj.net.StreamParser;
+import org.neoscoinj.net.StreamParserFactory;
+import org.neoscoinj.script.Script;
+import org.neoscoinj.utils.DaemonThreadFactory;
+import org.neoscoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Serves Bloom filtered blocks to inbound SPV peers, so that an application can run its own backend for its light
+ * wallets. Peers connect, send their filter with <tt>filterload</tt> and then ask for
+ * {@link InventoryItem.Type#FilteredBlock}s with <tt>getdata</tt>. Each is answered with a <tt>merkleblock</tt>
+ * followed by the matching transactions, exactly as the reference client does, and pings are answered once all the
+ * data asked for before them has been sent. Blocks come from a {@link BlockProvider}; finding out which blocks exist
+ * (headers and inventory) is left to the node the blocks come from.</p>
+ *
+ * <p>Requests of each peer are handled in order, as filters can be updated by the blocks they're applied to, but
+ * peers are served in parallel on a pool of worker threads. Per block work that doesn't depend on the filter, ie.
+ * hashing the transactions and serializing them into <tt>tx</tt> messages, is done once and cached. A peer that
+ * doesn't read its data fast enough isn't sent any more until its outbound buffer drains, rather than buffering
+ * without bound.</p>
+ */
+public class FilteredBlockServer implements StreamParserFactory {
+    private static final Logger log = LoggerFactory.getLogger(FilteredBlockServer.class);
+
+    /** Supplies the blocks to be served. Must be thread safe. */
+    public interface BlockProvider {
+        /** Returns the block with the given hash, or null if it isn't available. */
+        @Nullable Block getBlock(Sha256Hash hash);
+
+        /** Returns the height of the best chain, which is announced to peers when they connect. */
+        int getBestHeight();
+    }
+
+    /** Bytes waiting to be written to a peer above which no more responses are built for it. */
+    @VisibleForTesting static final int MAX_PENDING_WRITE_BYTES = 2 * 1024 * 1024;
+    /** How long to wait before checking a peer's outbound buffer again when it's full. */
+    private static final int BACKPRESSURE_DELAY_MSEC = 20;
+    /** Requests handled for a peer before giving the worker thread to another one. */
+    private static final int REQUESTS_PER_TURN = 16;
+    /** Requests a peer may have queued before it's disconnected. */
+    private static final int MAX_QUEUED_REQUESTS = 2 * (int) GetDataMessage.MAX_INVENTORY_ITEMS;
+    private static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    // Magic, command, length and checksum.
+    private static final int MESSAGE_HEADER_SIZE = NeoscoinSerializer.NeoscoinPacketHeader.HEADER_LENGTH + 4;
+
+    private final NetworkParameters params;
+    private final BlockProvider blockProvider;
+    private final NeoscoinSerializer serializer;
+    private final ScheduledExecutorService executor;
+    private final Cache<Sha256Hash, CachedBlock> blockCache;
+    private final Set<ServerPeer> peers = new CopyOnWriteArraySet<ServerPeer>();
+    @Nullable private NioServer server;
+
+    /** What is needed to serve a block to any peer, whatever its filter. Immutable once built. */
+    private static class CachedBlock {
+        final byte[] headerBytes;
+        final List<Transaction> transactions;
+        final List<Sha256Hash> txHashes;
+        // Complete tx messages, header and all, ready to be written to the socket.
+        final byte[][] txMessages;
+        // Transactions only keep their scripts weakly referenced. Holding them here means every thread applying a
+        // filter sees the same fully built scripts, rather than racing to parse them again.
+        final List<Script> scripts;
+        final int size;
+
+        CachedBlock(NeoscoinSerializer serializer, Block block) throws IOException {
+            byte[] header = block.cloneAsHeader().neoscoinSerialize();
+            this.headerBytes = header;
+            this.transactions = block.getTransactions();
+            this.txHashes = new ArrayList<Sha256Hash>(transactions.size());
+            this.txMessages = new byte[transactions.size()][];
+            this.scripts = new ArrayList<Script>();
+            int size = header.length;
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction tx = transactions.get(i);
+                txHashes.add(tx.getHash());
+                for (TransactionInput input : tx.getInputs()) {
+                    input.getOutpoint();
+                    scripts.add(input.getScriptSig());
+                }
+                for (TransactionOutput output : tx.getOutputs())
+                    scripts.add(output.getScriptPubKey());
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                serializer.serialize("tx", tx.neoscoinSerialize(), bos);
+                txMessages[i] = bos.toByteArray();
+                // Count the parsed form as well as the serialized one.
+                size += 2 * txMessages[i].length + 32;
+            }
+            this.size = size;
+        }
+    }
+
+    /**
+     * Creates a server that serves peers on as many threads as there are processors and caches up to 64MB of blocks.
+     * Call {@link #start(InetSocketAddress)} to accept connections.
+     */
+    public FilteredBlockServer(NetworkParameters params, BlockProvider blockProvider) {
+        this(params, blockProvider, Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_BYTES);
+    }
+
+    public FilteredBlockServer(NetworkParameters params, BlockProvider blockProvider, int threads, long cacheBytes) {
+        checkArgument(threads > 0);
+        this.params = checkNotNull(params);
+        this.blockProvider = checkNotNull(blockProvider);
+        this.serializer = new NeoscoinSerializer(params);
+        this.executor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory("FilteredBlockServer"));
+        this.blockCache = CacheBuilder.newBuilder()
+                .maximumWeight(cacheBytes)
+                .weigher(new Weigher<Sha256Hash, CachedBlock>() {
+                    @Override
+                    public int weigh(Sha256Hash hash, CachedBlock block) {
+                        return block.size;
+                    }
+                })
+                .build();
+    }
+
+    /** Starts accepting connections on the given address. */
+    public synchronized void start(InetSocketAddress bindAddress) throws IOException {
+        checkState(server == null, "Already started");
+        server = new NioServer(this, bindAddress);
+        server.startAsync();
+        server.awaitRunning();
+    }
+
+    /** Disconnects all peers and stops accepting connections. */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stopAsync();
+            server.awaitTerminated();
+            server = null;
+        }
+        for (ServerPeer peer : peers)
+            peer.close();
+        executor.shutdownNow();
+    }
+
+    /** Returns the number of peers currently connected. */
+    public int getConnectedPeerCount() {
+        return peers.size();
+    }
+
+    @Override
+    public StreamParser getNewParser(InetAddress inetAddress, int port) {
+        return new ServerPeer(new InetSocketAddress(inetAddress, port));
+    }
+
+    @Nullable
+    private CachedBlock getCachedBlock(Sha256Hash hash) throws IOException {
+        CachedBlock cached = blockCache.getIfPresent(hash);
+        if (cached != null)
+            return cached;
+        // Two peers asking for the same block at once may both build it, which is harmless.
+        Block block = blockProvider.getBlock(hash);
+        if (block == null || block.getTransactions() == null)
+            return null;
+        cached = new CachedBlock(serializer, block);
+        blockCache.put(hash, cached);
+        return cached;
+    }
+
+    /** An inbound connection. Requests are queued and handled in order on the worker pool, one batch at a time. */
+    @VisibleForTesting class ServerPeer extends PeerSocketHandler {
+        private final ReentrantLock lock = Threading.lock("ServerPeer");
+        // Inventory items, pings and filters, in the order they were received.
+        @GuardedBy("lock") private final LinkedList<Object> requests = new LinkedList<Object>();
+        // Whether a task handling requests is scheduled or running.
+        @GuardedBy("lock") private boolean scheduled;
+        // Only touched by the task handling requests.
+        @Nullable private BloomFilter filter;
+        private volatile boolean versionReceived;
+
+        private final Runnable handleRequests = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleRequests();
+                } catch (Throwable e) {
+                    log.warn("{}: Error serving requests, disconnecting", getAddress(), e);
+                    close();
+                }
+            }
+        };
+
+        ServerPeer(InetSocketAddress address) {
+            super(params, address);
+        }
+
+        @Override
+        public void connectionOpened() {
+            peers.add(this);
+        }
+
+        @Override
+        public void connectionClosed() {
+            peers.remove(this);
+            lock.lock();
+            try {
+                requests.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            if (m instanceof VersionMessage) {
+                if (versionReceived)
+                    throw new ProtocolException("Got a second version message");
+                versionReceived = true;
+                VersionMessage version = new VersionMessage(params, blockProvider.getBestHeight());
+                version.localServices = VersionMessage.NODE_NETWORK;
+                sendMessage(version);
+                sendMessage(new VersionAck());
+            } else if (!versionReceived) {
+                throw new ProtocolException("Got " + m.getClass().getSimpleName() + " before the version message");
+            } else if (m instanceof GetDataMessage) {
+                enqueue(((GetDataMessage) m).getItems());
+            } else if (m instanceof BloomFilter || m instanceof Ping) {
+                enqueue(m);
+            } else {
+                log.debug("{}: Ignoring {}", getAddress(), m.getClass().getSimpleName());
+            }
+        }
+
+        private void enqueue(Object request) {
+            lock.lock();
+            try {
+                if (requests.size() >= MAX_QUEUED_REQUESTS) {
+                    log.info("{}: Too many requests queued, disconnecting", getAddress());
+                    close();
+                    return;
+                }
+                requests.add(request);
+                scheduleLocked(0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void enqueue(List<InventoryItem> items) {
+            lock.lock();
+            try {
+                if (requests.size() + items.size() > MAX_QUEUED_REQUESTS) {
+                    log.info("{}: Too many requests queued, disconnecting", getAddress());
+                    close();
+                    return;
+                }
+                requests.addAll(items);
+                scheduleLocked(0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @GuardedBy("lock")
+        private void scheduleLocked(long delayMsec) {
+            if (scheduled)
+                return;
+            scheduled = true;
+            if (delayMsec == 0)
+                executor.execute(handleRequests);
+            else
+                executor.schedule(handleRequests, delayMsec, TimeUnit.MILLISECONDS);
+        }
+
+        private void handleRequests() throws IOException {
+            List<InventoryItem> notFound = new ArrayList<InventoryItem>();
+            try {
+                for (int i = 0; i < REQUESTS_PER_TURN; i++) {
+                    MessageWriteTarget target = writeTarget;
+                    if (target != null && target.getPendingWriteBytes() > MAX_PENDING_WRITE_BYTES) {
+                        // The peer isn't keeping up. Look again once some of what is buffered has been written.
+                        lock.lock();
+                        try {
+                            scheduled = false;
+                            scheduleLocked(BACKPRESSURE_DELAY_MSEC);
+                        } finally {
+                            lock.unlock();
+                        }
+                        return;
+                    }
+                    Object request;
+                    lock.lock();
+                    try {
+                        request = requests.poll();
+                        if (request == null) {
+                            scheduled = false;
+                            return;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (!(request instanceof InventoryItem) && !notFound.isEmpty()) {
+                        // Keep the notfound ahead of the pong, so the peer knows everything before it was answered.
+                        sendMessage(new NotFoundMessage(params, notFound));
+                        notFound = new ArrayList<InventoryItem>();
+                    }
+                    if (request instanceof InventoryItem)
+                        serve((InventoryItem) request, notFound);
+                    else if (request instanceof BloomFilter)
+                        filter = (BloomFilter) request;
+                    else if (request instanceof Ping && ((Ping) request).hasNonce())
+                        sendMessage(new Pong(((Ping) request).getNonce()));
+                }
+                // Let other peers have a go before carrying on.
+                lock.lock();
+                try {
+                    scheduled = false;
+                    if (!requests.isEmpty())
+                        scheduleLocked(0);
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                if (!notFound.isEmpty())
+                    sendMessage(new NotFoundMessage(params, notFound));
+            }
+        }
+
+        private void serve(InventoryItem item, List<InventoryItem> notFound) throws IOException {
+            if (item.type == InventoryItem.Type.FilteredBlock) {
+                // Like the reference client, don't answer requests for filtered blocks until there is a filter.
+                BloomFilter filter = this.filter;
+                if (filter == null)
+                    return;
+                CachedBlock cached = getCachedBlock(item.hash);
+                if (cached == null) {
+                    notFound.add(item);
+                    return;
+                }
+                boolean[] matches = filter.applyAndUpdate(cached.transactions);
+                byte[] bits = new byte[(matches.length + 7) / 8];
+                for (int i = 0; i < matches.length; i++)
+                    if (matches[i])
+                        Utils.setBitLE(bits, i);
+                PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(params, bits, cached.txHashes);
+                // A block of our own, as serializing a shared one isn't thread safe.
+                Block header = new Block(params, cached.headerBytes);
+                sendMessage(new FilteredBlock(params, header, pmt));
+                MessageWriteTarget target = writeTarget;
+                for (int i = 0; i < matches.length; i++)
+                    if (matches[i])
+                        target.writeBytes(cached.txMessages[i]);
+            } else if (item.type == InventoryItem.Type.Block) {
+                CachedBlock cached = getCachedBlock(item.hash);
+                if (cached == null) {
+                    notFound.add(item);
+                    return;
+                }
+                // Put the block back together from the cached header and transactions.
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                payload.write(cached.headerBytes);
+                payload.write(new VarInt(cached.txMessages.length).encode());
+                for (byte[] txMessage : cached.txMessages)
+                    payload.write(txMessage, MESSAGE_HEADER_SIZE, txMessage.length - MESSAGE_HEADER_SIZE);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                serializer.serialize("block", payload.toByteArray(), bos);
+                writeTarget.writeBytes(bos.toByteArray());
+            } else {
+                notFound.add(item);
+            }
+        }
+    }
+}
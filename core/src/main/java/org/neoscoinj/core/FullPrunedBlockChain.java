@@ -21,18 +21,27 @@ import org.neoscoinj.script.Script;
 import org.neoscoinj.script.Script.VerifyFlag;
 import org.neoscoinj.store.BlockStoreException;
 import org.neoscoinj.store.FullPrunedBlockStore;
+import org.neoscoinj.store.StoredTransactionOutPoint;
 import org.neoscoinj.utils.DaemonThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -150,6 +159,285 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    // Pipelined connection. Outputs spent by upcoming blocks are looked up on these threads whilst earlier blocks
+    // are still being verified, see prefetchInputs(Block). Inputs are spread over several threads so that stores
+    // backed by a database or the disk can serve lookups in parallel.
+    private static final int PREFETCH_THREADS = 4;
+    private static final int PREFETCH_CHUNK_SIZE = 256;
+    // How many connected blocks are remembered for weeding out stale prefetched outputs.
+    private static final int MAX_SPEND_RECORDS = 32;
+    // How many prefetches are kept at most. Blocks that are prefetched but never added, say because an earlier block
+    // was rejected, would otherwise hold on to their outputs forever. The oldest are dropped first.
+    private static final int MAX_PREFETCHES = 64;
+    private final ExecutorService prefetchParser = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("FullPrunedBlockChain prefetch"));
+    private final ExecutorService prefetchLookups = Executors.newFixedThreadPool(PREFETCH_THREADS,
+            new DaemonThreadFactory("FullPrunedBlockChain prefetch lookup"));
+    private final ConcurrentHashMap<Sha256Hash, Future<PrefetchedOutputs>> prefetches =
+            new ConcurrentHashMap<Sha256Hash, Future<PrefetchedOutputs>>();
+    // Hashes of the blocks in prefetches, oldest first. May also hold some that have been taken out since.
+    @GuardedBy("prefetchOrder") private final ArrayDeque<Sha256Hash> prefetchOrder = new ArrayDeque<Sha256Hash>();
+    // Incremented each time the UTXO set of the store changes, ie. the chain head is set.
+    private final AtomicLong utxoSetVersion = new AtomicLong();
+    // Outputs spent by recent UTXO set versions, oldest first. A null set means the change can't be described by
+    // spends alone (a re-org) and anything looked up before it is stale.
+    @GuardedBy("lock") private final LinkedList<SpendRecord> recentSpends = new LinkedList<SpendRecord>();
+    // Spends of connected blocks that will become visible when the chain head is set.
+    @GuardedBy("lock") private final List<Set<StoredTransactionOutPoint>> pendingSpends =
+            new ArrayList<Set<StoredTransactionOutPoint>>();
+    @GuardedBy("lock") private boolean pendingReorg;
+    private final ConnectStats connectStats = new ConnectStats();
+
+    /** Outputs looked up ahead of time for a block, and the UTXO set version they were read at. */
+    private static class PrefetchedOutputs {
+        final long version;
+        final Map<StoredTransactionOutPoint, UTXO> outputs;
+
+        PrefetchedOutputs(long version, Map<StoredTransactionOutPoint, UTXO> outputs) {
+            this.version = version;
+            this.outputs = outputs;
+        }
+    }
+
+    private static class SpendRecord {
+        final long version;
+        @Nullable final Set<StoredTransactionOutPoint> spent;
+
+        SpendRecord(long version, @Nullable Set<StoredTransactionOutPoint> spent) {
+            this.version = version;
+            this.spent = spent;
+        }
+    }
+
+    /**
+     * <p>Tells the chain that the given block will be passed to {@link #add(Block)} soon, so that it can parse the
+     * block and fetch the outputs it spends from the block store in the background, whilst the blocks before it are
+     * still being verified. The block must not be modified until it has been added.</p>
+     *
+     * <p>This is only a hint: the outputs are looked up again if the block never shows up, if the chain re-organizes
+     * in between or if too many blocks are connected before it.</p>
+     */
+    public void prefetchInputs(final Block block) {
+        final Sha256Hash hash = block.getHash();
+        FutureTask<PrefetchedOutputs> task = new FutureTask<PrefetchedOutputs>(new Callable<PrefetchedOutputs>() {
+            @Override
+            public PrefetchedOutputs call() throws Exception {
+                // Anything committed before this point is visible to our lookups, anything after is caught by
+                // the spend records.
+                long version = utxoSetVersion.get();
+                // Parses the block here if it was read lazily, which takes that off the thread that adds it too.
+                block.ensureParsedTransactions();
+                if (block.transactions == null)
+                    return new PrefetchedOutputs(version, new HashMap<StoredTransactionOutPoint, UTXO>());
+                Set<StoredTransactionOutPoint> createdInBlock = new HashSet<StoredTransactionOutPoint>();
+                List<StoredTransactionOutPoint> outPoints = new ArrayList<StoredTransactionOutPoint>();
+                for (Transaction tx : block.transactions) {
+                    if (!tx.isCoinBase()) {
+                        for (TransactionInput in : tx.getInputs()) {
+                            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(in.getOutpoint());
+                            if (!createdInBlock.contains(outPoint))
+                                outPoints.add(outPoint);
+                        }
+                    }
+                    Sha256Hash txHash = tx.getHash();
+                    for (int i = 0; i < tx.getOutputs().size(); i++)
+                        createdInBlock.add(new StoredTransactionOutPoint(txHash, i));
+                }
+                List<Future<Map<StoredTransactionOutPoint, UTXO>>> chunks =
+                        new ArrayList<Future<Map<StoredTransactionOutPoint, UTXO>>>();
+                for (int i = 0; i < outPoints.size(); i += PREFETCH_CHUNK_SIZE) {
+                    final List<StoredTransactionOutPoint> chunk =
+                            outPoints.subList(i, Math.min(i + PREFETCH_CHUNK_SIZE, outPoints.size()));
+                    chunks.add(prefetchLookups.submit(new Callable<Map<StoredTransactionOutPoint, UTXO>>() {
+                        @Override
+                        public Map<StoredTransactionOutPoint, UTXO> call() throws Exception {
+                            return blockStore.getTransactionOutputs(chunk);
+                        }
+                    }));
+                }
+                Map<StoredTransactionOutPoint, UTXO> outputs = new HashMap<StoredTransactionOutPoint, UTXO>();
+                for (Future<Map<StoredTransactionOutPoint, UTXO>> chunk : chunks)
+                    outputs.putAll(chunk.get());
+                return new PrefetchedOutputs(version, outputs);
+            }
+        });
+        if (prefetches.putIfAbsent(hash, task) != null)
+            return;
+        synchronized (prefetchOrder) {
+            prefetchOrder.add(hash);
+            while (prefetchOrder.size() > MAX_PREFETCHES) {
+                Future<PrefetchedOutputs> dropped = prefetches.remove(prefetchOrder.poll());
+                if (dropped != null)
+                    dropped.cancel(false);
+            }
+        }
+        prefetchParser.execute(task);
+    }
+
+    /** Drops the prefetch for the given block, if there is one, as it won't be added after all. */
+    public void cancelPrefetch(Sha256Hash hash) {
+        Future<PrefetchedOutputs> prefetch = prefetches.remove(hash);
+        if (prefetch != null)
+            prefetch.cancel(false);
+    }
+
+    /**
+     * Adds each of the given blocks in turn, as with {@link #add(Block)}, whilst the next block is parsed and its
+     * inputs are fetched in the background. This is the fastest way to connect a long run of blocks, for instance
+     * when importing them from disk.
+     * @return the number of blocks for which {@link #add(Block)} returned true.
+     */
+    public int addAll(Iterable<Block> blocks) throws VerificationException, PrunedException {
+        Iterator<Block> iterator = blocks.iterator();
+        Block next = iterator.hasNext() ? iterator.next() : null;
+        if (next != null)
+            prefetchInputs(next);
+        int added = 0;
+        try {
+            while (next != null) {
+                Block current = next;
+                next = iterator.hasNext() ? iterator.next() : null;
+                if (next != null)
+                    prefetchInputs(next);
+                if (add(current))
+                    added++;
+            }
+        } finally {
+            if (next != null)
+                cancelPrefetch(next.getHash());
+        }
+        return added;
+    }
+
+    @Override
+    public boolean add(Block block) throws VerificationException, PrunedException {
+        Sha256Hash hash = block.getHash();
+        Future<PrefetchedOutputs> prefetch = prefetches.get(hash);
+        if (prefetch != null) {
+            // The prefetch is reading the blocks transactions, wait for it before the chain touches them.
+            try {
+                prefetch.get();
+            } catch (Exception e) {
+                // Doesn't matter, the outputs are simply looked up again.
+            }
+        }
+        try {
+            // Blocks read lazily only have their transactions parsed on first use, which the chain doesn't do.
+            block.ensureParsedTransactions();
+            return super.add(block);
+        } finally {
+            prefetches.remove(hash);
+        }
+    }
+
+    /**
+     * Returns the outputs that were prefetched for the given block and are still known to be unspent, or an empty
+     * map.
+     */
+    private Map<StoredTransactionOutPoint, UTXO> takePrefetchedOutputs(Block block) {
+        checkState(lock.isHeldByCurrentThread());
+        Future<PrefetchedOutputs> future = prefetches.remove(block.getHash());
+        if (future == null)
+            return Collections.emptyMap();
+        PrefetchedOutputs prefetched;
+        try {
+            prefetched = future.get();
+        } catch (Exception e) {
+            log.warn("Failed to prefetch inputs of block {}: {}", block.getHashAsString(), e.toString());
+            return Collections.emptyMap();
+        }
+        if (prefetched.version < utxoSetVersion.get() - recentSpends.size())
+            return Collections.emptyMap();  // Too old, we don't know what happened in between.
+        for (SpendRecord record : recentSpends) {
+            if (record.version <= prefetched.version)
+                continue;
+            if (record.spent == null)
+                return Collections.emptyMap();
+            prefetched.outputs.keySet().removeAll(record.spent);
+        }
+        return prefetched.outputs;
+    }
+
+    /**
+     * Returns throughput statistics of block connection since the chain was created or since
+     * {@link ConnectStats#reset()} was last called on them.
+     */
+    public ConnectStats getConnectStats() {
+        return connectStats;
+    }
+
+    /**
+     * Throughput of block connection, split by stage: preparing the UTXO changes of a block (lookups of spent outputs,
+     * which is mostly I/O for on-disk stores), writing them to the store, and waiting for script verification to
+     * complete (CPU). A stage that dominates is where tuning effort should go. All methods are thread safe.
+     */
+    public static class ConnectStats {
+        private static final int LOG_INTERVAL = 1000;
+
+        private long startTime = System.nanoTime();
+        private long blocks, inputs, lookupNanos, commitNanos, scriptWaitNanos;
+
+        private synchronized void record(int numInputs, long lookup, long commit, long scriptWait) {
+            blocks++;
+            inputs += numInputs;
+            lookupNanos += lookup;
+            commitNanos += commit;
+            scriptWaitNanos += scriptWait;
+            if (blocks % LOG_INTERVAL == 0)
+                log.info("Block connection: {}", this);
+        }
+
+        /** Forgets everything recorded so far. */
+        public synchronized void reset() {
+            startTime = System.nanoTime();
+            blocks = inputs = lookupNanos = commitNanos = scriptWaitNanos = 0;
+        }
+
+        public synchronized long getBlocks() {
+            return blocks;
+        }
+
+        public synchronized long getInputs() {
+            return inputs;
+        }
+
+        /** Blocks connected per second of wall clock time. */
+        public synchronized double getBlocksPerSecond() {
+            return blocks / elapsedSeconds();
+        }
+
+        /** Transaction inputs connected per second of wall clock time. */
+        public synchronized double getInputsPerSecond() {
+            return inputs / elapsedSeconds();
+        }
+
+        /** Milliseconds spent preparing UTXO changes, including spent output lookups. */
+        public synchronized long getLookupMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(lookupNanos);
+        }
+
+        /** Milliseconds spent writing UTXO changes to the block store. */
+        public synchronized long getCommitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(commitNanos);
+        }
+
+        /** Milliseconds spent waiting for script verification that did not overlap the other stages. */
+        public synchronized long getScriptWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(scriptWaitNanos);
+        }
+
+        private double elapsedSeconds() {
+            return Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d blocks (%.1f/sec), %d inputs (%.1f/sec), lookup %dms, commit %dms, script wait %dms",
+                    blocks, getBlocksPerSecond(), inputs, getInputsPerSecond(), getLookupMillis(), getCommitMillis(),
+                    getScriptWaitMillis());
+        }
+    }
+
     /** Get the {@link Script} from the script bytes or null if it doesn't parse. */
     @Nullable
     private Script getScript(byte[] scriptBytes) {
@@ -192,16 +480,25 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        block.ensureParsedTransactions();
         if (block.transactions == null)
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
 
+        // Stage one: pick up the outputs spent by this block, ideally already fetched by prefetchInputs().
+        long lookupStart = System.nanoTime();
+        Map<StoredTransactionOutPoint, UTXO> prefetchedOutputs = takePrefetchedOutputs(block);
+
         blockStore.beginDatabaseBatchWrite();
 
         LinkedList<UTXO> txOutsSpent = new LinkedList<UTXO>();
         LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
+        // Outputs created and spent by this block so far, the store is only updated once all of them are known.
+        Map<StoredTransactionOutPoint, UTXO> createdInBlock = new HashMap<StoredTransactionOutPoint, UTXO>();
+        Set<StoredTransactionOutPoint> spentInBlock = new HashSet<StoredTransactionOutPoint>();
         long sigOps = 0;
+        int numInputs = 0;
         final Set<VerifyFlag> verifyFlags = EnumSet.noneOf(VerifyFlag.class);
         if (block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME)
             verifyFlags.add(VerifyFlag.P2SH);
@@ -237,8 +534,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(in.getOutpoint());
+                        UTXO prevOut = findUnspentOutput(outPoint, createdInBlock, spentInBlock, prefetchedOutputs);
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -262,9 +559,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
-                        blockStore.removeUnspentTransactionOutput(prevOut);
+                        spentInBlock.add(outPoint);
                         txOutsSpent.add(prevOut);
                     }
+                    numInputs += tx.getInputs().size();
                 }
                 Sha256Hash hash = tx.getHash();
                 for (TransactionOutput out : tx.getOutputs()) {
@@ -278,7 +576,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             out.getScriptBytes(),
                             getScriptAddress(script),
                             getScriptType(script).ordinal());
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    createdInBlock.put(new StoredTransactionOutPoint(newOut), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -294,7 +592,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
+                    // Stage two: signature checking runs on all cores while we carry on with the rest of the block.
                     FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
                     scriptVerificationExecutor.execute(future);
                     listScriptVerificationResults.add(future);
@@ -302,6 +600,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             if (totalFees.compareTo(NetworkParameters.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
+
+            // Stage three: write the UTXO delta into the batch whilst the scripts are still being checked. Nothing
+            // is visible to other threads until the chain head is set, and an invalid script aborts the batch.
+            long commitStart = System.nanoTime();
+            for (UTXO out : txOutsCreated)
+                blockStore.addUnspentTransactionOutput(out);
+            for (UTXO out : txOutsSpent)
+                blockStore.removeUnspentTransactionOutput(out);
+            long scriptStart = System.nanoTime();
+
             for (Future<VerificationException> future : listScriptVerificationResults) {
                 VerificationException e;
                 try {
@@ -315,6 +623,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (e != null)
                     throw e;
             }
+            connectStats.record(numInputs, commitStart - lookupStart, scriptStart - commitStart,
+                    System.nanoTime() - scriptStart);
+            pendingSpends.add(spentInBlock);
         } catch (VerificationException e) {
             scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
@@ -327,6 +638,21 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
 
+    @Nullable
+    private UTXO findUnspentOutput(StoredTransactionOutPoint outPoint,
+                                   Map<StoredTransactionOutPoint, UTXO> createdInBlock,
+                                   Set<StoredTransactionOutPoint> spentInBlock,
+                                   Map<StoredTransactionOutPoint, UTXO> prefetchedOutputs) throws BlockStoreException {
+        if (spentInBlock.contains(outPoint))
+            return null;
+        UTXO out = createdInBlock.get(outPoint);
+        if (out == null)
+            out = prefetchedOutputs.get(outPoint);
+        if (out == null)
+            out = blockStore.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+        return out;
+    }
+
     @Override
     /**
      * Used during reorgs to connect a block previously on a fork
@@ -334,6 +660,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected synchronized TransactionOutputChanges connectTransactions(StoredBlock newBlock)
             throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
+        pendingReorg = true;
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
         
@@ -479,6 +806,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        pendingReorg = true;
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -502,11 +830,28 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
         blockStore.commitDatabaseBatchWrite();
+        // Now that the changes are visible to prefetch lookups, record them so earlier lookups can be corrected.
+        if (pendingReorg) {
+            recordSpends(null);
+        } else {
+            for (Set<StoredTransactionOutPoint> spent : pendingSpends)
+                recordSpends(spent);
+        }
+        pendingSpends.clear();
+        pendingReorg = false;
+    }
+
+    private void recordSpends(@Nullable Set<StoredTransactionOutPoint> spent) {
+        recentSpends.add(new SpendRecord(utxoSetVersion.incrementAndGet(), spent));
+        if (recentSpends.size() > MAX_SPEND_RECORDS)
+            recentSpends.removeFirst();
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
         blockStore.abortDatabaseBatchWrite();
+        pendingSpends.clear();
+        pendingReorg = false;
     }
 
     @Override
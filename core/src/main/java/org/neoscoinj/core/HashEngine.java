@@ -0,0 +1,225 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A HashEngine hands out SHA-256 {@link MessageDigest} objects to the hashing routines used throughout the library
+ * (block and transaction hashes, merkle trees, message checksums, signature hashes). A MessageDigest is stateful and
+ * not thread safe, so it used to be shared behind a single lock, which made hashing a point of contention between
+ * threads. An engine instead gives each caller a digest of its own, either one per thread or from a pool.</p>
+ *
+ * <p>The engine used by {@link Utils#doubleDigest(byte[])} and friends is obtained via {@link #get()} and can be
+ * replaced with {@link #set(HashEngine)}. By default a {@link #threadLocal()} engine is used, which is the right
+ * choice for most apps. A {@link #pooled(int)} engine is better when hashing happens on a large number of short lived
+ * threads.</p>
+ *
+ * <p>All methods are thread safe.</p>
+ */
+public abstract class HashEngine {
+    /** Length in bytes of a SHA-256 hash. */
+    public static final int HASH_LENGTH = 32;
+
+    private static volatile HashEngine engine = threadLocal();
+
+    /** Returns the engine currently used by the library. */
+    public static HashEngine get() {
+        return engine;
+    }
+
+    /** Replaces the engine used by the library. Should be called before any other use of the library. */
+    public static void set(HashEngine newEngine) {
+        engine = checkNotNull(newEngine);
+    }
+
+    /** Returns an engine that keeps one digest per thread. */
+    public static HashEngine threadLocal() {
+        return new ThreadLocalEngine();
+    }
+
+    /** Returns an engine that shares up to the given number of idle digests between all threads. */
+    public static HashEngine pooled(int maxIdle) {
+        return new PooledEngine(maxIdle);
+    }
+
+    /** Creates a new SHA-256 digest. */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /**
+     * Returns a reset digest for the exclusive use of the caller, which must hand it back with
+     * {@link #release(MessageDigest)} once done.
+     */
+    protected abstract MessageDigest acquire();
+
+    /** Returns a digest obtained from {@link #acquire()}. The digest must not be used afterwards. */
+    protected abstract void release(MessageDigest digest);
+
+    /** Calculates the SHA-256 hash of the given byte range. */
+    public byte[] singleDigest(byte[] input, int offset, int length) {
+        MessageDigest digest = acquire();
+        try {
+            digest.update(input, offset, length);
+            return digest.digest();
+        } finally {
+            release(digest);
+        }
+    }
+
+    /** Calculates the SHA-256 hash of the remaining bytes of the given buffer, consuming them. */
+    public byte[] singleDigest(ByteBuffer input) {
+        MessageDigest digest = acquire();
+        try {
+            digest.update(input);
+            return digest.digest();
+        } finally {
+            release(digest);
+        }
+    }
+
+    /** Calculates SHA256(SHA256(byte range)). The resulting hash is in big endian form. */
+    public byte[] doubleDigest(byte[] input, int offset, int length) {
+        byte[] out = new byte[HASH_LENGTH];
+        doubleDigestInto(out, 0, input, offset, length);
+        return out;
+    }
+
+    /** Calculates SHA256(SHA256(remaining bytes of the buffer)), consuming the bytes. */
+    public byte[] doubleDigest(ByteBuffer input) {
+        byte[] out = new byte[HASH_LENGTH];
+        doubleDigestInto(out, 0, input);
+        return out;
+    }
+
+    /** Calculates SHA256(SHA256(byte range 1 + byte range 2)). */
+    public byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                         byte[] input2, int offset2, int length2) {
+        byte[] out = new byte[HASH_LENGTH];
+        MessageDigest digest = acquire();
+        try {
+            digest.update(input1, offset1, length1);
+            digest.update(input2, offset2, length2);
+            finishDouble(digest, out, 0);
+        } finally {
+            release(digest);
+        }
+        return out;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range)) and writes the 32 byte result to out at outOffset, without allocating any
+     * intermediate arrays. The output range may overlap the input range.
+     */
+    public void doubleDigestInto(byte[] out, int outOffset, byte[] input, int offset, int length) {
+        checkArgument(out.length - outOffset >= HASH_LENGTH, "Output buffer too small");
+        MessageDigest digest = acquire();
+        try {
+            digest.update(input, offset, length);
+            finishDouble(digest, out, outOffset);
+        } finally {
+            release(digest);
+        }
+    }
+
+    /**
+     * Calculates SHA256(SHA256(remaining bytes of the buffer)), consuming the bytes, and writes the 32 byte result to
+     * out at outOffset.
+     */
+    public void doubleDigestInto(byte[] out, int outOffset, ByteBuffer input) {
+        checkArgument(out.length - outOffset >= HASH_LENGTH, "Output buffer too small");
+        MessageDigest digest = acquire();
+        try {
+            digest.update(input);
+            finishDouble(digest, out, outOffset);
+        } finally {
+            release(digest);
+        }
+    }
+
+    private static void finishDouble(MessageDigest digest, byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, HASH_LENGTH);
+            digest.update(out, outOffset, HASH_LENGTH);
+            digest.digest(out, outOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, buffer size was checked.
+        }
+    }
+
+    private static class ThreadLocalEngine extends HashEngine {
+        private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                return newDigest();
+            }
+        };
+
+        @Override
+        protected MessageDigest acquire() {
+            return digests.get();
+        }
+
+        @Override
+        protected void release(MessageDigest digest) {
+            // Digests are always left reset by digest(), but an exception half way through could leave junk behind.
+            digest.reset();
+        }
+    }
+
+    private static class PooledEngine extends HashEngine {
+        private final ConcurrentLinkedQueue<MessageDigest> idle = new ConcurrentLinkedQueue<MessageDigest>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final int maxIdle;
+
+        PooledEngine(int maxIdle) {
+            checkArgument(maxIdle > 0);
+            this.maxIdle = maxIdle;
+        }
+
+        @Override
+        protected MessageDigest acquire() {
+            MessageDigest digest = idle.poll();
+            if (digest == null)
+                return newDigest();
+            idleCount.decrementAndGet();
+            return digest;
+        }
+
+        @Override
+        protected void release(MessageDigest digest) {
+            digest.reset();
+            if (idleCount.incrementAndGet() <= maxIdle)
+                idle.offer(digest);
+            else
+                idleCount.decrementAndGet();
+        }
+    }
+}
@@ -50,6 +50,10 @@ public class NeoscoinSerializer {
     private boolean parseLazy = false;
     private boolean parseRetain = false;
 
+    // Largest scratch array kept around by each thread for parsing messages in place, see deserializePayload.
+    private static final int MAX_SCRATCH_SIZE = Block.MAX_BLOCK_SIZE + 1024;
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
 
     static {
@@ -169,12 +173,14 @@ public class NeoscoinSerializer {
      * {@link NeoscoinSerializer#deserializeHeader}.
      */
     public Message deserializePayload(NeoscoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
-
-        // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        ByteBuffer payload = in.slice();
+        payload.limit(header.size);
+        in.position(in.position() + header.size);
+
+        // Verify the checksum, hashing the payload where it lies rather than copying it out first.
+        byte[] hash = HashEngine.get().doubleDigest(payload.duplicate());
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -182,19 +188,48 @@ public class NeoscoinSerializer {
                     " vs " + HEX.encode(header.checksum));
         }
 
+        // Blocks and transactions that are parsed in full, without retaining their payload, hold no reference to it
+        // once constructed. They are parsed straight out of the buffer's backing array if it has one, or else out of
+        // a scratch array that is reused for every message, so the hot path of a busy node allocates no payload
+        // copies. Everything else gets its own copy, as the buffer is reused for the next message.
+        byte[] payloadBytes;
+        int offset = 0;
+        boolean inPlace = !parseLazy && !parseRetain &&
+                (header.command.equals("block") || header.command.equals("tx"));
+        if (inPlace && payload.hasArray()) {
+            payloadBytes = payload.array();
+            offset = payload.arrayOffset();
+        } else {
+            payloadBytes = inPlace ? scratchArray(header.size) : new byte[header.size];
+            payload.duplicate().get(payloadBytes, 0, header.size);
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, offset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    HEX.encode(payloadBytes, offset, header.size) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    // Returns this thread's scratch array, grown to at least the given size. Arrays bigger than a block aren't kept.
+    private static byte[] scratchArray(int size) {
+        byte[] array = scratch.get();
+        if (array != null && array.length >= size)
+            return array;
+        array = new byte[size];
+        if (size <= MAX_SCRATCH_SIZE)
+            scratch.set(array);
+        return array;
+    }
+
+    // Only "block" and "tx" may be at a non-zero offset, see deserializePayload.
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
         if (command.equals("version")) {
@@ -202,7 +237,7 @@ public class NeoscoinSerializer {
         } else if (command.equals("inv")) {
             message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
         } else if (command.equals("block")) {
-            message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
+            message = new Block(params, payloadBytes, offset, parseLazy, parseRetain, length);
         } else if (command.equals("merkleblock")) {
             message = new FilteredBlock(params, payloadBytes);
         } else if (command.equals("getdata")) {
@@ -212,7 +247,7 @@ public class NeoscoinSerializer {
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(params, payloadBytes);
         } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
+            Transaction tx = new Transaction(params, payloadBytes, offset, null, parseLazy, parseRetain, length);
             if (hash != null)
                 tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
             message = tx;
@@ -270,6 +305,13 @@ public class NeoscoinSerializer {
         }
     }
 
+    /**
+     * The network parameters messages are (de)serialized for.
+     */
+    public NetworkParameters getParameters() {
+        return params;
+    }
+
     /**
      * Whether the serializer will produce lazy parse mode Messages
      */
@@ -0,0 +1,666 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.utils.Threading;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads the block chain headers-first, spreading the block bodies over every connected peer.</p>
+ *
+ * <p>Headers are requested from a single peer, the download peer of the {@link PeerGroup}, and are checked for
+ * connectivity, proof of work and against the checkpoints before anything else happens. Headers that pre-date the
+ * fast catchup time go straight into the chain, exactly as {@link Peer} does when downloading on its own. For the
+ * rest, the bodies (or filtered blocks if a Bloom filter is in use) are requested in small windows from all peers
+ * at once. Blocks arrive in whatever order the peers manage, so they are held in a reordering buffer and handed to
+ * {@link AbstractBlockChain#add(Block)} strictly in height order. Windows that are not answered in time are given
+ * to another peer.</p>
+ *
+ * <p>Exhausting the Bloom filter is handled like {@link Peer} does: everything from the exhausting block onwards is
+ * thrown away and requested again once every peer has acknowledged the recalculated filter.</p>
+ *
+ * <p>Instances are created and wired up by {@link PeerGroup#setParallelChainDownload(boolean)}.</p>
+ */
+class ParallelChainDownload {
+    private static final Logger log = LoggerFactory.getLogger(ParallelChainDownload.class);
+
+    /** How many blocks are requested from a peer in one go. */
+    static final int WINDOW_SIZE = 16;
+    /** How many windows a single peer may have outstanding at once. */
+    static final int MAX_WINDOWS_PER_PEER = 4;
+    /** How far beyond the next block to be added to the chain we request blocks. Bounds the reordering buffer. */
+    static final int MAX_BLOCKS_AHEAD = 1024;
+    /** How many validated headers we keep ahead of the chain before we stop asking for more. */
+    static final int MAX_HEADERS_AHEAD = 20 * HeadersMessage.MAX_HEADERS;
+    /** A window that hasn't been fully answered in this time is handed to another peer. */
+    static final long STALL_TIMEOUT_MSEC = 10 * 1000;
+    private static final long STALL_CHECK_INTERVAL_MSEC = 1000;
+
+    /** Told when the download is over, either because we caught up or because it had to be abandoned. */
+    interface Listener {
+        void onDownloadFinished(ParallelChainDownload download, boolean caughtUp);
+    }
+
+    // A run of blocks requested from a peer with a single getdata.
+    private static class Window {
+        final List<Sha256Hash> hashes;
+        // The peer the window was taken away from because it stalled, if any.
+        @Nullable final Peer stalledPeer;
+        @Nullable Peer peer;
+        long requestTimeMsec;
+        int pending;
+
+        Window(List<Sha256Hash> hashes, @Nullable Peer stalledPeer) {
+            this.hashes = hashes;
+            this.stalledPeer = stalledPeer;
+            this.pending = hashes.size();
+        }
+    }
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final List<Wallet> wallets;
+    private final Peer headersPeer;
+    private final long fastCatchupTimeSecs;
+    private final boolean useFilteredBlocks;
+    private final ListeningScheduledExecutorService executor;
+    private final Listener listener;
+
+    private final ReentrantLock lock = Threading.lock("paralleldownload");
+    // Only one thread at a time feeds the chain, whichever one delivered the block it is waiting for.
+    private final ReentrantLock drainLock = Threading.lock("paralleldownload-drain");
+
+    // Hashes of the validated headers that haven't been added to the chain yet, starting at baseHeight.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+    @GuardedBy("lock") private int baseHeight;
+    @GuardedBy("lock") private Sha256Hash tipHash;
+    @GuardedBy("lock") private int tipHeight;
+    // The height of the next block to be added to the chain.
+    @GuardedBy("lock") private int nextHeight;
+    // The lowest height that hasn't been put into a window yet.
+    @GuardedBy("lock") private int nextUnrequested;
+    // Blocks that arrived but can't be added to the chain until the ones below them are.
+    @GuardedBy("lock") private final TreeMap<Integer, Message> buffer = new TreeMap<Integer, Message>();
+    @GuardedBy("lock") private final Map<Peer, List<Window>> windows = new LinkedHashMap<Peer, List<Window>>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Window> requested = new HashMap<Sha256Hash, Window>();
+    @GuardedBy("lock") private final LinkedList<Window> retries = new LinkedList<Window>();
+    @GuardedBy("lock") private boolean headersRequested, headersDone, finished;
+    // Peers that may still be using a Bloom filter from before the last time it was exhausted.
+    @GuardedBy("lock") private final Set<Peer> staleFilterPeers = new HashSet<Peer>();
+    @GuardedBy("lock") private int filterEpoch;
+    // The last epoch whose recalculated filter has started going out to the peers.
+    @GuardedBy("lock") private int filterSentEpoch;
+    @GuardedBy("lock") @Nullable private ListenableFuture<?> stallCheckTask;
+
+    ParallelChainDownload(NetworkParameters params, AbstractBlockChain chain, List<Wallet> wallets, Peer headersPeer,
+                          long fastCatchupTimeSecs, boolean useFilteredBlocks,
+                          ListeningScheduledExecutorService executor, Listener listener) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.wallets = checkNotNull(wallets);
+        this.headersPeer = checkNotNull(headersPeer);
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.executor = checkNotNull(executor);
+        this.listener = checkNotNull(listener);
+    }
+
+    /** The peer headers are downloaded from. */
+    Peer getHeadersPeer() {
+        return headersPeer;
+    }
+
+    /** Asks the headers peer for the headers following our chain head and starts watching for stalled requests. */
+    void start() {
+        lock.lock();
+        try {
+            checkState(!headersRequested, "Already started");
+            StoredBlock head = chain.getChainHead();
+            tipHash = head.getHeader().getHash();
+            tipHeight = head.getHeight();
+            baseHeight = nextHeight = nextUnrequested = tipHeight + 1;
+            headersRequested = true;
+            stallCheckTask = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkForStalls();
+                    } catch (Throwable e) {
+                        log.error("Exception when checking for stalled block downloads", e);  // The executor swallows exceptions :(
+                    }
+                }
+            }, STALL_CHECK_INTERVAL_MSEC, STALL_CHECK_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+        log.info("{}: Starting parallel chain download from height {}", headersPeer, tipHeight + 1);
+        headersPeer.invokeOnChainDownloadStarted(Math.max(0, headersPeer.getPeerBlockHeightDifference()));
+        requestHeaders();
+    }
+
+    /** Stops the download without telling the listener. Blocks that are still in flight will be thrown away. */
+    void cancel() {
+        lock.lock();
+        try {
+            finishLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes the peer available for downloading block bodies. Does nothing if it was added already. */
+    void addPeer(Peer peer) {
+        Map<Peer, GetDataMessage> work;
+        lock.lock();
+        try {
+            if (finished || windows.containsKey(peer))
+                return;
+            if (useFilteredBlocks && !peer.getPeerVersionMessage().isBloomFilteringSupported())
+                return;
+            if (peer.getPeerVersionMessage().clientVersion < Pong.MIN_PROTOCOL_VERSION)
+                return;
+            windows.put(peer, new ArrayList<Window>(MAX_WINDOWS_PER_PEER));
+            // The PeerGroup gives a new peer its latest filter before adding it here. If the recalculated filter has
+            // gone out already that is the one it got, and as we never asked it for anything under the old filter it
+            // can be used straight away. Otherwise it will be sent the new filter along with everybody else.
+            if (filterSentEpoch != filterEpoch && !staleFilterPeers.isEmpty())
+                staleFilterPeers.add(peer);
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(work);
+    }
+
+    /** Takes the peer out of the download, handing anything it still owes us to the other peers. */
+    void removePeer(Peer peer) {
+        Map<Peer, GetDataMessage> work;
+        lock.lock();
+        try {
+            List<Window> peerWindows = windows.remove(peer);
+            staleFilterPeers.remove(peer);
+            if (finished || peerWindows == null)
+                return;
+            for (Window window : peerWindows)
+                retryLocked(window, peer);
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(work);
+    }
+
+    /** Called by the headers peer with each headers message it receives whilst the download is running. */
+    void receiveHeaders(Peer peer, HeadersMessage m) throws ProtocolException {
+        if (peer != headersPeer) {
+            log.debug("{}: Ignoring headers from a peer other than the headers peer", peer);
+            return;
+        }
+        List<Block> headers = m.getBlockHeaders();
+        boolean more = headers.size() == HeadersMessage.MAX_HEADERS;
+        Map<Peer, GetDataMessage> work;
+        boolean requestMore = false, caughtUp = false;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (!header.getPrevBlockHash().equals(tipHash))
+                    throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                try {
+                    header.verifyHeader();
+                } catch (VerificationException e) {
+                    throw new ProtocolException(e);
+                }
+                int height = tipHeight + 1;
+                if (!params.passesCheckpoint(height, hash))
+                    throw new ProtocolException("Header " + hash + " at height " + height + " fails checkpoint");
+                if (hashes.isEmpty() && header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    // Nothing is waiting for a body, so the header can go straight into the chain.
+                    addHeaderLocked(header);
+                } else {
+                    hashes.add(hash);
+                    heights.put(hash, height);
+                }
+                tipHash = hash;
+                tipHeight = height;
+            }
+            if (!more)
+                headersDone = true;
+            else if (tipHeight - nextHeight < MAX_HEADERS_AHEAD)
+                requestMore = true;
+            else
+                headersRequested = false;   // Resumed by drain() once the chain has caught up a bit.
+            caughtUp = isCaughtUpLocked();
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (requestMore)
+            requestHeaders();
+        send(work);
+        if (caughtUp)
+            finish(true);
+    }
+
+    @GuardedBy("lock")
+    private void addHeaderLocked(Block header) throws ProtocolException {
+        try {
+            if (!chain.add(header))
+                throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+        } catch (VerificationException e) {
+            throw new ProtocolException(e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        headersPeer.invokeOnBlocksDownloaded(header);
+        baseHeight = nextHeight = nextUnrequested = tipHeight + 2;
+    }
+
+    /** Called by any peer with each block it receives whilst the download is running. */
+    void receive(Peer peer, Block block) {
+        receive(peer, block.getHash(), block);
+    }
+
+    /** Called by any peer with each completed filtered block it receives whilst the download is running. */
+    void receive(Peer peer, FilteredBlock block) {
+        receive(peer, block.getHash(), block);
+    }
+
+    private void receive(Peer peer, Sha256Hash hash, Message block) {
+        Map<Peer, GetDataMessage> work;
+        lock.lock();
+        try {
+            Window window = requested.get(hash);
+            if (finished || window == null || window.peer != peer) {
+                // Either a duplicate from a peer we took the window away from, or something we asked for before the
+                // Bloom filter was exhausted.
+                log.debug("{}: Discarding block we are not waiting for from this peer: {}", peer, hash);
+                return;
+            }
+            requested.remove(hash);
+            buffer.put(checkNotNull(heights.get(hash)), block);
+            if (--window.pending == 0)
+                windows.get(peer).remove(window);
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(work);
+        drain();
+    }
+
+    /**
+     * Called by a peer when it sends a new Bloom filter. Once the peer answers a ping sent after the filter, it can no
+     * longer send us blocks matched against the old one and can be given work again.
+     */
+    void filterSent(final Peer peer) {
+        final int epoch;
+        lock.lock();
+        try {
+            if (finished || !staleFilterPeers.contains(peer))
+                return;
+            epoch = filterEpoch;
+            filterSentEpoch = epoch;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            peer.ping().addListener(new Runnable() {
+                @Override
+                public void run() {
+                    filterApplied(peer, epoch);
+                }
+            }, Threading.SAME_THREAD);
+        } catch (ProtocolException e) {
+            removePeer(peer);
+        }
+    }
+
+    private void filterApplied(Peer peer, int epoch) {
+        Map<Peer, GetDataMessage> work;
+        lock.lock();
+        try {
+            if (finished || epoch != filterEpoch)
+                return;
+            staleFilterPeers.remove(peer);
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(work);
+    }
+
+    // Feeds the chain with whatever is at the front of the buffer. If another thread is already doing so it will pick
+    // up our blocks as well, the loop below closes the gap between it finishing and us giving up.
+    private void drain() {
+        while (true) {
+            if (!drainLock.tryLock())
+                return;
+            try {
+                drainLocked();
+            } finally {
+                drainLock.unlock();
+            }
+            lock.lock();
+            try {
+                if (finished || !buffer.containsKey(nextHeight))
+                    return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @GuardedBy("drainLock")
+    private void drainLocked() {
+        int added = 0;
+        while (true) {
+            Message message;
+            int height;
+            lock.lock();
+            try {
+                message = buffer.get(nextHeight);
+                if (finished || message == null)
+                    break;
+                height = nextHeight;
+            } finally {
+                lock.unlock();
+            }
+            Block header;
+            try {
+                boolean connected;
+                if (message instanceof FilteredBlock) {
+                    FilteredBlock filteredBlock = (FilteredBlock) message;
+                    // The wallets queue up the filter recalculation as soon as they notice the exhaustion. Holding the
+                    // lock until the peers are marked as stale stops the new filter reaching filterSent() before that.
+                    boolean exhausted;
+                    lock.lock();
+                    try {
+                        exhausted = checkForFilterExhaustion(filteredBlock);
+                        if (exhausted)
+                            filterExhaustedLocked(height);
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (exhausted)
+                        break;
+                    header = filteredBlock.getBlockHeader();
+                    connected = chain.add(filteredBlock);
+                } else {
+                    header = (Block) message;
+                    connected = chain.add(header);
+                }
+                if (!connected) {
+                    // Can only happen if something other than us moved the chain head.
+                    log.warn("Block {} at height {} did not connect to the chain, abandoning parallel download",
+                            header.getHashAsString(), height);
+                    finish(false);
+                    return;
+                }
+            } catch (VerificationException e) {
+                log.warn("Block verification failed at height " + height + ", abandoning parallel download", e);
+                finish(false);
+                return;
+            } catch (PrunedException e) {
+                // Unreachable when in SPV mode.
+                throw new RuntimeException(e);
+            }
+            lock.lock();
+            try {
+                buffer.remove(height);
+                heights.remove(header.getHash());
+                nextHeight++;
+                // Don't shift the list down for every block.
+                if (nextHeight - baseHeight >= HeadersMessage.MAX_HEADERS) {
+                    hashes.subList(0, nextHeight - baseHeight).clear();
+                    baseHeight = nextHeight;
+                }
+            } finally {
+                lock.unlock();
+            }
+            headersPeer.invokeOnBlocksDownloaded(header);
+            added++;
+        }
+        if (added == 0)
+            return;
+        Map<Peer, GetDataMessage> work;
+        boolean requestMore = false, caughtUp;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            if (!headersRequested && !headersDone && tipHeight - nextHeight < MAX_HEADERS_AHEAD / 2) {
+                headersRequested = true;
+                requestMore = true;
+            }
+            caughtUp = isCaughtUpLocked();
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (requestMore)
+            requestHeaders();
+        send(work);
+        if (caughtUp)
+            finish(true);
+    }
+
+    private boolean checkForFilterExhaustion(FilteredBlock m) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets) {
+            exhausted |= wallet.checkForFilterExhaustion(m);
+        }
+        return exhausted;
+    }
+
+    // Throws away everything from the given height on. It is all requested again once each peer has acknowledged the
+    // new filter the PeerGroup calculates in response to the exhaustion, see filterSent().
+    @GuardedBy("lock")
+    private void filterExhaustedLocked(int height) {
+        log.info("Bloom filter exhausted whilst processing block at height {}, discarding", height);
+        filterEpoch++;
+        staleFilterPeers.addAll(windows.keySet());
+        for (List<Window> peerWindows : windows.values())
+            peerWindows.clear();
+        requested.clear();
+        retries.clear();
+        buffer.clear();
+        nextUnrequested = nextHeight;
+    }
+
+    private void checkForStalls() {
+        Map<Peer, GetDataMessage> work;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            long now = Utils.currentTimeMillis();
+            for (Map.Entry<Peer, List<Window>> entry : windows.entrySet()) {
+                Iterator<Window> it = entry.getValue().iterator();
+                while (it.hasNext()) {
+                    Window window = it.next();
+                    if (now - window.requestTimeMsec < STALL_TIMEOUT_MSEC)
+                        continue;
+                    log.info("{}: Stalled on {} blocks, asking another peer", entry.getKey(), window.pending);
+                    it.remove();
+                    retryLocked(window, entry.getKey());
+                }
+            }
+            work = assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(work);
+    }
+
+    // Queues whatever the peer didn't deliver from the window to be requested from somebody else.
+    @GuardedBy("lock")
+    private void retryLocked(Window window, Peer peer) {
+        List<Sha256Hash> missing = new ArrayList<Sha256Hash>(window.pending);
+        for (Sha256Hash hash : window.hashes) {
+            if (requested.get(hash) == window)
+                missing.add(hash);
+        }
+        if (missing.isEmpty())
+            return;
+        Window retry = new Window(missing, peer);
+        for (Sha256Hash hash : missing)
+            requested.put(hash, retry);
+        retries.add(retry);
+    }
+
+    // Hands out windows round robin so that no peer gets more than its share of the blocks nearest the chain head.
+    @GuardedBy("lock")
+    private Map<Peer, GetDataMessage> assignWorkLocked() {
+        Map<Peer, GetDataMessage> work = new LinkedHashMap<Peer, GetDataMessage>();
+        if (finished)
+            return work;
+        long now = Utils.currentTimeMillis();
+        boolean assigned = true;
+        while (assigned) {
+            assigned = false;
+            for (Map.Entry<Peer, List<Window>> entry : windows.entrySet()) {
+                Peer peer = entry.getKey();
+                if (entry.getValue().size() >= MAX_WINDOWS_PER_PEER || staleFilterPeers.contains(peer))
+                    continue;
+                Window window = takeRetryLocked(peer);
+                if (window == null)
+                    window = nextWindowLocked(peer);
+                if (window == null)
+                    continue;
+                window.peer = peer;
+                window.requestTimeMsec = now;
+                entry.getValue().add(window);
+                GetDataMessage getdata = work.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    work.put(peer, getdata);
+                }
+                for (Sha256Hash hash : window.hashes) {
+                    if (useFilteredBlocks)
+                        getdata.addFilteredBlock(hash);
+                    else
+                        getdata.addBlock(hash);
+                }
+                assigned = true;
+            }
+        }
+        return work;
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Window takeRetryLocked(Peer peer) {
+        // Don't give a window back to the peer that stalled on it, unless nobody else is around to take it.
+        Iterator<Window> it = retries.iterator();
+        while (it.hasNext()) {
+            Window window = it.next();
+            if (window.stalledPeer != peer || windows.size() == 1) {
+                it.remove();
+                return window;
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Window nextWindowLocked(Peer peer) {
+        long limit = Math.min(Math.min(tipHeight, nextHeight + MAX_BLOCKS_AHEAD - 1), peer.getBestHeight());
+        if (nextUnrequested > limit)
+            return null;
+        int end = (int) Math.min(limit, nextUnrequested + WINDOW_SIZE - 1);
+        List<Sha256Hash> windowHashes = new ArrayList<Sha256Hash>(hashes.subList(nextUnrequested - baseHeight, end - baseHeight + 1));
+        Window window = new Window(windowHashes, null);
+        for (Sha256Hash hash : windowHashes)
+            requested.put(hash, window);
+        nextUnrequested = end + 1;
+        return window;
+    }
+
+    private void send(Map<Peer, GetDataMessage> work) {
+        for (Map.Entry<Peer, GetDataMessage> entry : work.entrySet()) {
+            Peer peer = entry.getKey();
+            peer.sendMessage(entry.getValue());
+            // The pong marks the end of the transactions of the last filtered block, see Peer.startFilteredBlock.
+            if (useFilteredBlocks)
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    private void requestHeaders() {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(3);
+        lock.lock();
+        try {
+            locator.add(tipHash);
+        } finally {
+            lock.unlock();
+        }
+        Sha256Hash chainHeadHash = chain.getChainHead().getHeader().getHash();
+        if (!locator.contains(chainHeadHash))
+            locator.add(chainHeadHash);
+        if (!locator.contains(params.getGenesisBlock().getHash()))
+            locator.add(params.getGenesisBlock().getHash());
+        headersPeer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    @GuardedBy("lock")
+    private boolean isCaughtUpLocked() {
+        return !finished && headersDone && nextHeight > tipHeight;
+    }
+
+    private void finish(boolean caughtUp) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            finishLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (caughtUp)
+            log.info("{}: Parallel chain download caught up at height {}", headersPeer, chain.getBestChainHeight());
+        listener.onDownloadFinished(this, caughtUp);
+    }
+
+    @GuardedBy("lock")
+    private void finishLocked() {
+        finished = true;
+        if (stallCheckTask != null)
+            stallCheckTask.cancel(false);
+        buffer.clear();
+        requested.clear();
+        retries.clear();
+        windows.clear();
+    }
+}
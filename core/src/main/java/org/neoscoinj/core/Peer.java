@@ -123,6 +123,28 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // Blocks announced to us during chain download that haven't been requested yet. Rather than asking for a whole inv
+    // batch at once we keep a window of requests in flight, sized to the bandwidth-delay product of the connection so
+    // the link stays busy even when it has high latency. See fillDownloadWindowLocked().
+    @GuardedBy("lock") private final LinkedHashSet<Sha256Hash> blocksToRequest = new LinkedHashSet<Sha256Hash>();
+    static final int MIN_BLOCKS_IN_FLIGHT = 16;
+    static final int MAX_BLOCKS_IN_FLIGHT = 500;
+    // Neoscoin Core answers a getblocks with at most this many blocks. A full batch means there are more to come.
+    static final int GETBLOCKS_BATCH_SIZE = 500;
+    // Moving average of the time between blocks arriving whilst requests are outstanding, zero until measured.
+    @GuardedBy("lock") private double blockIntervalMsec;
+    @GuardedBy("lock") private long lastBlockTimeMsec;
+    // Time from a getdata sent with nothing else outstanding to the first block, used when pings aren't measured.
+    @GuardedBy("lock") private long blockRequestRttMsec = -1;
+    @GuardedBy("lock") private long idleRequestTimeMsec;
+    // The last hash of a full inv batch whose successors we haven't asked for yet. The next getblocks is sent from
+    // here before the batch drains, so that the peer doesn't go idle between batches.
+    @GuardedBy("lock") @Nullable private Sha256Hash nextBatchStart;
+    // An orphan we didn't start a getblocks for because the blocks outstanding were likely to connect it.
+    @GuardedBy("lock") @Nullable private Sha256Hash deferredOrphan;
+    // If non-null, the PeerGroup is downloading the chain headers-first from several peers at once. Headers and blocks
+    // are handed to it rather than processed here, and we don't ask for announced blocks ourselves.
+    @Nullable private volatile ParallelChainDownload vParallelDownload;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -482,6 +504,17 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         }
+        // Blocks the peer can't give us must not hold a place in the download window, nor keep us waiting before
+        // chasing an orphan that the blocks still on their way were meant to connect.
+        boolean blocksNotFound = false;
+        for (InventoryItem item : m.getItems()) {
+            if (item.type != InventoryItem.Type.Transaction) {
+                blockReceived(item.hash);
+                blocksNotFound = true;
+            }
+        }
+        if (blocksNotFound)
+            maybeResumeAfterDeferredOrphan();
     }
 
     private void processAlert(AlertMessage m) {
@@ -506,6 +539,11 @@ public class Peer extends PeerSocketHandler {
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
         // request the full blocks from that point on instead.
+        final ParallelChainDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null) {
+            parallelDownload.receiveHeaders(this, m);
+            return;
+        }
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
@@ -836,17 +874,23 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        final ParallelChainDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null) {
+            parallelDownload.receive(this, m);
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
+        blockReceived(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m);
+                maybeResumeAfterDeferredOrphan();
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -869,8 +913,7 @@ public class Peer extends PeerSocketHandler {
                 lock.lock();
                 try {
                     if (downloadBlockBodies) {
-                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        orphanReceivedLocked(m.getHash());
                     } else {
                         log.info("Did not start chain download on solved block due to in-flight header download.");
                     }
@@ -891,6 +934,11 @@ public class Peer extends PeerSocketHandler {
     private void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        final ParallelChainDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null) {
+            parallelDownload.receive(this, m);
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -902,7 +950,7 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        blockReceived(m.getBlockHeader().getHash());
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -951,6 +999,7 @@ public class Peer extends PeerSocketHandler {
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m.getBlockHeader());
+                maybeResumeAfterDeferredOrphan();
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -969,8 +1018,7 @@ public class Peer extends PeerSocketHandler {
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    orphanReceivedLocked(m.getHash());
                 } finally {
                     lock.unlock();
                 }
@@ -1008,7 +1056,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1094,7 +1142,8 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            // Whilst a parallel chain download is running, announced blocks are fetched as part of it.
+            if (blocks.size() > 0 && downloadData && blockChain != null && vParallelDownload == null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1102,8 +1151,7 @@ public class Peer extends PeerSocketHandler {
                     if (blockChain.isOrphan(item.hash) && downloadBlockBodies) {
                         // If an orphan was re-advertised, ask for more blocks unless we are not currently downloading
                         // full block data because we have a getheaders outstanding.
-                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        orphanReceivedLocked(item.hash);
                     } else {
                         // Don't re-request blocks we already requested. Normally this should not happen. However there is
                         // an edge case: if a block is solved and we complete the inv<->getdata<->block<->getblocks cycle
@@ -1117,17 +1165,13 @@ public class Peer extends PeerSocketHandler {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But the satoshi client may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
-                            if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
-                                getdata.addFilteredBlock(item.hash);
-                                pingAfterGetData = true;
-                            } else {
-                                getdata.addItem(item);
-                            }
-                            pendingBlockDownloads.add(item.hash);
-                        }
+                        if (!pendingBlockDownloads.contains(item.hash))
+                            blocksToRequest.add(item.hash);
                     }
                 }
+                if (blocks.size() >= GETBLOCKS_BATCH_SIZE && downloadBlockBodies)
+                    nextBatchStart = blocks.get(blocks.size() - 1).hash;
+                pingAfterGetData = fillDownloadWindowLocked(getdata);
                 // If we're downloading the chain, doing a getdata on the last block we were told about will cause the
                 // peer to advertize the head block to us in a single-item inv. When we download THAT, it will be an
                 // orphan block, meaning we'll re-enter blockChainDownloadLocked() to trigger another getblocks between the
@@ -1289,6 +1333,34 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
+        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        // Did we already make this request? If so, don't do it again.
+        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
+            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
+            return;
+        }
+        if (log.isDebugEnabled())
+            log.debug("{}: blockChainDownloadLocked({}) current head = {}",
+                    toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
+        List<Sha256Hash> blockLocator = buildBlockLocator(chainHead);
+
+        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
+        // block being solved during chain download.
+        lastGetBlocksBegin = chainHeadHash;
+        lastGetBlocksEnd = toHash;
+
+        if (downloadBlockBodies) {
+            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        } else {
+            // Downloading headers for a while instead of full blocks.
+            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        }
+    }
+
+    private List<Sha256Hash> buildBlockLocator(StoredBlock chainHead) {
         // TODO: Block locators should be abstracted out rather than special cased here.
         List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
         // For now we don't do the exponential thinning as suggested here:
@@ -1299,16 +1371,6 @@ public class Peer extends PeerSocketHandler {
         // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
         // must always put the genesis block as the first entry.
         BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
-        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
-        // Did we already make this request? If so, don't do it again.
-        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
-            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
-            return;
-        }
-        if (log.isDebugEnabled())
-            log.debug("{}: blockChainDownloadLocked({}) current head = {}",
-                    toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
         StoredBlock cursor = chainHead;
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
@@ -1322,19 +1384,115 @@ public class Peer extends PeerSocketHandler {
         // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
         if (cursor != null)
             blockLocator.add(params.getGenesisBlock().getHash());
+        return blockLocator;
+    }
 
-        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
-        // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
-        lastGetBlocksEnd = toHash;
+    // Called when a block arrives that we may have asked for during chain download. Measures how quickly blocks are
+    // arriving and tops up the window of outstanding requests before the block is processed.
+    private void blockReceived(Sha256Hash hash) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        boolean pingAfterGetData;
+        lock.lock();
+        try {
+            if (!pendingBlockDownloads.remove(hash))
+                return;
+            long now = Utils.currentTimeMillis();
+            if (idleRequestTimeMsec > 0) {
+                blockRequestRttMsec = now - idleRequestTimeMsec;
+                idleRequestTimeMsec = 0;
+            } else if (lastBlockTimeMsec > 0) {
+                long sample = Math.max(1, now - lastBlockTimeMsec);
+                blockIntervalMsec = blockIntervalMsec == 0 ? sample : 0.9 * blockIntervalMsec + 0.1 * sample;
+            }
+            lastBlockTimeMsec = pendingBlockDownloads.isEmpty() ? 0 : now;
+            pingAfterGetData = fillDownloadWindowLocked(getdata);
+        } finally {
+            lock.unlock();
+        }
+        if (!getdata.getItems().isEmpty())
+            sendMessage(getdata);
+        if (pingAfterGetData)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
 
-        if (downloadBlockBodies) {
-            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        } else {
-            // Downloading headers for a while instead of full blocks.
-            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
-            sendMessage(message);
+    // Moves announced blocks into the getdata until the window of outstanding requests is full, and sends the next
+    // getblocks once the current batch is close to running out. Returns true if filtered blocks were requested, in
+    // which case a ping must follow the getdata.
+    @GuardedBy("lock")
+    private boolean fillDownloadWindowLocked(GetDataMessage getdata) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!vDownloadData || awaitingFreshFilter != null)
+            return false;
+        int target = getBlocksInFlightTargetLocked();
+        int free = target - pendingBlockDownloads.size();
+        boolean filtered = false;
+        // Top up in chunks rather than a block at a time, as each top up costs a getdata (and a ping).
+        if (!blocksToRequest.isEmpty() && free >= Math.min(blocksToRequest.size(), Math.max(1, target / 4))) {
+            if (pendingBlockDownloads.isEmpty())
+                idleRequestTimeMsec = Utils.currentTimeMillis();
+            filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+            Iterator<Sha256Hash> it = blocksToRequest.iterator();
+            for (int i = 0; i < free && it.hasNext(); i++) {
+                Sha256Hash hash = it.next();
+                it.remove();
+                if (filtered)
+                    getdata.addFilteredBlock(hash);
+                else
+                    getdata.addBlock(hash);
+                pendingBlockDownloads.add(hash);
+            }
+        }
+        if (nextBatchStart != null && downloadBlockBodies && blocksToRequest.size() <= target) {
+            // Overlap the next getblocks with the tail of this batch. Starting the locator at the end of the batch
+            // rather than at our chain head gets us the blocks that follow it.
+            Sha256Hash start = nextBatchStart;
+            nextBatchStart = null;
+            List<Sha256Hash> blockLocator = buildBlockLocator(checkNotNull(blockChain).getChainHead());
+            blockLocator.add(0, start);
+            lastGetBlocksBegin = start;
+            lastGetBlocksEnd = Sha256Hash.ZERO_HASH;
+            sendMessage(new GetBlocksMessage(params, blockLocator, Sha256Hash.ZERO_HASH));
+        }
+        return filtered;
+    }
+
+    // How many blocks to keep requested: twice the bandwidth-delay product of the connection, counted in blocks, so a
+    // single slow block doesn't leave the link idle. Uses the ping time if pings are being measured.
+    @GuardedBy("lock")
+    private int getBlocksInFlightTargetLocked() {
+        long rtt = getPingTime();
+        if (rtt == Long.MAX_VALUE)
+            rtt = blockRequestRttMsec;
+        if (rtt < 0 || blockIntervalMsec == 0)
+            return MIN_BLOCKS_IN_FLIGHT;
+        double target = Math.ceil(2 * rtt / blockIntervalMsec);
+        return (int) Math.max(MIN_BLOCKS_IN_FLIGHT, Math.min(MAX_BLOCKS_IN_FLIGHT, target));
+    }
+
+    // An orphan means we're missing blocks. If some are still on their way they'll probably connect it, so only do
+    // another getblocks if nothing is outstanding or once the outstanding blocks turn out not to be enough.
+    @GuardedBy("lock")
+    private void orphanReceivedLocked(Sha256Hash hash) {
+        if (!blocksToRequest.isEmpty() || !pendingBlockDownloads.isEmpty()) {
+            deferredOrphan = hash;
+            return;
+        }
+        deferredOrphan = null;
+        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(hash));
+        blockChainDownloadLocked(orphanRoot.getHash());
+    }
+
+    private void maybeResumeAfterDeferredOrphan() {
+        lock.lock();
+        try {
+            if (deferredOrphan == null || !blocksToRequest.isEmpty() || !pendingBlockDownloads.isEmpty())
+                return;
+            Sha256Hash hash = deferredOrphan;
+            deferredOrphan = null;
+            if (downloadBlockBodies && blockChain.isOrphan(hash))
+                blockChainDownloadLocked(checkNotNull(blockChain.getOrphanRoot(hash)).getHash());
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -1348,14 +1506,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1366,6 +1517,38 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by the {@link PeerGroup} when it starts or stops downloading the chain from several peers at once. Pass
+     * null to go back to processing headers and blocks on this peer.
+     */
+    void setParallelDownload(@Nullable ParallelChainDownload parallelDownload) {
+        this.vParallelDownload = parallelDownload;
+    }
+
+    /**
+     * Asks for the blocks following the current chain head in the usual way, used once a parallel chain download has
+     * caught up to pick up anything solved in the meantime.
+     */
+    void continueBlockChainDownload() {
+        lock.lock();
+        try {
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1509,6 +1692,17 @@ public class Peer extends PeerSocketHandler {
      */
     public void setDownloadData(boolean downloadData) {
         this.vDownloadData = downloadData;
+        if (!downloadData) {
+            lock.lock();
+            try {
+                blocksToRequest.clear();
+                pendingBlockDownloads.clear();
+                nextBatchStart = null;
+                deferredOrphan = null;
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     /** Returns version data announced by the remote peer. */
@@ -1586,6 +1780,9 @@ public class Peer extends PeerSocketHandler {
         sendMessage(filter);
         if (andQueryMemPool)
             sendMessage(new MemoryPoolMessage());
+        final ParallelChainDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null)
+            parallelDownload.filterSent(this);
         maybeRestartChainDownload();
     }
 
@@ -1607,9 +1804,12 @@ public class Peer extends PeerSocketHandler {
                     lock.lock();
                     checkNotNull(awaitingFreshFilter);
                     GetDataMessage getdata = new GetDataMessage(params);
-                    for (Sha256Hash hash : awaitingFreshFilter)
+                    for (Sha256Hash hash : awaitingFreshFilter) {
                         getdata.addFilteredBlock(hash);
+                        pendingBlockDownloads.add(hash);
+                    }
                     awaitingFreshFilter = null;
+                    fillDownloadWindowLocked(getdata);
                     lock.unlock();
 
                     log.info("Restarting chain download");
@@ -125,6 +125,12 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
     @GuardedBy("lock") private boolean downloadTxDependencies;
+    // Whether new peers parse the messages they receive lazily.
+    @GuardedBy("lock") private boolean lazyParsing;
+    // Whether to download the chain headers-first with block bodies fetched from all peers, and the download in
+    // progress if so.
+    @GuardedBy("lock") private boolean parallelChainDownload;
+    @GuardedBy("lock") @Nullable private ParallelChainDownload parallelDownload;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -414,6 +420,71 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Switch for parsing received blocks and transactions lazily, see {@link Peer#setLazyParsing(boolean)}. A change of
+     * value only takes effect for newly connected peers.
+     */
+    public void setLazyParsing(boolean lazyParsing) {
+        lock.lock();
+        try {
+            this.lazyParsing = lazyParsing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Switch for downloading the block chain headers-first from several peers at once. Headers are fetched from the
+     * download peer and checked against the checkpoints, then block bodies (or filtered blocks) are requested in small
+     * windows from every connected peer and added to the chain in height order. Requests a peer doesn't answer in time
+     * are handed to another peer. Once the chain has caught up, the download peer goes on following the chain as
+     * usual.</p>
+     *
+     * <p>A change of value takes effect the next time a chain download is started.</p>
+     */
+    public void setParallelChainDownload(boolean parallelChainDownload) {
+        lock.lock();
+        try {
+            this.parallelChainDownload = parallelChainDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final ParallelChainDownload.Listener parallelDownloadListener = new ParallelChainDownload.Listener() {
+        @Override
+        public void onDownloadFinished(ParallelChainDownload download, boolean caughtUp) {
+            lock.lock();
+            try {
+                if (download != parallelDownload)
+                    return;
+                stopParallelDownload();
+                Peer peer = download.getHeadersPeer();
+                if (peer != downloadPeer)
+                    return;
+                // Pick up whatever was solved whilst we were downloading, or fall back to downloading from the one
+                // peer if the parallel download had to be abandoned.
+                peer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+                if (caughtUp)
+                    peer.continueBlockChainDownload();
+                else
+                    peer.startBlockChainDownload();
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+    @GuardedBy("lock")
+    private void stopParallelDownload() {
+        if (parallelDownload == null)
+            return;
+        parallelDownload.cancel();
+        parallelDownload = null;
+        for (Peer peer : peers)
+            peer.setParallelDownload(null);
+    }
+
     private Runnable triggerConnectionsJob = new Runnable() {
         private boolean firstRun = true;
 
@@ -1172,6 +1243,7 @@ public class PeerGroup implements TransactionBroadcaster {
         ver.time = Utils.currentTimeSeconds();
 
         Peer peer = new Peer(params, ver, address, chain, downloadTxDependencies);
+        peer.setLazyParsing(lazyParsing);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
         pendingPeers.add(peer);
@@ -1279,6 +1351,11 @@ public class PeerGroup implements TransactionBroadcaster {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
             }
+            // Put the new peer to work if a parallel chain download is in progress.
+            if (parallelDownload != null) {
+                peer.setParallelDownload(parallelDownload);
+                parallelDownload.addPeer(peer);
+            }
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addEventListener(peerListener, Threading.SAME_THREAD);
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
@@ -1413,6 +1490,14 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (parallelDownload != null) {
+                // Losing the headers peer means losing the download peer, which restarts the download below.
+                peer.setParallelDownload(null);
+                if (peer == parallelDownload.getHeadersPeer())
+                    stopParallelDownload();
+                else
+                    parallelDownload.removePeer(peer);
+            }
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1469,8 +1554,20 @@ public class PeerGroup implements TransactionBroadcaster {
         lock.lock();
         try {
             setDownloadPeer(peer);
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            stopParallelDownload();
+            if (parallelChainDownload && chain != null) {
+                boolean useFilteredBlocks = bloomFilterMerger.getLastFilter() != null;
+                parallelDownload = new ParallelChainDownload(params, chain, wallets, peer, fastCatchupTimeSecs,
+                        useFilteredBlocks, executor, parallelDownloadListener);
+                for (Peer p : peers) {
+                    p.setParallelDownload(parallelDownload);
+                    parallelDownload.addPeer(p);
+                }
+                parallelDownload.start();
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
         } finally {
             lock.unlock();
         }
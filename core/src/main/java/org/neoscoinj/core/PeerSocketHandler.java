@@ -42,7 +42,8 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
-    private final NeoscoinSerializer serializer;
+    // Replaced, never modified, by setLazyParsing before the connection is opened.
+    private volatile NeoscoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -68,6 +69,27 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         this.peerAddress = checkNotNull(peerAddress);
     }
 
+    /**
+     * <p>Switches between eager parsing of received messages, the default, and lazy parsing. In lazy mode blocks and
+     * transactions keep the bytes they were received as: a block only parses its header until its transactions are
+     * accessed, and a transaction only finds its length until its inputs or outputs are accessed. Hashing and
+     * reserializing unmodified messages reuses the kept bytes.</p>
+     *
+     * <p>This saves a lot of work for messages that are only partially looked at or are relayed on, at the cost of
+     * memory for the kept bytes and of parse errors being thrown later, as unchecked
+     * {@link Message.LazyParseException}s, rather than on receipt. Should be called before the connection is opened.</p>
+     */
+    public void setLazyParsing(boolean lazy) {
+        NeoscoinSerializer serializer = this.serializer;
+        if (serializer.isParseLazyMode() != lazy)
+            this.serializer = new NeoscoinSerializer(serializer.getParameters(), lazy, lazy);
+    }
+
+    /** Returns whether received messages are parsed lazily, see {@link #setLazyParsing(boolean)}. */
+    public boolean isLazyParsing() {
+        return serializer.isParseLazyMode();
+    }
+
     /**
      * Sends the given message to the peer. Due to the asynchronousness of network programming, there is no guarantee
      * the peer will have received it. Throws NotYetConnectedException if we are not yet connected to the remote peer.
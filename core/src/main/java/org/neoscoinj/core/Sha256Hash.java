@@ -24,8 +24,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -58,19 +56,32 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * Calculates the (one-time) hash of contents and returns it as a new wrapped hash.
      */
     public static Sha256Hash create(byte[] contents) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return new Sha256Hash(digest.digest(contents));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return new Sha256Hash(HashEngine.get().singleDigest(contents, 0, contents.length));
     }
 
     /**
      * Calculates the hash of the hash of the contents. This is a standard operation in Neoscoin.
      */
     public static Sha256Hash createDouble(byte[] contents) {
-        return new Sha256Hash(Utils.doubleDigest(contents));
+        return new Sha256Hash(HashEngine.get().doubleDigest(contents, 0, contents.length));
+    }
+
+    /**
+     * Calculates the hash of the hash of the given byte range and returns it as a new wrapped hash.
+     */
+    public static Sha256Hash createDouble(byte[] contents, int offset, int length) {
+        return new Sha256Hash(HashEngine.get().doubleDigest(contents, offset, length));
+    }
+
+    /**
+     * Calculates the hash of the hash of the given byte range and returns it byte reversed, which is the form
+     * transaction and block hashes are displayed and referenced in.
+     */
+    public static Sha256Hash createDoubleReversed(byte[] contents, int offset, int length) {
+        byte[] bytes = new byte[32];
+        HashEngine.get().doubleDigestInto(bytes, 0, contents, offset, length);
+        Utils.reverseBytesInPlace(bytes);
+        return new Sha256Hash(bytes);
     }
 
     /**
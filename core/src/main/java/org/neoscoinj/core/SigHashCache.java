@@ -0,0 +1,223 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.script.Script;
+import org.neoscoinj.script.ScriptOpCodes;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Precomputed serialization state for calculating the signature hashes of one transaction, see
+ * {@link Transaction#hashForSignature(int, byte[], byte)}.</p>
+ *
+ * <p>The legacy signature hash covers the whole transaction with every input script blanked out apart from the one
+ * being signed. Rather than blanking the scripts of the transaction itself and reserializing it for every input,
+ * the cache holds the serialized form of every input with an empty script, the serialized outputs, and SHA-256
+ * midstates over the common prefix of inputs. A signature hash is then a single pass of the digest over these
+ * buffers, which never touches the transaction, so any number of threads can use the cache at once.</p>
+ *
+ * <p>The cache is a snapshot and is thrown away by the transaction whenever it changes.</p>
+ */
+final class SigHashCache {
+    // Outpoint (36) + empty script length (1) + sequence number (4).
+    private static final int BLANK_INPUT_SIZE = 41;
+    private static final int OUTPOINT_SIZE = 36;
+    // How many inputs apart the prefix midstates are taken.
+    private static final int MIDSTATE_STRIDE = 16;
+
+    private static final byte[] ZERO_SEQUENCE = new byte[4];
+    // Serialized "null" output as used by SIGHASH_SINGLE: value -1 and an empty script.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    private static final byte[] ONE_INPUT = new VarInt(1).encode();
+    private static final byte[] NO_OUTPUTS = new VarInt(0).encode();
+    // Satoshis bug is that SignatureHash was supposed to return a hash and on the SIGHASH_SINGLE error codepath it
+    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final int numInputs, numOutputs;
+    private final byte[] versionAndInputCount;
+    // Every input serialized with an empty script, back to back.
+    private final byte[] blankInputs;
+    // The output count followed by every output, and the offset of each output within.
+    private final byte[] outputs;
+    private final int[] outputOffsets;
+    private final byte[] lockTime = new byte[4];
+    // midstates[k] has absorbed versionAndInputCount and the first k * MIDSTATE_STRIDE blank inputs.
+    private final MessageDigest[] midstates;
+
+    SigHashCache(long version, List<TransactionInput> inputs, List<TransactionOutput> outputs, long lockTime) {
+        numInputs = inputs.size();
+        numOutputs = outputs.size();
+        byte[] inputCount = new VarInt(numInputs).encode();
+        versionAndInputCount = new byte[4 + inputCount.length];
+        Utils.uint32ToByteArrayLE(version, versionAndInputCount, 0);
+        System.arraycopy(inputCount, 0, versionAndInputCount, 4, inputCount.length);
+
+        blankInputs = new byte[numInputs * BLANK_INPUT_SIZE];
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = inputs.get(i);
+            int offset = i * BLANK_INPUT_SIZE;
+            byte[] outpoint = input.getOutpoint().neoscoinSerialize();
+            System.arraycopy(outpoint, 0, blankInputs, offset, OUTPOINT_SIZE);
+            blankInputs[offset + OUTPOINT_SIZE] = 0;
+            Utils.uint32ToByteArrayLE(input.getSequenceNumber(), blankInputs, offset + OUTPOINT_SIZE + 1);
+        }
+
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(numOutputs * 34 + 9);
+        outputOffsets = new int[numOutputs + 1];
+        try {
+            bos.write(new VarInt(numOutputs).encode());
+            for (int i = 0; i < numOutputs; i++) {
+                outputOffsets[i] = bos.size();
+                outputs.get(i).neoscoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        outputOffsets[numOutputs] = bos.size();
+        this.outputs = bos.toByteArray();
+        Utils.uint32ToByteArrayLE(lockTime, this.lockTime, 0);
+
+        midstates = new MessageDigest[numInputs / MIDSTATE_STRIDE + 1];
+        MessageDigest digest = HashEngine.newDigest();
+        digest.update(versionAndInputCount);
+        for (int k = 0; k < midstates.length; k++) {
+            if (k > 0)
+                digest.update(blankInputs, (k - 1) * MIDSTATE_STRIDE * BLANK_INPUT_SIZE,
+                        MIDSTATE_STRIDE * BLANK_INPUT_SIZE);
+            midstates[k] = cloneDigest(digest);
+        }
+    }
+
+    /**
+     * Calculates the signature hash for the given input. See {@link Transaction#hashForSignature(int, byte[], byte)}
+     * for a description of the parameters.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        checkElementIndex(inputIndex, numInputs, "inputIndex");
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == (Transaction.SigHash.NONE.ordinal() + 1);
+        boolean single = mode == (Transaction.SigHash.SINGLE.ordinal() + 1);
+        boolean anyoneCanPay = (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) ==
+                Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= numOutputs) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Neoscoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            return SIGHASH_SINGLE_BUG;
+        }
+
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Neoscoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        HashEngine engine = HashEngine.get();
+        MessageDigest digest;
+        boolean pooled = true;
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            digest = engine.acquire();
+            digest.update(versionAndInputCount, 0, 4);
+            digest.update(ONE_INPUT);
+            updateSignedInput(digest, inputIndex, connectedScript, false);
+        } else if (none || single) {
+            // The signature isn't broken by new versions of the transaction issued by other parties, so the sequence
+            // numbers of the other inputs are blanked too.
+            digest = engine.acquire();
+            digest.update(versionAndInputCount);
+            for (int i = 0; i < numInputs; i++) {
+                if (i == inputIndex) {
+                    updateSignedInput(digest, i, connectedScript, false);
+                } else {
+                    digest.update(blankInputs, i * BLANK_INPUT_SIZE, OUTPOINT_SIZE + 1);
+                    digest.update(ZERO_SEQUENCE);
+                }
+            }
+        } else {
+            // SIGHASH_ALL, the common case: resume from the nearest midstate before the signed input.
+            int k = inputIndex / MIDSTATE_STRIDE;
+            digest = cloneDigest(midstates[k]);
+            pooled = false;
+            int from = k * MIDSTATE_STRIDE * BLANK_INPUT_SIZE;
+            digest.update(blankInputs, from, inputIndex * BLANK_INPUT_SIZE - from);
+            updateSignedInput(digest, inputIndex, connectedScript, true);
+        }
+
+        try {
+            if (none) {
+                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+                digest.update(NO_OUTPUTS);
+            } else if (single) {
+                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+                digest.update(new VarInt(inputIndex + 1).encode());
+                for (int i = 0; i < inputIndex; i++)
+                    digest.update(NULL_OUTPUT);
+                int start = outputOffsets[inputIndex];
+                digest.update(outputs, start, outputOffsets[inputIndex + 1] - start);
+            } else {
+                digest.update(outputs);
+            }
+            digest.update(lockTime);
+            // We also have to write a hash type (sigHashType is actually an unsigned char)
+            digest.update(sigHashType);
+            digest.update(ZERO_SEQUENCE, 0, 3);
+            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+            // however then we would expect that it is IS reversed.
+            byte[] hash = digest.digest();
+            return new Sha256Hash(digest.digest(hash));
+        } finally {
+            if (pooled)
+                engine.release(digest);
+        }
+    }
+
+    // Writes the input being signed, with the connected script in place of its own, optionally followed by all the
+    // remaining (blank) inputs.
+    private void updateSignedInput(MessageDigest digest, int inputIndex, byte[] connectedScript, boolean andRest) {
+        int offset = inputIndex * BLANK_INPUT_SIZE;
+        digest.update(blankInputs, offset, OUTPOINT_SIZE);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        int rest = andRest ? blankInputs.length - offset - OUTPOINT_SIZE - 1 : 4;
+        digest.update(blankInputs, offset + OUTPOINT_SIZE + 1, rest);
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Cannot happen, the SHA-256 implementations all support cloning.
+        }
+    }
+}
@@ -251,7 +251,13 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
+        // Signature hashes blank out every scriptSig, so the parent keeps its signature hash cache. Otherwise signing
+        // each input in turn would rebuild it from the whole transaction every time.
+        Transaction parentTransaction = getParentTransaction();
+        SigHashCache sigHashes = parentTransaction != null ? parentTransaction.sigHashCache : null;
         unCache();
+        if (sigHashes != null)
+            parentTransaction.sigHashCache = sigHashes;
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
@@ -212,6 +212,7 @@ public class TransactionOutPoint extends ChildMessage implements Serializable {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
         this.hash = hash;
     }
 
@@ -221,6 +222,7 @@ public class TransactionOutPoint extends ChildMessage implements Serializable {
     }
     
     public void setIndex(long index) {
+        unCache();
         this.index = index;
     }
 
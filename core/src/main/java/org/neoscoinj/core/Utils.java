@@ -33,8 +33,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -50,15 +49,6 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  * To enable debug logging from the library, run with -Dneoscoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
-        }
-    }
-
     /** The string that prefixes all text messages signed using Neoscoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Neoscoin Signed Message:\n";
     public static final byte[] BITCOIN_SIGNED_MESSAGE_HEADER_BYTES = BITCOIN_SIGNED_MESSAGE_HEADER.getBytes(Charsets.UTF_8);
@@ -153,20 +143,30 @@ public class Utils {
      * standard procedure in Neoscoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        return HashEngine.get().doubleDigest(input, offset, length);
+    }
+
+    /**
+     * Calculates SHA256(SHA256(remaining bytes of the buffer)), consuming the bytes.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        return HashEngine.get().doubleDigest(input);
+    }
+
+    /**
+     * Like {@link #doubleDigest(byte[], int, int)} but writes the 32 byte result into out at outOffset instead of
+     * allocating a new array.
+     */
+    public static void doubleDigestInto(byte[] out, int outOffset, byte[] input, int offset, int length) {
+        HashEngine.get().doubleDigestInto(out, outOffset, input, offset, length);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        return HashEngine.get().singleDigest(input, offset, length);
+    }
+
+    public static byte[] singleDigest(ByteBuffer input) {
+        return HashEngine.get().singleDigest(input);
     }
 
     /**
@@ -174,13 +174,7 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        return HashEngine.get().doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2);
     }
 
     /**
@@ -213,6 +207,17 @@ public class Utils {
             buf[i] = bytes[bytes.length - 1 - i];
         return buf;
     }
+
+    /**
+     * Reverses the order of the bytes in the given array, without making a copy.
+     */
+    public static void reverseBytesInPlace(byte[] bytes) {
+        for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+            byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+    }
     
     /**
      * Returns a copy of the given byte array with the bytes of each double-word (4 bytes) reversed.
@@ -268,16 +273,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
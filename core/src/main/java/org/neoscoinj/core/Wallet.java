@@ -40,6 +40,7 @@ import org.neoscoinj.signers.MissingSigResolutionSigner;
 import org.neoscoinj.signers.TransactionSigner;
 import org.neoscoinj.store.FullPrunedBlockStore;
 import org.neoscoinj.store.UnreadableWalletException;
+import org.neoscoinj.store.WalletJournal;
 import org.neoscoinj.store.WalletProtobufSerializer;
 import org.neoscoinj.utils.BaseTaggableObject;
 import org.neoscoinj.utils.ExchangeRate;
@@ -58,6 +59,7 @@ import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -101,7 +103,7 @@ import static com.google.common.base.Preconditions.*;
  * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, org.neoscoinj.wallet.WalletFiles.Listener)}
  * for more information about this.</p>
  */
-public class Wallet extends BaseTaggableObject implements Serializable, BlockChainListener, PeerFilterProvider, KeyBag, TransactionBag {
+public class Wallet extends BaseTaggableObject implements Serializable, BlockChainBatchListener, PeerFilterProvider, KeyBag, TransactionBag {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
@@ -130,10 +132,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     //           to the user in the UI, etc). A transaction can leave dead and move into spent/unspent if there is a
     //           re-org to a chain that doesn't include the double spend.
 
-    @VisibleForTesting final Map<Sha256Hash, Transaction> pending;
-    @VisibleForTesting final Map<Sha256Hash, Transaction> unspent;
-    @VisibleForTesting final Map<Sha256Hash, Transaction> spent;
-    @VisibleForTesting final Map<Sha256Hash, Transaction> dead;
+    // The pools are always TrackedPools at runtime, but are declared as maps to keep the serialized form unchanged.
+    // They are only ever assigned in the constructor and in readObject().
+    @VisibleForTesting Map<Sha256Hash, Transaction> pending;
+    @VisibleForTesting Map<Sha256Hash, Transaction> unspent;
+    @VisibleForTesting Map<Sha256Hash, Transaction> spent;
+    @VisibleForTesting Map<Sha256Hash, Transaction> dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
@@ -175,6 +179,35 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+
+    // The outputs of transactions in the unspent and pending pools that are not yet spent and pay to our keys or to
+    // watched scripts, keyed by outpoint, along with the total value of our own. These are what the balances and coin
+    // selection look at, so keeping them up to date as the pools change avoids scanning every transaction in the
+    // wallet. Transactions whose pool or spent flags may have changed are queued in spendCandidateUpdates and
+    // re-indexed before the next read. Anything that can affect every transaction, like a re-org or the set of keys
+    // and watched scripts changing, rebuilds the index from scratch instead.
+    @GuardedBy("lock") private transient LinkedHashMap<TransactionOutPoint, TransactionOutput> myUnspents;
+    @GuardedBy("lock") private transient LinkedHashMap<TransactionOutPoint, TransactionOutput> watchedUnspents;
+    @GuardedBy("lock") private transient Coin myUnspentsValue;
+    @GuardedBy("lock") private transient HashSet<Transaction> spendCandidateUpdates;
+    @GuardedBy("lock") private transient int spendCandidateKeyChanges;
+    private transient volatile boolean rebuildSpendCandidates;
+    // Incremented whenever the pools, the keys or watched scripts, the last block seen or the confidence or depth of
+    // a transaction change, except for other peers announcing transactions that aren't our own pending ones, see
+    // txConfidenceListener. Confidence changes can come from the network without the wallet lock held, which is why
+    // this isn't simply guarded by it. The AVAILABLE and watched balances are cached against it, and it tells readers
+    // of the snapshot whether it is out of date.
+    private transient AtomicInteger stateVersion;
+    // The last snapshot handed out by getSnapshot(), see there.
+    @Nullable private transient volatile WalletSnapshot vSnapshot;
+    @GuardedBy("lock") @Nullable private transient Coin cachedAvailableBalance, cachedWatchedBalance;
+    @GuardedBy("lock") private transient int cachedAvailableVersion, cachedWatchedVersion;
+    // Transactions changed since the wallet was last saved to its journal, see saveToJournal(). Anything the journal
+    // can't express, like transactions being removed, sets unsavedRewrite so the whole file is written instead. That
+    // is also how it starts out, so nothing is tracked unless the wallet is being saved with a journal.
+    @GuardedBy("lock") private transient HashSet<Transaction> unsavedTransactions;
+    @GuardedBy("lock") private transient boolean unsavedRewrite;
+
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -183,6 +216,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
+    // Set whilst a run of blocks is taken in notifyNewBestBlocks, which does the per block work once at the end.
+    private boolean insideBlockBatch;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
@@ -266,10 +301,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         if (this.keychain.numKeys() == 0)
             this.keychain.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
+        unspent = new TrackedPool();
+        spent = new TrackedPool();
+        pending = new TrackedPool();
+        dead = new TrackedPool();
         transactions = new HashMap<Sha256Hash, Transaction>();
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
@@ -282,9 +317,22 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        myUnspents = new LinkedHashMap<TransactionOutPoint, TransactionOutput>();
+        watchedUnspents = new LinkedHashMap<TransactionOutPoint, TransactionOutput>();
+        myUnspentsValue = Coin.ZERO;
+        spendCandidateUpdates = new HashSet<Transaction>();
+        stateVersion = new AtomicInteger();
+        rebuildSpendCandidates = true;
+        unsavedTransactions = new HashSet<Transaction>();
+        unsavedRewrite = true;
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                // Whatever changed, coin selectors may now choose differently. More peers announcing a transaction is
+                // the exception, as that happens all the time and only makes a difference to our own pending
+                // transactions, which are selectable once they've propagated. It's checked for below.
+                if (reason != ChangeReason.SEEN_PEERS)
+                    stateVersion.incrementAndGet();
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -296,6 +344,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null && confidence.getSource() == TransactionConfidence.Source.SELF &&
+                                pending.containsKey(tx.getHash()))
+                            stateVersion.incrementAndGet();
+                        if (tx != null && !unsavedRewrite)
+                            unsavedTransactions.add(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -555,6 +608,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public boolean removeKey(ECKey key) {
         keychainLock.lock();
         try {
+            rebuildSpendCandidates();
             return keychain.removeImportedKey(key);
         } finally {
             keychainLock.unlock();
@@ -631,6 +685,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             result = keychain.importKeys(keys);
+            // The index of spend candidates notices new keys by itself, but snapshots need telling.
+            stateVersion.incrementAndGet();
         } finally {
             keychainLock.unlock();
         }
@@ -661,6 +717,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             checkNoDeterministicKeys(keys);
+            stateVersion.incrementAndGet();
             return keychain.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keychainLock.unlock();
@@ -682,6 +739,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addAndActivateHDChain(chain);
+            stateVersion.incrementAndGet();
         } finally {
             keychainLock.unlock();
         }
@@ -804,6 +862,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 watchedScripts.add(script);
                 added++;
             }
+            if (added > 0)
+                rebuildSpendCandidates();
         } finally {
             keychainLock.unlock();
         }
@@ -853,6 +913,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
                 watchedScripts.remove(script);
             }
+            rebuildSpendCandidates();
 
             queueOnScriptsChanged(scripts, false);
             saveNow();
@@ -1198,11 +1259,28 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
+        saveToFile(temp, destFile, null);
+    }
+
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. If a journal is given, it's then
+     * started afresh on top of the new file, see {@link #saveToJournal(WalletJournal)}.
+     */
+    public void saveToFile(File temp, File destFile, @Nullable WalletJournal journal) throws IOException {
         FileOutputStream stream = null;
         lock.lock();
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            Protos.Wallet walletProto = null;
+            byte[] walletBytes = null;
+            if (journal == null) {
+                saveToFileStream(stream);
+            } else {
+                // The journal needs to know exactly what was written, to tell later whether it belongs to the file.
+                walletProto = new WalletProtobufSerializer().walletToProto(this);
+                walletBytes = walletProto.toByteArray();
+                stream.write(walletBytes);
+            }
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1214,12 +1292,16 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 File canonical = destFile.getCanonicalFile();
                 if (canonical.exists() && !canonical.delete())
                     throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            if (journal != null) {
+                journal.start(walletBytes, walletProto);
+                unsavedTransactions.clear();
+                unsavedRewrite = false;
+            }
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1245,6 +1327,48 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         saveToFile(temp, f);
     }
 
+    /**
+     * <p>Appends what changed since the wallet was last saved with the given journal to it: the transactions that
+     * changed along with any they spend from, the last seen block, and the rest of the wallet only if some of it
+     * changed. This costs in proportion to the changes rather than to the size of the wallet.</p>
+     *
+     * <p>Returns false without writing anything if the journal hasn't been started, or if the changes can't be
+     * journaled, like transactions being removed or a re-org. The whole file must then be rewritten with
+     * {@link #saveToFile(File, File, WalletJournal)}. Changes made to transactions behind the wallet's back, like
+     * setting a memo, are only picked up by rewriting it too. Normally {@link WalletFiles} takes care of all this.</p>
+     */
+    public boolean saveToJournal(WalletJournal journal) throws IOException {
+        lock.lock();
+        try {
+            if (unsavedRewrite || !journal.isStarted())
+                return false;
+            Map<Sha256Hash, WalletTransaction> changed = new HashMap<Sha256Hash, WalletTransaction>();
+            for (Transaction tx : unsavedTransactions) {
+                addUnsavedTransaction(tx.getHash(), changed);
+                // The outputs they spend, or no longer spend, are recorded on the spent transactions.
+                for (TransactionInput input : tx.getInputs())
+                    addUnsavedTransaction(input.getOutpoint().getHash(), changed);
+            }
+            journal.append(new WalletProtobufSerializer().walletToProto(this, changed.values()));
+            unsavedTransactions.clear();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addUnsavedTransaction(Sha256Hash hash, Map<Sha256Hash, WalletTransaction> changed) {
+        if (changed.containsKey(hash))
+            return;
+        for (Pool pool : Pool.values()) {
+            Transaction tx = getTransactionPool(pool).get(hash);
+            if (tx != null) {
+                changed.put(hash, new WalletTransaction(pool, tx));
+                return;
+            }
+        }
+    }
+
     /**
      * <p>Whether or not the wallet will ignore received pending transactions that fail the selected
      * {@link RiskAnalysis}. By default, if a transaction is considered risky then it won't enter the wallet
@@ -1403,10 +1527,33 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with journaling switched on (see {@link WalletFiles#setJournaled(boolean)}), the
+     * changes in its journal are applied too, up to the last one that was completely written.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getFile(file).exists()) {
+            Protos.Wallet walletProto;
+            // Better to lose the journaled changes, which a re-sync can recover, than the whole wallet.
+            try {
+                walletProto = WalletJournal.read(file);
+            } catch (IOException e) {
+                log.error("Could not read wallet journal, loading the wallet without it", e);
+                walletProto = null;
+            }
+            if (walletProto != null) {
+                try {
+                    Wallet wallet = new WalletProtobufSerializer().readWallet(walletProto, walletExtensions);
+                    if (!wallet.isConsistent())
+                        log.error("Loaded an inconsistent wallet");
+                    return wallet;
+                } catch (UnreadableWalletException e) {
+                    log.error("Could not apply wallet journal, loading the wallet without it", e);
+                }
+            }
+        }
         try {
             FileInputStream stream = null;
             try {
@@ -1458,6 +1605,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
 
+            if (!isSpendCandidateIndexConsistent()) {
+                success = false;
+                log.error("Spend candidate index does not match the pools");
+            }
+
             if (!success) {
                 try {
                     log.error(toString());
@@ -1482,6 +1634,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        pending = TrackedPool.copyOf(pending);
+        unspent = TrackedPool.copyOf(unspent);
+        spent = TrackedPool.copyOf(spent);
+        dead = TrackedPool.copyOf(dead);
         createTransientState();
     }
 
@@ -1774,6 +1930,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
+        spendCandidatesChanged(tx);
 
         if (bestChain) {
             if (wasPending) {
@@ -1810,6 +1967,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            stateVersion.incrementAndGet();
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -1852,12 +2010,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
 
         informConfidenceListenersIfNotReorganizing();
-        checkState(isConsistent());
-        saveNow();
+        if (!insideBlockBatch) {
+            checkState(isConsistent());
+            saveNow();
+        }
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
-        if (insideReorg)
+        if (insideReorg || insideBlockBatch)
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
@@ -1888,6 +2048,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+            // Depths change, and with them which coinbases are mature.
+            stateVersion.incrementAndGet();
             // TODO: Clarify the code below.
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
@@ -1912,6 +2074,82 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * <p>Called by the {@link BlockChain} with a run of new best chain blocks whilst it is batching, see
+     * {@link AbstractBlockChain#beginListenerBatch()}. The result is the same as receiving the blocks one by one,
+     * but the wallet is only locked, checked for consistency and saved once, confidence depths are only walked once
+     * and the event listeners only hear about each changed transaction once.</p>
+     */
+    @Override
+    public void notifyNewBestBlocks(List<NewBestBlock> blocks) throws VerificationException {
+        lock.lock();
+        try {
+            checkState(!insideBlockBatch && !insideReorg);
+            insideBlockBatch = true;
+            onWalletChangedSuppressions++;
+            // The block index a transaction was last received in, so its depth is only counted from there. Any left
+            // over from transactions received without a block following would have been skipped by the next block.
+            Map<Sha256Hash, Integer> receivedAt = new HashMap<Sha256Hash, Integer>();
+            for (Sha256Hash hash : ignoreNextNewBlock)
+                receivedAt.put(hash, 0);
+            ignoreNextNewBlock.clear();
+            int newBlocks = 0;
+            boolean received = false;
+            try {
+                for (NewBestBlock newBestBlock : blocks) {
+                    newBestBlock.sendTransactionsTo(this);
+                    StoredBlock block = newBestBlock.getBlock();
+                    Sha256Hash newBlockHash = block.getHeader().getHash();
+                    // A block we've already seen changes no depths, as in notifyNewBestBlock.
+                    if (newBlockHash.equals(getLastBlockSeenHash()))
+                        continue;
+                    for (Sha256Hash hash : ignoreNextNewBlock)
+                        receivedAt.put(hash, newBlocks);
+                    received |= !ignoreNextNewBlock.isEmpty();
+                    ignoreNextNewBlock.clear();
+                    setLastBlockSeenHash(newBlockHash);
+                    setLastBlockSeenHeight(block.getHeight());
+                    setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+                    newBlocks++;
+                }
+                // Whatever is left was received in blocks we had already seen, and is skipped by the next one.
+                received |= !ignoreNextNewBlock.isEmpty();
+                if (newBlocks == 0) {
+                    ignoreNextNewBlock.addAll(receivedAt.keySet());
+                } else {
+                    // Depths change, and with them which coinbases are mature.
+                    stateVersion.incrementAndGet();
+                    for (Transaction tx : transactions.values()) {
+                        if (tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                            continue;
+                        Integer index = receivedAt.get(tx.getHash());
+                        int depthIncrease = index == null ? newBlocks : newBlocks - 1 - index;
+                        if (depthIncrease == 0)
+                            continue;
+                        TransactionConfidence confidence = tx.getConfidence();
+                        confidence.setDepthInBlocks(confidence.getDepthInBlocks() + depthIncrease);
+                        // Becoming BUILDING is the more interesting of the two changes, so don't hide it.
+                        if (!confidenceChanged.containsKey(tx))
+                            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                    }
+                }
+            } finally {
+                insideBlockBatch = false;
+                onWalletChangedSuppressions--;
+            }
+            checkState(isConsistent());
+            informConfidenceListenersIfNotReorganizing();
+            maybeQueueOnWalletChanged();
+            // Money that arrived is saved straight away, as receive() would have done, otherwise the write can wait.
+            if (received)
+                saveNow();
+            else
+                saveLater();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2070,7 +2308,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             pending.remove(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
-            addWalletTransaction(Pool.DEAD, tx);
+            addWalletTransaction(Pool.DEAD, tx);  // Also queues the tx to be taken out of the spend candidates.
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
                 if (connected == null) continue;
@@ -2110,6 +2348,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever the spent flags of the transaction's outputs may have changed.
+        spendCandidatesChanged(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2315,6 +2555,48 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     //region Vending transactions and other internal state
 
+    /**
+     * <p>Returns an immutable snapshot of the wallet's transaction pools, balances and last seen block. Querying a
+     * snapshot never takes the wallet lock, so applications that read the wallet from many threads, like servers,
+     * aren't held up whilst it processes blocks.</p>
+     *
+     * <p>A new snapshot is taken when something has changed since the previous one. If the wallet is being changed
+     * by another thread at that moment, the previous snapshot is returned instead of waiting, so it may lag behind
+     * the wallet slightly. Code that needs to see the effect of a change it just made should use the regular
+     * accessors instead.</p>
+     *
+     * <p>Taking a new snapshot only copies the parts of the pools that have changed since the previous one, but does
+     * recalculate the balances.</p>
+     */
+    public WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null) {
+            if (snapshot.getVersion() == stateVersion.get())
+                return snapshot;
+            if (!lock.tryLock())
+                return snapshot;  // Don't wait for whatever is changing the wallet.
+        } else {
+            lock.lock();
+        }
+        try {
+            updateSpendCandidates();
+            int version = stateVersion.get();
+            snapshot = vSnapshot;
+            if (snapshot == null || snapshot.getVersion() != version) {
+                snapshot = new WalletSnapshot(version, ((TrackedPool) unspent).snapshot(snapshot, Pool.UNSPENT),
+                        ((TrackedPool) spent).snapshot(snapshot, Pool.SPENT),
+                        ((TrackedPool) pending).snapshot(snapshot, Pool.PENDING),
+                        ((TrackedPool) dead).snapshot(snapshot, Pool.DEAD),
+                        getBalance(BalanceType.AVAILABLE), getBalance(BalanceType.ESTIMATED), getWatchedBalance(),
+                        lastBlockSeenHash, lastBlockSeenHeight, lastBlockSeenTimeSecs);
+                vSnapshot = snapshot;
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a set of all transactions in the wallet.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
@@ -2394,6 +2676,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        spendCandidatesChanged(tx);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
@@ -2518,6 +2801,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         pending.clear();
         dead.clear();
         transactions.clear();
+        rebuildSpendCandidates();
     }
 
     /**
@@ -2528,19 +2812,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public List<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            updateSpendCandidates();
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    try {
-                        Script scriptPubKey = output.getScriptPubKey();
-                        if (!watchedScripts.contains(scriptPubKey)) continue;
-                        candidates.add(output);
-                    } catch (ScriptException e) {
-                        // Ignore
-                    }
-                }
+            for (TransactionOutput output : watchedUnspents.values()) {
+                if (excludeImmatureCoinbases && !output.getParentTransaction().isMature()) continue;
+                candidates.add(output);
             }
             return candidates;
         } finally {
@@ -2556,13 +2832,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             boolean dirty = false;
-            for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
-                Transaction tx = i.next();
+            for (Transaction tx : new ArrayList<Transaction>(pending.values())) {
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
                     if (!tx.isAnyOutputSpent()) {
                         tx.disconnectInputs();
-                        i.remove();
+                        pending.remove(tx.getHash());
                         transactions.remove(tx.getHash());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
@@ -2574,6 +2849,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
             if (dirty) {
+                // Disconnecting the inputs marked outputs of other transactions as unspent.
+                rebuildSpendCandidates();
                 checkState(isConsistent());
                 saveLater();
             }
@@ -2788,6 +3065,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
+            stateVersion.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -2797,6 +3075,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            stateVersion.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -2806,6 +3085,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             lastBlockSeenTimeSecs = timeSecs;
+            stateVersion.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -2887,6 +3167,78 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         return description;
     }
 
+    /**
+     * A transaction pool that remembers which transactions were put into or removed from it since the last snapshot,
+     * so that {@link #getSnapshot()} doesn't have to copy it all again. Removing through the views isn't tracked, so
+     * the pools must only be changed through the map methods themselves.
+     */
+    @VisibleForTesting
+    static class TrackedPool extends HashMap<Sha256Hash, Transaction> {
+        private static final long serialVersionUID = 1L;
+        // Past this many changes the next snapshot might as well copy the whole pool.
+        private static final int MAX_TRACKED_CHANGES = 10000;
+
+        // Null until the first snapshot is taken, after the pool was cleared or when there were too many changes, in
+        // which case the next snapshot copies the whole pool.
+        @Nullable private transient HashSet<Sha256Hash> changed;
+
+        static TrackedPool copyOf(Map<Sha256Hash, Transaction> pool) {
+            TrackedPool result = new TrackedPool();
+            result.putAll(pool);
+            return result;
+        }
+
+        // Written out as a plain map, so that serialized wallets can be read by versions without this class.
+        private Object writeReplace() {
+            return new HashMap<Sha256Hash, Transaction>(this);
+        }
+
+        @Override
+        public Transaction put(Sha256Hash hash, Transaction tx) {
+            Transaction previous = super.put(hash, tx);
+            if (previous != tx)
+                changed(hash);
+            return previous;
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> map) {
+            for (Map.Entry<? extends Sha256Hash, ? extends Transaction> entry : map.entrySet())
+                put(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public Transaction remove(Object hash) {
+            Transaction previous = super.remove(hash);
+            if (previous != null)
+                changed((Sha256Hash) hash);
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            changed = null;
+        }
+
+        private void changed(Sha256Hash hash) {
+            if (changed == null)
+                return;
+            changed.add(hash);
+            if (changed.size() > MAX_TRACKED_CHANGES)
+                changed = null;
+        }
+
+        /** Returns the contents of this pool for a snapshot following the given previous one, and resets tracking. */
+        WalletSnapshot.PoolMap snapshot(@Nullable WalletSnapshot previous, Pool pool) {
+            HashSet<Sha256Hash> changes = changed;
+            changed = new HashSet<Sha256Hash>();
+            if (previous == null || changes == null)
+                return WalletSnapshot.PoolMap.copyOf(this);
+            return previous.getPoolMap(pool).update(this, changes);
+        }
+    }
+
     //endregion
 
     /******************************************************************************************************************/
@@ -2932,8 +3284,20 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                if (vUTXOProvider != null)
+                    return getBalance(coinSelector);
+                updateSpendCandidates();
+                int version = stateVersion.get();
+                if (cachedAvailableBalance == null || cachedAvailableVersion != version) {
+                    cachedAvailableBalance = getBalance(coinSelector);
+                    cachedAvailableVersion = version;
+                }
+                return cachedAvailableBalance;
             } else if (balanceType == BalanceType.ESTIMATED) {
+                if (vUTXOProvider == null) {
+                    updateSpendCandidates();
+                    return myUnspentsValue;
+                }
                 LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
                 Coin value = Coin.ZERO;
                 for (TransactionOutput out : all) value = value.add(out.getValue());
@@ -2964,7 +3328,18 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     /** Returns the available balance, including any unspent balance at watched addresses */
     public Coin getWatchedBalance() {
-        return getWatchedBalance(coinSelector);
+        lock.lock();
+        try {
+            updateSpendCandidates();
+            int version = stateVersion.get();
+            if (cachedWatchedBalance == null || cachedWatchedVersion != version) {
+                cachedWatchedBalance = getWatchedBalance(coinSelector);
+                cachedWatchedVersion = version;
+            }
+            return cachedWatchedBalance;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -2983,6 +3358,136 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * Brings the index of spend candidates up to date with the pools, re-indexing the outputs of every transaction
+     * that changed since the last call, or all of them if something changed that could affect any transaction.
+     */
+    private void updateSpendCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        // New lookahead keys may be derived at any time, and may own outputs we already have. Only look at the change
+        // counter here: asking for the keychain size would top up the lookahead zone as a side effect.
+        int keyChanges;
+        keychainLock.lock();
+        try {
+            keyChanges = keychain.getKeyChangeCount();
+        } finally {
+            keychainLock.unlock();
+        }
+        if (keyChanges != spendCandidateKeyChanges) {
+            spendCandidateKeyChanges = keyChanges;
+            rebuildSpendCandidates = true;
+        }
+        if (rebuildSpendCandidates) {
+            rebuildSpendCandidates = false;
+            myUnspents.clear();
+            watchedUnspents.clear();
+            myUnspentsValue = Coin.ZERO;
+            spendCandidateUpdates.clear();
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                addSpendCandidates(tx);
+            stateVersion.incrementAndGet();
+        } else if (!spendCandidateUpdates.isEmpty()) {
+            for (Transaction tx : spendCandidateUpdates) {
+                removeSpendCandidates(tx);
+                // Index the copy that's in the pools, if the transaction is in either of them.
+                Transaction current = unspent.get(tx.getHash());
+                if (current == null)
+                    current = pending.get(tx.getHash());
+                if (current != null)
+                    addSpendCandidates(current);
+            }
+            spendCandidateUpdates.clear();
+        }
+    }
+
+    /**
+     * Stops keeping track of what changed for {@link #saveToJournal(WalletJournal)}, as the wallet is no longer being
+     * saved with a journal. Tracking starts again once it's saved with one. Called by
+     * {@link WalletFiles#setJournaled(boolean)}.
+     */
+    public void stopJournaling() {
+        lock.lock();
+        try {
+            unsavedRewrite = true;
+            unsavedTransactions.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the transaction to be re-indexed, as its pool or the spent flags of its outputs may have changed. For the
+     * same reason it needs saving to the journal.
+     */
+    private void spendCandidatesChanged(Transaction tx) {
+        spendCandidateUpdates.add(tx);
+        if (!unsavedRewrite)
+            unsavedTransactions.add(tx);
+        stateVersion.incrementAndGet();
+    }
+
+    /**
+     * Makes the next read index every transaction again, as something changed that could affect any of them. Such
+     * changes aren't worth journaling transaction by transaction, so the next save rewrites the file.
+     */
+    private void rebuildSpendCandidates() {
+        rebuildSpendCandidates = true;
+        unsavedRewrite = true;
+        unsavedTransactions.clear();
+        stateVersion.incrementAndGet();
+    }
+
+    private void addSpendCandidates(Transaction tx) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            if (!output.isAvailableForSpending()) continue;
+            boolean mine = output.isMine(this);
+            boolean watched = output.isWatched(this);
+            if (!mine && !watched) continue;
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, i, tx);
+            if (mine) {
+                myUnspents.put(outpoint, output);
+                myUnspentsValue = myUnspentsValue.add(output.getValue());
+            }
+            if (watched)
+                watchedUnspents.put(outpoint, output);
+        }
+    }
+
+    private void removeSpendCandidates(Transaction tx) {
+        int numOutputs = tx.getOutputs().size();
+        for (int i = 0; i < numOutputs; i++) {
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, i, tx);
+            TransactionOutput output = myUnspents.remove(outpoint);
+            if (output != null)
+                myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+            watchedUnspents.remove(outpoint);
+        }
+    }
+
+    /** Returns true if the index of spend candidates matches what a scan of the pools finds. */
+    private boolean isSpendCandidateIndexConsistent() {
+        updateSpendCandidates();
+        Map<TransactionOutPoint, TransactionOutput> mine = Maps.newHashMap();
+        Map<TransactionOutPoint, TransactionOutput> watched = Maps.newHashMap();
+        Coin value = Coin.ZERO;
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            List<TransactionOutput> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                TransactionOutput output = outputs.get(i);
+                if (!output.isAvailableForSpending()) continue;
+                if (output.isMine(this)) {
+                    mine.put(new TransactionOutPoint(params, i, tx), output);
+                    value = value.add(output.getValue());
+                }
+                if (output.isWatched(this))
+                    watched.put(new TransactionOutPoint(params, i, tx), output);
+            }
+        }
+        return mine.equals(myUnspents) && watched.equals(watchedUnspents) && value.equals(myUnspentsValue);
+    }
+
     private static class BalanceFutureRequest {
         public SettableFuture<Coin> future;
         public Coin value;
@@ -3538,10 +4043,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
+            // can customize coin selection policies. The candidates come from an index that is kept up to date as
+            // transactions move between pools, so this doesn't scan the whole wallet.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -3693,15 +4196,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             LinkedList<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
+                updateSpendCandidates();
                 candidates = Lists.newLinkedList();
-                for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+                for (TransactionOutput output : myUnspents.values()) {
                     // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                    if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                    for (TransactionOutput output : tx.getOutputs()) {
-                        if (!output.isAvailableForSpending()) continue;
-                        if (!output.isMine(this)) continue;
-                        candidates.add(output);
-                    }
+                    if (excludeImmatureCoinbases && !output.getParentTransaction().isMature()) continue;
+                    candidates.add(output);
                 }
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
@@ -3784,11 +4284,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * selector implements a policy of spending transactions that appeared in the best chain and pending transactions
      * that were created by this wallet, but not others. You can override the coin selector for any given send
      * operation by changing {@link Wallet.SendRequest#coinSelector}.
+     *
+     * <p>The AVAILABLE balance this selector implies is cached until the wallet's transactions or their confidence
+     * change, so the selector should base its decisions only on the candidate outputs and their transactions.</p>
      */
     public void setCoinSelector(CoinSelector coinSelector) {
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            stateVersion.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -4013,6 +4517,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
+            // Disconnecting the old chain marked outputs all over the wallet as unspent, so index them again from scratch.
+            rebuildSpendCandidates();
 
             // Note that dead transactions stay dead. Consider a chain that Finney attacks T1 and replaces it with
             // T2, so we move T1 into the dead pool. If there's now a re-org to a chain that doesn't include T2, it
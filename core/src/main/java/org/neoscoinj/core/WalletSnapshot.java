@@ -0,0 +1,284 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.wallet.WalletTransaction.Pool;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An immutable copy of the transaction pools, balances and last seen block of a {@link Wallet}, as returned by
+ * {@link Wallet#getSnapshot()}. None of the methods here take the wallet lock, so a snapshot can be queried from any
+ * number of threads whilst the wallet is busy processing a block.</p>
+ *
+ * <p>Only the collections are copied. The {@link Transaction} objects are the wallet's own, so their confidence
+ * carries on changing after the snapshot was taken, and they must not be modified.</p>
+ *
+ * <p>The pools aren't copied in full each time either: a new snapshot shares everything but the parts of the previous
+ * one's pools that hold transactions which have moved since, see {@link PoolMap}.</p>
+ */
+public class WalletSnapshot {
+    private final int version;
+    private final PoolMap unspent, spent, pending, dead;
+    private final Coin availableBalance, estimatedBalance, watchedBalance;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+    private final long lastBlockSeenTimeSecs;
+
+    // Built on first use. Racing threads may both build them, which is harmless.
+    @Nullable private volatile ImmutableSet<Transaction> transactions, transactionsWithDead;
+
+    WalletSnapshot(int version, PoolMap unspent, PoolMap spent, PoolMap pending, PoolMap dead,
+                   Coin availableBalance, Coin estimatedBalance, Coin watchedBalance,
+                   @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight, long lastBlockSeenTimeSecs) {
+        this.version = version;
+        this.unspent = unspent;
+        this.spent = spent;
+        this.pending = pending;
+        this.dead = dead;
+        this.availableBalance = availableBalance;
+        this.estimatedBalance = estimatedBalance;
+        this.watchedBalance = watchedBalance;
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+        this.lastBlockSeenTimeSecs = lastBlockSeenTimeSecs;
+    }
+
+    /** The state version of the wallet this was taken at, used by the wallet to tell if it's out of date. */
+    int getVersion() {
+        return version;
+    }
+
+    /** Returns the transactions that were in the given pool. */
+    public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
+        return getPoolMap(pool);
+    }
+
+    PoolMap getPoolMap(Pool pool) {
+        switch (pool) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    public int getPoolSize(Pool pool) {
+        return getTransactionPool(pool).size();
+    }
+
+    /** Returns the transaction with the given hash if it was in any of the pools, or null otherwise. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx = unspent.get(hash);
+        if (tx == null) tx = spent.get(hash);
+        if (tx == null) tx = pending.get(hash);
+        if (tx == null) tx = dead.get(hash);
+        return tx;
+    }
+
+    /**
+     * Returns all the transactions, like {@link Wallet#getTransactions(boolean)}.
+     * @param includeDead     If true, transactions that were overridden by a double spend are included.
+     */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        ImmutableSet<Transaction> result = includeDead ? transactionsWithDead : transactions;
+        if (result == null) {
+            ImmutableSet.Builder<Transaction> builder = ImmutableSet.builder();
+            builder.addAll(unspent.values()).addAll(spent.values()).addAll(pending.values());
+            if (includeDead)
+                builder.addAll(dead.values());
+            result = builder.build();
+            if (includeDead)
+                transactionsWithDead = result;
+            else
+                transactions = result;
+        }
+        return result;
+    }
+
+    /** Returns the transactions that were waiting for network confirmations. */
+    public Collection<Transaction> getPendingTransactions() {
+        return pending.values();
+    }
+
+    /**
+     * Returns the given number of most recently updated transactions, or all of them if zero, like
+     * {@link Wallet#getRecentTransactions(int, boolean)}.
+     */
+    public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        checkArgument(numTransactions >= 0);
+        ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
+        Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+        if (numTransactions > 0 && numTransactions < all.size())
+            all.subList(numTransactions, all.size()).clear();
+        return all;
+    }
+
+    /** Returns the AVAILABLE balance, see {@link Wallet.BalanceType#AVAILABLE}. */
+    public Coin getBalance() {
+        return availableBalance;
+    }
+
+    /** Returns the balance of the given type, as calculated by the wallet's coin selector. */
+    public Coin getBalance(Wallet.BalanceType balanceType) {
+        if (balanceType == Wallet.BalanceType.AVAILABLE)
+            return availableBalance;
+        else if (balanceType == Wallet.BalanceType.ESTIMATED)
+            return estimatedBalance;
+        else
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+    }
+
+    /** Returns the available balance at watched addresses and scripts, see {@link Wallet#getWatchedBalance()}. */
+    public Coin getWatchedBalance() {
+        return watchedBalance;
+    }
+
+    /** Returns the hash of the last seen best-chain block, or null if the wallet didn't know it. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    public long getLastBlockSeenTimeSecs() {
+        return lastBlockSeenTimeSecs;
+    }
+
+    /**
+     * An immutable transaction pool split into buckets by hash, so that the next snapshot only has to copy the buckets
+     * holding transactions that were added to or removed from the wallet's pool in between and can share the rest.
+     */
+    static final class PoolMap extends AbstractMap<Sha256Hash, Transaction> {
+        private static final int BUCKETS = 256;
+
+        private final ImmutableMap<Sha256Hash, Transaction>[] buckets;
+        private final int size;
+
+        private PoolMap(ImmutableMap<Sha256Hash, Transaction>[] buckets, int size) {
+            this.buckets = buckets;
+            this.size = size;
+        }
+
+        /** Copies the whole of the given pool. */
+        @SuppressWarnings("unchecked")
+        static PoolMap copyOf(Map<Sha256Hash, Transaction> pool) {
+            HashMap<Sha256Hash, Transaction>[] contents = new HashMap[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                contents[i] = new HashMap<Sha256Hash, Transaction>();
+            for (Map.Entry<Sha256Hash, Transaction> entry : pool.entrySet())
+                contents[bucket(entry.getKey())].put(entry.getKey(), entry.getValue());
+            ImmutableMap<Sha256Hash, Transaction>[] buckets = new ImmutableMap[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = ImmutableMap.copyOf(contents[i]);
+            return new PoolMap(buckets, pool.size());
+        }
+
+        /**
+         * Returns a copy of this brought up to date with the given pool, which may only differ from it in the given
+         * transactions.
+         */
+        @SuppressWarnings("unchecked")
+        PoolMap update(Map<Sha256Hash, Transaction> pool, Set<Sha256Hash> changed) {
+            if (changed.isEmpty())
+                return this;
+            HashMap<Sha256Hash, Transaction>[] contents = new HashMap[BUCKETS];
+            for (Sha256Hash hash : changed) {
+                int bucket = bucket(hash);
+                if (contents[bucket] == null)
+                    contents[bucket] = new HashMap<Sha256Hash, Transaction>(buckets[bucket]);
+                Transaction tx = pool.get(hash);
+                if (tx == null)
+                    contents[bucket].remove(hash);
+                else
+                    contents[bucket].put(hash, tx);
+            }
+            ImmutableMap<Sha256Hash, Transaction>[] newBuckets = buckets.clone();
+            int newSize = size;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (contents[i] == null)
+                    continue;
+                newSize += contents[i].size() - buckets[i].size();
+                newBuckets[i] = ImmutableMap.copyOf(contents[i]);
+            }
+            return new PoolMap(newBuckets, newSize);
+        }
+
+        private static int bucket(Object hash) {
+            return hash.hashCode() & (BUCKETS - 1);
+        }
+
+        @Override
+        public Transaction get(Object key) {
+            return key instanceof Sha256Hash ? buckets[bucket(key)].get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<Sha256Hash, Transaction>> entrySet() {
+            return new AbstractSet<Map.Entry<Sha256Hash, Transaction>>() {
+                @Override
+                public Iterator<Map.Entry<Sha256Hash, Transaction>> iterator() {
+                    List<Iterator<Map.Entry<Sha256Hash, Transaction>>> iterators =
+                            new ArrayList<Iterator<Map.Entry<Sha256Hash, Transaction>>>(BUCKETS);
+                    for (ImmutableMap<Sha256Hash, Transaction> bucket : buckets)
+                        iterators.add(bucket.entrySet().iterator());
+                    return Iterators.concat(iterators.iterator());
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+}
@@ -150,6 +150,11 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public long getPendingWriteBytes() {
+        return 0;  // Writes block until they're done.
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
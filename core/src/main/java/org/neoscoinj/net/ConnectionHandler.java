@@ -163,6 +163,16 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public long getPendingWriteBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -26,6 +26,11 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Returns how many bytes passed to {@link #writeBytes(byte[])} haven't been handed to the network yet, so that
+     * writers producing a lot of data can hold off until the remote end catches up.
+     */
+    long getPendingWriteBytes();
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
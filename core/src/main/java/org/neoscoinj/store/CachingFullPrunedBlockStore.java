@@ -0,0 +1,772 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps recently used unspent outputs, undo blocks and headers in memory in
+ * front of another FullPrunedBlockStore, such as one of the {@link DatabaseFullPrunedBlockStore}s.</p>
+ *
+ * <p>Committed changes are not written to the wrapped store straight away, but held in memory until enough of them
+ * pile up: either the given number of batch writes has been committed, or they take up half of the memory budget. They
+ * are then written back in a single batch write of the wrapped store. Most outputs are spent within a few blocks of
+ * being created, and an output that is created and spent between two write backs never reaches the wrapped store at
+ * all. The outputs that were written back stay in memory for as long as the budget allows, since they are the ones
+ * most likely to be spent next.</p>
+ *
+ * <p>As every write back is a single batch write including the chain heads, the wrapped store always holds a consistent
+ * state. If the app stops without calling {@link #close()} or {@link #flush()}, the blocks connected since the last
+ * write back are lost and have to be downloaded again.</p>
+ *
+ * <p>The memory budget is approximate, it is based on an estimate of the size of the cached objects. All methods are
+ * thread safe.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** By default, committed changes are written back at least every this many batch writes. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    // Slightly more than the difficulty transition period, as for the header caches of the other stores.
+    private static final int HEADER_CACHE_SIZE = 2050;
+    // Rough heap footprint of a cached output apart from its script: the UTXO, the outpoint key, the address string
+    // and the hash map entries.
+    private static final int OUTPUT_OVERHEAD = 250;
+
+    private final FullPrunedBlockStore backing;
+    private final long maxBytes;
+    private final int flushInterval;
+
+    private final ReentrantLock lock = Threading.lock("CachingFullPrunedBlockStore");
+    // Changes that were committed but not yet written back to the backing store.
+    @GuardedBy("lock") private final Changes dirty = new Changes();
+    @GuardedBy("lock") private int commitsSinceFlush;
+    // Incremented by every write back, so that values read from the backing store before one aren't cached after it.
+    @GuardedBy("lock") private long flushes;
+    // Outputs spent since the last write back. A read of the backing store that was in flight when one of them was
+    // spent returns it as unspent, so it must not be cached.
+    @GuardedBy("lock") private final Set<StoredTransactionOutPoint> spentSinceFlush =
+            new HashSet<StoredTransactionOutPoint>();
+    @GuardedBy("lock") private StoredBlock chainHead, verifiedChainHead;
+    // Copies of what the backing store holds, in access order so the least recently used entries are evicted first.
+    @GuardedBy("lock") private final LinkedHashMap<StoredTransactionOutPoint, UTXO> cleanOutputs =
+            new LinkedHashMap<StoredTransactionOutPoint, UTXO>(16, 0.75f, true);
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, StoredUndoableBlock> cleanUndoBlocks =
+            new LinkedHashMap<Sha256Hash, StoredUndoableBlock>(16, 0.75f, true);
+    @GuardedBy("lock") private long cleanOutputBytes, cleanUndoBytes;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, StoredBlock> cleanHeaders =
+            new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > HEADER_CACHE_SIZE;
+        }
+    };
+    @GuardedBy("lock") private boolean closed;
+
+    // The uncommitted changes of each thread.
+    private final ThreadLocal<Changes> batch = new ThreadLocal<Changes>();
+
+    /**
+     * A change to an output. If spent is set, the output existed in the layer below and has to be removed from it.
+     * If current is set, it is the output as it should be stored afterwards.
+     */
+    private static class OutputChange {
+        @Nullable UTXO current;
+        @Nullable UTXO spent;
+
+        OutputChange(@Nullable UTXO current, @Nullable UTXO spent) {
+            this.current = current;
+            this.spent = spent;
+        }
+    }
+
+    /** A set of changes to the store, either the batch write of a thread or everything not yet written back. */
+    private static class Changes {
+        final Map<StoredTransactionOutPoint, OutputChange> outputs =
+                new LinkedHashMap<StoredTransactionOutPoint, OutputChange>();
+        // Headers put without and with undo data. A header is only ever in one of the two.
+        final Map<Sha256Hash, StoredBlock> headers = new LinkedHashMap<Sha256Hash, StoredBlock>();
+        final Map<Sha256Hash, StoredBlock> undoableHeaders = new LinkedHashMap<Sha256Hash, StoredBlock>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoBlocks = new HashMap<Sha256Hash, StoredUndoableBlock>();
+        @Nullable StoredBlock chainHead, verifiedChainHead;
+        long bytes;
+        // Outputs that were created and spent again within these changes.
+        int coalesced;
+
+        void addOutput(UTXO out) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            OutputChange change = outputs.get(outPoint);
+            if (change == null) {
+                outputs.put(outPoint, new OutputChange(out, null));
+            } else {
+                if (change.current != null)
+                    bytes -= sizeOf(change.current);
+                change.current = out;
+            }
+            bytes += sizeOf(out);
+        }
+
+        void removeOutput(UTXO out) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            OutputChange change = outputs.get(outPoint);
+            if (change == null) {
+                outputs.put(outPoint, new OutputChange(null, out));
+                bytes += OUTPUT_OVERHEAD;
+                return;
+            }
+            if (change.current != null)
+                bytes -= sizeOf(change.current);
+            change.current = null;
+            if (change.spent == null) {
+                // Created since the layer below was last written to, so it never has to hear about it.
+                outputs.remove(outPoint);
+                coalesced++;
+            }
+        }
+
+        void putHeader(StoredBlock block) {
+            Sha256Hash hash = block.getHeader().getHash();
+            if (!undoableHeaders.containsKey(hash))
+                headers.put(hash, block);
+        }
+
+        void putUndoable(StoredBlock block, StoredUndoableBlock undoableBlock) {
+            Sha256Hash hash = block.getHeader().getHash();
+            headers.remove(hash);
+            undoableHeaders.put(hash, block);
+            StoredUndoableBlock old = undoBlocks.put(hash, undoableBlock);
+            if (old != null)
+                bytes -= sizeOf(old);
+            bytes += sizeOf(undoableBlock);
+        }
+
+        /** Adds the given changes, which were made on top of these, to these. */
+        void apply(Changes changes) {
+            for (OutputChange change : changes.outputs.values()) {
+                if (change.spent != null)
+                    removeOutput(change.spent);
+                if (change.current != null)
+                    addOutput(change.current);
+            }
+            for (StoredBlock block : changes.headers.values())
+                putHeader(block);
+            for (Map.Entry<Sha256Hash, StoredBlock> entry : changes.undoableHeaders.entrySet())
+                putUndoable(entry.getValue(), changes.undoBlocks.get(entry.getKey()));
+            if (changes.chainHead != null)
+                chainHead = changes.chainHead;
+            if (changes.verifiedChainHead != null)
+                verifiedChainHead = changes.verifiedChainHead;
+            coalesced += changes.coalesced;
+        }
+
+        boolean isEmpty() {
+            return outputs.isEmpty() && headers.isEmpty() && undoableHeaders.isEmpty() && chainHead == null &&
+                    verifiedChainHead == null;
+        }
+
+        void clear() {
+            outputs.clear();
+            headers.clear();
+            undoableHeaders.clear();
+            undoBlocks.clear();
+            chainHead = verifiedChainHead = null;
+            bytes = 0;
+            coalesced = 0;
+        }
+    }
+
+    /**
+     * Wraps the given store, writing changes back at least every {@link #DEFAULT_FLUSH_INTERVAL} batch writes.
+     * @param backing The store to cache, which must not be used by anything else from now on.
+     * @param maxBytes Roughly how much memory the cache may use.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing, long maxBytes) throws BlockStoreException {
+        this(backing, maxBytes, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param backing The store to cache, which must not be used by anything else from now on.
+     * @param maxBytes Roughly how much memory the cache may use.
+     * @param flushInterval The most batch writes that may be committed between two write backs. This bounds the
+     *                      number of blocks that are lost if the app stops without closing the store.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing, long maxBytes, int flushInterval)
+            throws BlockStoreException {
+        checkArgument(maxBytes > 0);
+        checkArgument(flushInterval > 0);
+        this.backing = checkNotNull(backing);
+        this.maxBytes = maxBytes;
+        this.flushInterval = flushInterval;
+        this.chainHead = backing.getChainHead();
+        this.verifiedChainHead = backing.getVerifiedChainHead();
+    }
+
+    /** Returns the store that this one caches. */
+    public FullPrunedBlockStore getBackingStore() {
+        return backing;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Writing
+
+    @Override
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        Changes changes = beginImplicitBatch();
+        changes.putHeader(storedBlock);
+        commitImplicitBatch(changes);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Changes changes = beginImplicitBatch();
+        changes.putUndoable(storedBlock, undoableBlock);
+        commitImplicitBatch(changes);
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Changes changes = beginImplicitBatch();
+        changes.chainHead = chainHead;
+        commitImplicitBatch(changes);
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Changes changes = beginImplicitBatch();
+        changes.verifiedChainHead = chainHead;
+        StoredBlock currentHead = getChainHead();
+        if (currentHead == null || currentHead.getHeight() < chainHead.getHeight())
+            changes.chainHead = chainHead;
+        commitImplicitBatch(changes);
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Changes changes = beginImplicitBatch();
+        changes.addOutput(out);
+        commitImplicitBatch(changes);
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        Changes changes = beginImplicitBatch();
+        changes.removeOutput(out);
+        commitImplicitBatch(changes);
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        // As with a database transaction, beginning again carries on with the batch already in progress.
+        if (batch.get() == null)
+            batch.set(new Changes());
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Changes changes = batch.get();
+        batch.remove();
+        if (changes != null)
+            commit(changes);
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            log.warn("Warning: Rollback attempt without transaction");
+        batch.remove();
+    }
+
+    // Writes outside of a batch write are committed straight away, as if they were a batch write of their own.
+    private Changes beginImplicitBatch() {
+        Changes changes = batch.get();
+        return changes != null ? changes : new Changes();
+    }
+
+    private void commitImplicitBatch(Changes changes) throws BlockStoreException {
+        if (changes != batch.get())
+            commit(changes);
+    }
+
+    private void commit(Changes changes) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            for (Map.Entry<StoredTransactionOutPoint, OutputChange> entry : changes.outputs.entrySet()) {
+                removeCleanOutput(entry.getKey());
+                if (entry.getValue().spent != null)
+                    spentSinceFlush.add(entry.getKey());
+            }
+            dirty.apply(changes);
+            if (changes.chainHead != null)
+                chainHead = changes.chainHead;
+            if (changes.verifiedChainHead != null)
+                verifiedChainHead = changes.verifiedChainHead;
+            commitsSinceFlush++;
+            if (commitsSinceFlush >= flushInterval || dirty.bytes > maxBytes / 2)
+                writeBack();
+            else
+                trimCleanCaches();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all committed changes back to the backing store. This happens by itself from time to time, and when the
+     * store is closed.
+     */
+    public void flush() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            writeBack();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeBack() throws BlockStoreException {
+        commitsSinceFlush = 0;
+        if (dirty.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        int written = 0;
+        backing.beginDatabaseBatchWrite();
+        boolean committed = false;
+        try {
+            for (StoredBlock block : dirty.headers.values())
+                backing.put(block);
+            for (Map.Entry<Sha256Hash, StoredBlock> entry : dirty.undoableHeaders.entrySet())
+                backing.put(entry.getValue(), dirty.undoBlocks.get(entry.getKey()));
+            for (OutputChange change : dirty.outputs.values()) {
+                if (change.spent != null)
+                    backing.removeUnspentTransactionOutput(change.spent);
+                if (change.current != null)
+                    backing.addUnspentTransactionOutput(change.current);
+                written++;
+            }
+            // The verified chain head can move the chain head forward, so set that first to end up with ours.
+            if (dirty.verifiedChainHead != null)
+                backing.setVerifiedChainHead(dirty.verifiedChainHead);
+            if (dirty.chainHead != null)
+                backing.setChainHead(dirty.chainHead);
+            backing.commitDatabaseBatchWrite();
+            committed = true;
+        } finally {
+            // The changes are kept if writing them failed, so nothing is lost if the problem goes away.
+            if (!committed)
+                backing.abortDatabaseBatchWrite();
+        }
+        log.info("Wrote {} outputs and {} blocks back in {}ms, {} outputs were created and spent in between", written,
+                dirty.headers.size() + dirty.undoableHeaders.size(), System.currentTimeMillis() - start,
+                dirty.coalesced);
+        // What was just written is what is most likely to be needed next, so it moves to the clean caches. Outputs
+        // that were spent are dropped from them, in case a read raced with the spend and cached them anyway.
+        for (Map.Entry<StoredTransactionOutPoint, OutputChange> entry : dirty.outputs.entrySet()) {
+            UTXO out = entry.getValue().current;
+            if (out != null)
+                putCleanOutput(entry.getKey(), out);
+            else
+                removeCleanOutput(entry.getKey());
+        }
+        for (Map.Entry<Sha256Hash, StoredUndoableBlock> entry : dirty.undoBlocks.entrySet())
+            putCleanUndoBlock(entry.getKey(), entry.getValue());
+        for (StoredBlock block : dirty.headers.values())
+            cleanHeaders.put(block.getHeader().getHash(), block);
+        for (StoredBlock block : dirty.undoableHeaders.values())
+            cleanHeaders.put(block.getHeader().getHash(), block);
+        dirty.clear();
+        // Reads from before this write back are ignored by cacheOutputs, so the markers aren't needed any more.
+        spentSinceFlush.clear();
+        flushes++;
+        trimCleanCaches();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Reading
+
+    @Override
+    @Nullable
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        Changes changes = batch.get();
+        if (changes != null) {
+            OutputChange change = changes.outputs.get(outPoint);
+            if (change != null)
+                return change.current;
+        }
+        long flushCount;
+        lock.lock();
+        try {
+            checkOpen();
+            OutputChange change = dirty.outputs.get(outPoint);
+            if (change != null)
+                return change.current;
+            UTXO out = cleanOutputs.get(outPoint);
+            if (out != null)
+                return out;
+            flushCount = flushes;
+        } finally {
+            lock.unlock();
+        }
+        // The backing store is queried without holding the lock, so other threads can carry on using the cache.
+        UTXO out = backing.getTransactionOutput(hash, index);
+        if (out != null)
+            cacheOutputs(Collections.singletonMap(outPoint, out), flushCount);
+        return out;
+    }
+
+    @Override
+    public Map<StoredTransactionOutPoint, UTXO> getTransactionOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<StoredTransactionOutPoint, UTXO> found = new HashMap<StoredTransactionOutPoint, UTXO>();
+        List<StoredTransactionOutPoint> misses = new ArrayList<StoredTransactionOutPoint>();
+        Changes changes = batch.get();
+        long flushCount;
+        lock.lock();
+        try {
+            checkOpen();
+            for (StoredTransactionOutPoint outPoint : outPoints) {
+                OutputChange change = changes == null ? null : changes.outputs.get(outPoint);
+                if (change == null)
+                    change = dirty.outputs.get(outPoint);
+                UTXO out = change != null ? change.current : cleanOutputs.get(outPoint);
+                if (out != null)
+                    found.put(outPoint, out);
+                else if (change == null)
+                    misses.add(outPoint);
+            }
+            flushCount = flushes;
+        } finally {
+            lock.unlock();
+        }
+        if (!misses.isEmpty()) {
+            Map<StoredTransactionOutPoint, UTXO> fetched = backing.getTransactionOutputs(misses);
+            cacheOutputs(fetched, flushCount);
+            found.putAll(fetched);
+        }
+        return found;
+    }
+
+    // Adds outputs read from the backing store to the cache, unless a write back happened since they were read, in
+    // which case they may have been spent in the meantime. Outputs changed or spent since the last write back are
+    // skipped too, as the backing store doesn't know about that yet.
+    private void cacheOutputs(Map<StoredTransactionOutPoint, UTXO> outputs, long flushCount) {
+        lock.lock();
+        try {
+            if (flushCount != flushes || closed)
+                return;
+            for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : outputs.entrySet()) {
+                StoredTransactionOutPoint outPoint = entry.getKey();
+                if (dirty.outputs.containsKey(outPoint) || spentSinceFlush.contains(outPoint))
+                    continue;
+                putCleanOutput(outPoint, entry.getValue());
+            }
+            trimCleanCaches();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        List<StoredTransactionOutPoint> outPoints = new ArrayList<StoredTransactionOutPoint>(numOutputs);
+        for (int i = 0; i < numOutputs; i++)
+            outPoints.add(new StoredTransactionOutPoint(hash, i));
+        Changes changes = batch.get();
+        boolean anyChanged = false;
+        lock.lock();
+        try {
+            checkOpen();
+            for (StoredTransactionOutPoint outPoint : outPoints) {
+                OutputChange change = changes == null ? null : changes.outputs.get(outPoint);
+                if (change == null)
+                    change = dirty.outputs.get(outPoint);
+                if (change != null && change.current != null)
+                    return true;
+                if (change != null)
+                    anyChanged = true;
+                else if (cleanOutputs.containsKey(outPoint))
+                    return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The backing store can answer this with a single query, unless it has outputs that are since spent.
+        if (!anyChanged)
+            return backing.hasUnspentOutputs(hash, numOutputs);
+        return !getTransactionOutputs(outPoints).isEmpty();
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Changes changes = batch.get();
+        if (changes != null) {
+            StoredBlock block = getHeader(changes, hash);
+            if (block != null)
+                return block;
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            StoredBlock block = getHeader(dirty, hash);
+            if (block == null)
+                block = cleanHeaders.get(hash);
+            if (block != null)
+                return block;
+        } finally {
+            lock.unlock();
+        }
+        // Headers never change once stored, so there's no need to worry about write backs here.
+        StoredBlock block = backing.get(hash);
+        if (block != null) {
+            lock.lock();
+            try {
+                cleanHeaders.put(hash, block);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return block;
+    }
+
+    @Nullable
+    private static StoredBlock getHeader(Changes changes, Sha256Hash hash) {
+        StoredBlock block = changes.undoableHeaders.get(hash);
+        return block != null ? block : changes.headers.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        Changes changes = batch.get();
+        if (changes != null && changes.undoableHeaders.containsKey(hash))
+            return changes.undoableHeaders.get(hash);
+        lock.lock();
+        try {
+            checkOpen();
+            if (dirty.undoableHeaders.containsKey(hash))
+                return dirty.undoableHeaders.get(hash);
+        } finally {
+            lock.unlock();
+        }
+        return backing.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Changes changes = batch.get();
+        if (changes != null && changes.undoBlocks.containsKey(hash))
+            return changes.undoBlocks.get(hash);
+        lock.lock();
+        try {
+            checkOpen();
+            StoredUndoableBlock block = dirty.undoBlocks.get(hash);
+            if (block == null)
+                block = cleanUndoBlocks.get(hash);
+            if (block != null)
+                return block;
+        } finally {
+            lock.unlock();
+        }
+        // Undo blocks only ever go away by being pruned, after which it doesn't matter if the cache still has them.
+        StoredUndoableBlock block = backing.getUndoBlock(hash);
+        if (block != null) {
+            lock.lock();
+            try {
+                putCleanUndoBlock(hash, block);
+                trimCleanCaches();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        Changes changes = batch.get();
+        if (changes != null && changes.chainHead != null)
+            return changes.chainHead;
+        lock.lock();
+        try {
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Changes changes = batch.get();
+        if (changes != null && changes.verifiedChainHead != null)
+            return changes.verifiedChainHead;
+        lock.lock();
+        try {
+            return verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return backing.getParams();
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        // Held throughout so that no write back happens between asking the backing store and looking at the changes.
+        lock.lock();
+        try {
+            checkOpen();
+            Map<StoredTransactionOutPoint, OutputChange> changed =
+                    new LinkedHashMap<StoredTransactionOutPoint, OutputChange>(dirty.outputs);
+            Changes changes = batch.get();
+            if (changes != null)
+                changed.putAll(changes.outputs);
+            List<UTXO> outputs = new ArrayList<UTXO>();
+            for (UTXO out : backing.getOpenTransactionOutputs(addresses))
+                if (!changed.containsKey(new StoredTransactionOutPoint(out)))
+                    outputs.add(out);
+            for (OutputChange change : changed.values())
+                if (change.current != null && wanted.contains(change.current.getAddress()))
+                    outputs.add(change.current);
+            return outputs;
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            writeBack();
+            closed = true;
+            spentSinceFlush.clear();
+            cleanOutputs.clear();
+            cleanUndoBlocks.clear();
+            cleanHeaders.clear();
+        } finally {
+            lock.unlock();
+        }
+        backing.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Cache management
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+    }
+
+    @GuardedBy("lock")
+    private void putCleanOutput(StoredTransactionOutPoint outPoint, UTXO out) {
+        UTXO old = cleanOutputs.put(outPoint, out);
+        if (old != null)
+            cleanOutputBytes -= sizeOf(old);
+        cleanOutputBytes += sizeOf(out);
+    }
+
+    @GuardedBy("lock")
+    private void removeCleanOutput(StoredTransactionOutPoint outPoint) {
+        UTXO old = cleanOutputs.remove(outPoint);
+        if (old != null)
+            cleanOutputBytes -= sizeOf(old);
+    }
+
+    @GuardedBy("lock")
+    private void putCleanUndoBlock(Sha256Hash hash, StoredUndoableBlock block) {
+        StoredUndoableBlock old = cleanUndoBlocks.put(hash, block);
+        if (old != null)
+            cleanUndoBytes -= sizeOf(old);
+        cleanUndoBytes += sizeOf(block);
+    }
+
+    // Evicts the least recently used clean entries until everything fits into the budget. Undo blocks are only needed
+    // for re-orgs, so they get no more than an eighth of it.
+    @GuardedBy("lock")
+    private void trimCleanCaches() {
+        Iterator<Map.Entry<Sha256Hash, StoredUndoableBlock>> undoBlocks = cleanUndoBlocks.entrySet().iterator();
+        while (cleanUndoBytes > maxBytes / 8 && undoBlocks.hasNext()) {
+            cleanUndoBytes -= sizeOf(undoBlocks.next().getValue());
+            undoBlocks.remove();
+        }
+        Iterator<Map.Entry<StoredTransactionOutPoint, UTXO>> outputs = cleanOutputs.entrySet().iterator();
+        while (dirty.bytes + cleanUndoBytes + cleanOutputBytes > maxBytes && outputs.hasNext()) {
+            cleanOutputBytes -= sizeOf(outputs.next().getValue());
+            outputs.remove();
+        }
+    }
+
+    private static long sizeOf(UTXO out) {
+        return OUTPUT_OVERHEAD + out.getScriptBytes().length;
+    }
+
+    private static long sizeOf(StoredUndoableBlock block) {
+        long size = OUTPUT_OVERHEAD;
+        TransactionOutputChanges txOutChanges = block.getTxOutChanges();
+        if (txOutChanges != null) {
+            for (UTXO out : txOutChanges.txOutsCreated)
+                size += sizeOf(out);
+            for (UTXO out : txOutChanges.txOutsSpent)
+                size += sizeOf(out);
+        } else {
+            // A parsed transaction takes up a few times its serialized size.
+            for (Transaction tx : block.getTransactions())
+                size += 3L * tx.getMessageSize();
+        }
+        return size;
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.neoscoinj.store;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import org.neoscoinj.core.*;
 import org.slf4j.Logger;
@@ -83,6 +84,9 @@ import java.util.*;
  * </table>
  * </p>
  *
+ * <p>Inside a batch write the changes to openoutputs are held back and sent to the database in JDBC batches when the
+ * batch write is committed, see {@link #flushPendingOutputs()}. For MySQL, adding rewriteBatchedStatements=true to the
+ * connection URL lets the driver turn these into multi-row statements.</p>
  */
 public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
@@ -115,6 +119,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BULK_SQL                     = "SELECT hash, index, height, value, scriptBytes, coinbase, toaddress, addresstargetable FROM openOutputs WHERE hash IN (%s)";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -133,6 +138,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openOutputs WHERE 1 = 2";
 
+    // Databases limit the number of parameters a statement may have, so bulk selects are split into chunks this big.
+    private static final int MAX_BULK_SELECT_HASHES = 500;
+    // Output changes held back by a batch write are sent to the database once there are this many, even before commit.
+    private static final int MAX_PENDING_OUTPUTS = 10000;
+
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
     protected Sha256Hash verifiedChainHeadHash;
@@ -145,6 +155,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String username;
     protected String password;
     protected String schemaName;
+    // Output changes of the current thread's batch write, null when the thread isn't in one.
+    private final ThreadLocal<PendingOutputs> pendingOutputs = new ThreadLocal<PendingOutputs>();
+
+    /**
+     * Output changes made inside a batch write that haven't been sent to the database yet. They are written behind in
+     * two JDBC batches by {@link #flushPendingOutputs()}, rather than one statement (and one round trip) at a time.
+     */
+    private static class PendingOutputs {
+        final Map<StoredTransactionOutPoint, UTXO> added = new LinkedHashMap<StoredTransactionOutPoint, UTXO>();
+        final Map<StoredTransactionOutPoint, UTXO> removed = new LinkedHashMap<StoredTransactionOutPoint, UTXO>();
+        // Removed outputs which were added by this batch first. The database may or may not have had them already.
+        final Set<StoredTransactionOutPoint> removedIfPresent = new HashSet<StoredTransactionOutPoint>();
+
+        int size() {
+            return added.size() + removed.size();
+        }
+    }
 
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
@@ -358,6 +385,25 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs records of a number of transactions at once. The statement takes one
+     * transaction hash parameter for each transaction, and selects the columns hash, index, height, value,
+     * scriptbytes, coinbase, toaddress and addresstargetable (in that order) of all their outputs.
+     * @param count The number of transaction hash parameters.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsBulkSQL(int count) {
+        return String.format(SELECT_OPENOUTPUTS_BULK_SQL, repeatParameter("?", count));
+    }
+
+    /**
+     * Repeats a statement parameter the given number of times, separated by commas, for building IN lists and VALUES
+     * rows.
+     */
+    protected static String repeatParameter(String parameter, int count) {
+        return Joiner.on(", ").join(Collections.nCopies(count, parameter));
+    }
+
     /**
      * Get the SQL to select count of openoutputs.
      * @return The SQL select statement.
@@ -463,6 +509,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        pendingOutputs.remove();
     }
 
     /**
@@ -911,6 +958,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            UTXO out = pending.added.get(outPoint);
+            if (out != null || pending.removed.containsKey(outPoint))
+                return out;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -952,21 +1006,98 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The outputs are selected by transaction hash with {@link #getSelectOpenoutputsBulkSQL(int)}, a few
+     * hundred transactions per query, and the outputs that weren't asked for are dropped.</p>
+     */
+    @Override
+    public Map<StoredTransactionOutPoint, UTXO> getTransactionOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<StoredTransactionOutPoint, UTXO> found = new HashMap<StoredTransactionOutPoint, UTXO>();
+        Set<StoredTransactionOutPoint> wanted = new HashSet<StoredTransactionOutPoint>();
+        Set<Sha256Hash> hashes = new LinkedHashSet<Sha256Hash>();
+        PendingOutputs pending = pendingOutputs.get();
+        for (StoredTransactionOutPoint outPoint : outPoints) {
+            if (pending != null) {
+                UTXO out = pending.added.get(outPoint);
+                if (out != null)
+                    found.put(outPoint, out);
+                if (out != null || pending.removed.containsKey(outPoint))
+                    continue;
+            }
+            wanted.add(outPoint);
+            hashes.add(outPoint.getHash());
+        }
+        if (hashes.isEmpty())
+            return found;
+        maybeConnect();
+        List<Sha256Hash> hashList = new ArrayList<Sha256Hash>(hashes);
+        PreparedStatement s = null;
+        try {
+            for (int i = 0; i < hashList.size(); i += MAX_BULK_SELECT_HASHES) {
+                List<Sha256Hash> chunk = hashList.subList(i, Math.min(i + MAX_BULK_SELECT_HASHES, hashList.size()));
+                s = conn.get().prepareStatement(getSelectOpenoutputsBulkSQL(chunk.size()));
+                for (int j = 0; j < chunk.size(); j++)
+                    s.setBytes(j + 1, chunk.get(j).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+                    if (!wanted.contains(outPoint))
+                        continue;
+                    found.put(outPoint, new UTXO(hash,
+                            index,
+                            Coin.valueOf(results.getLong(4)),
+                            results.getInt(3),
+                            results.getBoolean(6),
+                            results.getBytes(5),
+                            results.getString(7),
+                            results.getInt(8)));
+                }
+                s.close();
+                s = null;
+            }
+            return found;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close PreparedStatement");
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Inside a batch write the output is only written to the database by {@link #flushPendingOutputs()}.</p>
+     */
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending == null) {
+            insertOpenOutput(out);
+            return;
+        }
+        pending.added.put(new StoredTransactionOutPoint(out), out);
+        if (pending.size() >= MAX_PENDING_OUTPUTS)
+            flushPendingOutputs();
+    }
+
+    private void insertOpenOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getAddressType());
-            s.setBoolean(8, out.isCoinbase());
+            setInsertOpenoutputParameters(s, out);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -983,8 +1114,47 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    private static void setInsertOpenoutputParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScriptBytes());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getAddressType());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Inside a batch write the output is only deleted from the database by {@link #flushPendingOutputs()}, which
+     * is also when an output that doesn't exist is reported.</p>
+     */
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (pending.added.remove(outPoint) != null) {
+                // The add may have been a duplicate of an output the database already has (see BIP30), which adding
+                // outside a batch ignores and removing then deletes. So delete it anyway, tolerating it not being there.
+                if (!pending.removed.containsKey(outPoint)) {
+                    pending.removed.put(outPoint, out);
+                    pending.removedIfPresent.add(outPoint);
+                    if (pending.size() >= MAX_PENDING_OUTPUTS)
+                        flushPendingOutputs();
+                }
+                return;
+            }
+            if (pending.removed.containsKey(outPoint))
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            pending.removed.put(outPoint, out);
+            if (pending.size() >= MAX_PENDING_OUTPUTS)
+                flushPendingOutputs();
+            return;
+        }
         maybeConnect();
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
@@ -1002,6 +1172,76 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * <p>Sends the output changes held back by the current thread's batch write to the database: one JDBC batch of
+     * deletes, which fails if any of the outputs didn't exist (unless the batch added them itself), followed by one JDBC
+     * batch of inserts. Deletes go first so that an output which was removed and then added back again ends up stored.
+     * The changes are still part of the database transaction, so other threads don't see them until the batch write is
+     * committed.</p>
+     *
+     * <p>This is called when committing, before queries that can't take the held back changes into account and
+     * whenever too many changes pile up. Does nothing outside of a batch write.</p>
+     */
+    protected void flushPendingOutputs() throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending == null || pending.size() == 0)
+            return;
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            if (!pending.removed.isEmpty()) {
+                s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+                for (UTXO out : pending.removed.values()) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.addBatch();
+                }
+                int[] counts = s.executeBatch();
+                s.close();
+                s = null;
+                // Drivers may answer Statement.SUCCESS_NO_INFO, only a count of zero is known to be a missing output.
+                int i = 0;
+                for (StoredTransactionOutPoint outPoint : pending.removed.keySet()) {
+                    if (i < counts.length && counts[i++] == 0 && !pending.removedIfPresent.contains(outPoint))
+                        throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+                }
+            }
+            if (!pending.added.isEmpty()) {
+                s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+                for (UTXO out : pending.added.values()) {
+                    setInsertOpenoutputParameters(s, out);
+                    s.addBatch();
+                }
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                        throw e;
+                    // Some output already existed, which inserting one at a time ignores. Drivers differ on whether
+                    // the rest of the batch went through, so go over all of it again that way.
+                    s.close();
+                    s = null;
+                    for (UTXO out : pending.added.values())
+                        insertOpenOutput(out);
+                }
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            pending.added.clear();
+            pending.removed.clear();
+            pending.removedIfPresent.clear();
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1012,6 +1252,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new PendingOutputs());
     }
 
     @Override
@@ -1019,6 +1261,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        flushPendingOutputs();
+        pendingOutputs.remove();
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
@@ -1032,6 +1276,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        pendingOutputs.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1047,6 +1292,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
+        flushPendingOutputs();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
@@ -1132,6 +1378,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     protected BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        flushPendingOutputs();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1161,6 +1408,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         List<UTXO> outputs = new ArrayList<UTXO>();
         try {
             maybeConnect();
+            flushPendingOutputs();
             s = conn.get().prepareStatement(getTrasactionOutputSelectSQL());
             for (Address address : addresses) {
                 s.setString(1, address.toString());
@@ -18,6 +18,8 @@ package org.neoscoinj.store;
 
 import org.neoscoinj.core.*;
 
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -75,7 +77,15 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * Gets a {@link org.neoscoinj.core.UTXO} with the given hash and index, or null if none is found
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
-    
+
+    /**
+     * Gets the {@link org.neoscoinj.core.UTXO}s with the given outpoints, as if by calling
+     * {@link #getTransactionOutput(Sha256Hash, long)} for each of them. Outpoints that aren't found are left out of the
+     * returned map. Stores backed by a remote database should fetch them with as few round trips as they can.
+     */
+    Map<StoredTransactionOutPoint, UTXO> getTransactionOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException;
+
     /**
      * Adds a {@link org.neoscoinj.core.UTXO} to the list of unspent TransactionOutputs
      */
@@ -0,0 +1,505 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.neoscoinj.core.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link BlockStore} that keeps every header of the best chain, unlike {@link SPVBlockStore} which only keeps the
+ * most recent ones. Headers are stored in height order in a memory mapped file, so {@link #getByHeight(int)} is a
+ * single read, and a {@link MappedHashIndex} maps hashes to heights for {@link #get(Sha256Hash)}. Opening a store
+ * that was closed cleanly only maps its files, however long the chain is.</p>
+ *
+ * <p>Blocks that are put but not on the best chain, and blocks that were on it before a re-org, are kept in memory
+ * until they become part of the best chain again, up to a limit. They are lost when the store is closed, as they are
+ * very rarely needed again. A re-org only rewrites the headers above the fork point.</p>
+ *
+ * <p>The store must start either empty, in which case the genesis block is added, or from a checkpoint set by
+ * {@link CheckpointManager#checkpoint}, in which case the store only holds headers from the checkpoint onwards. Writes
+ * are not synced to disk, so a power failure may lose the most recent headers, which will then simply be downloaded
+ * again. Reads may run concurrently on any number of threads.</p>
+ */
+public class HeightIndexedBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(HeightIndexedBlockStore.class);
+
+    private static final String HEADERS_FILE = "headers";
+    private static final String INDEX_FILE = "index";
+    private static final String NEW_INDEX_FILE = "index.new";
+    private static final String LOCK_FILE = "lock";
+
+    private static final int MAGIC = 0x48494253;  // "HIBS"
+    private static final int VERSION = 1;
+
+    // File format:
+    //   4 bytes magic, 4 bytes version
+    //   4 bytes height of the first header, 4 bytes number of headers
+    //   padding up to PROLOGUE_SIZE
+    // For each header of the best chain, in height order (128 bytes)
+    //   32 bytes hash of the header
+    //   96 bytes of the block, see StoredBlock.serializeCompact()
+    private static final int PROLOGUE_SIZE = 64;
+    private static final int RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // The file grows, and is mapped, a chunk at a time so existing mappings stay valid as it grows.
+    private static final int RECORDS_PER_CHUNK_BITS = 16;
+    private static final int RECORDS_PER_CHUNK = 1 << RECORDS_PER_CHUNK_BITS;
+    private static final long CHUNK_SIZE = (long) RECORDS_PER_CHUNK * RECORD_SIZE;
+    /** How many blocks that aren't on the best chain are kept. */
+    public static final int MAX_SIDE_BLOCKS = 5000;
+
+    private final NetworkParameters params;
+    private final File directory;
+
+    // Lookups take the read lock, changes to the best chain take the write lock.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    @GuardedBy("lock") private RandomAccessFile headersFile;
+    @GuardedBy("lock") private MappedByteBuffer prologue;
+    @GuardedBy("lock") private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+    @GuardedBy("lock") private MappedHashIndex index;
+    @GuardedBy("lock") private int baseHeight, numHeaders;
+    private volatile boolean closed;
+
+    private volatile StoredBlock chainHead;
+    private final Cache<Sha256Hash, StoredBlock> sideBlocks = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIDE_BLOCKS)
+            .build();
+
+    // Used to stop other applications/processes from opening the store.
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store files
+     */
+    public HeightIndexedBlockStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        lock.writeLock().lock();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+            boolean isNew = openHeaders();
+            if (!isNew)
+                index = MappedHashIndex.openIfClean(new File(directory, INDEX_FILE));
+            if (index != null && index.getCleanLogPosition() != getIndexPosition()) {
+                index.close();
+                index = null;
+            }
+            if (index == null)
+                rebuildIndex();
+            // Any crash from now on means the index has to be rebuilt.
+            index.setDirty();
+            if (numHeaders > 0)
+                chainHead = readHeader(numHeaders - 1);
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (chainHead == null)
+            initNewStore();
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        try {
+            Block genesis = params.getGenesisBlock().cloneAsHeader();
+            StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+            put(storedGenesis);
+            setChainHead(storedGenesis);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Maps the headers file, creating it if it is missing. Returns whether it was created. */
+    @GuardedBy("lock")
+    private boolean openHeaders() throws IOException, BlockStoreException {
+        File file = new File(directory, HEADERS_FILE);
+        boolean isNew = !file.exists();
+        headersFile = new RandomAccessFile(file, "rw");
+        if (isNew)
+            headersFile.setLength(PROLOGUE_SIZE);
+        long length = headersFile.length();
+        if (length < PROLOGUE_SIZE || (length - PROLOGUE_SIZE) % CHUNK_SIZE != 0)
+            throw new BlockStoreException("File size of " + file + " is not valid: " + length);
+        prologue = headersFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PROLOGUE_SIZE);
+        if (isNew) {
+            prologue.putInt(0, MAGIC);
+            prologue.putInt(4, VERSION);
+        } else if (prologue.getInt(0) != MAGIC || prologue.getInt(4) != VERSION) {
+            throw new BlockStoreException(file + " is not a headers file");
+        }
+        baseHeight = prologue.getInt(8);
+        numHeaders = prologue.getInt(12);
+        while (length > PROLOGUE_SIZE + chunks.size() * CHUNK_SIZE)
+            mapChunk();
+        if (numHeaders < 0 || numHeaders > (long) chunks.size() * RECORDS_PER_CHUNK)
+            throw new BlockStoreException("Corrupted block store: " + numHeaders + " headers in " + file);
+        return isNew;
+    }
+
+    @GuardedBy("lock")
+    private void mapChunk() throws IOException {
+        long start = PROLOGUE_SIZE + chunks.size() * CHUNK_SIZE;
+        if (headersFile.length() < start + CHUNK_SIZE)
+            headersFile.setLength(start + CHUNK_SIZE);
+        chunks.add(headersFile.getChannel().map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE));
+    }
+
+    // The index is only up to date with the headers if it was closed with the same base height and number of headers.
+    @GuardedBy("lock")
+    private long getIndexPosition() {
+        return (long) baseHeight << 32 | numHeaders;
+    }
+
+    @GuardedBy("lock")
+    private void rebuildIndex() throws IOException {
+        log.info("Rebuilding the index of {} from {} headers", directory, numHeaders);
+        long start = System.currentTimeMillis();
+        index = MappedHashIndex.create(new File(directory, INDEX_FILE), numHeaders + RECORDS_PER_CHUNK);
+        for (int position = 0; position < numHeaders; position++)
+            indexInsert(readHash(position), position);
+        log.info("Rebuilt index in {}ms", System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        lock.readLock().lock();
+        try {
+            // Blocks on the best chain are only written by setChainHead().
+            if (isOnBestChain(block))
+                return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        sideBlocks.put(block.getHeader().getHash(), block);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        StoredBlock block = sideBlocks.getIfPresent(hash);
+        if (block != null)
+            return block;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int position = findPosition(hash.getBytes());
+            return position < 0 ? null : readHeader(position);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the block of the best chain at the given height, or null if the store doesn't have it. */
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        checkOpen();
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            if (height < baseHeight || height - baseHeight >= numHeaders)
+                return null;
+            return readHeader(height - baseHeight);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    /**
+     * Makes the given block the head of the best chain. The blocks between it and the current best chain must have
+     * been put, headers above the fork point are replaced.
+     */
+    @Override
+    public void setChainHead(StoredBlock newChainHead) throws BlockStoreException {
+        checkOpen();
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            // Walk back through the side blocks to where the new best chain forks off the old one.
+            LinkedList<StoredBlock> newBlocks = new LinkedList<StoredBlock>();
+            StoredBlock cursor = newChainHead;
+            int forkHeight = cursor.getHeight();
+            boolean connected = true;
+            if (!isOnBestChain(cursor)) {
+                while (true) {
+                    newBlocks.addFirst(cursor);
+                    Sha256Hash prevHash = cursor.getHeader().getPrevBlockHash();
+                    forkHeight = cursor.getHeight() - 1;
+                    if (hashAtHeightEquals(forkHeight, prevHash))
+                        break;
+                    cursor = sideBlocks.getIfPresent(prevHash);
+                    if (cursor == null) {
+                        connected = false;
+                        break;
+                    }
+                }
+            }
+            if (!connected) {
+                // Only a store that holds nothing but the genesis block may be moved to a checkpoint.
+                if (numHeaders > 1)
+                    throw new BlockStoreException("New chain head does not connect to the stored chain: " + newChainHead);
+                truncate(0, false);
+                baseHeight = newBlocks.getFirst().getHeight();
+                log.info("Starting the store at height {}", baseHeight);
+            } else {
+                truncate(forkHeight + 1 - baseHeight, true);
+            }
+            for (StoredBlock block : newBlocks) {
+                append(block);
+                sideBlocks.invalidate(block.getHeader().getHash());
+            }
+            writeCounts();
+            chainHead = newChainHead;
+            if (index.needsToGrow())
+                growIndex();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        if (closed) {
+            lock.writeLock().unlock();
+            return;
+        }
+        try {
+            closed = true;
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+            prologue.force();
+            index.setClean(getIndexPosition());
+        } finally {
+            closeFiles();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+    }
+
+    @GuardedBy("lock")
+    private boolean isOnBestChain(StoredBlock block) {
+        return hashAtHeightEquals(block.getHeight(), block.getHeader().getHash());
+    }
+
+    @GuardedBy("lock")
+    private boolean hashAtHeightEquals(int height, Sha256Hash hash) {
+        if (height < baseHeight || height - baseHeight >= numHeaders)
+            return false;
+        return Arrays.equals(readHash(height - baseHeight), hash.getBytes());
+    }
+
+    /** Drops the headers from the given position onwards, keeping them as side blocks if asked to. */
+    @GuardedBy("lock")
+    private void truncate(int position, boolean keep) {
+        for (int p = numHeaders - 1; p >= position; p--) {
+            byte[] hash = readHash(p);
+            long slot = findSlot(hash);
+            checkState(slot >= 0, "Header at position %s is not indexed", p);
+            index.remove(slot);
+            if (keep) {
+                StoredBlock block = readHeader(p);
+                sideBlocks.put(block.getHeader().getHash(), block);
+            }
+        }
+        numHeaders = Math.min(numHeaders, position);
+    }
+
+    @GuardedBy("lock")
+    private void append(StoredBlock block) throws IOException {
+        checkState(block.getHeight() == baseHeight + numHeaders, "Block at height %s does not follow height %s",
+                block.getHeight(), baseHeight + numHeaders - 1);
+        int position = numHeaders;
+        if (position >>> RECORDS_PER_CHUNK_BITS == chunks.size())
+            mapChunk();
+        ByteBuffer buffer = recordBuffer(position);
+        byte[] hash = block.getHeader().getHash().getBytes();
+        buffer.put(hash);
+        block.serializeCompact(buffer);
+        indexInsert(hash, position);
+        numHeaders++;
+    }
+
+    @GuardedBy("lock")
+    private void writeCounts() {
+        prologue.putInt(8, baseHeight);
+        prologue.putInt(12, numHeaders);
+    }
+
+    /** Returns a buffer positioned at the start of the given record, with a position of its own. */
+    @GuardedBy("lock")
+    private ByteBuffer recordBuffer(int position) {
+        ByteBuffer buffer = chunks.get(position >>> RECORDS_PER_CHUNK_BITS).duplicate();
+        buffer.position((position & (RECORDS_PER_CHUNK - 1)) * RECORD_SIZE);
+        return buffer;
+    }
+
+    @GuardedBy("lock")
+    private byte[] readHash(int position) {
+        byte[] hash = new byte[32];
+        recordBuffer(position).get(hash);
+        return hash;
+    }
+
+    @GuardedBy("lock")
+    private StoredBlock readHeader(int position) {
+        ByteBuffer buffer = recordBuffer(position);
+        buffer.position(buffer.position() + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Returns the position of the header with the given hash, or -1 if it isn't on the best chain. */
+    @GuardedBy("lock")
+    private int findPosition(byte[] hash) {
+        long slot = findSlot(hash);
+        return slot < 0 ? -1 : (int) (index.locationAt(slot) - baseHeight);
+    }
+
+    /** Returns the index slot holding the hash, or -1 if it isn't in the index. */
+    @GuardedBy("lock")
+    private long findSlot(byte[] hash) {
+        long fingerprint = fingerprint(hash);
+        for (long slot = index.slotFor(fingerprint); ; slot = index.nextSlot(slot)) {
+            long f = index.fingerprintAt(slot);
+            if (f == MappedHashIndex.EMPTY)
+                return -1;
+            if (f == fingerprint && Arrays.equals(readHash((int) (index.locationAt(slot) - baseHeight)), hash))
+                return slot;
+        }
+    }
+
+    // Locations in the index are heights, so they stay valid when the store is moved to a checkpoint.
+    @GuardedBy("lock")
+    private void indexInsert(byte[] hash, int position) {
+        long fingerprint = fingerprint(hash);
+        long free = index.slotFor(fingerprint);
+        while (index.fingerprintAt(free) != MappedHashIndex.EMPTY &&
+                index.fingerprintAt(free) != MappedHashIndex.TOMBSTONE)
+            free = index.nextSlot(free);
+        index.insert(free, fingerprint, baseHeight + position);
+    }
+
+    // Block hashes are mostly leading zeros, but their trailing bytes are as good as random.
+    private static long fingerprint(byte[] hash) {
+        long f = 0;
+        for (int i = 24; i < 32; i++)
+            f = f << 8 | (hash[i] & 0xFF);
+        if (f == MappedHashIndex.EMPTY || f == MappedHashIndex.TOMBSTONE)
+            f += 2;
+        return f;
+    }
+
+    @GuardedBy("lock")
+    private void growIndex() throws IOException {
+        File indexFile = new File(directory, INDEX_FILE);
+        File newFile = new File(directory, NEW_INDEX_FILE);
+        // Headers orphaned by re-orgs leave tombstones behind, so size the new table by the live entries alone.
+        MappedHashIndex bigger = index.growInto(newFile, index.size() * 2);
+        bigger.setDirty();
+        index.close();
+        bigger.close();
+        if (!indexFile.delete() || !newFile.renameTo(indexFile))
+            throw new IOException("Could not replace " + indexFile);
+        index = MappedHashIndex.open(indexFile);
+        if (index == null)
+            throw new IOException("Could not reopen " + indexFile);
+    }
+
+    private void closeFiles() {
+        try {
+            if (index != null)
+                index.close();
+        } catch (IOException e) {
+            log.error("Failed to close index", e);
+        }
+        try {
+            if (System.getProperty("os.name").toLowerCase().contains("win")) {
+                if (prologue != null)
+                    WindowsMMapHack.forceRelease(prologue);
+                for (MappedByteBuffer chunk : chunks)
+                    WindowsMMapHack.forceRelease(chunk);
+            }
+            if (headersFile != null)
+                headersFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close headers file", e);
+        }
+        try {
+            if (fileLock != null)
+                fileLock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            log.error("Failed to release lock file", e);
+        }
+    }
+}
@@ -0,0 +1,1283 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.utils.DaemonThreadFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} written in pure Java that keeps everything in a directory of its own, without a
+ * database. It is much faster than the SQL backed stores for full verification, because a lookup or an update of an
+ * unspent output is a probe of a memory mapped hash table plus at most one read, instead of a round trip through
+ * JDBC.</p>
+ *
+ * <p>All changes are appended to a log, which is split into segment files. Each change is a record holding a key
+ * (a block hash, or a transaction hash and output index) and the new value, or a marker that the key was deleted. A
+ * memory mapped hash index maps keys to the position of their latest record. Segments that are mostly made up of
+ * records which have since been replaced or deleted are compacted in the background: the records that are still live
+ * are copied to the end of the log and the segment file is deleted.</p>
+ *
+ * <p>Writes between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are only visible to
+ * the thread making them until the commit, which appends them to the log in one go followed by a commit marker.
+ * When the store is opened after a crash, the index is rebuilt from the log and an incomplete batch at the end of
+ * the log is thrown away, so a batch is either entirely in the store or not at all. Commits are not synced to disk,
+ * so a power failure may lose the most recent blocks, which will then simply be downloaded again.</p>
+ *
+ * <p>Only one store may have the directory open at a time. All methods are thread safe.</p>
+ */
+public class LogStructuredFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredFullPrunedBlockStore.class);
+
+    /** The default size a segment of the log may grow to before a new one is started. */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /** By default, segments are compacted once less than half of their bytes are live. */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_FILE = "index";
+    private static final String NEW_INDEX_FILE = "index.new";
+    private static final String STATS_FILE = "segments";
+    private static final String LOCK_FILE = "lock";
+
+    // Record types. The top bit of the type byte is set in records that mark the key as deleted.
+    private static final byte TYPE_COMMIT = 0;
+    private static final byte TYPE_HEADER = 1;
+    private static final byte TYPE_UNDO = 2;
+    private static final byte TYPE_UNDO_HEIGHT = 3;
+    private static final byte TYPE_UTXO = 4;
+    private static final byte TYPE_SETTING = 5;
+    private static final int DELETED = 0x80;
+
+    private static final int SETTING_CHAIN_HEAD = 0;
+    private static final int SETTING_VERIFIED_CHAIN_HEAD = 1;
+    private static final int SETTING_PRUNED_HEIGHT = 2;
+
+    // Record format:
+    //   4 bytes length of the rest of the record after the checksum
+    //   4 bytes CRC32 of the rest of the record
+    //   1 byte type
+    //   32 bytes hash, 4 bytes index (the key)
+    //   the value
+    private static final int RECORD_PREFIX_SIZE = 8;
+    private static final int KEY_SIZE = 37;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    // Most records are unspent outputs, which fit into this, so they can be read with a single call.
+    private static final int TYPICAL_RECORD_SIZE = 256;
+    private static final byte[] ZERO_HASH = new byte[32];
+    // How many bytes of live records compaction moves per commit, so that the write lock isn't held for too long.
+    private static final int COMPACTION_CHUNK_SIZE = 1024 * 1024;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final long segmentSize;
+    private final double compactionThreshold;
+
+    // Lookups take the read lock, commits and compaction take the write lock.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    @GuardedBy("lock") private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    @GuardedBy("lock") private Segment activeSegment;
+    @GuardedBy("lock") private MappedHashIndex index;
+    private volatile boolean closed;
+
+    // The uncommitted writes of each thread, a null value means the key is deleted.
+    private final ThreadLocal<Map<Key, byte[]>> batch = new ThreadLocal<Map<Key, byte[]>>();
+
+    private volatile StoredBlock chainHead;
+    private volatile StoredBlock verifiedChainHead;
+
+    // Chain head lookups happen a lot, and always for the same few blocks.
+    private final LinkedHashMap<Sha256Hash, StoredHeader> headerCache = new LinkedHashMap<Sha256Hash, StoredHeader>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredHeader> entry) {
+            return size() > 2050;  // Slightly more than the difficulty transition period.
+        }
+    };
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("LogStructuredFullPrunedBlockStore compaction"));
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    // Used to stop other applications/processes from opening the store.
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store files
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store files
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param segmentSize The size in bytes a log segment may grow to before a new one is started
+     * @param compactionThreshold Segments with a smaller proportion of live bytes than this are compacted, zero
+     *                            disables compaction
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                             long segmentSize, double compactionThreshold) throws BlockStoreException {
+        checkArgument(segmentSize > 0 && segmentSize < Integer.MAX_VALUE, "Segment size out of range");
+        checkArgument(compactionThreshold >= 0 && compactionThreshold < 1, "Compaction threshold out of range");
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        lock.writeLock().lock();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+            openSegments();
+            boolean isNew = segments.isEmpty();
+            if (isNew)
+                activeSegment = createSegment(1);
+            else
+                activeSegment = segments.lastEntry().getValue();
+            if (!isNew)
+                index = MappedHashIndex.openIfClean(new File(directory, INDEX_FILE));
+            if (index != null && (index.getCleanLogPosition() != getLogPosition() || !readSegmentStats())) {
+                index.close();
+                index = null;
+            }
+            if (index == null)
+                rebuildIndex();
+            // Any crash from now on means the index has to be rebuilt.
+            index.setDirty();
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (getSetting(SETTING_CHAIN_HEAD) == null)
+            initNewStore();
+        else
+            loadChainHeads();
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void loadChainHeads() throws BlockStoreException {
+        Sha256Hash hash = new Sha256Hash(getSetting(SETTING_CHAIN_HEAD));
+        chainHead = get(hash);
+        if (chainHead == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        hash = new Sha256Hash(getSetting(SETTING_VERIFIED_CHAIN_HEAD));
+        verifiedChainHead = get(hash);
+        if (verifiedChainHead == null)
+            throw new BlockStoreException("Corrupted block store: could not find verified chain head: " + hash);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // FullPrunedBlockStore
+
+    @Override
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        write(headerKey(storedBlock.getHeader().getHash()), encodeHeader(storedBlock, false));
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        boolean implicitBatch = batch.get() == null;
+        if (implicitBatch)
+            beginDatabaseBatchWrite();
+        try {
+            write(new Key(TYPE_UNDO, hash.getBytes(), 0), encodeUndoableBlock(undoableBlock));
+            // Remember which blocks are at this height, so their undo data can be found when it gets pruned.
+            Key heightKey = new Key(TYPE_UNDO_HEIGHT, ZERO_HASH, storedBlock.getHeight());
+            byte[] hashes = read(heightKey);
+            if (hashes == null) {
+                write(heightKey, hash.getBytes());
+            } else if (!containsHash(hashes, hash.getBytes())) {
+                byte[] newHashes = Arrays.copyOf(hashes, hashes.length + 32);
+                System.arraycopy(hash.getBytes(), 0, newHashes, hashes.length, 32);
+                write(heightKey, newHashes);
+            }
+            write(headerKey(hash), encodeHeader(storedBlock, true));
+            if (implicitBatch)
+                commitDatabaseBatchWrite();
+        } finally {
+            if (implicitBatch && batch.get() != null)
+                abortDatabaseBatchWrite();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredHeader header = getHeader(hash);
+        return header == null ? null : header.block;
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        StoredHeader header = getHeader(hash);
+        return header != null && header.wasUndoable ? header.block : null;
+    }
+
+    @Nullable
+    private StoredHeader getHeader(Sha256Hash hash) throws BlockStoreException {
+        Key key = headerKey(hash);
+        Map<Key, byte[]> writes = batch.get();
+        if (writes != null && writes.containsKey(key)) {
+            byte[] value = writes.get(key);
+            return value == null ? null : decodeHeader(value);
+        }
+        synchronized (headerCache) {
+            StoredHeader cached = headerCache.get(hash);
+            if (cached != null)
+                return cached;
+        }
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Record record = lookup(key);
+            if (record == null)
+                return null;
+            StoredHeader header = decodeHeader(record.value);
+            // Done under the lock so a commit can't replace the header in between.
+            synchronized (headerCache) {
+                headerCache.put(hash, header);
+            }
+            return header;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(new Key(TYPE_UNDO, hash.getBytes(), 0));
+        return value == null ? null : decodeUndoableBlock(hash, value);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        write(settingKey(SETTING_CHAIN_HEAD), chainHead.getHeader().getHash().getBytes());
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        boolean implicitBatch = batch.get() == null;
+        if (implicitBatch)
+            beginDatabaseBatchWrite();
+        try {
+            this.verifiedChainHead = chainHead;
+            write(settingKey(SETTING_VERIFIED_CHAIN_HEAD), chainHead.getHeader().getHash().getBytes());
+            if (this.chainHead == null || this.chainHead.getHeight() < chainHead.getHeight())
+                setChainHead(chainHead);
+            pruneUndoableBlocks(chainHead.getHeight() - fullStoreDepth);
+            if (implicitBatch)
+                commitDatabaseBatchWrite();
+        } finally {
+            if (implicitBatch && batch.get() != null)
+                abortDatabaseBatchWrite();
+        }
+    }
+
+    /** Deletes the undo data of all blocks at or below the given height. */
+    private void pruneUndoableBlocks(int height) throws BlockStoreException {
+        byte[] prunedHeightBytes = getSetting(SETTING_PRUNED_HEIGHT);
+        int prunedHeight = prunedHeightBytes == null ? -1 : (int) Utils.readUint32(prunedHeightBytes, 0);
+        if (height <= prunedHeight)
+            return;
+        if (log.isDebugEnabled())
+            log.debug("Deleting undoable blocks with height <= " + height);
+        for (int h = prunedHeight + 1; h <= height; h++) {
+            Key heightKey = new Key(TYPE_UNDO_HEIGHT, ZERO_HASH, h);
+            byte[] hashes = read(heightKey);
+            if (hashes == null)
+                continue;
+            for (int offset = 0; offset < hashes.length; offset += 32)
+                write(new Key(TYPE_UNDO, Arrays.copyOfRange(hashes, offset, offset + 32), 0), null);
+            write(heightKey, null);
+        }
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayLE(height, bytes, 0);
+        write(settingKey(SETTING_PRUNED_HEIGHT), bytes);
+    }
+
+    @Override
+    @Nullable
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] value = read(new Key(TYPE_UTXO, hash.getBytes(), index));
+        return value == null ? null : decodeUTXO(hash, index, value);
+    }
+
+    @Override
+    public Map<StoredTransactionOutPoint, UTXO> getTransactionOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<StoredTransactionOutPoint, UTXO> found = new HashMap<StoredTransactionOutPoint, UTXO>();
+        for (StoredTransactionOutPoint outPoint : outPoints) {
+            UTXO out = getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+            if (out != null)
+                found.put(outPoint, out);
+        }
+        return found;
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        write(new Key(TYPE_UTXO, out.getHash().getBytes(), out.getIndex()), encodeUTXO(out));
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Key key = new Key(TYPE_UTXO, out.getHash().getBytes(), out.getIndex());
+        if (read(key) == null)
+            throw new BlockStoreException("Tried to remove a UTXO from LogStructuredFullPrunedBlockStore that it didn't have!");
+        write(key, null);
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        // As with a database transaction, beginning again carries on with the batch already in progress.
+        if (batch.get() == null)
+            batch.set(new LinkedHashMap<Key, byte[]>());
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Map<Key, byte[]> writes = batch.get();
+        batch.remove();
+        if (writes != null && !writes.isEmpty())
+            commit(writes);
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            log.warn("Warning: Rollback attempt without transaction");
+        batch.remove();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        // There is no index by address, so this reads the whole log. It's fine for the occasional query, but apps
+        // that need this often should use one of the SQL stores.
+        final Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        final List<UTXO> foundOutputs = new ArrayList<UTXO>();
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            for (final Segment segment : segments.values()) {
+                scanSegment(segment, segment.size, new RecordVisitor() {
+                    @Override
+                    public void visit(Record record, long offset) throws IOException {
+                        if (record.type != TYPE_UTXO || record.deleted)
+                            return;
+                        long slot = findSlot(record.key);
+                        if (slot < 0 || index.locationAt(slot) != segment.locationOf(offset))
+                            return;  // Spent since.
+                        Sha256Hash hash = new Sha256Hash(record.key.hash);
+                        UTXO output = decodeUTXO(hash, record.key.index, record.value);
+                        if (wanted.contains(output.getAddress()))
+                            foundOutputs.add(output);
+                    }
+                });
+            }
+            return foundOutputs;
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        compactor.shutdown();
+        lock.writeLock().lock();
+        if (closed) {
+            lock.writeLock().unlock();
+            return;
+        }
+        try {
+            closed = true;
+            for (Segment segment : segments.values())
+                segment.channel.force(false);
+            writeSegmentStats();
+            index.setClean(getLogPosition());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            closeFiles();
+            lock.writeLock().unlock();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Reading and writing records
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+    }
+
+    /** Returns the value of the key as seen by the current thread, including its uncommitted writes. */
+    @Nullable
+    private byte[] read(Key key) throws BlockStoreException {
+        Map<Key, byte[]> writes = batch.get();
+        if (writes != null && writes.containsKey(key))
+            return writes.get(key);
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Record record = lookup(key);
+            return record == null ? null : record.value;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Sets the value of the key, or deletes it if the value is null. */
+    private void write(Key key, @Nullable byte[] value) throws BlockStoreException {
+        Map<Key, byte[]> writes = batch.get();
+        if (writes != null) {
+            writes.put(key, value);
+        } else {
+            writes = new HashMap<Key, byte[]>();
+            writes.put(key, value);
+            commit(writes);
+        }
+    }
+
+    @Nullable
+    private byte[] getSetting(int setting) throws BlockStoreException {
+        return read(settingKey(setting));
+    }
+
+    /** Returns the latest committed record of the key. */
+    @GuardedBy("lock")
+    @Nullable
+    private Record lookup(Key key) throws IOException {
+        long fingerprint = key.fingerprint();
+        for (long slot = index.slotFor(fingerprint); ; slot = index.nextSlot(slot)) {
+            long f = index.fingerprintAt(slot);
+            if (f == MappedHashIndex.EMPTY)
+                return null;
+            if (f == fingerprint) {
+                Record record = readRecord(index.locationAt(slot));
+                if (record.key.equals(key))
+                    return record;
+            }
+        }
+    }
+
+    /** Returns the index slot holding the key, or -1 if it isn't in the index. */
+    @GuardedBy("lock")
+    private long findSlot(Key key) throws IOException {
+        long fingerprint = key.fingerprint();
+        for (long slot = index.slotFor(fingerprint); ; slot = index.nextSlot(slot)) {
+            long f = index.fingerprintAt(slot);
+            if (f == MappedHashIndex.EMPTY)
+                return -1;
+            if (f == fingerprint && readKey(index.locationAt(slot)).equals(key))
+                return slot;
+        }
+    }
+
+    @GuardedBy("lock")
+    private Record readRecord(long location) throws IOException {
+        Segment segment = segmentOf(location);
+        long offset = location & 0xFFFFFFFFL;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(TYPICAL_RECORD_SIZE, segment.size - offset));
+        readFully(segment.channel, buf, offset);
+        int length = buf.getInt(0);
+        if (length < KEY_SIZE || length > MAX_RECORD_SIZE || offset + RECORD_PREFIX_SIZE + length > segment.size)
+            throw new IOException("Corrupt record in " + segment.file + " at " + offset);
+        byte[] body = new byte[length];
+        int have = Math.min(length, buf.capacity() - RECORD_PREFIX_SIZE);
+        System.arraycopy(buf.array(), RECORD_PREFIX_SIZE, body, 0, have);
+        if (have < length)
+            readFully(segment.channel, ByteBuffer.wrap(body, have, length - have), offset + RECORD_PREFIX_SIZE + have);
+        return new Record(body);
+    }
+
+    @GuardedBy("lock")
+    private Key readKey(long location) throws IOException {
+        Segment segment = segmentOf(location);
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_PREFIX_SIZE + KEY_SIZE);
+        readFully(segment.channel, buf, (location & 0xFFFFFFFFL));
+        return Key.parse(buf.array(), RECORD_PREFIX_SIZE);
+    }
+
+    @GuardedBy("lock")
+    private int readRecordSize(long location) throws IOException {
+        Segment segment = segmentOf(location);
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        readFully(segment.channel, buf, (location & 0xFFFFFFFFL));
+        return RECORD_PREFIX_SIZE + buf.getInt(0);
+    }
+
+    @GuardedBy("lock")
+    private Segment segmentOf(long location) throws IOException {
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null)
+            throw new IOException("Index refers to missing segment " + (location >>> 32));
+        return segment;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    /**
+     * Appends the given writes to the log as one batch and points the index at them.
+     */
+    private void commit(Map<Key, byte[]> writes) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            appendBatch(writes, false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Appends a batch to the log and applies it to the index. Deletion records are only written for keys that are
+     * in the index, unless forceDeletions is set.
+     */
+    @GuardedBy("lock")
+    private void appendBatch(Map<Key, byte[]> writes, boolean forceDeletions) throws IOException {
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(writes.size() * TYPICAL_RECORD_SIZE);
+        List<Key> keys = new ArrayList<Key>(writes.size());
+        List<Integer> offsets = new ArrayList<Integer>(writes.size());
+        for (Map.Entry<Key, byte[]> entry : writes.entrySet()) {
+            Key key = entry.getKey();
+            if (entry.getValue() == null && !forceDeletions && findSlot(key) < 0)
+                continue;  // Created and deleted within the batch, or never existed.
+            keys.add(key);
+            offsets.add(bos.size());
+            writeRecord(bos, key, entry.getValue());
+        }
+        if (keys.isEmpty())
+            return;
+        offsets.add(bos.size());
+        writeRecord(bos, new Key(TYPE_COMMIT, ZERO_HASH, keys.size()), new byte[0]);
+
+        if (activeSegment.size >= segmentSize) {
+            activeSegment.channel.force(false);
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+        Segment segment = activeSegment;
+        long start = segment.size;
+        ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
+        long position = start;
+        while (buf.hasRemaining())
+            position += segment.channel.write(buf, position);
+        segment.size = position;
+
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.get(i);
+            int size = offsets.get(i + 1) - offsets.get(i);
+            applyToIndex(key, writes.get(key) == null, segment.locationOf(start + offsets.get(i)), size);
+            if (key.type == TYPE_HEADER) {
+                synchronized (headerCache) {
+                    headerCache.remove(new Sha256Hash(key.hash));
+                }
+            }
+        }
+    }
+
+    private static void writeRecord(UnsafeByteArrayOutputStream bos, Key key, @Nullable byte[] value) {
+        int valueLength = value == null ? 0 : value.length;
+        byte[] record = new byte[RECORD_PREFIX_SIZE + KEY_SIZE + valueLength];
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        buf.putInt(KEY_SIZE + valueLength);
+        buf.putInt(0);  // Checksum, filled in below.
+        buf.put((byte) (value == null ? key.type | DELETED : key.type));
+        buf.put(key.hash);
+        Utils.uint32ToByteArrayLE(key.index, record, buf.position());
+        if (value != null)
+            System.arraycopy(value, 0, record, RECORD_PREFIX_SIZE + KEY_SIZE, valueLength);
+        buf.putInt(4, checksum(record, RECORD_PREFIX_SIZE, KEY_SIZE + valueLength));
+        bos.write(record, 0, record.length);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /** Points the index at the record for the key written at the given location. */
+    @GuardedBy("lock")
+    private void applyToIndex(Key key, boolean deleted, long location, int size) throws IOException {
+        long slot = findSlot(key);
+        if (slot >= 0) {
+            // The old record is garbage now.
+            long oldLocation = index.locationAt(slot);
+            segmentOf(oldLocation).liveBytes -= readRecordSize(oldLocation);
+            if (deleted)
+                index.remove(slot);
+            else
+                index.setLocation(slot, location);
+        } else if (!deleted) {
+            long fingerprint = key.fingerprint();
+            long free = index.slotFor(fingerprint);
+            while (index.fingerprintAt(free) != MappedHashIndex.EMPTY &&
+                    index.fingerprintAt(free) != MappedHashIndex.TOMBSTONE)
+                free = index.nextSlot(free);
+            index.insert(free, fingerprint, location);
+        }
+        if (!deleted)
+            segmentOf(location).liveBytes += size;
+        if (index.needsToGrow())
+            growIndex();
+    }
+
+    @GuardedBy("lock")
+    private void growIndex() throws IOException {
+        File indexFile = new File(directory, INDEX_FILE);
+        File newFile = new File(directory, NEW_INDEX_FILE);
+        // Size the new table by the live entries alone, so one that filled up with tombstones is rebuilt at the same
+        // size rather than growing without bound as outputs come and go.
+        MappedHashIndex bigger = index.growInto(newFile, index.size() * 2);
+        bigger.setDirty();
+        index.close();
+        bigger.close();
+        if (!indexFile.delete() || !newFile.renameTo(indexFile))
+            throw new IOException("Could not replace " + indexFile);
+        index = MappedHashIndex.open(indexFile);
+        if (index == null)
+            throw new IOException("Could not reopen " + indexFile);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Segments, recovery and compaction
+
+    /** A position in the log, the id of the active segment and its size. Later positions compare greater. */
+    @GuardedBy("lock")
+    private long getLogPosition() {
+        return activeSegment.locationOf(activeSegment.size);
+    }
+
+    @GuardedBy("lock")
+    private void openSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Could not list " + directory);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            int id;
+            try {
+                id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            segments.put(id, new Segment(id, file));
+        }
+    }
+
+    @GuardedBy("lock")
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /** Recreates the index by replaying the log, truncating any incomplete batch at the end of it. */
+    @GuardedBy("lock")
+    private void rebuildIndex() throws IOException, BlockStoreException {
+        log.info("Rebuilding the index of {} from the log", directory);
+        long start = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (Segment segment : segments.values()) {
+            segment.liveBytes = 0;
+            totalBytes += segment.size;
+        }
+        // Assume a few hundred bytes per record to size the index, it will grow if needed.
+        index = MappedHashIndex.create(new File(directory, INDEX_FILE), totalBytes / 128);
+        for (final Segment segment : segments.values()) {
+            final List<Record> pending = new ArrayList<Record>();
+            final List<Long> pendingOffsets = new ArrayList<Long>();
+            final long[] committedEnd = new long[1];
+            long end = scanSegment(segment, segment.size, new RecordVisitor() {
+                @Override
+                public void visit(Record record, long offset) throws IOException {
+                    if (record.type != TYPE_COMMIT) {
+                        pending.add(record);
+                        pendingOffsets.add(offset);
+                        return;
+                    }
+                    for (int i = 0; i < pending.size(); i++) {
+                        Record r = pending.get(i);
+                        applyToIndex(r.key, r.deleted, segment.locationOf(pendingOffsets.get(i)), r.size());
+                    }
+                    pending.clear();
+                    pendingOffsets.clear();
+                    committedEnd[0] = offset + record.size();
+                }
+            });
+            if (committedEnd[0] != segment.size) {
+                if (segment != activeSegment)
+                    throw new BlockStoreException("Corrupt log segment " + segment.file + " at offset " + end);
+                log.warn("Discarding {} bytes of incomplete writes at the end of {}", segment.size - committedEnd[0],
+                        segment.file);
+                segment.channel.truncate(committedEnd[0]);
+                segment.size = committedEnd[0];
+            }
+        }
+        log.info("Rebuilt index with {} entries in {}ms", index.size(), System.currentTimeMillis() - start);
+    }
+
+    private interface RecordVisitor {
+        void visit(Record record, long offset) throws IOException;
+    }
+
+    /**
+     * Reads the records of a segment in order up to the given size, stopping early at the first record that is
+     * incomplete or fails its checksum. Returns the offset of the end of the last valid record.
+     */
+    private static long scanSegment(Segment segment, long size, RecordVisitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 20));
+        try {
+            long offset = 0;
+            while (offset + RECORD_PREFIX_SIZE <= size) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < KEY_SIZE || length > MAX_RECORD_SIZE || offset + RECORD_PREFIX_SIZE + length > size)
+                    break;
+                byte[] body = new byte[length];
+                in.readFully(body);
+                if (checksum(body, 0, length) != crc)
+                    break;
+                visitor.visit(new Record(body), offset);
+                offset += RECORD_PREFIX_SIZE + length;
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Starts compacting a segment in the background, if one needs it and compaction isn't already running. */
+    private void maybeCompact() {
+        if (compactionThreshold == 0 || closed || !compacting.compareAndSet(false, true))
+            return;
+        Segment candidate = null;
+        lock.readLock().lock();
+        try {
+            double lowest = compactionThreshold;
+            for (Segment segment : segments.values()) {
+                if (segment == activeSegment || segment.size == 0)
+                    continue;
+                double live = (double) segment.liveBytes / segment.size;
+                if (live < lowest) {
+                    lowest = live;
+                    candidate = segment;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (candidate == null) {
+            compacting.set(false);
+            return;
+        }
+        final Segment segment = candidate;
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact(segment);
+                    } catch (Exception e) {
+                        if (!closed)
+                            log.error("Failed to compact " + segment.file, e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                    maybeCompact();
+                }
+            });
+        } catch (RuntimeException e) {
+            compacting.set(false);  // Closed in the meantime.
+        }
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the end of the log and deletes it. The segment is read without
+     * holding the lock as it never changes, only the copying is done under the lock, a chunk at a time.
+     */
+    private void compact(final Segment segment) throws IOException {
+        log.info("Compacting {}, {} of {} bytes are live", segment.file, segment.liveBytes, segment.size);
+        final List<Record> chunk = new ArrayList<Record>();
+        final List<Long> chunkOffsets = new ArrayList<Long>();
+        final int[] chunkBytes = new int[1];
+        scanSegment(segment, segment.size, new RecordVisitor() {
+            @Override
+            public void visit(Record record, long offset) throws IOException {
+                if (record.type == TYPE_COMMIT)
+                    return;
+                chunk.add(record);
+                chunkOffsets.add(offset);
+                chunkBytes[0] += record.size();
+                if (chunkBytes[0] >= COMPACTION_CHUNK_SIZE) {
+                    moveLiveRecords(segment, chunk, chunkOffsets);
+                    chunk.clear();
+                    chunkOffsets.clear();
+                    chunkBytes[0] = 0;
+                }
+            }
+        });
+        moveLiveRecords(segment, chunk, chunkOffsets);
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            if (segment.liveBytes != 0)
+                log.warn("{} still has {} live bytes after compaction", segment.file, segment.liveBytes);
+            // Commits aren't synced, but the copies must be on disk before the only other copy of the records goes.
+            for (Segment newer : segments.tailMap(segment.id, false).values())
+                newer.channel.force(true);
+            index.sync();
+            segments.remove(segment.id);
+            segment.close();
+            if (!segment.file.delete())
+                throw new IOException("Could not delete " + segment.file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void moveLiveRecords(Segment segment, List<Record> records, List<Long> offsets) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                throw new IOException("Store closed");
+            // Deletion records have to be kept whilst an older segment might still hold a record they delete,
+            // unless the key has been written again since.
+            boolean isOldest = segments.firstKey() == segment.id;
+            Map<Key, byte[]> writes = new LinkedHashMap<Key, byte[]>();
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                long slot = findSlot(record.key);
+                if (!record.deleted) {
+                    if (slot >= 0 && index.locationAt(slot) == segment.locationOf(offsets.get(i)))
+                        writes.put(record.key, record.value);
+                } else if (!isOldest && slot < 0) {
+                    writes.put(record.key, null);
+                }
+            }
+            appendBatch(writes, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Live byte counts of the segments can't be worked out from the index without reading the whole log, so they
+    // are saved when the store is closed.
+    @GuardedBy("lock")
+    private void writeSegmentStats() throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, STATS_FILE))));
+        try {
+            out.writeInt(segments.size());
+            for (Segment segment : segments.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.liveBytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean readSegmentStats() throws IOException {
+        File file = new File(directory, STATS_FILE);
+        if (!file.exists())
+            return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int count = in.readInt();
+            if (count != segments.size())
+                return false;
+            for (int i = 0; i < count; i++) {
+                Segment segment = segments.get(in.readInt());
+                if (segment == null)
+                    return false;
+                segment.liveBytes = in.readLong();
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            if (index != null)
+                index.close();
+        } catch (IOException e) {
+            log.error("Failed to close index", e);
+        }
+        for (Segment segment : segments.values())
+            segment.close();
+        try {
+            if (fileLock != null)
+                fileLock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            log.error("Failed to release lock file", e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Encoding of values
+
+    private static Key headerKey(Sha256Hash hash) {
+        return new Key(TYPE_HEADER, hash.getBytes(), 0);
+    }
+
+    private static Key settingKey(int setting) {
+        return new Key(TYPE_SETTING, ZERO_HASH, setting);
+    }
+
+    private static boolean containsHash(byte[] hashes, byte[] hash) {
+        for (int offset = 0; offset < hashes.length; offset += 32)
+            if (Arrays.equals(Arrays.copyOfRange(hashes, offset, offset + 32), hash))
+                return true;
+        return false;
+    }
+
+    private static byte[] encodeHeader(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        block.serializeCompact(buf);
+        buf.put((byte) (wasUndoable ? 1 : 0));
+        return buf.array();
+    }
+
+    private StoredHeader decodeHeader(byte[] value) throws BlockStoreException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(value);
+            StoredBlock block = StoredBlock.deserializeCompact(params, buf);
+            return new StoredHeader(block, buf.get() != 0);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Undoable blocks are a flag byte, 0 for output changes and 1 for transactions, followed by the same encoding
+    // as DatabaseFullPrunedBlockStore uses.
+    private static byte[] encodeUndoableBlock(StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write((int) (0xFF & (numTxn >> 0)));
+                bos.write((int) (0xFF & (numTxn >> 8)));
+                bos.write((int) (0xFF & (numTxn >> 16)));
+                bos.write((int) (0xFF & (numTxn >> 24)));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.neoscoinSerialize(bos);
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private StoredUndoableBlock decodeUndoableBlock(Sha256Hash hash, byte[] value) throws BlockStoreException {
+        try {
+            if (value[0] == 0) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(value, 1, value.length - 1));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            }
+            int offset = 1;
+            int numTxn = ((value[offset++] & 0xFF) << 0) |
+                    ((value[offset++] & 0xFF) << 8) |
+                    ((value[offset++] & 0xFF) << 16) |
+                    ((value[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, value, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Unspent outputs are 4 bytes height, 8 bytes value, 1 byte coinbase flag, 4 bytes address type, the address
+    // (2 bytes length, -1 for none, then UTF-8) and the script (4 bytes length then the script).
+    private static byte[] encodeUTXO(UTXO out) {
+        byte[] address = out.getAddress() == null ? null : out.getAddress().getBytes(Charsets.UTF_8);
+        byte[] script = out.getScriptBytes();
+        ByteBuffer buf = ByteBuffer.allocate(4 + 8 + 1 + 4 + 2 + (address == null ? 0 : address.length) + 4 + script.length);
+        buf.putInt(out.getHeight());
+        buf.putLong(out.getValue().value);
+        buf.put((byte) (out.isCoinbase() ? 1 : 0));
+        buf.putInt(out.getAddressType());
+        if (address == null) {
+            buf.putShort((short) -1);
+        } else {
+            buf.putShort((short) address.length);
+            buf.put(address);
+        }
+        buf.putInt(script.length);
+        buf.put(script);
+        return buf.array();
+    }
+
+    private static UTXO decodeUTXO(Sha256Hash hash, long index, byte[] value) {
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        int height = buf.getInt();
+        Coin coinValue = Coin.valueOf(buf.getLong());
+        boolean coinbase = buf.get() != 0;
+        int addressType = buf.getInt();
+        short addressLength = buf.getShort();
+        String address = null;
+        if (addressLength >= 0) {
+            address = new String(value, buf.position(), addressLength, Charsets.UTF_8);
+            buf.position(buf.position() + addressLength);
+        }
+        byte[] script = new byte[buf.getInt()];
+        buf.get(script);
+        return new UTXO(hash, index, coinValue, height, coinbase, script, address, addressType);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Helper classes
+
+    private static class StoredHeader {
+        final StoredBlock block;
+        final boolean wasUndoable;
+
+        StoredHeader(StoredBlock block, boolean wasUndoable) {
+            this.block = block;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    /** The key of a record: its type, a hash and an index, which is only used by some types. */
+    private static final class Key {
+        final byte type;
+        final byte[] hash;
+        final long index;
+
+        Key(byte type, byte[] hash, long index) {
+            this.type = type;
+            this.hash = hash;
+            this.index = index;
+        }
+
+        static Key parse(byte[] bytes, int offset) {
+            byte type = (byte) (bytes[offset] & ~DELETED);
+            byte[] hash = Arrays.copyOfRange(bytes, offset + 1, offset + 33);
+            return new Key(type, hash, Utils.readUint32(bytes, offset + 33));
+        }
+
+        /** A well mixed 64 bit hash of the key, never equal to the reserved values of the index. */
+        long fingerprint() {
+            long h = type * 0xC2B2AE3D27D4EB4FL + (index + 1) * 0x9E3779B97F4A7C15L;
+            for (int i = 0; i < 32; i += 8)
+                h = (h ^ Utils.readInt64(hash, i)) * 0x87C37B91114253D5L;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            if (h == MappedHashIndex.EMPTY || h == MappedHashIndex.TOMBSTONE)
+                h += 2;
+            return h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return type == other.type && index == other.index && Arrays.equals(hash, other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) fingerprint();
+        }
+    }
+
+    private static class Record {
+        final Key key;
+        final byte type;
+        final boolean deleted;
+        final byte[] value;
+
+        /** Parses a record from everything after its length and checksum. */
+        Record(byte[] body) {
+            key = Key.parse(body, 0);
+            type = key.type;
+            deleted = (body[0] & DELETED) != 0;
+            value = Arrays.copyOfRange(body, KEY_SIZE, body.length);
+        }
+
+        /** Size of the record in the log. */
+        int size() {
+            return RECORD_PREFIX_SIZE + KEY_SIZE + value.length;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final FileChannel channel;
+        // Size is only changed under the write lock, live bytes are an estimate used to pick segments to compact.
+        long size;
+        long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
+        }
+
+        long locationOf(long offset) {
+            return ((long) id << 32) | offset;
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                log.error("Failed to close " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An open addressing hash table from 64 bit fingerprints to 64 bit locations, held in a memory mapped file. It is
+ * the index of {@link LogStructuredFullPrunedBlockStore}: the fingerprint is a hash of a record key and the location
+ * says where in the log the record lives. Keys themselves are not stored, so two keys with the same fingerprint are
+ * told apart by reading the records, see {@link #slotFor(long)} and {@link #nextSlot(long)}.</p>
+ *
+ * <p>The file starts with a small header recording whether the index was closed cleanly and how far into the log it
+ * is up to date. An index that wasn't closed cleanly can't be trusted, because the kernel flushes pages of the mapping
+ * in any order, and has to be rebuilt from the log.</p>
+ *
+ * <p>Lookups may run concurrently with each other, but not with modifications. This class does no locking.</p>
+ */
+class MappedHashIndex {
+    private static final Logger log = LoggerFactory.getLogger(MappedHashIndex.class);
+
+    /** Fingerprint of a slot that has never been used. Keys must never hash to this. */
+    static final long EMPTY = 0;
+    /** Fingerprint of a slot whose entry was removed. Keys must never hash to this. */
+    static final long TOMBSTONE = 1;
+
+    private static final int MAGIC = 0x4c534958;  // "LSIX"
+    private static final int VERSION = 1;
+
+    // File format:
+    //   4 bytes magic, 4 bytes version, 4 bytes clean flag, 4 bytes padding
+    //   8 bytes capacity (number of slots, a power of two)
+    //   8 bytes used slots (entries and tombstones), 8 bytes entries
+    //   8 bytes log position the index is up to date with, as written by setClean()
+    //   padding up to HEADER_SIZE
+    // For each slot (16 bytes)
+    //   8 bytes fingerprint, 8 bytes location
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    // A single mapping can't exceed 2GB, so big tables are mapped in chunks.
+    private static final int SLOTS_PER_CHUNK_BITS = 23;
+    private static final int SLOTS_PER_CHUNK = 1 << SLOTS_PER_CHUNK_BITS;
+    private static final int MIN_CAPACITY = 1024;
+    // Tables are grown once this proportion of the slots is used, probe sequences get long after that.
+    private static final double MAX_LOAD = 0.6;
+
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+    private final long capacity;
+    private final long mask;
+    private long used, size;
+
+    private MappedHashIndex(RandomAccessFile randomAccessFile, long capacity) throws IOException {
+        this.randomAccessFile = randomAccessFile;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        FileChannel channel = randomAccessFile.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int numChunks = (int) ((capacity + SLOTS_PER_CHUNK - 1) / SLOTS_PER_CHUNK);
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            long slots = Math.min(SLOTS_PER_CHUNK, capacity - (long) i * SLOTS_PER_CHUNK);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) i * SLOTS_PER_CHUNK * SLOT_SIZE, slots * SLOT_SIZE);
+        }
+    }
+
+    /** Creates a new, empty index with room for at least the given number of entries, replacing any existing file. */
+    static MappedHashIndex create(File file, long expectedEntries) throws IOException {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedEntries)
+            capacity <<= 1;
+        if (file.exists() && !file.delete())
+            throw new IOException("Could not delete " + file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+            MappedHashIndex index = new MappedHashIndex(raf, capacity);
+            index.header.putInt(0, MAGIC);
+            index.header.putInt(4, VERSION);
+            index.header.putLong(16, capacity);
+            index.writeCounts();
+            return index;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing index. Returns null if the file is missing, isn't an index or wasn't closed cleanly, in which
+     * case it must be rebuilt.
+     */
+    static MappedHashIndex openIfClean(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        MappedHashIndex index = open(file);
+        if (index != null && index.header.getInt(8) != 1) {
+            index.close();
+            return null;
+        }
+        return index;
+    }
+
+    /** Opens an existing index, whether it is clean or not. Returns null if the file isn't an index. */
+    static MappedHashIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean ok = false;
+        try {
+            if (raf.length() < HEADER_SIZE)
+                return null;
+            long capacity = readHeaderCapacity(raf);
+            if (capacity < MIN_CAPACITY || Long.bitCount(capacity) != 1 ||
+                    raf.length() != HEADER_SIZE + capacity * SLOT_SIZE)
+                return null;
+            MappedHashIndex index = new MappedHashIndex(raf, capacity);
+            if (index.header.getInt(0) != MAGIC || index.header.getInt(4) != VERSION)
+                return null;
+            index.used = index.header.getLong(24);
+            index.size = index.header.getLong(32);
+            ok = true;
+            return index;
+        } finally {
+            if (!ok)
+                raf.close();
+        }
+    }
+
+    private static long readHeaderCapacity(RandomAccessFile raf) throws IOException {
+        raf.seek(16);
+        return raf.readLong();
+    }
+
+    /** The log position this index was up to date with when it was closed, see {@link #setClean(long)}. */
+    long getCleanLogPosition() {
+        return header.getLong(40);
+    }
+
+    /**
+     * Marks the index as being modified, so that it is rebuilt if the process dies before {@link #setClean(long)}.
+     */
+    void setDirty() {
+        header.putInt(8, 0);
+        header.force();
+    }
+
+    /** Flushes the index to disk and marks it as up to date with the log up to the given position. */
+    void setClean(long logPosition) {
+        sync();
+        header.putLong(40, logPosition);
+        header.putInt(8, 1);
+        header.force();
+    }
+
+    /** Flushes the index to disk without marking it clean. */
+    void sync() {
+        writeCounts();
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+        header.force();
+    }
+
+    private void writeCounts() {
+        header.putLong(24, used);
+        header.putLong(32, size);
+    }
+
+    /** Returns the first slot to probe for the given fingerprint. */
+    long slotFor(long fingerprint) {
+        return fingerprint & mask;
+    }
+
+    /** Returns the slot to probe after the given one. */
+    long nextSlot(long slot) {
+        return (slot + 1) & mask;
+    }
+
+    long fingerprintAt(long slot) {
+        return chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)].getLong(offsetOf(slot));
+    }
+
+    long locationAt(long slot) {
+        return chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)].getLong(offsetOf(slot) + 8);
+    }
+
+    private static int offsetOf(long slot) {
+        return (int) (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_SIZE;
+    }
+
+    /** Points an existing entry at a new location. */
+    void setLocation(long slot, long location) {
+        chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)].putLong(offsetOf(slot) + 8, location);
+    }
+
+    /**
+     * Stores a new entry in the given slot, which must be empty or a tombstone found by probing for the fingerprint.
+     */
+    void insert(long slot, long fingerprint, long location) {
+        checkArgument(fingerprint != EMPTY && fingerprint != TOMBSTONE);
+        MappedByteBuffer chunk = chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)];
+        int offset = offsetOf(slot);
+        if (chunk.getLong(offset) == EMPTY)
+            used++;
+        chunk.putLong(offset, fingerprint);
+        chunk.putLong(offset + 8, location);
+        size++;
+    }
+
+    /** Removes the entry in the given slot. */
+    void remove(long slot) {
+        MappedByteBuffer chunk = chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)];
+        int offset = offsetOf(slot);
+        chunk.putLong(offset, TOMBSTONE);
+        chunk.putLong(offset + 8, 0);
+        size--;
+    }
+
+    /** Number of entries in the index. */
+    long size() {
+        return size;
+    }
+
+    /** Number of slots in the table, used or not. */
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Whether so many slots are used, by entries or tombstones, that the table should be rebuilt, see
+     * {@link #growInto(File)}.
+     */
+    boolean needsToGrow() {
+        return used >= capacity * MAX_LOAD;
+    }
+
+    /**
+     * Copies all entries into a new index in the given file with room for at least the given number of entries.
+     * Tombstones are dropped along the way.
+     */
+    MappedHashIndex growInto(File newFile, long expectedEntries) throws IOException {
+        MappedHashIndex bigger = create(newFile, expectedEntries);
+        log.info("Rebuilding index with {} entries from {} to {} slots", size, capacity, bigger.capacity);
+        for (long slot = 0; slot < capacity; slot++) {
+            long fingerprint = fingerprintAt(slot);
+            if (fingerprint == EMPTY || fingerprint == TOMBSTONE)
+                continue;
+            long target = bigger.slotFor(fingerprint);
+            while (bigger.fingerprintAt(target) != EMPTY)
+                target = bigger.nextSlot(target);
+            bigger.insert(target, fingerprint, locationAt(slot));
+        }
+        return bigger;
+    }
+
+    /** Unmaps and closes the file, without marking it clean. The index must not be used afterwards. */
+    void close() throws IOException {
+        writeCounts();
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            WindowsMMapHack.forceRelease(header);
+            for (MappedByteBuffer chunk : chunks)
+                WindowsMMapHack.forceRelease(chunk);
+        }
+        randomAccessFile.close();
+    }
+}
@@ -18,20 +18,20 @@ package org.neoscoinj.store;
 
 import org.neoscoinj.core.*;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Keeps {@link org.neoscoinj.core.StoredBlock}s in memory. Used primarily for unit testing.
+ * Keeps {@link org.neoscoinj.core.StoredBlock}s in memory. Used primarily for unit testing. Reads don't lock, so
+ * they may run on any number of threads alongside writes.
  */
 public class MemoryBlockStore implements BlockStore {
-    private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
-            return blockMap.size() > 5000;
-        }
-    };
-    private StoredBlock chainHead;
+    private static final int MAX_BLOCKS = 5000;
+
+    private volatile ConcurrentHashMap<Sha256Hash, StoredBlock> blockMap = new ConcurrentHashMap<Sha256Hash, StoredBlock>();
+    // Hashes in the order they were first put, so the oldest blocks can be dropped once there are too many.
+    private final ArrayDeque<Sha256Hash> insertionOrder = new ArrayDeque<Sha256Hash>();
+    private volatile StoredBlock chainHead;
     private NetworkParameters params;
 
     public MemoryBlockStore(NetworkParameters params) {
@@ -51,13 +51,19 @@ public class MemoryBlockStore implements BlockStore {
 
     @Override
     public synchronized void put(StoredBlock block) throws BlockStoreException {
+        final ConcurrentHashMap<Sha256Hash, StoredBlock> blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         Sha256Hash hash = block.getHeader().getHash();
-        blockMap.put(hash, block);
+        if (blockMap.put(hash, block) == null) {
+            insertionOrder.add(hash);
+            if (insertionOrder.size() > MAX_BLOCKS)
+                blockMap.remove(insertionOrder.remove());
+        }
     }
 
     @Override
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        final ConcurrentHashMap<Sha256Hash, StoredBlock> blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         return blockMap.get(hash);
     }
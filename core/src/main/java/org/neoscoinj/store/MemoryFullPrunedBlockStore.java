@@ -17,7 +17,6 @@
 package org.neoscoinj.store;
 
 import org.neoscoinj.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
@@ -25,62 +24,6 @@ import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.util.*;
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint implements Serializable {
-    private static final long serialVersionUID = -4064230006297064377L;
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(UTXO out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-
-    @Override
-    public int hashCode() {
-        return this.hash.hashCode() + (int)index;
-    }
-    
-    @Override
-    public String toString() {
-        return "Stored transaction out point: " + hash.toString() + ":" + index;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
-        return getIndex() == other.getIndex() &&
-               Objects.equal(getHash(), other.getHash());
-    }
-}
-
 /**
  * A HashMap<KeyType, ValueType> that is DB transaction-aware
  * This class is not thread-safe.
@@ -245,6 +188,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPro
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
     //TODO: Use something more suited to remove-heavy use?
     private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
+    // False if a subclass keeps the unspent outputs itself, in which case transactionOutputMap is never allocated.
+    private final boolean storesOutputs;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -256,9 +201,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPro
      * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
      */
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, true);
+    }
+
+    /**
+     * For subclasses that keep the unspent outputs elsewhere: if storesOutputs is false, they must override every
+     * method dealing with outputs.
+     */
+    protected MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, boolean storesOutputs) {
+        this.storesOutputs = storesOutputs;
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, UTXO>();
+        if (storesOutputs)
+            transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, UTXO>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -358,6 +313,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPro
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    @Override
+    public synchronized Map<StoredTransactionOutPoint, UTXO> getTransactionOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        Map<StoredTransactionOutPoint, UTXO> found = new HashMap<StoredTransactionOutPoint, UTXO>();
+        for (StoredTransactionOutPoint outPoint : outPoints) {
+            UTXO out = transactionOutputMap.get(outPoint);
+            if (out != null)
+                found.put(outPoint, out);
+        }
+        return found;
+    }
+
     @Override
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
@@ -375,21 +343,24 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPro
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
         fullBlockMap.BeginTransaction();
-        transactionOutputMap.beginDatabaseBatchWrite();
+        if (storesOutputs)
+            transactionOutputMap.beginDatabaseBatchWrite();
     }
 
     @Override
     public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
         blockMap.commitDatabaseBatchWrite();
         fullBlockMap.CommitTransaction();
-        transactionOutputMap.commitDatabaseBatchWrite();
+        if (storesOutputs)
+            transactionOutputMap.commitDatabaseBatchWrite();
     }
 
     @Override
     public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
         blockMap.abortDatabaseBatchWrite();
         fullBlockMap.AbortTransaction();
-        transactionOutputMap.abortDatabaseBatchWrite();
+        if (storesOutputs)
+            transactionOutputMap.abortDatabaseBatchWrite();
     }
 
     @Override
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.neoscoinj.core.*;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * <p>A {@link MemoryFullPrunedBlockStore} that keeps its unspent outputs outside of the Java heap. Block headers and
+ * undo blocks are kept as in the memory store, which only holds a bounded number of recent undo blocks.</p>
+ *
+ * <p>Each output is packed into a compact record in direct memory and found through an open addressing table that is
+ * also held there, so the set costs tens of bytes per output on top of its script and address, adds nothing for the
+ * garbage collector to trace and can hold the whole chain's UTXO set with a small, fixed heap. The direct memory it
+ * may use is limited by the JVMs <tt>-XX:MaxDirectMemorySize</tt> option rather than the heap size.</p>
+ *
+ * <p>Writes made within a batch are held on the heap by the writing thread until
+ * {@link #commitDatabaseBatchWrite()}, with the same semantics as the memory store.</p>
+ */
+public class OffHeapFullPrunedBlockStore extends MemoryFullPrunedBlockStore {
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, UTXO> added = new HashMap<StoredTransactionOutPoint, UTXO>();
+        final Set<StoredTransactionOutPoint> removed = new HashSet<StoredTransactionOutPoint>();
+    }
+
+    private OffHeapOutputSet outputs;
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /**
+     * Set up the OffHeapFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, 0);
+    }
+
+    /**
+     * Set up the OffHeapFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param expectedOutputs The number of unspent outputs to size the table for, it grows beyond that as needed
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, long expectedOutputs) {
+        super(params, fullStoreDepth, false);
+        outputs = new OffHeapOutputSet(expectedOutputs);
+    }
+
+    /** Returns the number of committed unspent outputs. */
+    public synchronized long getOutputCount() {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        return outputs.size();
+    }
+
+    /** Returns how many bytes of direct memory the unspent outputs currently take up. */
+    public synchronized long getOffHeapBytes() {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        return outputs.getAllocatedBytes();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        if (outputs != null) {
+            outputs.close();
+            outputs = null;
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        Batch batch = this.batch.get();
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            UTXO out = batch.added.get(outPoint);
+            if (out != null)
+                return out;
+            if (batch.removed.contains(outPoint))
+                return null;
+        }
+        return outputs.get(hash, index);
+    }
+
+    @Override
+    public synchronized Map<StoredTransactionOutPoint, UTXO> getTransactionOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<StoredTransactionOutPoint, UTXO> found = new HashMap<StoredTransactionOutPoint, UTXO>();
+        for (StoredTransactionOutPoint outPoint : outPoints) {
+            UTXO out = getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+            if (out != null)
+                found.put(outPoint, out);
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        Batch batch = this.batch.get();
+        if (batch == null) {
+            outputs.add(out);
+            return;
+        }
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        batch.removed.remove(outPoint);
+        batch.added.put(outPoint, out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        Batch batch = this.batch.get();
+        boolean removed;
+        if (batch == null) {
+            removed = outputs.remove(out.getHash(), out.getIndex());
+        } else {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            boolean committed = !batch.removed.contains(outPoint) && outputs.contains(out.getHash(), out.getIndex());
+            if (committed)
+                batch.removed.add(outPoint);
+            removed = batch.added.remove(outPoint) != null || committed;
+        }
+        if (!removed)
+            throw new BlockStoreException("Tried to remove a UTXO from OffHeapFullPrunedBlockStore that it didn't have!");
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        super.beginDatabaseBatchWrite();
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        super.commitDatabaseBatchWrite();
+        Batch batch = this.batch.get();
+        if (batch == null)
+            return;
+        this.batch.remove();
+        for (StoredTransactionOutPoint outPoint : batch.removed)
+            outputs.remove(outPoint.getHash(), outPoint.getIndex());
+        for (UTXO out : batch.added.values())
+            outputs.add(out);
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        super.abortDatabaseBatchWrite();
+        batch.remove();
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        return outputs.getByAddresses(wanted);
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import com.google.common.base.Charsets;
+import org.neoscoinj.core.Coin;
+import org.neoscoinj.core.Sha256Hash;
+import org.neoscoinj.core.UTXO;
+import org.neoscoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A set of {@link UTXO}s held outside of the Java heap, used by {@link OffHeapFullPrunedBlockStore}.</p>
+ *
+ * <p>Outputs are packed into records in direct buffers ("slabs") and found through an open addressing hash table,
+ * itself held in direct buffers, from a 64 bit fingerprint of the outpoint to the location of the record. The
+ * outpoint is stored in the record, so fingerprint collisions are resolved by comparing it. The table uses linear
+ * probing with backward shift deletion, so the constant churn of the UTXO set never leaves tombstones behind.</p>
+ *
+ * <p>Removing an output only marks its record as dead. Once more than half of a slab is dead its remaining records
+ * are copied to the slab currently being appended to and the slab is released, so the memory used stays
+ * proportional to the number of unspent outputs.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ */
+class OffHeapOutputSet {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapOutputSet.class);
+
+    private static final long EMPTY = 0;
+
+    // Slot layout: 8 bytes fingerprint, 8 bytes location (slab id << 32 | offset).
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOTS_PER_CHUNK_BITS = 22;
+    private static final int SLOTS_PER_CHUNK = 1 << SLOTS_PER_CHUNK_BITS;
+    private static final int MIN_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    // Record layout:
+    //   4 bytes record length, negated once the record is dead
+    //   32 bytes tx hash, 4 bytes output index
+    //   8 bytes value, 4 bytes height, 1 byte coinbase flag
+    //   4 bytes address type, 2 bytes address length (NULL_ADDRESS if there is none), address (UTF-8)
+    //   4 bytes script length, script
+    private static final int HASH_OFFSET = 4;
+    private static final int INDEX_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+    private static final int HEIGHT_OFFSET = 48;
+    private static final int COINBASE_OFFSET = 52;
+    private static final int ADDRESS_TYPE_OFFSET = 53;
+    private static final int ADDRESS_LENGTH_OFFSET = 57;
+    private static final int ADDRESS_OFFSET = 59;
+    private static final int FIXED_RECORD_SIZE = ADDRESS_OFFSET + 4;
+    // Address length of outputs without an address, which are distinct from those with an empty one.
+    private static final int NULL_ADDRESS = 0xFFFF;
+
+    static final int SLAB_SIZE = 8 * 1024 * 1024;
+    // Released slabs kept around for reuse rather than left to the garbage collector.
+    private static final int MAX_SPARE_SLABS = 2;
+
+    private static class Slab {
+        final ByteBuffer buffer;
+        int end;   // Offset at which the next record is appended.
+        int dead;  // Bytes taken by dead records.
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private ByteBuffer[] chunks;
+    private long capacity, mask, size;
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+    private final Deque<Integer> freeSlabIds = new ArrayDeque<Integer>();
+    private final Deque<ByteBuffer> spareSlabs = new ArrayDeque<ByteBuffer>();
+    private int currentId = -1;
+    private Slab current;
+
+    /** Creates an empty set with room for the given number of outputs before its table has to grow. */
+    OffHeapOutputSet(long expectedOutputs) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedOutputs)
+            capacity <<= 1;
+        allocateTable(capacity);
+    }
+
+    private void allocateTable(long capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        int numChunks = (int) ((capacity + SLOTS_PER_CHUNK - 1) / SLOTS_PER_CHUNK);
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            long slots = Math.min(SLOTS_PER_CHUNK, capacity - (long) i * SLOTS_PER_CHUNK);
+            // Direct buffers are zeroed, so every slot starts out EMPTY.
+            chunks[i] = ByteBuffer.allocateDirect((int) (slots * SLOT_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /** Number of outputs in the set. */
+    long size() {
+        return size;
+    }
+
+    /** Bytes of direct memory currently held, including spare slabs. */
+    long getAllocatedBytes() {
+        long slabCount = spareSlabs.size();
+        for (Slab slab : slabs)
+            if (slab != null)
+                slabCount++;
+        return capacity * SLOT_SIZE + slabCount * SLAB_SIZE;
+    }
+
+    @Nullable
+    UTXO get(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), index);
+        return slot < 0 ? null : decode(locationAt(slot), hash);
+    }
+
+    boolean contains(Sha256Hash hash, long index) {
+        return find(hash.getBytes(), index) >= 0;
+    }
+
+    /** Adds the given output, replacing any output with the same outpoint. */
+    void add(UTXO out) {
+        byte[] hash = out.getHash().getBytes();
+        byte[] address = out.getAddress() == null ? new byte[0] : out.getAddress().getBytes(Charsets.UTF_8);
+        byte[] script = out.getScriptBytes();
+        checkArgument(address.length < NULL_ADDRESS, "Address too long");
+        int length = FIXED_RECORD_SIZE + address.length + script.length;
+        checkArgument(length <= SLAB_SIZE, "Output too large: %s bytes", length);
+
+        long location = append(length);
+        ByteBuffer buffer = slabOf(location).buffer;
+        int offset = offsetOf(location);
+        buffer.putInt(offset, length);
+        put(buffer, offset + HASH_OFFSET, hash);
+        buffer.putInt(offset + INDEX_OFFSET, (int) out.getIndex());
+        buffer.putLong(offset + VALUE_OFFSET, out.getValue().value);
+        buffer.putInt(offset + HEIGHT_OFFSET, out.getHeight());
+        buffer.put(offset + COINBASE_OFFSET, (byte) (out.isCoinbase() ? 1 : 0));
+        buffer.putInt(offset + ADDRESS_TYPE_OFFSET, out.getAddressType());
+        buffer.putShort(offset + ADDRESS_LENGTH_OFFSET, (short) (out.getAddress() == null ? NULL_ADDRESS : address.length));
+        put(buffer, offset + ADDRESS_OFFSET, address);
+        buffer.putInt(offset + ADDRESS_OFFSET + address.length, script.length);
+        put(buffer, offset + ADDRESS_OFFSET + address.length + 4, script);
+
+        long slot = find(hash, out.getIndex());
+        if (slot >= 0) {
+            long old = locationAt(slot);
+            setLocation(slot, location);
+            release(old);
+            return;
+        }
+        if (size + 1 > capacity * MAX_LOAD) {
+            grow();
+            slot = find(hash, out.getIndex());
+        }
+        slot = -(slot + 1);
+        setSlot(slot, fingerprint(hash, out.getIndex()), location);
+        size++;
+    }
+
+    /** Removes the output with the given outpoint, returning false if there was none. */
+    boolean remove(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), index);
+        if (slot < 0)
+            return false;
+        long location = locationAt(slot);
+        deleteSlot(slot);
+        size--;
+        release(location);
+        return true;
+    }
+
+    /** Returns every output paying to one of the given addresses, by walking all records. */
+    List<UTXO> getByAddresses(Set<String> addresses) {
+        Set<ByteBuffer> wanted = new HashSet<ByteBuffer>();
+        for (String address : addresses)
+            wanted.add(ByteBuffer.wrap(address.getBytes(Charsets.UTF_8)));
+        List<UTXO> found = new ArrayList<UTXO>();
+        for (int id = 0; id < slabs.size(); id++) {
+            Slab slab = slabs.get(id);
+            if (slab == null)
+                continue;
+            for (int offset = 0; offset < slab.end; ) {
+                int length = slab.buffer.getInt(offset);
+                int addressLength = slab.buffer.getShort(offset + ADDRESS_LENGTH_OFFSET) & 0xFFFF;
+                if (length > 0 && addressLength != NULL_ADDRESS) {
+                    byte[] address = get(slab.buffer, offset + ADDRESS_OFFSET, addressLength);
+                    if (wanted.contains(ByteBuffer.wrap(address)))
+                        found.add(decode(((long) id << 32) | offset, null));
+                }
+                offset += Math.abs(length);
+            }
+        }
+        return found;
+    }
+
+    /** Drops all the buffers. The set must not be used afterwards. */
+    void close() {
+        chunks = null;
+        slabs.clear();
+        spareSlabs.clear();
+        current = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Records
+
+    private UTXO decode(long location, @Nullable Sha256Hash hash) {
+        ByteBuffer buffer = slabOf(location).buffer;
+        int offset = offsetOf(location);
+        if (hash == null)
+            hash = new Sha256Hash(get(buffer, offset + HASH_OFFSET, 32));
+        long index = buffer.getInt(offset + INDEX_OFFSET) & 0xFFFFFFFFL;
+        Coin value = Coin.valueOf(buffer.getLong(offset + VALUE_OFFSET));
+        int height = buffer.getInt(offset + HEIGHT_OFFSET);
+        boolean coinbase = buffer.get(offset + COINBASE_OFFSET) == 1;
+        int addressType = buffer.getInt(offset + ADDRESS_TYPE_OFFSET);
+        int addressLength = buffer.getShort(offset + ADDRESS_LENGTH_OFFSET) & 0xFFFF;
+        String address = null;
+        if (addressLength == NULL_ADDRESS)
+            addressLength = 0;
+        else
+            address = new String(get(buffer, offset + ADDRESS_OFFSET, addressLength), Charsets.UTF_8);
+        int scriptOffset = offset + ADDRESS_OFFSET + addressLength;
+        byte[] script = get(buffer, scriptOffset + 4, buffer.getInt(scriptOffset));
+        return new UTXO(hash, index, value, height, coinbase, script, address, addressType);
+    }
+
+    private boolean keyMatches(long location, byte[] hash, long index) {
+        ByteBuffer buffer = slabOf(location).buffer;
+        int offset = offsetOf(location);
+        if (buffer.getInt(offset + INDEX_OFFSET) != (int) index)
+            return false;
+        for (int i = 0; i < 32; i += 8)
+            if (buffer.getLong(offset + HASH_OFFSET + i) != Utils.readInt64(hash, i))
+                return false;
+        return true;
+    }
+
+    // Reserves space for a record of the given length at the end of the current slab.
+    private long append(int length) {
+        if (current == null || current.end + length > SLAB_SIZE) {
+            ByteBuffer buffer = spareSlabs.poll();
+            if (buffer == null)
+                buffer = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            current = new Slab(buffer);
+            Integer id = freeSlabIds.poll();
+            if (id == null) {
+                currentId = slabs.size();
+                slabs.add(current);
+            } else {
+                currentId = id;
+                slabs.set(id, current);
+            }
+        }
+        long location = ((long) currentId << 32) | current.end;
+        current.end += length;
+        return location;
+    }
+
+    // Marks the record at the given location dead, compacting or freeing its slab once that's worthwhile.
+    private void release(long location) {
+        int id = (int) (location >>> 32);
+        Slab slab = slabs.get(id);
+        int offset = offsetOf(location);
+        int length = slab.buffer.getInt(offset);
+        slab.buffer.putInt(offset, -length);
+        slab.dead += length;
+        if (slab == current)
+            return;
+        if (slab.dead == slab.end)
+            freeSlab(id);
+        else if (slab.dead > SLAB_SIZE / 2)
+            compact(id);
+    }
+
+    // Moves the live records of the given slab to the current one and frees it.
+    private void compact(int id) {
+        Slab slab = slabs.get(id);
+        int moved = 0;
+        for (int offset = 0; offset < slab.end; ) {
+            int length = slab.buffer.getInt(offset);
+            if (length > 0) {
+                long from = ((long) id << 32) | offset;
+                byte[] hash = get(slab.buffer, offset + HASH_OFFSET, 32);
+                long index = slab.buffer.getInt(offset + INDEX_OFFSET) & 0xFFFFFFFFL;
+                long fingerprint = fingerprint(hash, index);
+                long slot = fingerprint & mask;
+                while (fingerprintAt(slot) != fingerprint || locationAt(slot) != from)
+                    slot = (slot + 1) & mask;
+                long to = append(length);
+                ByteBuffer source = slab.buffer.duplicate();
+                source.limit(offset + length).position(offset);
+                ByteBuffer target = slabOf(to).buffer.duplicate();
+                target.position(offsetOf(to));
+                target.put(source);
+                setLocation(slot, to);
+                moved++;
+            }
+            offset += Math.abs(length);
+        }
+        log.debug("Compacted slab {}, moved {} outputs", id, moved);
+        freeSlab(id);
+    }
+
+    private void freeSlab(int id) {
+        Slab slab = slabs.set(id, null);
+        freeSlabIds.push(id);
+        if (spareSlabs.size() < MAX_SPARE_SLABS)
+            spareSlabs.push(slab.buffer);
+    }
+
+    private Slab slabOf(long location) {
+        return slabs.get((int) (location >>> 32));
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static void put(ByteBuffer buffer, int offset, byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(bytes);
+    }
+
+    private static byte[] get(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return bytes;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Hash table
+
+    private static long fingerprint(byte[] hash, long index) {
+        // Transaction hashes are already uniformly distributed, this just mixes in the index.
+        long h = Utils.readInt64(hash, 0) ^ ((index + 1) * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return h == EMPTY ? 1 : h;
+    }
+
+    // Returns the slot holding the given outpoint, or -(slot + 1) for the empty slot where it would be inserted.
+    private long find(byte[] hash, long index) {
+        long fingerprint = fingerprint(hash, index);
+        for (long slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long f = fingerprintAt(slot);
+            if (f == EMPTY)
+                return -(slot + 1);
+            if (f == fingerprint && keyMatches(locationAt(slot), hash, index))
+                return slot;
+        }
+    }
+
+    // Empties the given slot, shifting later entries of the probe sequence back so that lookups never stop early.
+    private void deleteSlot(long slot) {
+        long hole = slot;
+        for (long next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long f = fingerprintAt(next);
+            if (f == EMPTY)
+                break;
+            long home = f & mask;
+            // The entry can move into the hole unless its home lies cyclically in (hole, next].
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                setSlot(hole, f, locationAt(next));
+                hole = next;
+            }
+        }
+        setSlot(hole, EMPTY, 0);
+    }
+
+    private void grow() {
+        ByteBuffer[] oldChunks = chunks;
+        long oldCapacity = capacity;
+        allocateTable(oldCapacity * 2);
+        log.info("Growing output table from {} to {} slots", oldCapacity, capacity);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer chunk = oldChunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)];
+            int offset = slotOffset(slot);
+            long f = chunk.getLong(offset);
+            if (f == EMPTY)
+                continue;
+            long target = f & mask;
+            while (fingerprintAt(target) != EMPTY)
+                target = (target + 1) & mask;
+            setSlot(target, f, chunk.getLong(offset + 8));
+        }
+    }
+
+    private static int slotOffset(long slot) {
+        return (int) (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_SIZE;
+    }
+
+    private long fingerprintAt(long slot) {
+        return chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)].getLong(slotOffset(slot));
+    }
+
+    private long locationAt(long slot) {
+        return chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)].getLong(slotOffset(slot) + 8);
+    }
+
+    private void setLocation(long slot, long location) {
+        chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)].putLong(slotOffset(slot) + 8, location);
+    }
+
+    private void setSlot(long slot, long fingerprint, long location) {
+        ByteBuffer chunk = chunks[(int) (slot >>> SLOTS_PER_CHUNK_BITS)];
+        int offset = slotOffset(slot);
+        chunk.putLong(offset, fingerprint);
+        chunk.putLong(offset + 8, location);
+    }
+}
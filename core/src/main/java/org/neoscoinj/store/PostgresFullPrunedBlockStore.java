@@ -88,6 +88,9 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
 
     private static final String SELECT_UNDOABLEBLOCKS_EXISTS_SQL        = "select 1 from undoableBlocks where hash = ?";
 
+    // Joining against a VALUES list lets the planner pick a hash or merge join for big lookups, not just index probes.
+    private static final String SELECT_OPENOUTPUTS_BULK_SQL             = "SELECT o.hash, o.index, o.height, o.value, o.scriptBytes, o.coinbase, o.toaddress, o.addresstargetable FROM openOutputs o JOIN (VALUES %s) AS v(hash) ON o.hash = v.hash";
+
     /**
      * Creates a new PostgresFullPrunedBlockStore.
      *
@@ -130,6 +133,11 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return POSTGRES_DUPLICATE_KEY_ERROR_CODE;
     }
 
+    @Override
+    protected String getSelectOpenoutputsBulkSQL(int count) {
+        return String.format(SELECT_OPENOUTPUTS_BULK_SQL, repeatParameter("(CAST(? AS bytea))", count));
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<String>();
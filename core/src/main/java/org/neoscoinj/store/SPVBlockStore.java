@@ -18,6 +18,8 @@ package org.neoscoinj.store;
 
 import org.neoscoinj.core.*;
 import org.neoscoinj.utils.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -35,6 +37,13 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Headers are found through a hash index that is kept in the same file after the ring, so lookups take constant
+ * time however many headers the store holds. The index is rebuilt from the ring when a store is opened that was not
+ * closed cleanly, or that was written by a version without the index.</p>
+ *
+ * <p>Reads don't take the store's lock, so any number of threads may call {@link #get(Sha256Hash)} and
+ * {@link #getChainHead()} at once while the chain is being downloaded. Only writes are exclusive.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -42,12 +51,19 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    /** Present in the prologue while the hash index matches the ring, which is only the case when a store is closed. */
+    public static final String INDEX_MAGIC = "SPVI";
 
     protected volatile MappedByteBuffer buffer;
     protected int numHeaders;
+    // Number of index slots, a power of two at least twice the number of headers so that probe sequences stay short.
+    protected int numIndexSlots;
     protected NetworkParameters params;
 
+    // Held by writers. Readers first try the lock free path in get() and only take it when that doesn't work out.
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Odd while a put() is modifying the ring and index, so lock free readers can skip reads that obviously raced.
+    private volatile int writeSequence;
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -56,45 +72,55 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    // They are concurrent so that readers can use them without the lock.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store that holds {@link #DEFAULT_NUM_HEADERS} headers. Will create the
+     * given file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing, an existing file must have been created with the same capacity. This operation will block on
+     * disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
         this.params = checkNotNull(params);
+        checkArgument(capacity > 0 && capacity <= MAX_NUM_HEADERS, "Capacity out of range: %s", capacity);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
+            this.numIndexSlots = Integer.highestOneBit(capacity) * 4;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
             long fileSize = getFileSize();
+            boolean rebuildIndex = false;
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
                 randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() == getRingEnd()) {
+                log.info("Adding a hash index to SPV block chain file " + file);
+                randomAccessFile.setLength(fileSize);
+                rebuildIndex = true;
             } else if (randomAccessFile.length() != fileSize) {
                 throw new BlockStoreException("File size on disk does not match expected size: " +
                         randomAccessFile.length() + " vs " + fileSize);
@@ -119,6 +145,14 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                buffer.position(INDEX_MAGIC_OFFSET);
+                buffer.get(header);
+                if (!new String(header, "US-ASCII").equals(INDEX_MAGIC))
+                    rebuildIndex = true;
+                // Until we are closed the index on disk may be ahead of or behind the ring.
+                buffer.putInt(INDEX_MAGIC_OFFSET, 0);
+                if (rebuildIndex)
+                    rebuildIndex();
             } else {
                 initNewStore(params);
             }
@@ -151,6 +185,11 @@ public class SPVBlockStore implements BlockStore {
 
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
+        return getRingEnd() + INDEX_SLOT_SIZE * numIndexSlots;
+    }
+
+    /** Returns the offset just past the ring, which is where the hash index starts. */
+    private int getRingEnd() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
@@ -160,20 +199,32 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        writeSequence++;
         try {
             int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize()) {
+            if (cursor == getRingEnd()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int record = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // Drop the header we are about to overwrite from the index, unless this slot is still empty.
+            byte[] overwritten = new byte[32];
+            buffer.position(cursor);
+            buffer.get(overwritten);
+            if (!Arrays.equals(overwritten, EMPTY_HASH))
+                indexRemove(buffer, overwritten, record);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            notFoundCache.invalidate(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            indexPut(buffer, hash.getBytes(), record);
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            writeSequence++;
+            lock.unlock();
+        }
     }
 
     @Override
@@ -182,52 +233,69 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+
+        // Each reader needs its own position in the mapping.
+        final ByteBuffer view = buffer.duplicate();
+        int sequence = writeSequence;
+        if ((sequence & 1) == 0) {
+            try {
+                StoredBlock storedBlock = read(view, hash);
+                // The sequence check alone proves nothing, as the memory model lets plain reads of the mapping move
+                // across it. So a block is only trusted if its header really has the hash we asked for. Anything
+                // else, including not finding it at all, is settled under the lock below.
+                if (storedBlock != null && writeSequence == sequence && storedBlock.getHeader().getHash().equals(hash)) {
                     blockCache.put(hash, storedBlock);
                     return storedBlock;
                 }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            } catch (ProtocolException e) {
+                // Raced with a write, as below.
+            } catch (RuntimeException e) {
+                // A read that raced with a write can follow a half written index slot anywhere.
+            }
+        }
+
+        lock.lock();
+        try {
+            StoredBlock storedBlock = read(view, hash);
+            cacheRead(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    @Nullable
+    private StoredBlock read(ByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+        int slot = indexFind(buffer, hash.getBytes());
+        if (slot < 0)
+            return null;
+        int record = buffer.getInt(getIndexSlotOffset(slot) + 4) - 1;
+        buffer.position(FILE_PROLOGUE_BYTES + record * RECORD_SIZE + 32);
+        return StoredBlock.deserializeCompact(params, buffer);
+    }
+
+    private void cacheRead(Sha256Hash hash, @Nullable StoredBlock storedBlock) {
+        if (storedBlock != null)
+            blockCache.put(hash, storedBlock);
+        else
+            notFoundCache.put(hash, notFoundMarker);
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
@@ -261,6 +329,11 @@ public class SPVBlockStore implements BlockStore {
     @Override
     public void close() throws BlockStoreException {
         try {
+            lock.lock();
+            try {
+                buffer.position(INDEX_MAGIC_OFFSET);
+                buffer.put(INDEX_MAGIC.getBytes("US-ASCII"));
+            } finally { lock.unlock(); }
             buffer.force();
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
                 log.info("Windows mmap hack: Forcing buffer cleaning");
@@ -279,18 +352,28 @@ public class SPVBlockStore implements BlockStore {
     }
 
     protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    protected static final int INDEX_SLOT_SIZE = 8;
+    /** The largest capacity whose ring and index still fit in a single mapping. */
+    public static final int MAX_NUM_HEADERS = (Integer.MAX_VALUE - 1024) / (RECORD_SIZE + 4 * INDEX_SLOT_SIZE);
 
     // File format:
     //   4 header bytes = "SPVB"
     //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
     //   32 bytes for the hash of the chain head
+    //   4 bytes = "SPVI" if the index is consistent with the ring, zero while the store is open
     //
     // For each header (128 bytes)
     //   32 bytes hash of the header
     //   12 bytes of chain work
     //    4 bytes of height
     //   80 bytes of block header data
+    //
+    // For each index slot (8 bytes), an open addressing table with linear probing
+    //    4 bytes of the last four bytes of the header hash
+    //    4 bytes of the header's record number in the ring plus one, or zero if the slot is empty
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int INDEX_MAGIC_OFFSET = 40;
+    private static final byte[] EMPTY_HASH = new byte[32];
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
@@ -303,4 +386,92 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    private int getIndexSlotOffset(int slot) {
+        return getRingEnd() + slot * INDEX_SLOT_SIZE;
+    }
+
+    // Block hashes are mostly leading zeros, but their trailing bytes are as good as random.
+    private static int hashFragment(byte[] hash) {
+        return (hash[28] & 0xFF) << 24 | (hash[29] & 0xFF) << 16 | (hash[30] & 0xFF) << 8 | (hash[31] & 0xFF);
+    }
+
+    private int homeSlot(int fragment) {
+        return (fragment ^ (fragment >>> 16)) & (numIndexSlots - 1);
+    }
+
+    /**
+     * Returns the index slot holding the given hash, or if it isn't indexed, <tt>-(slot + 1)</tt> where slot is the
+     * empty slot it would go into.
+     */
+    private int indexFind(ByteBuffer buffer, byte[] hash) {
+        int fragment = hashFragment(hash);
+        byte[] scratch = new byte[32];
+        int slot = homeSlot(fragment);
+        for (int probes = 0; probes < numIndexSlots; probes++, slot = (slot + 1) & (numIndexSlots - 1)) {
+            int offset = getIndexSlotOffset(slot);
+            int record = buffer.getInt(offset + 4) - 1;
+            if (record < 0)
+                return -(slot + 1);
+            if (buffer.getInt(offset) != fragment)
+                continue;
+            buffer.position(FILE_PROLOGUE_BYTES + record * RECORD_SIZE);
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, hash))
+                return slot;
+        }
+        // The index is never more than half full, so only a read racing with writes can get here.
+        throw new IllegalStateException("No free slot in the index");
+    }
+
+    /** Points the index entry for the given hash at the given record, replacing any older record of the same hash. */
+    private void indexPut(ByteBuffer buffer, byte[] hash, int record) {
+        int slot = indexFind(buffer, hash);
+        if (slot < 0) {
+            slot = -(slot + 1);
+            buffer.putInt(getIndexSlotOffset(slot), hashFragment(hash));
+        }
+        buffer.putInt(getIndexSlotOffset(slot) + 4, record + 1);
+    }
+
+    /** Removes the index entry for the given hash if it still points at the given record. */
+    private void indexRemove(ByteBuffer buffer, byte[] hash, int record) {
+        int slot = indexFind(buffer, hash);
+        if (slot < 0 || buffer.getInt(getIndexSlotOffset(slot) + 4) != record + 1)
+            return;
+        // Shift back any later entries of the probe sequence that would no longer be reachable across the gap.
+        int mask = numIndexSlots - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; ; next = (next + 1) & mask) {
+            int offset = getIndexSlotOffset(next);
+            if (buffer.getInt(offset + 4) == 0)
+                break;
+            int home = homeSlot(buffer.getInt(offset));
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                buffer.putLong(getIndexSlotOffset(gap), buffer.getLong(offset));
+                gap = next;
+            }
+        }
+        buffer.putLong(getIndexSlotOffset(gap), 0);
+    }
+
+    /** Clears the index and re-adds every header in the ring, oldest first so that the newest copy of a hash wins. */
+    private void rebuildIndex() {
+        log.info("Rebuilding the hash index of the SPV block store");
+        lock.lock();
+        try {
+            for (int slot = 0; slot < numIndexSlots; slot++)
+                buffer.putLong(getIndexSlotOffset(slot), 0);
+            int cursor = getRingCursor(buffer);
+            int first = cursor == getRingEnd() ? 0 : (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            byte[] hash = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                int record = (first + i) % numHeaders;
+                buffer.position(FILE_PROLOGUE_BYTES + record * RECORD_SIZE);
+                buffer.get(hash);
+                if (!Arrays.equals(hash, EMPTY_HASH))
+                    indexPut(buffer, hash, record);
+            }
+        } finally { lock.unlock(); }
+    }
 }
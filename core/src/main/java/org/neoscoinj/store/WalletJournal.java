@@ -0,0 +1,292 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.neoscoinj.core.Sha256Hash;
+import org.neoscoinj.core.Utils;
+import org.neoscoinj.wallet.Protos;
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only log of the changes made to a wallet since its file was last written in full, so that saving after
+ * every block doesn't mean serializing and rewriting the whole wallet. It lives next to the wallet file, which stays an
+ * ordinary wallet in the normal protobuf format. {@link org.neoscoinj.wallet.WalletFiles} writes to it when journaling
+ * is switched on, and {@link org.neoscoinj.core.Wallet#loadFromFile(File, org.neoscoinj.core.WalletExtension...)}
+ * replays it when it finds one.</p>
+ *
+ * <p>The journal starts with the SHA-256 of the wallet file it applies to, so a journal left over from before the wallet
+ * file was last rewritten is ignored. Each record after that is a {@link Protos.Wallet} holding the transactions that
+ * changed, which replace any earlier copies of themselves, and the last seen block. If anything else about the wallet
+ * changed, like its keys or extensions, the record holds all of that as well, marked by having the version field set.
+ * Transactions are never removed by a record, the wallet is rewritten in full instead. Confidence depths aren't
+ * journaled either, as they follow from the last seen block height. Records are framed with their length and a CRC32,
+ * so one torn by a crash is detected and dropped on replay.</p>
+ *
+ * <p>This class is thread safe, but it's meant to be used with the wallet locked so the records go in the right
+ * order.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final String FILE_SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x574a4e4c;  // "WJNL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 32;
+    // Records are wallet protobufs, so anything bigger is corruption.
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // The journal is folded back into the wallet file once it's grown past this or the size of the file.
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final File file;
+    @Nullable private FileOutputStream stream;
+    // The wallet as last written, without its transactions or last seen block.
+    @Nullable private Protos.Wallet state;
+    private long length, baseLength;
+
+    /** Creates a journal for the given wallet file. Nothing is written until {@link #start(byte[], Protos.Wallet)}. */
+    public WalletJournal(File walletFile) {
+        this.file = getFile(walletFile);
+    }
+
+    /** Returns where the journal for the given wallet file lives. */
+    public static File getFile(File walletFile) {
+        return new File(walletFile.getPath() + FILE_SUFFIX);
+    }
+
+    /** Whether {@link #start(byte[], Protos.Wallet)} was called, so changes can be appended. */
+    public synchronized boolean isStarted() {
+        return stream != null;
+    }
+
+    /**
+     * Replaces the journal with an empty one that applies to the wallet file just written with the given contents,
+     * which were serialized from walletProto.
+     */
+    public synchronized void start(byte[] walletBytes, Protos.Wallet walletProto) throws IOException {
+        close();
+        File temp = File.createTempFile("journal", null, file.getAbsoluteFile().getParentFile());
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.write(Sha256Hash.create(walletBytes).getBytes());
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (Utils.isWindows()) {
+            // Can't rename over existing files on Windows.
+            File canonical = file.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+        stream = new FileOutputStream(file, true);
+        state = withoutTransactions(walletProto);
+        length = HEADER_SIZE;
+        baseLength = walletBytes.length;
+    }
+
+    /**
+     * Appends a record of the given changes and syncs it to disk. The protobuf must have all of the wallet apart from its
+     * transactions, of which it should only have the ones that changed since the last record.
+     */
+    public synchronized void append(Protos.Wallet changes) throws IOException {
+        checkState(stream != null, "Journal not started");
+        Protos.Wallet newState = withoutTransactions(changes);
+        Protos.Wallet.Builder record = Protos.Wallet.newBuilder()
+                .setNetworkIdentifier(changes.getNetworkIdentifier())
+                .addAllTransaction(changes.getTransactionList());
+        if (!newState.equals(state)) {
+            // The keys or something else that isn't journaled piece by piece changed, so record all of it.
+            record.mergeFrom(newState).setVersion(changes.getVersion());
+            state = newState;
+        }
+        copyLastSeenBlock(changes, record);
+        byte[] bytes = record.build().toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream data = new DataOutputStream(framed);
+        data.writeInt(bytes.length);
+        data.writeInt((int) crc.getValue());
+        data.write(bytes);
+        try {
+            // A single write, so the record is either all there or torn at the end of the file.
+            stream.write(framed.toByteArray());
+            stream.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            // Anything appended after a torn record would be lost on replay, so the journal must be started again.
+            close();
+            throw e;
+        }
+        length += framed.size();
+    }
+
+    /** Whether the journal has grown big enough that it should be folded back into the wallet file. */
+    public synchronized boolean shouldCompact() {
+        return length - HEADER_SIZE > Math.max(MIN_COMPACTION_SIZE, baseLength);
+    }
+
+    /** Closes the journal file. It must be started again before anything else can be appended. */
+    public synchronized void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    /**
+     * Reads the given wallet file and applies its journal, if it has one that belongs to it, returning the result as a
+     * single protobuf as if the whole wallet had been written out.
+     */
+    public static Protos.Wallet read(File walletFile) throws IOException {
+        byte[] walletBytes = Files.toByteArray(walletFile);
+        Protos.Wallet base = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(walletBytes));
+        File journalFile = getFile(walletFile);
+        if (!journalFile.exists())
+            return base;
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] digest = new byte[32];
+            if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION)
+                throw new IOException("Not a wallet journal: " + journalFile);
+            data.readFully(digest);
+            if (!Sha256Hash.create(walletBytes).equals(new Sha256Hash(digest))) {
+                // Left over from before the wallet was last written in full, which already has everything in it.
+                log.info("Ignoring stale wallet journal {}", journalFile);
+                return base;
+            }
+            Replayer replayer = new Replayer(base);
+            int records = 0;
+            byte[] record;
+            while ((record = readRecord(data)) != null) {
+                replayer.apply(Protos.Wallet.parseFrom(record));
+                records++;
+            }
+            log.info("Replayed {} wallet journal records", records);
+            return replayer.build();
+        } catch (EOFException e) {
+            throw new IOException("Truncated wallet journal header: " + journalFile, e);
+        } finally {
+            data.close();
+        }
+    }
+
+    /** Returns the next record, or null at the end of the journal or if the rest of it was torn or corrupted. */
+    @Nullable
+    private static byte[] readRecord(DataInputStream data) throws IOException {
+        try {
+            int size = data.readInt();
+            int checksum = data.readInt();
+            if (size < 0 || size > MAX_RECORD_SIZE) {
+                log.warn("Bad wallet journal record size {}, ignoring the rest of the journal", size);
+                return null;
+            }
+            byte[] record = new byte[size];
+            data.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Wallet journal record failed its checksum, ignoring the rest of the journal");
+                return null;
+            }
+            return record;
+        } catch (EOFException e) {
+            // Either the clean end of the journal or a record that was being written when we crashed.
+            return null;
+        }
+    }
+
+    /** Folds records into a wallet protobuf. */
+    private static class Replayer {
+        private Protos.Wallet state;
+        private final Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+        private final Protos.Wallet.Builder lastSeenBlock = Protos.Wallet.newBuilder();
+
+        Replayer(Protos.Wallet base) {
+            state = withoutTransactions(base);
+            for (Protos.Transaction tx : base.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            copyLastSeenBlock(base, lastSeenBlock);
+        }
+
+        void apply(Protos.Wallet record) {
+            if (record.hasVersion())
+                state = withoutTransactions(record);
+            for (Protos.Transaction tx : record.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            lastSeenBlock.clear();
+            copyLastSeenBlock(record, lastSeenBlock);
+        }
+
+        Protos.Wallet build() {
+            Protos.Wallet.Builder wallet = state.toBuilder();
+            copyLastSeenBlock(lastSeenBlock.buildPartial(), wallet);
+            boolean haveHeight = wallet.hasLastSeenBlockHeight();
+            int height = wallet.getLastSeenBlockHeight();
+            for (Protos.Transaction tx : transactions.values()) {
+                // Depths moved on with every block, but they aren't journaled unless something else changed.
+                if (haveHeight && tx.hasConfidence() && tx.getConfidence().hasAppearedAtHeight()
+                        && tx.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING) {
+                    int depth = height - tx.getConfidence().getAppearedAtHeight() + 1;
+                    if (depth > 0 && depth != tx.getConfidence().getDepth()) {
+                        Protos.Transaction.Builder builder = tx.toBuilder();
+                        builder.getConfidenceBuilder().setDepth(depth);
+                        tx = builder.build();
+                    }
+                }
+                wallet.addTransaction(tx);
+            }
+            return wallet.build();
+        }
+    }
+
+    private static Protos.Wallet withoutTransactions(Protos.Wallet wallet) {
+        Protos.Wallet.Builder builder = wallet.toBuilder().clearTransaction();
+        builder.clearLastSeenBlockHash().clearLastSeenBlockHeight().clearLastSeenBlockTimeSecs();
+        return builder.build();
+    }
+
+    private static void copyLastSeenBlock(Protos.Wallet from, Protos.Wallet.Builder to) {
+        if (from.hasLastSeenBlockHash())
+            to.setLastSeenBlockHash(from.getLastSeenBlockHash());
+        if (from.hasLastSeenBlockHeight())
+            to.setLastSeenBlockHeight(from.getLastSeenBlockHeight());
+        if (from.hasLastSeenBlockTimeSecs())
+            to.setLastSeenBlockTimeSecs(from.getLastSeenBlockTimeSecs());
+    }
+}
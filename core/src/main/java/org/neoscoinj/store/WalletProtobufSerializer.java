@@ -24,13 +24,18 @@ import org.neoscoinj.crypto.KeyCrypterScrypt;
 import org.neoscoinj.script.Script;
 import org.neoscoinj.signers.LocalTransactionSigner;
 import org.neoscoinj.signers.TransactionSigner;
+import org.neoscoinj.utils.DaemonThreadFactory;
 import org.neoscoinj.utils.ExchangeRate;
 import org.neoscoinj.utils.Fiat;
 import org.neoscoinj.wallet.KeyChainGroup;
 import org.neoscoinj.wallet.WalletTransaction;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -40,6 +45,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -47,7 +53,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -74,10 +86,14 @@ public class WalletProtobufSerializer {
     private static final Logger log = LoggerFactory.getLogger(WalletProtobufSerializer.class);
     /** Current version used for serializing wallets. A version higher than this is considered from the future. */
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
+    // The low bits of a protobuf tag hold the wire type.
+    private static final int TAG_TYPE_MASK = 7;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    // How many threads transactions are decoded on whilst loading.
+    private int loadingThreads = Runtime.getRuntime().availableProcessors();
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -108,6 +124,15 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * Sets how many threads transactions are decoded and hashed on whilst a wallet is loaded. With one, all the work is
+     * done on the calling thread. Defaults to the number of processors.
+     */
+    public void setLoadingThreads(int threads) {
+        checkArgument(threads > 0);
+        loadingThreads = threads;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -135,13 +160,21 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, wallet.getWalletTransactions());
+    }
+
+    /**
+     * Like {@link #walletToProto(Wallet)}, but only the given transactions are included rather than all of them. Used
+     * for the records of a {@link WalletJournal}.
+     */
+    public Protos.Wallet walletToProto(Wallet wallet, Iterable<WalletTransaction> transactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : transactions) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
@@ -378,20 +411,31 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        Loader loader = new Loader(null);
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, walletExtensions, walletProto);
+            Protos.Wallet walletProto = loader.stream(input);
+            return loader.build(walletExtensions, walletProto);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            loader.shutdown();
         }
     }
 
+    /**
+     * Returns a wallet built from the given protocol buffer, for the network it names. See
+     * {@link #readWallet(NetworkParameters, WalletExtension[], Protos.Wallet)}.
+     */
+    public Wallet readWallet(Protos.Wallet walletProto, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return readWallet(params, walletExtensions, walletProto);
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -405,95 +449,16 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto) throws UnreadableWalletException {
-        if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
-            throw new UnreadableWalletException.FutureVersion();
-        if (!walletProto.getNetworkIdentifier().equals(params.getId()))
-            throw new UnreadableWalletException.WrongNetwork();
-
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
-        KeyChainGroup chain;
-        if (walletProto.hasEncryptionParameters()) {
-            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            chain = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter);
-        } else {
-            chain = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList());
-        }
-        Wallet wallet = factory.create(params, chain);
-
-        List<Script> scripts = Lists.newArrayList();
-        for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
-            try {
-                Script script =
-                        new Script(protoScript.getProgram().toByteArray(),
-                                protoScript.getCreationTimestamp() / 1000);
-                scripts.add(script);
-            } catch (ScriptException e) {
-                throw new UnreadableWalletException("Unparseable script in wallet");
-            }
-        }
-
-        wallet.addWatchedScripts(scripts);
-
-        if (walletProto.hasDescription()) {
-            wallet.setDescription(walletProto.getDescription());
-        }
-
-        // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
-        }
-
-        // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
-            wallet.addWalletTransaction(wtx);
-        }
-
-        // Update the lastBlockSeenHash.
-        if (!walletProto.hasLastSeenBlockHash()) {
-            wallet.setLastBlockSeenHash(null);
-        } else {
-            wallet.setLastBlockSeenHash(byteStringToHash(walletProto.getLastSeenBlockHash()));
-        }
-        if (!walletProto.hasLastSeenBlockHeight()) {
-            wallet.setLastBlockSeenHeight(-1);
-        } else {
-            wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
-        }
-        // Will default to zero if not present.
-        wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
-
-        if (walletProto.hasKeyRotationTime()) {
-            wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
-        }
-
-        loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
-
-        for (Protos.Tag tag : walletProto.getTagsList()) {
-            wallet.setTag(tag.getTag(), tag.getData());
-        }
-
-        for (Protos.TransactionSigner signerProto : walletProto.getTransactionSignersList()) {
-            try {
-                Class signerClass = Class.forName(signerProto.getClassName());
-                TransactionSigner signer = (TransactionSigner)signerClass.newInstance();
-                signer.deserialize(signerProto.getData().toByteArray());
-                wallet.addTransactionSigner(signer);
-            } catch (Exception e) {
-                throw new UnreadableWalletException("Unable to deserialize TransactionSigner instance: " +
-                        signerProto.getClassName(), e);
-            }
-        }
-
-        if (walletProto.hasVersion()) {
-            wallet.setVersion(walletProto.getVersion());
+        Loader loader = new Loader(params);
+        try {
+            if (!walletProto.hasEncryptionParameters())
+                loader.maybeRestoreKeysEarly(walletProto.getKeyList());
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                loader.decode(txProto);
+            return loader.build(extensions, walletProto);
+        } finally {
+            loader.shutdown();
         }
-
-        // Make sure the object can be re-used to read another wallet without corruption.
-        txMap.clear();
-
-        return wallet;
     }
 
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
@@ -538,7 +503,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /** Builds the transaction in the given protobuf and checks it hashes as it should. Called from loader threads. */
+    private static Transaction decodeTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -605,9 +571,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format("Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(org.neoscoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
@@ -723,6 +687,300 @@ public class WalletProtobufSerializer {
         }
     }
 
+    /** A transaction decoded on a loader thread, along with the protobuf it came from. */
+    private static class DecodedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        DecodedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    /**
+     * <p>Loads one wallet. Transactions are handed to a pool of threads as soon as they're read, which decodes and hashes
+     * them whilst the rest of the wallet is still coming in. The key chains of unencrypted wallets are restored on the
+     * pool too, alongside the transactions. Everything that needs the transactions together, like connecting inputs to
+     * the outputs they spend and reading confidences, is then done by the calling thread in one linear pass.</p>
+     *
+     * <p>How long each phase kept the calling thread busy is logged once the wallet is loaded.</p>
+     */
+    private class Loader {
+        @Nullable private final ExecutorService executor;
+        @Nullable private NetworkParameters params;
+        private final List<Future<DecodedTransaction>> transactions = new ArrayList<Future<DecodedTransaction>>();
+        private final List<Protos.Key> keys = new ArrayList<Protos.Key>();
+        @Nullable private Future<KeyChainGroup> earlyKeys;
+        private int earlyKeyCount;
+        private final long started = System.currentTimeMillis();
+        private long readMillis;
+
+        Loader(@Nullable NetworkParameters params) {
+            this.params = params;
+            executor = loadingThreads > 1 ?
+                    Executors.newFixedThreadPool(loadingThreads, new DaemonThreadFactory("Wallet loader")) : null;
+        }
+
+        /**
+         * Reads a serialized wallet, handing the transactions to the pool as they go past. Returns everything else, so
+         * the result has no transactions in it.
+         */
+        Protos.Wallet stream(InputStream input) throws IOException, UnreadableWalletException {
+            CodedInputStream in = CodedInputStream.newInstance(input);
+            // The limit covers everything read from the stream, but only one field of it is held at a time here.
+            in.setSizeLimit(Integer.MAX_VALUE);
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            CodedOutputStream header = CodedOutputStream.newInstance(headerBytes);
+            // Transactions read before the network identifier, which is normally written first.
+            List<ByteString> waiting = new ArrayList<ByteString>();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                boolean lengthDelimited = (tag & TAG_TYPE_MASK) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+                if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && lengthDelimited) {
+                    ByteString txBytes = in.readBytes();
+                    if (params == null) {
+                        waiting.add(txBytes);
+                    } else {
+                        maybeRestoreKeysEarly(keys);
+                        decode(txBytes);
+                    }
+                } else if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER && lengthDelimited) {
+                    ByteString id = in.readBytes();
+                    header.writeBytes(field, id);
+                    params = NetworkParameters.fromID(id.toStringUtf8());
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + id.toStringUtf8());
+                    for (ByteString txBytes : waiting)
+                        decode(txBytes);
+                    waiting.clear();
+                } else if (field == Protos.Wallet.KEY_FIELD_NUMBER && lengthDelimited) {
+                    ByteString keyBytes = in.readBytes();
+                    header.writeBytes(field, keyBytes);
+                    keys.add(Protos.Key.parseFrom(keyBytes));
+                } else {
+                    copyField(tag, in, header);
+                }
+            }
+            header.flush();
+            // Fails if the network identifier was missing.
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(headerBytes.toByteArray());
+            readMillis = System.currentTimeMillis() - started;
+            return walletProto;
+        }
+
+        /** Starts restoring the given keys on the pool, unless any of them are encrypted. */
+        void maybeRestoreKeysEarly(List<Protos.Key> keys) {
+            if (executor == null || earlyKeys != null)
+                return;
+            for (Protos.Key key : keys)
+                if (key.hasEncryptedData() || key.hasEncryptedDeterministicSeed())
+                    return;
+            final NetworkParameters params = checkNotNull(this.params);
+            final List<Protos.Key> keyList = new ArrayList<Protos.Key>(keys);
+            earlyKeyCount = keyList.size();
+            earlyKeys = executor.submit(new Callable<KeyChainGroup>() {
+                @Override
+                public KeyChainGroup call() throws Exception {
+                    return KeyChainGroup.fromProtobufUnencrypted(params, keyList);
+                }
+            });
+        }
+
+        /** Queues a serialized transaction to be decoded. */
+        void decode(final ByteString txBytes) {
+            final NetworkParameters params = checkNotNull(this.params);
+            submit(new Callable<DecodedTransaction>() {
+                @Override
+                public DecodedTransaction call() throws Exception {
+                    Protos.Transaction txProto = Protos.Transaction.parseFrom(txBytes);
+                    return new DecodedTransaction(txProto, decodeTransaction(txProto, params));
+                }
+            });
+        }
+
+        /** Queues a transaction to be decoded. */
+        void decode(final Protos.Transaction txProto) {
+            final NetworkParameters params = checkNotNull(this.params);
+            submit(new Callable<DecodedTransaction>() {
+                @Override
+                public DecodedTransaction call() throws Exception {
+                    return new DecodedTransaction(txProto, decodeTransaction(txProto, params));
+                }
+            });
+        }
+
+        private void submit(Callable<DecodedTransaction> task) {
+            if (executor != null) {
+                transactions.add(executor.submit(task));
+                return;
+            }
+            try {
+                transactions.add(Futures.immediateFuture(task.call()));
+            } catch (Exception e) {
+                transactions.add(Futures.<DecodedTransaction>immediateFailedFuture(e));
+            }
+        }
+
+        /**
+         * Builds the wallet from the given protobuf and the transactions decoded so far, which are used in place of any
+         * in the protobuf itself.
+         */
+        Wallet build(@Nullable WalletExtension[] extensions, Protos.Wallet walletProto) throws UnreadableWalletException {
+            final NetworkParameters params = checkNotNull(this.params);
+            if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
+                throw new UnreadableWalletException.FutureVersion();
+            if (!walletProto.getNetworkIdentifier().equals(params.getId()))
+                throw new UnreadableWalletException.WrongNetwork();
+
+            long phaseStart = System.currentTimeMillis();
+            KeyChainGroup chain = null;
+            // Keys restored on the pool are only any good if they were all of them, and none were encrypted.
+            if (earlyKeys != null && !walletProto.hasEncryptionParameters() && earlyKeyCount == walletProto.getKeyCount())
+                chain = getDecoded(earlyKeys);
+            if (chain == null) {
+                // Read the scrypt parameters that specify how encryption and decryption is performed.
+                if (walletProto.hasEncryptionParameters()) {
+                    Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
+                    final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
+                    chain = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter);
+                } else {
+                    chain = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList());
+                }
+            }
+            Wallet wallet = factory.create(params, chain);
+
+            List<Script> scripts = Lists.newArrayList();
+            for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
+                try {
+                    Script script =
+                            new Script(protoScript.getProgram().toByteArray(),
+                                    protoScript.getCreationTimestamp() / 1000);
+                    scripts.add(script);
+                } catch (ScriptException e) {
+                    throw new UnreadableWalletException("Unparseable script in wallet");
+                }
+            }
+
+            wallet.addWatchedScripts(scripts);
+
+            if (walletProto.hasDescription()) {
+                wallet.setDescription(walletProto.getDescription());
+            }
+            long keysMillis = System.currentTimeMillis() - phaseStart;
+
+            // Collect the decoded transactions into the txMap, in the order they were in the wallet.
+            phaseStart = System.currentTimeMillis();
+            List<Protos.Transaction> txProtos = new ArrayList<Protos.Transaction>(transactions.size());
+            for (Future<DecodedTransaction> future : transactions) {
+                DecodedTransaction decoded = getDecoded(future);
+                ByteString hash = decoded.proto.getHash();
+                if (txMap.containsKey(hash))
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+                txMap.put(hash, decoded.tx);
+                txProtos.add(decoded.proto);
+            }
+            transactions.clear();
+            long decodeMillis = System.currentTimeMillis() - phaseStart;
+
+            // Update transaction outputs to point to inputs that spend them
+            phaseStart = System.currentTimeMillis();
+            for (Protos.Transaction txProto : txProtos) {
+                WalletTransaction wtx = connectTransactionOutputs(txProto);
+                wallet.addWalletTransaction(wtx);
+            }
+            long connectMillis = System.currentTimeMillis() - phaseStart;
+
+            // Update the lastBlockSeenHash.
+            if (!walletProto.hasLastSeenBlockHash()) {
+                wallet.setLastBlockSeenHash(null);
+            } else {
+                wallet.setLastBlockSeenHash(byteStringToHash(walletProto.getLastSeenBlockHash()));
+            }
+            if (!walletProto.hasLastSeenBlockHeight()) {
+                wallet.setLastBlockSeenHeight(-1);
+            } else {
+                wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
+            }
+            // Will default to zero if not present.
+            wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
+
+            if (walletProto.hasKeyRotationTime()) {
+                wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
+            }
+
+            phaseStart = System.currentTimeMillis();
+            loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
+            long extensionsMillis = System.currentTimeMillis() - phaseStart;
+
+            for (Protos.Tag tag : walletProto.getTagsList()) {
+                wallet.setTag(tag.getTag(), tag.getData());
+            }
+
+            for (Protos.TransactionSigner signerProto : walletProto.getTransactionSignersList()) {
+                try {
+                    Class signerClass = Class.forName(signerProto.getClassName());
+                    TransactionSigner signer = (TransactionSigner)signerClass.newInstance();
+                    signer.deserialize(signerProto.getData().toByteArray());
+                    wallet.addTransactionSigner(signer);
+                } catch (Exception e) {
+                    throw new UnreadableWalletException("Unable to deserialize TransactionSigner instance: " +
+                            signerProto.getClassName(), e);
+                }
+            }
+
+            if (walletProto.hasVersion()) {
+                wallet.setVersion(walletProto.getVersion());
+            }
+
+            // Make sure the object can be re-used to read another wallet without corruption.
+            txMap.clear();
+
+            log.info("Loaded wallet with {} transactions in {}ms: read {}ms, keys {}ms, transactions {}ms, " +
+                    "connect {}ms, extensions {}ms", txProtos.size(), System.currentTimeMillis() - started,
+                    readMillis, keysMillis, decodeMillis, connectMillis, extensionsMillis);
+            return wallet;
+        }
+
+        /** Stops the pool, dropping whatever is left of the work if loading failed. */
+        void shutdown() {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    /** Copies a field read from a protobuf to another, as it was. */
+    private static void copyField(int tag, CodedInputStream in, CodedOutputStream out) throws IOException {
+        int field = WireFormat.getTagFieldNumber(tag);
+        switch (tag & TAG_TYPE_MASK) {
+            case WireFormat.WIRETYPE_VARINT: out.writeUInt64(field, in.readRawVarint64()); break;
+            case WireFormat.WIRETYPE_FIXED64: out.writeFixed64(field, in.readRawLittleEndian64()); break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED: out.writeBytes(field, in.readBytes()); break;
+            case WireFormat.WIRETYPE_FIXED32: out.writeFixed32(field, in.readRawLittleEndian32()); break;
+            // Groups aren't used in wallets.
+            default: throw new InvalidProtocolBufferException("Unexpected wire type in wallet: " + tag);
+        }
+    }
+
+    /** Waits for work done on a loader thread, rethrowing whatever went wrong with it. */
+    private static <T> T getDecoded(Future<T> future) throws UnreadableWalletException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnreadableWalletException("Interrupted whilst loading wallet", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnreadableWalletException)
+                throw (UnreadableWalletException) cause;
+            if (cause instanceof IOException)
+                throw new UnreadableWalletException("Could not parse input stream to protobuf", cause);
+            Throwables.propagateIfPossible(cause);
+            throw new UnreadableWalletException("Could not load wallet", cause);
+        }
+    }
+
     /**
      * Cheap test to see if input stream is a wallet. This checks for a magic value at the beginning of the stream.
      * 
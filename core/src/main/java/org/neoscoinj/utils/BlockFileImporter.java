@@ -0,0 +1,239 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.utils;
+
+import org.neoscoinj.core.AbstractBlockChain;
+import org.neoscoinj.core.Block;
+import org.neoscoinj.core.FullPrunedBlockChain;
+import org.neoscoinj.core.NetworkParameters;
+import org.neoscoinj.core.ProtocolException;
+import org.neoscoinj.core.PrunedException;
+import org.neoscoinj.core.Sha256Hash;
+import org.neoscoinj.core.Transaction;
+import org.neoscoinj.core.VerificationException;
+import org.neoscoinj.store.BlockStore;
+import org.neoscoinj.store.BlockStoreException;
+import com.google.common.base.Throwables;
+import com.google.common.collect.LinkedListMultimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Bulk imports reference client block files into a chain, for bootstrapping a node from a local copy of the block
+ * chain. Work is split into a pipeline:</p>
+ *
+ * <ol>
+ *     <li>The calling thread memory maps each file and splits it into records, see {@link BlockFileLoader}.</li>
+ *     <li>A pool of worker threads deserializes each record and hashes the block and its transactions.</li>
+ *     <li>The calling thread hands the blocks to the chain in height order. The reference client writes blocks in
+ *     the order they were downloaded, which is not quite the order they connect in, so blocks whose parent hasn't
+ *     been added yet are held back until it has been rather than going through the chain's orphan handling. If the
+ *     chain is a {@link FullPrunedBlockChain}, the outputs spent by the next few blocks are looked up whilst the
+ *     current one is verified.</li>
+ * </ol>
+ *
+ * <p>Blocks the chain already has are skipped cheaply, so an import can be restarted from the first file.</p>
+ */
+public class BlockFileImporter {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileImporter.class);
+
+    /** Blocks that may be parsed ahead of the one being added to the chain, per worker thread. */
+    private static final int PARSED_AHEAD_PER_THREAD = 16;
+    /** Blocks held back waiting for their parent before the oldest is given to the chain as an orphan. */
+    private static final int MAX_WAITING_BLOCKS = 5000;
+    /** Blocks that are ready to be added whose inputs are looked up ahead of time. */
+    private static final int PREFETCH_AHEAD = 8;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final List<File> files;
+    private final int threads;
+
+    // Blocks whose parent isn't in the chain yet, keyed by the hash of the parent, in the order they were read.
+    private final LinkedListMultimap<Sha256Hash, Block> waiting = LinkedListMultimap.create();
+    // Blocks whose parent is in the chain or ahead of them here, in height order.
+    private final ArrayDeque<Block> ready = new ArrayDeque<Block>();
+    // Hashes of the blocks in ready, so that their children can be queued behind them.
+    private final Set<Sha256Hash> readyHashes = new HashSet<Sha256Hash>();
+    private int added, orphaned;
+
+    /** Creates an importer that parses blocks on as many threads as there are processors. */
+    public BlockFileImporter(NetworkParameters params, AbstractBlockChain chain, List<File> files) {
+        this(params, chain, files, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockFileImporter(NetworkParameters params, AbstractBlockChain chain, List<File> files, int threads) {
+        checkArgument(threads > 0);
+        this.params = params;
+        this.chain = chain;
+        this.files = files;
+        this.threads = threads;
+    }
+
+    /**
+     * Imports every block in the files, returning when they have all been given to the chain. Records that can't be
+     * parsed are skipped, and blocks whose parent never shows up end up as orphans in the chain. Wallets and other
+     * {@link org.neoscoinj.core.BlockChainBatchListener}s connected to the chain are given the blocks in batches.
+     *
+     * @return the number of blocks given to the chain.
+     */
+    public int importBlocks() throws BlockStoreException, VerificationException, PrunedException {
+        checkState(waiting.isEmpty() && ready.isEmpty());
+        added = orphaned = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("BlockFileImporter"));
+        BlockFileLoader loader = new BlockFileLoader(params, files);
+        ArrayDeque<Future<Block>> parsing = new ArrayDeque<Future<Block>>();
+        chain.beginListenerBatch();
+        try {
+            final int maxParsing = threads * PARSED_AHEAD_PER_THREAD;
+            long start = System.currentTimeMillis();
+            while (true) {
+                while (parsing.size() < maxParsing) {
+                    final byte[] bytes = loader.nextRecord();
+                    if (bytes == null)
+                        break;
+                    parsing.add(executor.submit(new Callable<Block>() {
+                        @Override
+                        public Block call() throws Exception {
+                            return parse(bytes);
+                        }
+                    }));
+                }
+                if (parsing.isEmpty())
+                    break;
+                Block block = getParsed(parsing.poll());
+                if (block != null)
+                    receive(block);
+            }
+            while (!ready.isEmpty())
+                addReady();
+            // Anything still waiting has no parent in the files or the chain.
+            for (Iterator<Map.Entry<Sha256Hash, Block>> it = waiting.entries().iterator(); it.hasNext(); ) {
+                Block block = it.next().getValue();
+                it.remove();
+                addToChain(block);
+                orphaned++;
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            log.info("Imported {} blocks ({} orphans) in {}ms, {} blocks/sec", added, orphaned, elapsed,
+                    added * 1000L / elapsed);
+            return added;
+        } finally {
+            // If the import failed, drop the work that was still under way for it.
+            for (Future<Block> future : parsing)
+                future.cancel(true);
+            executor.shutdownNow();
+            loader.close();
+            if (chain instanceof FullPrunedBlockChain) {
+                for (Block block : ready)
+                    ((FullPrunedBlockChain) chain).cancelPrefetch(block.getHash());
+            }
+            ready.clear();
+            readyHashes.clear();
+            waiting.clear();
+            // Even if the import failed, the blocks that made it into the chain must reach the listeners.
+            chain.endListenerBatch();
+        }
+    }
+
+    private Block parse(byte[] bytes) throws Exception {
+        Block block = BlockFileLoader.parseBlock(params, bytes, false);
+        // Cache the hashes here so the thread feeding the chain doesn't have to compute them.
+        block.getHash();
+        if (block.getTransactions() != null)
+            for (Transaction tx : block.getTransactions())
+                tx.getHash();
+        return block;
+    }
+
+    @Nullable
+    private Block getParsed(Future<Block> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProtocolException) {
+                log.warn("Skipping unparseable block: {}", e.getCause().toString());
+                return null;
+            }
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private void receive(Block block) throws BlockStoreException, VerificationException, PrunedException {
+        Sha256Hash prevHash = block.getPrevBlockHash();
+        if (!readyHashes.contains(prevHash)) {
+            BlockStore store = chain.getBlockStore();
+            if (store.get(block.getHash()) != null)
+                return;  // Already in the chain, eg. because an earlier import was interrupted.
+            if (store.get(prevHash) == null) {
+                waiting.put(prevHash, block);
+                if (waiting.size() > MAX_WAITING_BLOCKS) {
+                    // Whatever the oldest block is waiting for is probably not in the files at all.
+                    Iterator<Map.Entry<Sha256Hash, Block>> it = waiting.entries().iterator();
+                    Block oldest = it.next().getValue();
+                    it.remove();
+                    addToChain(oldest);
+                    orphaned++;
+                }
+                return;
+            }
+        }
+        // Queue the block, followed by any of its descendants that were read before it.
+        ArrayDeque<Block> connected = new ArrayDeque<Block>();
+        connected.add(block);
+        while (!connected.isEmpty()) {
+            Block next = connected.poll();
+            ready.add(next);
+            readyHashes.add(next.getHash());
+            if (chain instanceof FullPrunedBlockChain)
+                ((FullPrunedBlockChain) chain).prefetchInputs(next);
+            while (ready.size() > PREFETCH_AHEAD)
+                addReady();
+            connected.addAll(waiting.removeAll(next.getHash()));
+        }
+    }
+
+    private void addReady() throws BlockStoreException, VerificationException, PrunedException {
+        Block block = ready.poll();
+        readyHashes.remove(block.getHash());
+        addToChain(block);
+    }
+
+    private void addToChain(Block block) throws VerificationException, PrunedException {
+        chain.add(block);
+        added++;
+    }
+}
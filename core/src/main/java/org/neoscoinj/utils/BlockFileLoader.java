@@ -21,15 +21,20 @@ import org.neoscoinj.core.NetworkParameters;
 import org.neoscoinj.core.ProtocolException;
 import org.neoscoinj.core.Utils;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
@@ -44,6 +49,10 @@ import java.util.NoSuchElementException;
  * for (Block block : loader) {<br>
  * &nbsp;&nbsp;try { chain.add(block); } catch (Exception e) { }<br>
  * }</p>
+ *
+ * <p>Files are memory mapped rather than read through a stream, in windows of up to 2GB as that's as much as a
+ * single mapping can hold. To bootstrap a chain from a large number of block
+ * files, {@link BlockFileImporter} parses blocks on several threads and feeds them to the chain in order.</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     /**
@@ -70,14 +79,40 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
+    // The largest mapping FileChannel.map() can create.
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
     private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    @Nullable private RandomAccessFile currentFile = null;
+    private long currentFileSize;
+    // The mapped window of the current file and where in the file it starts.
+    @Nullable private MappedByteBuffer currentBuffer = null;
+    private long currentBufferOffset;
+    private final int windowSize;
     private Block nextBlock = null;
     private NetworkParameters params;
+    private boolean parseLazy;
     
     public BlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, false);
+    }
+
+    /**
+     * Creates a loader for the given files.
+     * @param parseLazy If true, blocks are parsed lazily and keep the bytes they were read as, which makes loading
+     *                  much cheaper when most of each block is never looked at. Parse errors are then thrown as
+     *                  unchecked exceptions when the block is used, rather than causing the block to be skipped.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, boolean parseLazy) {
+        this(params, files, parseLazy, MAX_WINDOW_SIZE);
+    }
+
+    /** Creates a loader that maps at most the given number of bytes of a file at once. */
+    BlockFileLoader(NetworkParameters params, List<File> files, boolean parseLazy, int windowSize) {
         fileIt = files.iterator();
         this.params = params;
+        this.parseLazy = parseLazy;
+        this.windowSize = windowSize;
     }
     
     @Override
@@ -97,69 +132,114 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
-        while (true) {
+        byte[] bytes;
+        while ((bytes = nextRecord()) != null) {
             try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
-                    break;
+                nextBlock = parseBlock(params, bytes, parseLazy);
+                return;
+            } catch (ProtocolException e) {
+                // Skip it.
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
+        }
+        nextBlock = null;
+    }
+
+    static Block parseBlock(NetworkParameters params, byte[] bytes, boolean parseLazy) throws ProtocolException {
+        return parseLazy ? new Block(params, bytes, true, true, bytes.length) : new Block(params, bytes);
+    }
+
+    /**
+     * Returns the serialized bytes of the next block in the files, or null once they have all been read. Files are
+     * memory mapped and split into records by looking for the network magic followed by a little endian length, so
+     * the only copy made is that of the record itself.
+     */
+    @Nullable
+    byte[] nextRecord() {
+        final int magic = (int) params.getPacketMagic();
+        while (true) {
+            MappedByteBuffer buffer = currentBuffer;
+            if (buffer == null || buffer.remaining() < 8) {
+                if (buffer != null && isWindowBeforeEnd(buffer)) {
+                    mapWindow(currentBufferOffset + buffer.position());
+                    continue;
                 }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
+                close();
+                if (!fileIt.hasNext())
+                    return null;
+                openFile(fileIt.next());
+                continue;
+            }
+            // Resynchronize on the magic, which also skips the zero padding the reference client preallocates.
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            boolean found = false;
+            while (buffer.remaining() >= 8) {
+                if (buffer.getInt(buffer.position()) == magic) {
+                    found = true;
+                    break;
                 }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
+                buffer.position(buffer.position() + 1);
+            }
+            if (!found)
+                continue;
+            buffer.position(buffer.position() + 4);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > buffer.remaining()) {
+                int recordStart = buffer.position() - 8;
+                if (recordStart > 0 && isWindowBeforeEnd(buffer)) {
+                    // The record carries on past the end of this window, so map the next one from its start.
+                    mapWindow(currentBufferOffset + recordStart);
+                } else {
+                    // Truncated record at the end of the file.
+                    buffer.position(buffer.limit());
                 }
+                continue;
             }
+            byte[] bytes = new byte[(int) size];
+            buffer.get(bytes);
+            return bytes;
+        }
+    }
+
+    private void openFile(File file) {
+        try {
+            currentFile = new RandomAccessFile(file, "r");
+            currentFileSize = currentFile.getChannel().size();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        mapWindow(0);
+    }
+
+    // Maps the window of the current file starting at the given offset. If that fails, the rest of the file is skipped.
+    private void mapWindow(long offset) {
+        try {
+            long length = Math.min(windowSize, currentFileSize - offset);
+            currentBuffer = checkNotNull(currentFile).getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            currentBufferOffset = offset;
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private boolean isWindowBeforeEnd(MappedByteBuffer buffer) {
+        return currentBufferOffset + buffer.limit() < currentFileSize;
+    }
+
+    /** Closes the file being read, if any. This happens by itself once all the blocks have been read. */
+    public void close() {
+        currentBuffer = null;
+        if (currentFile != null) {
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                }
-                break;
+                currentFile.close();
             } catch (IOException e) {
-                currentFileStream = null;
-                continue;
+                // Only read from, so nothing is lost.
             }
+            currentFile = null;
         }
     }
 
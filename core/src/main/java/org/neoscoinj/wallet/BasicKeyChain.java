@@ -47,6 +47,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private final LinkedHashMap<ByteString, ECKey> hashToKeys;
     private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
+    // Bumped whenever a key is added or removed, so callers can notice changes without re-reading every key.
+    private int keyChanges;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
@@ -170,6 +172,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
         hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
         checkState(previousKey == null);
+        keyChanges++;
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -221,6 +224,19 @@ public class BasicKeyChain implements EncryptableKeyChain {
         return pubkeyToKeys.size();
     }
 
+    /**
+     * Returns a counter that is incremented every time a key is added to or removed from this chain. Unlike
+     * {@link #numKeys()} on a deterministic chain, reading it never causes keys to be derived.
+     */
+    public int getKeyChangeCount() {
+        lock.lock();
+        try {
+            return keyChanges;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Removes the given key from the keychain. Be very careful with this - losing a private key <b>destroys the
      * money associated with it</b>.
@@ -232,6 +248,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
             boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
             boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
             checkState(a == b);   // Should be in both maps or neither.
+            if (a)
+                keyChanges++;
             return a;
         } finally {
             lock.unlock();
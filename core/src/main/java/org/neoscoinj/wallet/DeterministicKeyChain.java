@@ -639,6 +639,14 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     }
 
+    /**
+     * Returns a counter that changes whenever a key, including a lookahead key, is added to this chain. Unlike
+     * {@link #numKeys()} this does not top up the lookahead zone first.
+     */
+    public int getKeyChangeCount() {
+        return basicKeyChain.getKeyChangeCount();
+    }
+
     /**
      * Returns number of leaf keys used including both internal and external paths. This may be fewer than the number
      * that have been deserialized or held in memory, because of the lookahead zone.
@@ -480,6 +480,17 @@ public class KeyChainGroup implements KeyBag {
         return result;
     }
 
+    /**
+     * Returns a counter that changes whenever a key is added to or removed from any chain in this group. Unlike
+     * {@link #numKeys()} reading it never derives new lookahead keys.
+     */
+    public int getKeyChangeCount() {
+        int result = basic.getKeyChangeCount();
+        for (DeterministicKeyChain chain : chains)
+            result += chain.getKeyChangeCount();
+        return result;
+    }
+
     /**
      * Removes a key that was imported into the basic key chain. You cannot remove deterministic keys.
      * @throws java.lang.IllegalArgumentException if the key is deterministic.
@@ -18,12 +18,14 @@
 package org.neoscoinj.wallet;
 
 import org.neoscoinj.core.Wallet;
+import org.neoscoinj.store.WalletJournal;
 import org.neoscoinj.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.*;
@@ -35,7 +37,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
- * and disk IO on a background thread performance can be improved.
+ * and disk IO on a background thread performance can be improved. For big wallets, journaling can be switched on as
+ * well so that most saves only write what changed, see {@link #setJournaled(boolean)}.
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -47,8 +50,11 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final Runnable compactor;
+    private final AtomicBoolean compactionPending;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -94,10 +100,22 @@ public class WalletFiles {
                     return null;
                 }
                 log.info("Background saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
-                saveNowInternal();
+                saveNowInternal(false);
                 return null;
             }
         };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Runnable() {
+            @Override public void run() {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                try {
+                    saveNowInternal(true);
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                }
+            }
+        };
     }
 
     /**
@@ -107,22 +125,65 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Switches journaling on or off. Whilst it's on, saves append what changed to a journal next to the wallet file
+     * rather than rewriting the file, which is much cheaper for wallets with many transactions. The file is still
+     * rewritten by the first save, by saves the journal can't express and in the background whenever the journal gets
+     * as big as the file. {@link Wallet#loadFromFile(File, org.neoscoinj.core.WalletExtension...)} applies the journal
+     * when loading. The listener is only called for saves that rewrite the file.</p>
+     *
+     * <p>Whilst journaling, don't write the wallet file by other means: the journal would no longer apply to it.</p>
+     */
+    public void setJournaled(boolean journaled) {
+        WalletJournal journal = vJournal;
+        if (journaled == (journal != null))
+            return;
+        vJournal = journaled ? new WalletJournal(file) : null;
+        if (!journaled)
+            wallet.stopJournaling();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Failed to close wallet journal", e);
+            }
+        }
+    }
+
+    public boolean isJournaled() {
+        return vJournal != null;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
         // but they will serialize (using different temp files).
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
-        saveNowInternal();
+        saveNowInternal(false);
     }
 
-    private void saveNowInternal() throws IOException {
+    private void saveNowInternal(boolean compact) throws IOException {
         long now = System.currentTimeMillis();
+        final WalletJournal journal = vJournal;
+        if (journal != null && !compact && wallet.saveToJournal(journal)) {
+            log.info("Journaled save completed in {}msec", System.currentTimeMillis() - now);
+            // Fold the journal back into the file in the background, so it doesn't hold up this save.
+            if (journal.shouldCompact() && !compactionPending.getAndSet(true))
+                executor.execute(compactor);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        wallet.saveToFile(temp, file, journal);
+        if (journal == null) {
+            // A journal left from when journaling was on no longer applies to the file.
+            File journalFile = WalletJournal.getFile(file);
+            if (journalFile.exists() && !journalFile.delete())
+                log.warn("Failed to delete stale wallet journal {}", journalFile);
+        }
         if (listener != null)
             listener.onAfterAutoSave(file);
         log.info("Save completed in {}msec", System.currentTimeMillis() - now);
@@ -143,5 +204,13 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Failed to close wallet journal", e);
+            }
+        }
     }
 }
@@ -23,6 +23,7 @@ import org.neoscoinj.params.UnitTestParams;
 import org.neoscoinj.script.Script;
 import org.neoscoinj.store.BlockStoreException;
 import org.neoscoinj.store.FullPrunedBlockStore;
+import org.neoscoinj.store.StoredTransactionOutPoint;
 import org.neoscoinj.utils.BlockFileLoader;
 import org.neoscoinj.utils.BriefLogFormatter;
 import org.neoscoinj.wallet.WalletTransaction;
@@ -35,6 +36,7 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.neoscoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -153,6 +155,124 @@ public abstract class AbstractFullPrunedBlockChainTest
         } catch (Exception e) {}
     }
 
+    @Test
+    public void prefetchedInputsAreNotReusedOnceSpent() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(params, 0, rollingBlock.getTransactions().get(0).getHash());
+        byte[] spendableOutputScriptPubKey = rollingBlock.getTransactions().get(0).getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+
+        // Two consecutive blocks spending the same output, both prefetched before either is connected.
+        Block spend = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(params);
+        t1.addOutput(new TransactionOutput(params, t1, FIFTY_COINS, new byte[]{}));
+        t1.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        spend.addTransaction(t1);
+        spend.solve();
+        Block doubleSpend = spend.createNextBlock(null);
+        Transaction t2 = new Transaction(params);
+        t2.addOutput(new TransactionOutput(params, t2, Coin.COIN, new byte[]{}));
+        t2.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        doubleSpend.addTransaction(t2);
+        doubleSpend.solve();
+
+        chain.prefetchInputs(spend);
+        chain.prefetchInputs(doubleSpend);
+        assertTrue(chain.add(spend));
+        try {
+            chain.add(doubleSpend);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(spend.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(params.getSpendableCoinbaseDepth() + 1, chain.getConnectStats().getBlocks());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void lazilyParsedBlocksArePrefetched() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(params, 0, rollingBlock.getTransactions().get(0).getHash());
+        byte[] spendableOutputScriptPubKey = rollingBlock.getTransactions().get(0).getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+
+        Block spend = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(params);
+        t1.addOutput(new TransactionOutput(params, t1, FIFTY_COINS, new byte[]{}));
+        t1.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        spend.addTransaction(t1);
+        spend.solve();
+        byte[] bytes = spend.neoscoinSerialize();
+        Block lazy = new Block(params, bytes, true, false, bytes.length);
+
+        chain.prefetchInputs(lazy);
+        assertTrue(chain.add(lazy));
+        assertEquals(spend.getHash(), chain.getChainHead().getHeader().getHash());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void bulkOutputLookupsSeeBatchedChanges() throws Exception {
+        store = createStore(params, 10);
+        Sha256Hash hash1 = Sha256Hash.create(new byte[]{1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[]{2});
+        UTXO kept = new UTXO(hash1, 0, Coin.COIN, 1, false, new byte[]{1});
+        UTXO spent = new UTXO(hash1, 1, Coin.COIN, 1, false, new byte[]{2});
+        UTXO createdAndSpent = new UTXO(hash2, 0, Coin.COIN, 2, false, new byte[]{3});
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        StoredTransactionOutPoint keptOutPoint = new StoredTransactionOutPoint(kept);
+        StoredTransactionOutPoint spentOutPoint = new StoredTransactionOutPoint(spent);
+        StoredTransactionOutPoint createdOutPoint = new StoredTransactionOutPoint(createdAndSpent);
+        List<StoredTransactionOutPoint> outPoints = Arrays.asList(keptOutPoint, spentOutPoint, createdOutPoint,
+                new StoredTransactionOutPoint(hash2, 1));
+
+        Map<StoredTransactionOutPoint, UTXO> found = store.getTransactionOutputs(outPoints);
+        assertEquals(2, found.size());
+        assertArrayEquals(new byte[]{2}, found.get(spentOutPoint).getScriptBytes());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(spent);
+        store.addUnspentTransactionOutput(createdAndSpent);
+        found = store.getTransactionOutputs(outPoints);
+        assertEquals(2, found.size());
+        assertNotNull(found.get(keptOutPoint));
+        assertNotNull(found.get(createdOutPoint));
+        store.removeUnspentTransactionOutput(createdAndSpent);
+        assertNull(store.getTransactionOutput(hash2, 0));
+        store.commitDatabaseBatchWrite();
+
+        found = store.getTransactionOutputs(outPoints);
+        assertEquals(1, found.size());
+        assertEquals(kept.getValue(), found.get(keptOutPoint).getValue());
+        assertTrue(store.hasUnspentOutputs(hash1, 2));
+        assertFalse(store.hasUnspentOutputs(hash2, 2));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -25,6 +25,7 @@ import org.neoscoinj.store.BlockStore;
 import org.neoscoinj.store.MemoryBlockStore;
 import org.neoscoinj.testing.FakeTxBuilder;
 import org.neoscoinj.utils.BriefLogFormatter;
+import org.neoscoinj.utils.Threading;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.After;
 import org.junit.Before;
@@ -133,6 +134,42 @@ public class BlockChainTest {
         assertTrue(wallet.getBalance().signum() > 0);
     }
 
+    @Test
+    public void listenerBatch() throws Exception {
+        // Blocks added whilst a batch is open reach the wallet in one go when it ends, leaving it the same as if they
+        // had been given to it one by one, but with a single wallet changed event.
+        final int[] walletChanged = new int[1];
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged[0]++;
+            }
+        }, Threading.SAME_THREAD);
+        Address address = wallet.currentReceiveKey().toAddress(unitTestParams);
+        Transaction tx1 = createFakeTx(unitTestParams, COIN, address);
+        Transaction tx2 = createFakeTx(unitTestParams, valueOf(2, 0), address);
+        chain.beginListenerBatch();
+        assertTrue(chain.add(createFakeBlock(blockStore, tx1).block));
+        assertTrue(chain.add(createFakeBlock(blockStore, tx2).block));
+        assertTrue(chain.add(createFakeBlock(blockStore).block));
+        assertEquals(3, chain.getBestChainHeight());
+        assertEquals(Coin.ZERO, wallet.getBalance());
+        assertEquals(0, walletChanged[0]);
+        chain.endListenerBatch();
+
+        assertEquals(valueOf(3, 0), wallet.getBalance());
+        assertEquals(3, wallet.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(2, wallet.getTransaction(tx2.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(chain.getChainHead().getHeader().getHash(), wallet.getLastBlockSeenHash());
+        assertEquals(3, wallet.getLastBlockSeenHeight());
+        assertEquals(1, walletChanged[0]);
+
+        // Without a batch every block is handed over straight away.
+        chain.add(createFakeBlock(blockStore).block);
+        assertEquals(4, wallet.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(2, walletChanged[0]);
+    }
+
     @Test
     public void merkleRoots() throws Exception {
         // Test that merkle root verification takes place when a relevant transaction is present and doesn't when
@@ -177,6 +214,39 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphanPool() throws Exception {
+        // Orphans are connected as soon as their parent arrives, however many there are and in whatever order, and old
+        // ones are evicted.
+        Utils.setMockClock();
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block b3Fork = b2.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b4));
+        assertFalse(chain.add(b3Fork));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b2));
+        assertEquals(4, chain.getOrphanBlockCount());
+        assertTrue(chain.getOrphanBlockBytes() >= 4 * Block.HEADER_SIZE);
+        assertEquals(b2.cloneAsHeader(), chain.getOrphanRoot(b4.getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlockBytes());
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+
+        // An orphan that has waited too long for its parent makes way for new ones.
+        Block b6 = b4.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b6));
+        Utils.rollMockClock((int) AbstractBlockChain.MAX_ORPHAN_BLOCK_AGE_SECS + 1);
+        Block b7 = b6.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b7));
+        assertFalse(chain.isOrphan(b6.getHash()));
+        assertTrue(chain.isOrphan(b7.getHash()));
+        assertEquals(1, chain.getOrphanBlockCount());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
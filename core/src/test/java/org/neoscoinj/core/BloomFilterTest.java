@@ -18,10 +18,13 @@
 package org.neoscoinj.core;
 
 import org.neoscoinj.params.MainNetParams;
+import org.neoscoinj.params.UnitTestParams;
+import org.neoscoinj.testing.FakeTxBuilder;
 import org.neoscoinj.wallet.KeyChainGroup;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.neoscoinj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -88,4 +91,81 @@ public class BloomFilterTest {
         // Value generated by the reference client
         assertTrue(Arrays.equals(HEX.decode("082ae5edc8e51d4a03080000000000000002"), filter.neoscoinSerialize()));
     }
+
+    @Test
+    public void matchesReferenceHashing() {
+        // Inserting must set the same bits as hashing with each hash function separately, for every tail length.
+        Random random = new Random(1);
+        BloomFilter filter = new BloomFilter(50, 0.001, 2147483649L);
+        int numBytes = filter.neoscoinSerialize().length - 10;
+        byte[] expected = new byte[numBytes];
+        int hashFuncs = (int) Utils.readUint32(filter.neoscoinSerialize(), numBytes + 1);
+        for (int length = 0; length < 40; length++) {
+            byte[] object = new byte[length];
+            random.nextBytes(object);
+            filter.insert(object);
+            for (int i = 0; i < hashFuncs; i++)
+                Utils.setBitLE(expected, BloomFilter.murmurHash3(expected, 2147483649L, i, object));
+            assertTrue(filter.contains(object));
+        }
+        byte[] serialized = filter.neoscoinSerialize();
+        assertArrayEquals(expected, Arrays.copyOfRange(serialized, 1, 1 + numBytes));
+    }
+
+    @Test
+    public void containsAll() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insert(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        filter.insert(HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee"));
+        byte[][] objects = {
+                HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"),
+                HEX.decode("19108ad8ed9bb6274d3980bab5a85c048f0950c8"),
+                HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee")
+        };
+        boolean[] results = new boolean[objects.length];
+        assertEquals(2, filter.containsAll(objects, results));
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertTrue(results[2]);
+    }
+
+    @Test
+    public void matchAllAndMerge() {
+        // Sizes that don't fill the last long word.
+        BloomFilter a = new BloomFilter(10, 0.01, 0);
+        BloomFilter b = new BloomFilter(10, 0.01, 0);
+        a.insert(new byte[] {1});
+        b.insert(new byte[] {2});
+        assertFalse(a.matchesAll());
+        a.merge(b);
+        assertTrue(a.contains(new byte[] {1}));
+        assertTrue(a.contains(new byte[] {2}));
+        b.setMatchAll();
+        assertTrue(b.matchesAll());
+        assertArrayEquals(HEX.decode("01ff"), Arrays.copyOfRange(b.neoscoinSerialize(), 0, 2));
+        a.merge(b);
+        assertTrue(a.matchesAll());
+    }
+
+    @Test
+    public void applyAndUpdateBatch() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        Address address = key.toAddress(params);
+        Transaction t1 = FakeTxBuilder.createFakeTx(params, Coin.COIN, address);
+        // Spends the output paying to our key, but doesn't mention the key itself.
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(Coin.CENT, new ECKey().toAddress(params));
+        Transaction t3 = FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params));
+
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insert(key.getPubKeyHash());
+        boolean[] matches = filter.applyAndUpdate(Arrays.asList(t1, t2, t3));
+        assertTrue(matches[0]);
+        // Matched because the filter was updated with the outpoint of t1.
+        assertTrue(matches[1]);
+        assertFalse(matches[2]);
+        assertTrue(filter.contains(t1.getOutput(0).getOutPointFor().neoscoinSerialize()));
+    }
 }
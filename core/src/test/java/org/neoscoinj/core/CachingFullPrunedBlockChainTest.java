@@ -0,0 +1,41 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.store.BlockStoreException;
+import org.neoscoinj.store.CachingFullPrunedBlockStore;
+import org.neoscoinj.store.FullPrunedBlockStore;
+import org.neoscoinj.store.MemoryFullPrunedBlockStore;
+
+/**
+ * A CachingFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        // A small cache that is written back often, so that the tests exercise write backs and evictions.
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 64 * 1024, 3);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for memory store, because it's not persistent
+    }
+}
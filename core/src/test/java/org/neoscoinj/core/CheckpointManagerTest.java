@@ -0,0 +1,150 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.params.MainNetParams;
+import org.neoscoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CheckpointManagerTest {
+    private static final int INTERVAL = 10;
+
+    private NetworkParameters params;
+    // Every block of a short chain, and the header commitment at each height.
+    private List<StoredBlock> chain;
+    private List<Sha256Hash> commitments;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        chain = new ArrayList<StoredBlock>();
+        commitments = new ArrayList<Sha256Hash>();
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock stored = new StoredBlock(genesis, genesis.getWork(), 0);
+        Sha256Hash commitment = Sha256Hash.ZERO_HASH;
+        for (int height = 0; height <= 5 * INTERVAL; height++) {
+            if (height > 0) {
+                Block next = stored.getHeader().createNextBlock(to, stored.getHeader().getTimeSeconds() + 60);
+                stored = stored.build(next.cloneAsHeader());
+            }
+            commitment = CheckpointManager.extendHeaderCommitment(commitment, stored.getHeader().getHash());
+            chain.add(stored);
+            commitments.add(commitment);
+        }
+    }
+
+    private byte[] serialize(boolean compact) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeBytes(compact ? "CHECKPOINTS 2" : "CHECKPOINTS 1");
+        dos.writeInt(1);
+        dos.write(new byte[65]);  // A signature, which is skipped.
+        dos.writeInt(4);
+        ByteBuffer buffer = ByteBuffer.allocate(CheckpointManager.COMPACT_RECORD_SIZE);
+        for (int height = INTERVAL; height <= 4 * INTERVAL; height += INTERVAL) {
+            buffer.position(0);
+            chain.get(height).serializeCompact(buffer);
+            if (compact)
+                buffer.put(commitments.get(height).getBytes());
+            dos.write(buffer.array(), 0, buffer.position());
+        }
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    private File writeFile(byte[] bytes) throws Exception {
+        File file = File.createTempFile("checkpoints", null);
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(bytes);
+        stream.close();
+        return file;
+    }
+
+    private void checkLookups(CheckpointManager manager) {
+        assertEquals(4, manager.numCheckpoints());
+        for (int height = 0; height <= 5 * INTERVAL; height++) {
+            int expected = Math.min(height / INTERVAL, 4) * INTERVAL;
+            assertEquals(chain.get(expected), manager.getCheckpointBeforeHeight(height));
+            long time = chain.get(height).getHeader().getTimeSeconds();
+            if (height > 0)
+                assertEquals(chain.get(expected), manager.getCheckpointBefore(time));
+        }
+    }
+
+    @Test
+    public void compactFormat() throws Exception {
+        byte[] bytes = serialize(true);
+        CheckpointManager mapped = new CheckpointManager(params, writeFile(bytes));
+        CheckpointManager streamed = new CheckpointManager(params, new ByteArrayInputStream(bytes));
+        checkLookups(mapped);
+        checkLookups(streamed);
+        assertEquals(mapped.getDataHash(), streamed.getDataHash());
+        for (int height = 0; height <= 5 * INTERVAL; height++) {
+            Sha256Hash expected = height > 0 && height % INTERVAL == 0 && height <= 4 * INTERVAL ?
+                    commitments.get(height) : null;
+            assertEquals(expected, mapped.getHeaderCommitment(height));
+        }
+    }
+
+    @Test
+    public void originalFormat() throws Exception {
+        byte[] bytes = serialize(false);
+        CheckpointManager manager = new CheckpointManager(params, new ByteArrayInputStream(bytes));
+        checkLookups(manager);
+        assertNull(manager.getHeaderCommitment(INTERVAL));
+        // The hash covers everything after the signatures.
+        int start = "CHECKPOINTS 1".length() + 4 + 65;
+        assertEquals(Sha256Hash.create(Arrays.copyOfRange(bytes, start, bytes.length)),
+                manager.getDataHash());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        byte[] bytes = serialize(true);
+        new CheckpointManager(params, new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test
+    public void bundledCheckpoints() throws Exception {
+        NetworkParameters mainnet = MainNetParams.get();
+        File file = new File(getClass().getResource("/" + mainnet.getId() + ".checkpoints").getFile());
+        CheckpointManager mapped = new CheckpointManager(mainnet, file);
+        CheckpointManager streamed = new CheckpointManager(mainnet,
+                getClass().getResourceAsStream("/" + mainnet.getId() + ".checkpoints"));
+        assertTrue(mapped.numCheckpoints() > 0);
+        assertEquals(streamed.numCheckpoints(), mapped.numCheckpoints());
+        assertEquals(streamed.getDataHash(), mapped.getDataHash());
+        StoredBlock last = mapped.getCheckpointBeforeHeight(Integer.MAX_VALUE);
+        assertEquals(last, mapped.getCheckpointBefore(last.getHeader().getTimeSeconds()));
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.neoscoinj.net.MessageWriteTarget;
+import org.neoscoinj.params.UnitTestParams;
+import org.neoscoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FilteredBlockServerTest {
+    private NetworkParameters params;
+    private FilteredBlockServer server;
+    private FakeWriteTarget target;
+    private FilteredBlockServer.ServerPeer peer;
+    private ECKey key;
+    private Transaction ours;
+    private Block block;
+
+    /** Decodes everything written to it, and reports whatever backlog the test sets. */
+    private class FakeWriteTarget implements MessageWriteTarget {
+        final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
+        final NeoscoinSerializer serializer = new NeoscoinSerializer(params);
+        volatile long pendingWriteBytes;
+        volatile boolean closed;
+
+        @Override
+        public void writeBytes(byte[] message) throws IOException {
+            messages.add(serializer.deserialize(ByteBuffer.wrap(message)));
+        }
+
+        @Override
+        public long getPendingWriteBytes() {
+            return pendingWriteBytes;
+        }
+
+        @Override
+        public void closeConnection() {
+            closed = true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        key = new ECKey();
+        ours = FakeTxBuilder.createFakeTx(params, Coin.COIN, key.toAddress(params));
+        block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        block.addTransaction(FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params)));
+        block.addTransaction(ours);
+        block.addTransaction(FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params)));
+        final Block served = block;
+        server = new FilteredBlockServer(params, new FilteredBlockServer.BlockProvider() {
+            @Override
+            public Block getBlock(Sha256Hash hash) {
+                return hash.equals(served.getHash()) ? served : null;
+            }
+
+            @Override
+            public int getBestHeight() {
+                return 1;
+            }
+        }, 2, 1024 * 1024);
+        target = new FakeWriteTarget();
+        peer = (FilteredBlockServer.ServerPeer) server.getNewParser(InetAddress.getByName("127.0.0.1"), 2000);
+        peer.setWriteTarget(target);
+        peer.connectionOpened();
+        peer.processMessage(new VersionMessage(params, 0));
+        VersionMessage version = (VersionMessage) next();
+        assertEquals(1, version.bestHeight);
+        assertTrue(version.hasBlockChain());
+        assertTrue(next() instanceof VersionAck);
+        assertEquals(1, server.getConnectedPeerCount());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private Message next() throws InterruptedException {
+        Message message = target.messages.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a message", message);
+        return message;
+    }
+
+    @Test
+    public void servesFilteredBlocks() throws Exception {
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0);
+        filter.insert(key.getPubKeyHash());
+        peer.processMessage(filter);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addFilteredBlock(block.getHash());
+        Sha256Hash unknown = Sha256Hash.create(new byte[] {1});
+        getdata.addFilteredBlock(unknown);
+        peer.processMessage(getdata);
+        peer.processMessage(new Ping(42));
+
+        // The merkle block, the transaction that matched, what wasn't found and finally the pong.
+        FilteredBlock filtered = (FilteredBlock) next();
+        assertEquals(block.getHash(), filtered.getHash());
+        assertEquals(Arrays.asList(ours.getHash()), filtered.getTransactionHashes());
+        assertEquals(ours.getHash(), ((Transaction) next()).getHash());
+        NotFoundMessage notFound = (NotFoundMessage) next();
+        assertEquals(unknown, notFound.getItems().get(0).hash);
+        assertEquals(42, ((Pong) next()).getNonce());
+        assertNull(target.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        target.pendingWriteBytes = FilteredBlockServer.MAX_PENDING_WRITE_BYTES + 1;
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(block.getHash());
+        peer.processMessage(getdata);
+        // Nothing is sent whilst the peer is behind on reading.
+        assertNull(target.messages.poll(200, TimeUnit.MILLISECONDS));
+        target.pendingWriteBytes = 0;
+        Block received = (Block) next();
+        assertEquals(block.getHash(), received.getHash());
+        assertEquals(block.getTransactions(), received.getTransactions());
+    }
+}
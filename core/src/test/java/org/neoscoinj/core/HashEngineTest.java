@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class HashEngineTest {
+    private static final byte[] INPUT = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    private static byte[] reference(byte[] input, int offset, int length) {
+        MessageDigest digest = HashEngine.newDigest();
+        digest.update(input, offset, length);
+        return digest.digest(digest.digest());
+    }
+
+    private void checkEngine(HashEngine engine) {
+        byte[] expected = reference(INPUT, 3, 20);
+        assertArrayEquals(expected, engine.doubleDigest(INPUT, 3, 20));
+        assertArrayEquals(expected, engine.doubleDigest(ByteBuffer.wrap(INPUT, 3, 20)));
+        assertArrayEquals(expected, engine.doubleDigestTwoBuffers(INPUT, 3, 10, INPUT, 13, 10));
+
+        byte[] out = new byte[40];
+        engine.doubleDigestInto(out, 5, INPUT, 3, 20);
+        for (int i = 0; i < 32; i++)
+            assertEquals(expected[i], out[5 + i]);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(20);
+        direct.put(INPUT, 3, 20).flip();
+        engine.doubleDigestInto(out, 0, direct);
+        assertEquals(0, direct.remaining());
+        for (int i = 0; i < 32; i++)
+            assertEquals(expected[i], out[i]);
+
+        MessageDigest single = HashEngine.newDigest();
+        assertArrayEquals(single.digest(INPUT), engine.singleDigest(INPUT, 0, INPUT.length));
+    }
+
+    @Test
+    public void threadLocal() {
+        checkEngine(HashEngine.threadLocal());
+    }
+
+    @Test
+    public void pooled() {
+        checkEngine(HashEngine.pooled(2));
+    }
+
+    @Test
+    public void overlappingOutput() {
+        byte[] buf = INPUT.clone();
+        byte[] expected = reference(buf, 0, 32);
+        HashEngine.get().doubleDigestInto(buf, 0, buf, 0, 32);
+        for (int i = 0; i < 32; i++)
+            assertEquals(expected[i], buf[i]);
+    }
+
+    @Test
+    public void concurrentHashing() throws Exception {
+        final HashEngine engine = HashEngine.pooled(2);
+        final byte[] expected = reference(INPUT, 0, INPUT.length);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            if (!Arrays.equals(expected, engine.doubleDigest(INPUT, 0, INPUT.length)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
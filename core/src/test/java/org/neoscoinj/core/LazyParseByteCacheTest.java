@@ -21,12 +21,15 @@ import org.neoscoinj.params.MainNetParams;
 import org.neoscoinj.params.UnitTestParams;
 import org.neoscoinj.store.BlockStore;
 import org.neoscoinj.store.MemoryBlockStore;
+import org.neoscoinj.utils.BlockFileLoader;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.neoscoinj.core.Coin.*;
 import static org.neoscoinj.core.Utils.HEX;
@@ -507,6 +510,34 @@ public class LazyParseByteCacheTest {
         }
     }
     
+    @Test
+    public void testLazyBlockFileLoading() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        File blockFile = new File(getClass().getResource("first-100k-blocks.dat").getFile());
+        BlockFileLoader eager = new BlockFileLoader(params, Arrays.asList(blockFile));
+        BlockFileLoader lazy = new BlockFileLoader(params, Arrays.asList(blockFile), true);
+        for (int i = 0; i < 1000 && eager.hasNext(); i++) {
+            Block expected = eager.next();
+            Block block = lazy.next();
+            // Hashing and reserializing don't parse anything beyond the header.
+            assertEquals(expected.getHash(), block.getHash());
+            assertArrayEquals(expected.neoscoinSerialize(), block.neoscoinSerialize());
+            assertFalse(block.isParsedTransactions());
+            // Transactions are found but not parsed until their contents are touched.
+            List<Transaction> transactions = block.getTransactions();
+            assertEquals(expected.getTransactions().size(), transactions.size());
+            for (int j = 0; j < transactions.size(); j++) {
+                Transaction tx = transactions.get(j);
+                assertEquals(expected.getTransactions().get(j).getHash(), tx.getHash());
+                assertFalse(tx.isParsed());
+                assertEquals(expected.getTransactions().get(j).getOutputs().size(), tx.getOutputs().size());
+                assertTrue(tx.isParsed());
+            }
+            assertArrayEquals(expected.neoscoinSerialize(), block.neoscoinSerialize());
+        }
+        assertTrue(lazy.hasNext());
+    }
+
     public static boolean arrayContains(byte[] sup, byte[] sub) {
         if (sup.length < sub.length)
             return false;       
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.core;
+
+import com.google.common.io.Files;
+import org.neoscoinj.store.BlockStoreException;
+import org.neoscoinj.store.FullPrunedBlockStore;
+import org.neoscoinj.store.LogStructuredFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LogStructuredFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class LogStructuredFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    private final List<File> directories = new ArrayList<File>();
+
+    @After
+    public void tearDown() throws Exception {
+        // The store keeps all its files directly in its directory.
+        for (File directory : directories) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        File directory = Files.createTempDir();
+        directories.add(directory);
+        // Small segments, so that the tests exercise starting new segments and compacting old ones.
+        return new LogStructuredFullPrunedBlockStore(params, directory, blockCount, 256 * 1024,
+                LogStructuredFullPrunedBlockStore.DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op, every store is created in a new directory
+    }
+}
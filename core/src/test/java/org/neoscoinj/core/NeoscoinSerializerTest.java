@@ -244,6 +244,49 @@ public class NeoscoinSerializerTest {
         }
     }
 
+    @Test
+    public void testInPlaceParsing() throws Exception {
+        NeoscoinSerializer bs = new NeoscoinSerializer(MainNetParams.get());
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(genesis, bos);
+        byte[] blockMessage = bos.toByteArray();
+        bos.reset();
+        bs.serialize(genesis.cloneAsHeader(), bos);
+        byte[] headerMessage = bos.toByteArray();
+
+        // A direct buffer, as used by the network code, is parsed via the reused scratch array, which is bigger than
+        // the messages that come after the first one.
+        ByteBuffer direct = ByteBuffer.allocateDirect(txMessage.length + headerMessage.length + blockMessage.length);
+        direct.put(txMessage).put(headerMessage).put(blockMessage).flip();
+        Transaction tx = (Transaction) bs.deserialize(direct);
+        Block header = (Block) bs.deserialize(direct);
+        Block block = (Block) bs.deserialize(direct);
+        assertFalse(direct.hasRemaining());
+        // Nothing may refer to the buffers after parsing.
+        direct.clear();
+        direct.put(new byte[direct.capacity()]);
+
+        bos.reset();
+        bs.serialize(tx, bos);
+        assertArrayEquals(txMessage, bos.toByteArray());
+        assertEquals(genesis.getHash(), header.getHash());
+        assertEquals(Block.HEADER_SIZE, header.getMessageSize());
+        assertEquals(genesis.getHash(), block.getHash());
+        assertEquals(1, block.getTransactions().size());
+        assertEquals(genesis.getTransactions().get(0).getHash(), block.getTransactions().get(0).getHash());
+
+        // A heap buffer is parsed straight out of its backing array, at whatever offset it has.
+        byte[] array = new byte[blockMessage.length + 10];
+        System.arraycopy(blockMessage, 0, array, 10, blockMessage.length);
+        ByteBuffer heap = ByteBuffer.wrap(array);
+        heap.position(3);
+        block = (Block) bs.deserialize(heap.slice());
+        Arrays.fill(array, (byte) 0);
+        assertEquals(genesis.getHash(), block.getHash());
+        assertArrayEquals(genesis.neoscoinSerialize(), block.neoscoinSerialize());
+    }
+
     @Test
     public void testSeekPastMagicBytes() {
         // Fail in another way, there is data in the stream but no magic bytes.
@@ -0,0 +1,23 @@
+package org.neoscoinj.core;
+
+import org.neoscoinj.store.BlockStoreException;
+import org.neoscoinj.store.FullPrunedBlockStore;
+import org.neoscoinj.store.OffHeapFullPrunedBlockStore;
+
+/**
+ * An OffHeapFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class OffHeapFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        return new OffHeapFullPrunedBlockStore(params, blockCount);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for off-heap store, because it's not persistent
+    }
+}
@@ -842,6 +842,63 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void parallelChainDownload() throws Exception {
+        // Headers come from the download peer, then the blocks are spread over all peers and added to the chain in
+        // height order no matter which peer answers first.
+        peerGroup.setParallelChainDownload(true);
+        peerGroup.start();
+        final int numBlocks = ParallelChainDownload.WINDOW_SIZE * 3;
+        VersionMessage ver = new VersionMessage(params, numBlocks);
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        ver.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        InboundMessageQueuer p2 = connectPeer(2, ver);
+        BloomFilter filter = new BloomFilter(params, p1.lastReceivedFilter.neoscoinSerialize());
+
+        List<Block> blocks = Lists.newArrayList();
+        List<Block> headers = Lists.newArrayList();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < numBlocks; i++) {
+            Block next = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(next);
+            headers.add(next.cloneAsHeader());
+            prev = next;
+        }
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        GetHeadersMessage getheaders = assertNextMessageIs(p1, GetHeadersMessage.class);
+        assertEquals(blockStore.getChainHead().getHeader().getHash(), getheaders.getLocator().get(0));
+        inbound(p1, new HeadersMessage(params, headers));
+
+        // The windows are handed out round robin: p1 gets the first and the last, p2 the one in the middle.
+        final int w = ParallelChainDownload.WINDOW_SIZE;
+        GetDataMessage getdata1 = assertNextMessageIs(p1, GetDataMessage.class);
+        assertEquals(2 * w, getdata1.getItems().size());
+        assertEquals(blocks.get(0).getHash(), getdata1.getHashOf(0));
+        assertEquals(blocks.get(2 * w).getHash(), getdata1.getHashOf(w));
+        assertEquals(InventoryItem.Type.FilteredBlock, getdata1.getItems().get(0).type);
+        assertNextMessageIs(p1, Ping.class);
+        GetDataMessage getdata2 = assertNextMessageIs(p2, GetDataMessage.class);
+        assertEquals(w, getdata2.getItems().size());
+        assertEquals(blocks.get(w).getHash(), getdata2.getHashOf(0));
+        assertNextMessageIs(p2, Ping.class);
+
+        // p2 answers first, its blocks have to wait for the ones below them.
+        filterAndSend(p2, blocks.subList(w, 2 * w), filter);
+        inbound(p2, new Ping());
+        pingAndWait(p2);
+        assertEquals(0, blockChain.getBestChainHeight());
+
+        filterAndSend(p1, blocks.subList(0, w), filter);
+        filterAndSend(p1, blocks.subList(2 * w, numBlocks), filter);
+        inbound(p1, new Ping());
+        pingAndWait(p1);
+        assertEquals(numBlocks, blockChain.getBestChainHeight());
+        assertEquals(blocks.get(numBlocks - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
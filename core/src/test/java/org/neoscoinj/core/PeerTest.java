@@ -217,6 +217,86 @@ public class PeerTest extends TestWithNetworkConnections {
         assertNull(outbound(writeTarget));
     }
 
+    @Test
+    public void chainDownloadWindow() throws Exception {
+        // A full batch of announced blocks is requested a window at a time rather than all at once, and the getblocks
+        // for the next batch goes out before this one has been downloaded.
+        connect();
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetBlocksMessage);
+        List<Block> blocks = new ArrayList<Block>();
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < Peer.GETBLOCKS_BATCH_SIZE; i++) {
+            prev = makeSolvedTestBlock(prev);
+            blocks.add(prev);
+            inv.addBlock(prev);
+        }
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(Peer.MIN_BLOCKS_IN_FLIGHT, getdata.getItems().size());
+
+        int requested = 0, received = 0;
+        int receivedWhenGetBlocksSent = -1;
+        List<GetDataMessage> getdatas = Lists.newArrayList(getdata);
+        while (!getdatas.isEmpty()) {
+            for (GetDataMessage g : getdatas) {
+                for (InventoryItem item : g.getItems())
+                    assertEquals(blocks.get(requested++).getHash(), item.hash);
+            }
+            assertTrue(requested - received <= Peer.MAX_BLOCKS_IN_FLIGHT);
+            getdatas.clear();
+            while (received < requested)
+                inbound(writeTarget, blocks.get(received++));
+            Message m;
+            while ((m = outbound(writeTarget)) != null) {
+                if (m instanceof GetBlocksMessage) {
+                    assertEquals(blocks.get(blocks.size() - 1).getHash(), ((GetBlocksMessage) m).getLocator().get(0));
+                    receivedWhenGetBlocksSent = received;
+                } else {
+                    getdatas.add((GetDataMessage) m);
+                }
+            }
+        }
+        assertEquals(blocks.size(), requested);
+        assertTrue(receivedWhenGetBlocksSent >= 0 && receivedWhenGetBlocksSent < blocks.size());
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+        closePeer(peer);
+    }
+
+    @Test
+    public void orphanChasedAfterNotFound() throws Exception {
+        // An orphan that arrives whilst blocks are outstanding waits for them, so a notfound for the last of them
+        // must get the download going again.
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        Block b4 = makeSolvedTestBlock(b3);
+        Block b5 = makeSolvedTestBlock(b4);
+
+        connect();
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetBlocksMessage);
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+
+        inbound(writeTarget, b5);
+        inbound(writeTarget, b2);
+        assertNull(outbound(writeTarget));
+        NotFoundMessage notFound = new NotFoundMessage(unitTestParams);
+        notFound.addItem(new InventoryItem(InventoryItem.Type.Block, b3.getHash()));
+        inbound(writeTarget, notFound);
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getblocks.getLocator().get(0));
+        assertEquals(b5.getHash(), getblocks.getStopHash());
+        closePeer(peer);
+    }
+
     // Check that an inv to a peer that is not set to download missing blocks does nothing.
     @Test
     public void invNoDownload() throws Exception {
@@ -1,12 +1,18 @@
 package org.neoscoinj.core;
 
+import org.neoscoinj.crypto.TransactionSignature;
 import org.neoscoinj.params.UnitTestParams;
+import org.neoscoinj.script.Script;
 import org.neoscoinj.script.ScriptBuilder;
 import org.neoscoinj.testing.FakeTxBuilder;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  * Just check the Transaction.verify() method. Most methods that have complicated logic in Transaction are tested
@@ -89,4 +95,93 @@ public class TransactionTest {
         assertEquals(101, input.getScriptBytes().length);
         tx.verify();
     }
+
+    @Test
+    public void hashForSignatureMatchesReference() throws Exception {
+        // Enough inputs to cross several of the cached midstates.
+        Transaction big = new Transaction(PARAMS);
+        for (int i = 0; i < 40; i++) {
+            TransactionInput input = big.addInput(new TransactionInput(PARAMS, big, new byte[0],
+                    new TransactionOutPoint(PARAMS, i, dummy.getHash())));
+            input.setSequenceNumber(i * 7);
+            big.addOutput(Coin.valueOf(i + 1), ADDRESS);
+        }
+        big.addInput(dummy.getOutput(0)).setScriptBytes(new byte[] { 1, 2, 3 });
+        big.setLockTime(12345);
+        Script script = ScriptBuilder.createOutputScript(ADDRESS);
+        byte[] types = { 1, 2, 3, (byte) 0x81, (byte) 0x82, (byte) 0x83, 0, 0x44 };
+        for (int i = 0; i < big.getInputs().size(); i++) {
+            for (byte type : types) {
+                assertEquals(referenceSigHash(big, i, script.getProgram(), type),
+                        big.hashForSignature(i, script.getProgram(), type));
+            }
+        }
+        // Changing the transaction must invalidate the cached serialization.
+        Sha256Hash before = big.hashForSignature(3, script.getProgram(), (byte) 1);
+        big.getInput(5).setSequenceNumber(99);
+        Sha256Hash after = big.hashForSignature(3, script.getProgram(), (byte) 1);
+        assertNotEquals(before, after);
+        assertEquals(referenceSigHash(big, 3, script.getProgram(), (byte) 1), after);
+
+        // Signature hashes don't cover scriptSigs, so setting one keeps the cache.
+        SigHashCache cache = big.sigHashCache;
+        big.getInput(7).setScriptBytes(new byte[] { 4, 5, 6 });
+        assertSame(cache, big.sigHashCache);
+        assertEquals(after, big.hashForSignature(3, script.getProgram(), (byte) 1));
+        assertEquals(referenceSigHash(big, 7, script.getProgram(), (byte) 1),
+                big.hashForSignature(7, script.getProgram(), (byte) 1));
+    }
+
+    @Test
+    public void signAfterShuffle() throws Exception {
+        ECKey key = new ECKey();
+        Transaction funding = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, key.toAddress(PARAMS));
+        Transaction spend = new Transaction(PARAMS);
+        for (int i = 0; i < 20; i++)
+            spend.addOutput(Coin.valueOf(i + 1), new ECKey().toAddress(PARAMS));
+        TransactionInput input = spend.addInput(funding.getOutput(0));
+        Script script = funding.getOutput(0).getScriptPubKey();
+        // Build the signature hash cache, then reorder the outputs it covers.
+        Sha256Hash before = spend.hashForSignature(0, script, Transaction.SigHash.ALL, false);
+        spend.shuffleOutputs();
+        assertEquals(referenceSigHash(spend, 0, script.getProgram(), (byte) 1),
+                spend.hashForSignature(0, script, Transaction.SigHash.ALL, false));
+        assertNotEquals(before, spend.hashForSignature(0, script, Transaction.SigHash.ALL, false));
+        TransactionSignature signature = spend.calculateSignature(0, key, script, Transaction.SigHash.ALL, false);
+        input.setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        input.verify(funding.getOutput(0));
+    }
+
+    // Straightforward implementation of the signature hash algorithm, building the simplified tx explicitly.
+    private static Sha256Hash referenceSigHash(Transaction tx, int inputIndex, byte[] script, byte type) throws Exception {
+        boolean none = (type & 0x1f) == 2, single = (type & 0x1f) == 3, anyoneCanPay = (type & 0x80) != 0;
+        if (single && inputIndex >= tx.getOutputs().size())
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        Transaction copy = new Transaction(PARAMS);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            if (anyoneCanPay && i != inputIndex)
+                continue;
+            TransactionInput original = tx.getInput(i);
+            TransactionOutPoint outpoint = new TransactionOutPoint(PARAMS, original.getOutpoint().getIndex(),
+                    original.getOutpoint().getHash());
+            TransactionInput input = new TransactionInput(PARAMS, copy, i == inputIndex ? script : new byte[0], outpoint);
+            input.setSequenceNumber((none || single) && i != inputIndex ? 0 : original.getSequenceNumber());
+            copy.addInput(input);
+        }
+        if (!none) {
+            int count = single ? inputIndex + 1 : tx.getOutputs().size();
+            for (int i = 0; i < count; i++) {
+                if (single && i < inputIndex)
+                    copy.addOutput(new TransactionOutput(PARAMS, copy, Coin.NEGATIVE_SATOSHI, new byte[0]));
+                else
+                    copy.addOutput(new TransactionOutput(PARAMS, copy, tx.getOutput(i).getValue(),
+                            tx.getOutput(i).getScriptBytes()));
+            }
+        }
+        copy.setLockTime(tx.getLockTime());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.neoscoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0xff & type, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
 }
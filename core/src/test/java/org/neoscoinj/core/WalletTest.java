@@ -27,6 +27,7 @@ import org.neoscoinj.signers.TransactionSigner;
 import org.neoscoinj.store.BlockStoreException;
 import org.neoscoinj.store.MemoryBlockStore;
 import org.neoscoinj.store.UnreadableWalletException;
+import org.neoscoinj.store.WalletJournal;
 import org.neoscoinj.store.WalletProtobufSerializer;
 import org.neoscoinj.testing.*;
 import org.neoscoinj.utils.ExchangeRate;
@@ -47,6 +48,7 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -623,6 +625,117 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void incrementalBalances() throws Exception {
+        // The balances are kept up to date as transactions move between pools rather than recalculated on every
+        // call, so check they follow everything that can change them.
+        ECKey imported = new ECKey();
+        Address watched = new ECKey().toAddress(params);
+        Transaction tx1 = createFakeTx(params, COIN, myAddress);
+        tx1.addOutput(new TransactionOutput(params, tx1, CENT, imported.toAddress(params)));
+        tx1.addOutput(new TransactionOutput(params, tx1, valueOf(0, 5), watched));
+        sendMoneyToWallet(tx1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(ZERO, wallet.getWatchedBalance());
+
+        // Outputs already in the wallet are picked up when we get the key or start watching the script.
+        wallet.importKey(imported);
+        wallet.addWatchedAddress(watched);
+        Coin total = COIN.add(CENT);
+        assertEquals(total, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(total, wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+        assertEquals(valueOf(0, 5), wallet.getWatchedBalance());
+        assertEquals(1, wallet.getWatchedOutputs(true).size());
+
+        // Until our spend has been seen by the network, its change is only part of the estimated balance.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), valueOf(0, 10));
+        wallet.commitTx(send);
+        Coin available = total.subtract(send.getValueSentFromMe(wallet));
+        Coin estimated = available.add(send.getValueSentToMe(wallet));
+        assertEquals(estimated, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(available, wallet.getBalance());
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(estimated, wallet.getBalance());
+
+        sendMoneyToWallet(send, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(estimated, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(estimated, wallet.getBalance());
+        assertEquals(valueOf(0, 5), wallet.getWatchedBalance());
+        assertTrue(wallet.isConsistent());
+
+        wallet.removeWatchedAddress(watched);
+        assertEquals(ZERO, wallet.getWatchedBalance());
+        wallet.reset();
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance());
+    }
+
+    @Test
+    public void snapshots() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        assertEquals(COIN, snapshot.getBalance());
+        assertEquals(COIN, snapshot.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(tx1, snapshot.getTransaction(tx1.getHash()));
+        assertEquals(1, snapshot.getPoolSize(Pool.UNSPENT));
+        assertEquals(wallet.getLastBlockSeenHash(), snapshot.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), snapshot.getLastBlockSeenHeight());
+        // Nothing changed, so the same one comes back.
+        assertSame(snapshot, wallet.getSnapshot());
+
+        // Whilst another thread is changing the wallet, readers get the previous snapshot rather than waiting.
+        final CountDownLatch changed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Transaction> tx2 = new AtomicReference<Transaction>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    tx2.set(sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN));
+                    changed.countDown();
+                    release.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        assertTrue(changed.await(5, TimeUnit.SECONDS));
+        assertSame(snapshot, wallet.getSnapshot());
+        release.countDown();
+        writer.join();
+
+        WalletSnapshot snapshot2 = wallet.getSnapshot();
+        assertNotSame(snapshot, snapshot2);
+        assertEquals(COIN.add(CENT), snapshot2.getBalance());
+        assertEquals(2, snapshot2.getTransactions(false).size());
+        assertEquals(2, snapshot2.getRecentTransactions(0, false).size());
+        assertEquals(tx2.get(), snapshot2.getTransaction(tx2.get().getHash()));
+        // The old one is unaffected.
+        assertEquals(COIN, snapshot.getBalance());
+        assertEquals(1, snapshot.getTransactions(true).size());
+        assertNull(snapshot.getTransaction(tx2.get().getHash()));
+
+        // Pools that didn't change are shared with the previous snapshot.
+        Transaction tx3 = createFakeTx(params, CENT, myAddress);
+        wallet.receivePending(tx3, null);
+        WalletSnapshot snapshot3 = wallet.getSnapshot();
+        assertSame(snapshot2.getTransactionPool(Pool.UNSPENT), snapshot3.getTransactionPool(Pool.UNSPENT));
+        assertEquals(tx3, snapshot3.getTransactionPool(Pool.PENDING).get(tx3.getHash()));
+        assertEquals(1, snapshot3.getPendingTransactions().size());
+        assertEquals(0, snapshot2.getPoolSize(Pool.PENDING));
+        // Peers announcing somebody else's transaction doesn't make for a new snapshot.
+        tx3.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        tx3.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertSame(snapshot3, wallet.getSnapshot());
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -1349,6 +1462,88 @@ public class WalletTest extends TestWithWallet {
         assertFalse("Wallet not saved after receivePending", hash2.equals(hash3));  // File has changed again.
     }
 
+    @Test
+    public void autosaveJournaled() throws Exception {
+        // With journaling on, only the first save writes the wallet file, after that changes go to the journal which
+        // is applied when loading.
+        File f = File.createTempFile("neoscoinj-unit-test", null);
+        File journalFile = WalletJournal.getFile(f);
+        journalFile.deleteOnExit();
+        WalletFiles files = wallet.autosaveToFile(f, 0, TimeUnit.SECONDS, null);
+        files.setJournaled(true);
+        ECKey key = wallet.freshReceiveKey();
+        assertTrue(journalFile.exists());
+        Sha256Hash base = Sha256Hash.hashFileContents(f);
+        long journalLength = journalFile.length();
+
+        Transaction t1 = createFakeTx(params, valueOf(5, 0), key);
+        chain.add(createFakeBlock(blockStore, t1).block);
+        chain.add(createFakeBlock(blockStore).block);
+        files.saveNow();
+        assertEquals(base, Sha256Hash.hashFileContents(f));
+        assertTrue(journalFile.length() > journalLength);
+        journalLength = journalFile.length();
+
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(valueOf(5, 0), loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        // Depths aren't journaled, they're worked out from the last seen block.
+        assertEquals(2, wallet.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(2, loaded.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+
+        // A record torn by a crash is ignored.
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        stream.write(new byte[] {0, 0, 1});
+        stream.close();
+        loaded = Wallet.loadFromFile(f);
+        assertEquals(valueOf(5, 0), loaded.getBalance());
+
+        // Changes the journal can't express rewrite the file and start a new journal.
+        wallet.addWatchedAddress(new ECKey().toAddress(params));
+        files.saveNow();
+        assertFalse(base.equals(Sha256Hash.hashFileContents(f)));
+        assertTrue(journalFile.length() < journalLength);
+        loaded = Wallet.loadFromFile(f);
+        assertEquals(valueOf(5, 0), loaded.getBalance());
+        assertEquals(1, loaded.getWatchedScripts().size());
+
+        // Without journaling the journal goes away.
+        files.setJournaled(false);
+        files.saveNow();
+        assertFalse(journalFile.exists());
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    @Test
+    public void loadWithCorruptJournalHeader() throws Exception {
+        // A journal that can't be read at all is skipped, leaving the wallet as it was last written in full.
+        File f = File.createTempFile("neoscoinj-unit-test", null);
+        File journalFile = WalletJournal.getFile(f);
+        journalFile.deleteOnExit();
+        WalletFiles files = wallet.autosaveToFile(f, 0, TimeUnit.SECONDS, null);
+        files.setJournaled(true);
+        ECKey key = wallet.freshReceiveKey();
+        chain.add(createFakeBlock(blockStore, createFakeTx(params, valueOf(5, 0), key)).block);
+        files.saveNow();
+        wallet.shutdownAutosaveAndWait();
+        assertEquals(valueOf(5, 0), Wallet.loadFromFile(f).getBalance());
+
+        FileOutputStream stream = new FileOutputStream(journalFile);
+        stream.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        stream.close();
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(ZERO, loaded.getBalance());
+        assertTrue(loaded.hasKey(key));
+
+        // Same for a header cut short.
+        stream = new FileOutputStream(journalFile);
+        stream.write(new byte[] {1, 2});
+        stream.close();
+        loaded = Wallet.loadFromFile(f);
+        assertEquals(ZERO, loaded.getBalance());
+        assertTrue(loaded.hasKey(key));
+    }
+
     @Test
     public void autosaveDelayed() throws Exception {
         // Test that the wallet will save itself automatically when it changes, but not immediately and near-by
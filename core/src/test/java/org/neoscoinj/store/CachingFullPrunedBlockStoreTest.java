@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private MemoryFullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        backing = new MemoryFullPrunedBlockStore(UnitTestParams.get(), 10);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 5);
+    }
+
+    private static UTXO utxo(int i) {
+        byte[] hash = new byte[32];
+        Utils.uint32ToByteArrayLE(i, hash, 0);
+        return new UTXO(new Sha256Hash(hash), 0, Coin.valueOf(i), 1, false, new byte[]{(byte) i});
+    }
+
+    private StoredBlock addBlock(StoredBlock prev) throws Exception {
+        StoredBlock block = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new ArrayList<Transaction>()));
+        store.setVerifiedChainHead(block);
+        return block;
+    }
+
+    @Test
+    public void changesAreWrittenBackTogether() throws Exception {
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock block = genesis;
+        UTXO kept = utxo(1), spentSoon = utxo(2);
+        for (int i = 0; i < 4; i++) {
+            store.beginDatabaseBatchWrite();
+            if (i == 0) {
+                store.addUnspentTransactionOutput(kept);
+                store.addUnspentTransactionOutput(spentSoon);
+            } else if (i == 2) {
+                store.removeUnspentTransactionOutput(spentSoon);
+            }
+            block = addBlock(block);
+            store.commitDatabaseBatchWrite();
+        }
+        // Nothing has reached the backing store yet, but the cache sees it all.
+        assertEquals(genesis, backing.getVerifiedChainHead());
+        assertNull(backing.getTransactionOutput(kept.getHash(), 0));
+        assertNull(backing.get(block.getHeader().getHash()));
+        assertEquals(block, store.getVerifiedChainHead());
+        assertNotNull(store.getTransactionOutput(kept.getHash(), 0));
+        assertNull(store.getTransactionOutput(spentSoon.getHash(), 0));
+        assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+
+        // The fifth commit writes everything back, apart from the output that was created and spent in between.
+        store.beginDatabaseBatchWrite();
+        block = addBlock(block);
+        store.commitDatabaseBatchWrite();
+        assertEquals(block, backing.getVerifiedChainHead());
+        assertEquals(block, backing.getChainHead());
+        assertNotNull(backing.getTransactionOutput(kept.getHash(), 0));
+        assertNull(backing.getTransactionOutput(spentSoon.getHash(), 0));
+        assertNotNull(backing.getUndoBlock(block.getHeader().getHash()));
+
+        // Spending an output that was written back removes it from the backing store on the next write back.
+        store.removeUnspentTransactionOutput(kept);
+        assertNotNull(backing.getTransactionOutput(kept.getHash(), 0));
+        store.flush();
+        assertNull(backing.getTransactionOutput(kept.getHash(), 0));
+        assertNull(store.getTransactionOutput(kept.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void abortedBatchesAreDropped() throws Exception {
+        UTXO out = utxo(1);
+        store.addUnspentTransactionOutput(out);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(utxo(2));
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(utxo(2).getHash(), 0));
+        // Closing the cache closes the backing store too, so check what was written back before doing so.
+        store.flush();
+        assertNotNull(backing.getTransactionOutput(out.getHash(), 0));
+        assertNull(backing.getTransactionOutput(utxo(2).getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void spentOutputsAreNotReadFromTheBackingStore() throws Exception {
+        UTXO out = utxo(1);
+        backing.addUnspentTransactionOutput(out);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 5);
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        assertTrue(store.getTransactionOutputs(Collections.singletonList(new StoredTransactionOutPoint(out))).isEmpty());
+        assertNotNull(backing.getTransactionOutput(out.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void readsRacingWithASpendDontCacheTheOutput() throws Exception {
+        final UTXO out = utxo(1);
+        // Spends the output through the cache whilst it's being read from the backing store by another lookup.
+        backing = new MemoryFullPrunedBlockStore(UnitTestParams.get(), 10) {
+            boolean spending;
+
+            @Override
+            public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+                UTXO result = super.getTransactionOutput(hash, index);
+                if (result != null && !spending) {
+                    spending = true;
+                    store.removeUnspentTransactionOutput(out);
+                }
+                return result;
+            }
+        };
+        backing.addUnspentTransactionOutput(out);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 5);
+        // The read returns the output as it was before the spend, which mustn't end up in the cache.
+        assertNotNull(store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.flush();
+        assertNull(backing.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.close();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import com.google.common.io.Files;
+import org.neoscoinj.core.*;
+import org.neoscoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeightIndexedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+    private HeightIndexedBlockStore store;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = Files.createTempDir();
+        store = new HeightIndexedBlockStore(params, directory);
+        to = new ECKey().toAddress(params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    // Puts the given number of blocks on top of the given one, making each the chain head as BlockChain does.
+    private List<StoredBlock> extend(StoredBlock from, int count, boolean setChainHead) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < count; i++) {
+            from = from.build(from.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(from);
+            if (setChainHead)
+                store.setChainHead(from);
+            blocks.add(from);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void heightsAndHashes() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        List<StoredBlock> blocks = extend(genesis, 20, true);
+
+        // Check everything survives reopening the store.
+        store.close();
+        store = new HeightIndexedBlockStore(params, directory);
+        assertEquals(blocks.get(19), store.getChainHead());
+        assertEquals(genesis, store.getByHeight(0));
+        for (StoredBlock block : blocks) {
+            assertEquals(block, store.getByHeight(block.getHeight()));
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertNull(store.getByHeight(21));
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void reorg() throws Exception {
+        List<StoredBlock> oldChain = extend(store.getChainHead(), 10, true);
+        // A side chain forking at height 5 is only stored, until it becomes the best chain.
+        List<StoredBlock> newChain = extend(oldChain.get(4), 6, false);
+        assertEquals(oldChain.get(6), store.getByHeight(7));
+        assertEquals(newChain.get(1), store.get(newChain.get(1).getHeader().getHash()));
+
+        store.setChainHead(newChain.get(5));
+        assertEquals(newChain.get(5), store.getChainHead());
+        assertEquals(oldChain.get(4), store.getByHeight(5));
+        for (StoredBlock block : newChain)
+            assertEquals(block, store.getByHeight(block.getHeight()));
+        assertNull(store.getByHeight(12));
+        // Blocks that were re-orged out can still be found by hash, for a re-org back to them.
+        assertEquals(oldChain.get(9), store.get(oldChain.get(9).getHeader().getHash()));
+
+        // Going back, as BlockChain.rollbackBlockStore() does, truncates the best chain.
+        store.put(newChain.get(0));
+        store.setChainHead(newChain.get(0));
+        assertEquals(newChain.get(0), store.getByHeight(6));
+        assertNull(store.getByHeight(7));
+    }
+
+    @Test
+    public void rebuildsIndex() throws Exception {
+        List<StoredBlock> blocks = extend(store.getChainHead(), 10, true);
+        store.close();
+        assertTrue(new File(directory, "index").delete());
+        store = new HeightIndexedBlockStore(params, directory);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+    }
+
+    @Test
+    public void startsAtCheckpoint() throws Exception {
+        // Stand in for a checkpoint with a block that claims a later height.
+        Block header = params.getGenesisBlock().createNextBlock(to).cloneAsHeader();
+        StoredBlock checkpoint = new StoredBlock(header, header.getWork(), 1000);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        List<StoredBlock> blocks = extend(checkpoint, 3, true);
+        assertNull(store.getByHeight(0));
+        assertEquals(checkpoint, store.getByHeight(1000));
+        assertEquals(blocks.get(2), store.getByHeight(1003));
+
+        // Once the store has a chain, an unconnected chain head is an error.
+        Block other = params.getGenesisBlock().createNextBlock(to).cloneAsHeader();
+        StoredBlock unconnected = new StoredBlock(other, other.getWork(), 2000);
+        store.put(unconnected);
+        try {
+            store.setChainHead(unconnected);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+}
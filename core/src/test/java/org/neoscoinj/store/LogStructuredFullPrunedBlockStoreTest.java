@@ -0,0 +1,192 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import com.google.common.io.Files;
+import org.neoscoinj.core.*;
+import org.neoscoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteDirectory(directory);
+    }
+
+    // The store keeps all its files directly in its directory.
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    private LogStructuredFullPrunedBlockStore open() throws BlockStoreException {
+        return new LogStructuredFullPrunedBlockStore(params, directory, 10, 16 * 1024, 0.5);
+    }
+
+    private static UTXO utxo(int i, int height) {
+        byte[] hash = new byte[32];
+        Utils.uint32ToByteArrayLE(i, hash, 0);
+        return new UTXO(new Sha256Hash(hash), i % 3, Coin.valueOf(i), height, false, new byte[i % 50], "address" + i, 0);
+    }
+
+    // Adds blocks, each spending most of the outputs created by the previous one.
+    private List<UTXO> addBlocks(FullPrunedBlockStore store, int count) throws Exception {
+        List<UTXO> unspent = new ArrayList<UTXO>();
+        StoredBlock block = store.getChainHead();
+        for (int height = 1; height <= count; height++) {
+            store.beginDatabaseBatchWrite();
+            List<UTXO> created = new ArrayList<UTXO>();
+            for (int i = 0; i < 10; i++) {
+                UTXO out = utxo(height * 10 + i, height);
+                store.addUnspentTransactionOutput(out);
+                created.add(out);
+            }
+            for (int i = 0; i < 8 && !unspent.isEmpty(); i++)
+                store.removeUnspentTransactionOutput(unspent.remove(unspent.size() - 1));
+            unspent.addAll(created);
+            block = block.build(block.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new ArrayList<Transaction>()));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        }
+        return unspent;
+    }
+
+    private static void assertOutputs(FullPrunedBlockStore store, List<UTXO> unspent, int count) throws Exception {
+        for (int height = 1; height <= count; height++) {
+            for (int i = 0; i < 10; i++) {
+                UTXO out = utxo(height * 10 + i, height);
+                UTXO stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+                if (unspent.contains(out)) {
+                    assertNotNull(stored);
+                    assertEquals(out.getValue(), stored.getValue());
+                    assertEquals(out.getAddress(), stored.getAddress());
+                    assertEquals(height, stored.getHeight());
+                } else {
+                    assertNull(stored);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        LogStructuredFullPrunedBlockStore store = open();
+        List<UTXO> unspent = addBlocks(store, 200);
+        StoredBlock head = store.getVerifiedChainHead();
+        store.close();
+
+        store = open();
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.getVerifiedChainHead());
+        assertOutputs(store, unspent, 200);
+        // Undo data is only kept for the last few blocks.
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+        StoredBlock old = head;
+        for (int i = 0; i < 50; i++)
+            old = old.getPrev(store);
+        assertNotNull(store.getOnceUndoableStoredBlock(old.getHeader().getHash()));
+        assertNull(store.getUndoBlock(old.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void recoversFromCrash() throws Exception {
+        LogStructuredFullPrunedBlockStore store = open();
+        List<UTXO> unspent = addBlocks(store, 100);
+        StoredBlock head = store.getVerifiedChainHead();
+        store.close();
+        // Simulate a crash half way through writing a batch, and an index that wasn't flushed.
+        File lastSegment = null;
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log") && (lastSegment == null || file.getName().compareTo(lastSegment.getName()) > 0))
+                lastSegment = file;
+        long length = lastSegment.length();
+        RandomAccessFile raf = new RandomAccessFile(lastSegment, "rw");
+        raf.seek(length);
+        raf.write(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6, 7 });
+        raf.close();
+        assertTrue(new File(directory, "index").delete());
+
+        store = open();
+        assertEquals(length, lastSegment.length());
+        assertEquals(head, store.getVerifiedChainHead());
+        assertOutputs(store, unspent, 100);
+        store.close();
+    }
+
+    @Test
+    public void batchesAreInvisibleUntilCommitted() throws Exception {
+        final LogStructuredFullPrunedBlockStore store = open();
+        final UTXO out = utxo(1, 1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        final UTXO[] seen = new UTXO[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen[0] = store.getTransactionOutput(out.getHash(), out.getIndex());
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen[0]);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        store.close();
+    }
+
+    @Test
+    public void indexDoesNotGrowWithChurn() throws Exception {
+        LogStructuredFullPrunedBlockStore store = open();
+        // Every output that comes and goes leaves a tombstone behind, but there are never more than a few live ones.
+        for (int i = 0; i < 20000; i++) {
+            UTXO out = utxo(i, 1);
+            store.addUnspentTransactionOutput(out);
+            store.removeUnspentTransactionOutput(out);
+        }
+        store.close();
+        assertTrue(new File(directory, "index").length() < 64 * 1024);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.store;
+
+import com.google.common.collect.ImmutableSet;
+import org.neoscoinj.core.Coin;
+import org.neoscoinj.core.Sha256Hash;
+import org.neoscoinj.core.UTXO;
+import org.neoscoinj.core.Utils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class OffHeapOutputSetTest {
+    private static UTXO utxo(int i) {
+        byte[] hash = new byte[32];
+        Utils.uint32ToByteArrayLE(i / 4, hash, 0);
+        return new UTXO(new Sha256Hash(hash), i % 4, Coin.valueOf(i), i, i % 7 == 0, new byte[i % 100],
+                "address" + (i % 10), i % 3);
+    }
+
+    private static void assertStored(OffHeapOutputSet set, UTXO expected) {
+        UTXO stored = set.get(expected.getHash(), expected.getIndex());
+        assertNotNull(stored);
+        assertEquals(expected.getValue(), stored.getValue());
+        assertEquals(expected.getHeight(), stored.getHeight());
+        assertEquals(expected.isCoinbase(), stored.isCoinbase());
+        assertArrayEquals(expected.getScriptBytes(), stored.getScriptBytes());
+        assertEquals(expected.getAddress(), stored.getAddress());
+        assertEquals(expected.getAddressType(), stored.getAddressType());
+    }
+
+    @Test
+    public void addGetRemove() throws Exception {
+        OffHeapOutputSet set = new OffHeapOutputSet(0);
+        UTXO out = utxo(5);
+        assertNull(set.get(out.getHash(), out.getIndex()));
+        set.add(out);
+        assertStored(set, out);
+        assertNull(set.get(out.getHash(), out.getIndex() + 1));
+        assertEquals(1, set.size());
+        // Outpoints with an index above 2^31 are kept apart from their low 31 bits.
+        UTXO highIndex = new UTXO(out.getHash(), 0xFFFFFFFFL, Coin.COIN, 1, false, new byte[1], "", 0);
+        set.add(highIndex);
+        assertEquals(0xFFFFFFFFL, set.get(out.getHash(), 0xFFFFFFFFL).getIndex());
+        assertTrue(set.remove(out.getHash(), out.getIndex()));
+        assertFalse(set.remove(out.getHash(), out.getIndex()));
+        assertNull(set.get(out.getHash(), out.getIndex()));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void nullAndEmptyAddressesAreKeptApart() throws Exception {
+        OffHeapOutputSet set = new OffHeapOutputSet(0);
+        UTXO noAddress = new UTXO(utxo(0).getHash(), 0, Coin.COIN, 1, false, new byte[2], null, 0);
+        UTXO emptyAddress = new UTXO(utxo(0).getHash(), 1, Coin.COIN, 1, false, new byte[2], "", 0);
+        set.add(noAddress);
+        set.add(emptyAddress);
+        assertStored(set, noAddress);
+        assertNull(set.get(noAddress.getHash(), 0).getAddress());
+        assertStored(set, emptyAddress);
+        assertEquals(1, set.getByAddresses(Collections.singleton("")).size());
+    }
+
+    @Test
+    public void addReplaces() throws Exception {
+        OffHeapOutputSet set = new OffHeapOutputSet(0);
+        UTXO out = utxo(1);
+        set.add(out);
+        UTXO replacement = new UTXO(out.getHash(), out.getIndex(), Coin.COIN, 10, true, new byte[3], "other", 1);
+        set.add(replacement);
+        assertEquals(1, set.size());
+        assertStored(set, replacement);
+    }
+
+    @Test
+    public void growsAndCompacts() throws Exception {
+        // Enough outputs to grow the table several times and fill a few slabs.
+        int count = 300000;
+        OffHeapOutputSet set = new OffHeapOutputSet(0);
+        for (int i = 0; i < count; i++)
+            set.add(utxo(i));
+        long allocated = set.getAllocatedBytes();
+        // Spend most of them, which compacts and frees the slabs they were in.
+        for (int i = 0; i < count; i++)
+            if (i % 10 != 0)
+                assertTrue(set.remove(utxo(i).getHash(), i % 4));
+        assertEquals(count / 10, set.size());
+        assertTrue(set.getAllocatedBytes() < allocated);
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0)
+                assertStored(set, utxo(i));
+            else
+                assertNull(set.get(utxo(i).getHash(), i % 4));
+        }
+        assertEquals(count / 10, set.getByAddresses(ImmutableSet.of("address0")).size());
+        assertEquals(0, set.getByAddresses(ImmutableSet.of("address1")).size());
+    }
+}
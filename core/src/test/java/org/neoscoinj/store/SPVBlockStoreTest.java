@@ -24,8 +24,14 @@ import org.neoscoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +64,94 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void indexedLookupsAfterWrapping() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+
+        // Fill the ring two and a half times over, so the oldest headers and the genesis block get overwritten.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < capacity * 5 / 2; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            blocks.add(prev);
+        }
+        store.close();
+
+        // A fresh store object has empty caches, so these lookups go through the index.
+        store = new SPVBlockStore(params, f, capacity);
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - capacity)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        store.close();
+
+        // Files written without an index get one added when opened.
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        file.setLength(SPVBlockStore.FILE_PROLOGUE_BYTES + SPVBlockStore.RECORD_SIZE * capacity);
+        file.close();
+        store = new SPVBlockStore(params, f, capacity);
+        assertEquals(store.getFileSize(), f.length());
+        for (StoredBlock block : blocks.subList(blocks.size() - capacity, blocks.size()))
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        // Readers look up the chain head by hash, bypassing the block cache, while it keeps moving.
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            StoredBlock head = store.getChainHead();
+                            store.blockCache.invalidate(head.getHeader().getHash());
+                            assertEquals(head, store.get(head.getHeader().getHash()));
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        Address to = new ECKey().toAddress(params);
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 500; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        store.close();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
 }
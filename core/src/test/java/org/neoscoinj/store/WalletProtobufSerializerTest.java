@@ -322,6 +322,47 @@ public class WalletProtobufSerializerTest {
         assertTrue(wallet2.getTransaction(coinbase.getHash()).isCoinBase());
     }
 
+    @Test
+    public void parallelLoading() throws Exception {
+        // Transactions are decoded on several threads, but must come out the same as when loaded on one.
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        BlockChain chain = new BlockChain(params, myWallet, blockStore);
+        // Put several transactions in each block, so the chain stays short of a difficulty retarget.
+        for (int i = 0; i < 4; i++) {
+            Transaction[] txns = new Transaction[5];
+            for (int j = 0; j < txns.length; j++)
+                txns[j] = createFakeTx(params, COIN, myAddress);
+            chain.add(FakeTxBuilder.createFakeBlock(blockStore, txns).block);
+        }
+        Transaction spend = myWallet.createSend(new ECKey().toAddress(params), COIN.multiply(3));
+        myWallet.commitTx(spend);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+
+        // Write the transactions ahead of the network identifier, so they have to wait for it.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Protos.Wallet.newBuilder().addAllTransaction(proto.getTransactionList()).buildPartial().writeTo(output);
+        proto.toBuilder().clearTransaction().build().writeTo(output);
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadingThreads(1);
+        Protos.Wallet expected = serializer.walletToProto(serializer.readWallet(params, null, proto));
+        assertEquals(myWallet.getTransactions(true).size(), expected.getTransactionCount());
+        for (int threads : new int[] { 1, 4 }) {
+            serializer.setLoadingThreads(threads);
+            Wallet wallet = serializer.readWallet(new ByteArrayInputStream(proto.toByteArray()));
+            assertEquals(expected, serializer.walletToProto(wallet));
+            assertEquals(myWallet.getBalance(), wallet.getBalance());
+            assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            TransactionInput input = wallet.getTransaction(spend.getHash()).getInput(0);
+            assertSame(wallet.getTransaction(input.getOutpoint().getHash()), input.getConnectedOutput().getParentTransaction());
+
+            wallet = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+            assertEquals(expected, serializer.walletToProto(wallet));
+            wallet = serializer.readWallet(params, null, proto);
+            assertEquals(expected, serializer.walletToProto(wallet));
+        }
+    }
+
     @Test
     public void tags() throws Exception {
         myWallet.setTag("foo", ByteString.copyFromUtf8("bar"));
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.utils;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.params.UnitTestParams;
+import org.neoscoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileImporterTest {
+    private NetworkParameters params;
+    private Address coinbaseTo;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        params = UnitTestParams.get();
+        coinbaseTo = new ECKey().toAddress(params);
+    }
+
+    private List<Block> makeChain(Block from, int length) {
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = from;
+        for (int i = 0; i < length; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private File writeBlockFile(List<Block> blocks) throws Exception {
+        File file = File.createTempFile("blk", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        byte[] magic = new byte[4];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+        try {
+            for (Block block : blocks) {
+                // Some garbage between records, like the preallocated space at the end of reference client files.
+                stream.write(new byte[3]);
+                byte[] bytes = block.neoscoinSerialize();
+                stream.write(magic);
+                Utils.uint32ToByteStreamLE(bytes.length, stream);
+                stream.write(bytes);
+            }
+            stream.write(new byte[64]);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void loaderSplitsRecords() throws Exception {
+        List<Block> blocks = makeChain(params.getGenesisBlock(), 5);
+        List<File> files = Arrays.asList(writeBlockFile(blocks.subList(0, 2)), writeBlockFile(blocks.subList(2, 5)));
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(params, files))
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+    }
+
+    @Test
+    public void loaderMapsFilesInWindows() throws Exception {
+        // Records that cross the end of a window are read from the next one.
+        List<Block> blocks = makeChain(params.getGenesisBlock(), 10);
+        List<File> files = Arrays.asList(writeBlockFile(blocks));
+        int windowSize = blocks.get(0).neoscoinSerialize().length * 2 + 20;
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(params, files, false, windowSize))
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+    }
+
+    @Test
+    public void importsOutOfOrderBlocks() throws Exception {
+        List<Block> blocks = makeChain(params.getGenesisBlock(), 20);
+        // A short fork off block 10, which loses.
+        List<Block> fork = makeChain(blocks.get(9), 2);
+        List<Block> shuffled = new ArrayList<Block>();
+        shuffled.add(params.getGenesisBlock());
+        shuffled.addAll(blocks.subList(0, 5));
+        // Children read before their parents are held back until the parent shows up.
+        shuffled.add(blocks.get(7));
+        shuffled.add(fork.get(1));
+        shuffled.add(blocks.get(6));
+        shuffled.add(blocks.get(5));
+        shuffled.addAll(blocks.subList(8, 10));
+        shuffled.add(fork.get(0));
+        shuffled.addAll(blocks.subList(10, 20));
+        File file = writeBlockFile(shuffled);
+
+        MemoryBlockStore store = new MemoryBlockStore(params);
+        BlockChain chain = new BlockChain(params, store);
+        assertEquals(22, new BlockFileImporter(params, chain, Arrays.asList(file), 3).importBlocks());
+        assertEquals(20, chain.getBestChainHeight());
+        assertEquals(blocks.get(19).getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertNotNull(store.get(fork.get(1).getHash()));
+
+        // Importing again skips everything.
+        assertEquals(0, new BlockFileImporter(params, chain, Arrays.asList(file), 3).importBlocks());
+        assertEquals(20, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void failedImportCanBeRetried() throws Exception {
+        // Blocks still queued when the chain rejects one are dropped, so the importer can be used again.
+        List<Block> blocks = makeChain(params.getGenesisBlock(), 3);
+        Block bad = blocks.get(2).createNextBlock(coinbaseTo);
+        bad.setTime(Utils.currentTimeSeconds() + 24 * 60 * 60);
+        bad.solve();
+        List<Block> all = new ArrayList<Block>(blocks);
+        all.add(bad);
+        all.addAll(makeChain(bad, 3));
+
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        BlockFileImporter importer = new BlockFileImporter(params, chain, Arrays.asList(writeBlockFile(all)), 2);
+        for (int i = 0; i < 2; i++) {
+            try {
+                importer.importBlocks();
+                fail();
+            } catch (VerificationException e) {
+                // Expected, both times.
+            }
+        }
+        assertEquals(3, chain.getBestChainHeight());
+    }
+}
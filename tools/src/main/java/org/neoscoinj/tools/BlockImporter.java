@@ -4,12 +4,13 @@ import org.neoscoinj.core.*;
 import org.neoscoinj.params.MainNetParams;
 import org.neoscoinj.params.TestNet3Params;
 import org.neoscoinj.store.*;
+import org.neoscoinj.utils.BlockFileImporter;
 import org.neoscoinj.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
 
-/** Very thin wrapper around {@link org.neoscoinj.utils.BlockFileLoader} */
+/** Very thin wrapper around {@link org.neoscoinj.utils.BlockFileImporter} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
@@ -48,9 +49,7 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        BlockFileImporter importer = new BlockFileImporter(params, chain, BlockFileLoader.getReferenceClientBlockFileList());
+        importer.importBlocks();
     }
 }
@@ -27,7 +27,6 @@ import com.google.common.base.Charsets;
 
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -36,7 +35,10 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -50,6 +52,7 @@ public class BuildCheckpoints {
     private static final NetworkParameters PARAMS = MainNetParams.get();
     private static final File PLAIN_CHECKPOINTS_FILE = new File("checkpoints");
     private static final File TEXTUAL_CHECKPOINTS_FILE = new File("checkpoints.txt");
+    private static final File COMPACT_CHECKPOINTS_FILE = new File("checkpoints.compact");
 
     public static void main(String[] args) throws Exception {
         BriefLogFormatter.initWithSilentNeoscoinJ();
@@ -68,6 +71,10 @@ public class BuildCheckpoints {
 
         final long oneMonthAgo = now - (86400 * 30);
 
+        // The memory store only keeps the most recent blocks, so the whole best chain is recorded as it's downloaded.
+        final BestChainHashes bestChain = new BestChainHashes(chain.getChainHead());
+        chain.addListener(bestChain, Threading.SAME_THREAD);
+
         chain.addListener(new AbstractBlockChainListener() {
             @Override
             public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
@@ -85,16 +92,84 @@ public class BuildCheckpoints {
 
         checkState(checkpoints.size() > 0);
 
+        peerGroup.stop();
+        TreeMap<Integer, Sha256Hash> commitments = calculateHeaderCommitments(bestChain.getHashes(), checkpoints);
+
         // Write checkpoint data out.
         writeBinaryCheckpoints(checkpoints, PLAIN_CHECKPOINTS_FILE);
         writeTextualCheckpoints(checkpoints, TEXTUAL_CHECKPOINTS_FILE);
+        writeCompactCheckpoints(checkpoints, commitments, COMPACT_CHECKPOINTS_FILE);
 
-        peerGroup.stop();
         store.close();
 
         // Sanity check the created files.
         sanityCheck(PLAIN_CHECKPOINTS_FILE, checkpoints.size());
         sanityCheck(TEXTUAL_CHECKPOINTS_FILE, checkpoints.size());
+        sanityCheck(COMPACT_CHECKPOINTS_FILE, checkpoints.size());
+        CheckpointManager compact = new CheckpointManager(PARAMS, COMPACT_CHECKPOINTS_FILE);
+        for (Map.Entry<Integer, Sha256Hash> entry : commitments.entrySet())
+            checkState(entry.getValue().equals(compact.getHeaderCommitment(entry.getKey())));
+    }
+
+    /**
+     * Records the hash of every block on the best chain by height whilst it's downloaded, following re-orgs. Block
+     * stores may only keep the most recent headers, but the header commitments need all of them.
+     */
+    static class BestChainHashes extends AbstractBlockChainListener {
+        private final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+
+        BestChainHashes(StoredBlock genesis) {
+            checkState(genesis.getHeight() == 0, "Chain must start at the genesis block");
+            hashes.add(genesis.getHeader().getHash());
+        }
+
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+            setBestBlock(block);
+        }
+
+        @Override
+        public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+                throws VerificationException {
+            // The new blocks come newest first.
+            setBestBlock(splitPoint);
+            for (int i = newBlocks.size() - 1; i >= 0; i--)
+                setBestBlock(newBlocks.get(i));
+        }
+
+        private void setBestBlock(StoredBlock block) {
+            int height = block.getHeight();
+            checkState(height <= hashes.size(), "Missed the block before %s", height);
+            // Anything above the new best block was re-orged out.
+            hashes.subList(height, hashes.size()).clear();
+            hashes.add(block.getHeader().getHash());
+        }
+
+        /** Returns the hashes of the best chain, indexed by height. */
+        List<Sha256Hash> getHashes() {
+            return hashes;
+        }
+    }
+
+    /**
+     * Folds every header of the best chain into the running header commitment from the genesis block forwards,
+     * recording it at each checkpoint. Checkpoints that were re-orged out of the best chain are dropped.
+     */
+    static TreeMap<Integer, Sha256Hash> calculateHeaderCommitments(List<Sha256Hash> hashes,
+            TreeMap<Integer, StoredBlock> checkpoints) {
+        TreeMap<Integer, Sha256Hash> commitments = new TreeMap<Integer, Sha256Hash>();
+        Sha256Hash commitment = Sha256Hash.ZERO_HASH;
+        for (int height = 0; height < hashes.size(); height++) {
+            commitment = CheckpointManager.extendHeaderCommitment(commitment, hashes.get(height));
+            StoredBlock checkpoint = checkpoints.get(height);
+            if (checkpoint == null)
+                continue;
+            if (checkpoint.getHeader().getHash().equals(hashes.get(height)))
+                commitments.put(height, commitment);
+            else
+                checkpoints.remove(height);
+        }
+        return commitments;
     }
 
     private static void writeBinaryCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, File file) throws Exception {
@@ -136,8 +211,38 @@ public class BuildCheckpoints {
         System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
     }
 
+    private static void writeCompactCheckpoints(TreeMap<Integer, StoredBlock> checkpoints,
+            TreeMap<Integer, Sha256Hash> commitments, File file) throws Exception {
+        final FileOutputStream fileOutputStream = new FileOutputStream(file, false);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final DigestOutputStream digestOutputStream = new DigestOutputStream(fileOutputStream, digest);
+        digestOutputStream.on(false);
+        final DataOutputStream dataOutputStream = new DataOutputStream(digestOutputStream);
+        dataOutputStream.writeBytes("CHECKPOINTS 2");
+        dataOutputStream.writeInt(0);  // Number of signatures to read. Do this later.
+        digestOutputStream.on(true);
+        dataOutputStream.writeInt(checkpoints.size());
+        ByteBuffer buffer = ByteBuffer.allocate(CheckpointManager.COMPACT_RECORD_SIZE);
+        long lastTime = 0;
+        for (StoredBlock block : checkpoints.values()) {
+            // Checkpoints are binary searched by time as well as height.
+            checkState(block.getHeader().getTimeSeconds() > lastTime, "Checkpoint times are not increasing");
+            lastTime = block.getHeader().getTimeSeconds();
+            block.serializeCompact(buffer);
+            buffer.put(commitments.get(block.getHeight()).getBytes());
+            dataOutputStream.write(buffer.array());
+            buffer.position(0);
+        }
+        dataOutputStream.close();
+        Sha256Hash checkpointsHash = new Sha256Hash(digest.digest());
+        System.out.println("Hash of compact checkpoints data is " + checkpointsHash);
+        digestOutputStream.close();
+        fileOutputStream.close();
+        System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
+    }
+
     private static void sanityCheck(File file, int expectedSize) throws IOException {
-        CheckpointManager manager = new CheckpointManager(PARAMS, new FileInputStream(file));
+        CheckpointManager manager = new CheckpointManager(PARAMS, file);
         checkState(manager.numCheckpoints() == expectedSize);
 
         if (PARAMS.getId().equals(NetworkParameters.ID_MAINNET)) {
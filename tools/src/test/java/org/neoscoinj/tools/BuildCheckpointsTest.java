@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.neoscoinj.tools;
+
+import org.neoscoinj.core.*;
+import org.neoscoinj.params.UnitTestParams;
+import org.neoscoinj.store.BlockStore;
+import org.neoscoinj.store.MemoryBlockStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class BuildCheckpointsTest {
+    @Test
+    public void headerCommitmentsCoverTheWholeChain() throws Exception {
+        // More blocks than the memory block store keeps, so the chain can't be walked back to the genesis block.
+        NetworkParameters params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        BlockStore store = new MemoryBlockStore(params);
+        StoredBlock block = store.getChainHead();
+        BuildCheckpoints.BestChainHashes bestChain = new BuildCheckpoints.BestChainHashes(block);
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(block);
+        for (int i = 0; i < 5100; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            bestChain.notifyNewBestBlock(block);
+            chain.add(block);
+        }
+
+        // Re-org out the last two blocks for three others.
+        StoredBlock splitPoint = chain.get(5098);
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>();
+        block = splitPoint;
+        for (int i = 0; i < 3; i++) {
+            block = block.build(block.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+            newBlocks.add(0, block);
+        }
+        List<StoredBlock> oldBlocks = new ArrayList<StoredBlock>(chain.subList(5099, 5101));
+        Collections.reverse(oldBlocks);
+        bestChain.reorganize(splitPoint, oldBlocks, newBlocks);
+        StoredBlock reorgedOut = chain.get(5100);
+        chain.subList(5099, 5101).clear();
+        for (int i = newBlocks.size() - 1; i >= 0; i--)
+            chain.add(newBlocks.get(i));
+
+        TreeMap<Integer, StoredBlock> checkpoints = new TreeMap<Integer, StoredBlock>();
+        checkpoints.put(10, chain.get(10));
+        checkpoints.put(5100, reorgedOut);
+        checkpoints.put(5101, chain.get(5101));
+        TreeMap<Integer, Sha256Hash> commitments =
+                BuildCheckpoints.calculateHeaderCommitments(bestChain.getHashes(), checkpoints);
+
+        Sha256Hash commitment = Sha256Hash.ZERO_HASH;
+        for (int height = 0; height <= 10; height++)
+            commitment = CheckpointManager.extendHeaderCommitment(commitment, chain.get(height).getHeader().getHash());
+        assertEquals(commitment, commitments.get(10));
+        for (int height = 11; height <= 5101; height++)
+            commitment = CheckpointManager.extendHeaderCommitment(commitment, chain.get(height).getHeader().getHash());
+        assertEquals(commitment, commitments.get(5101));
+        // The checkpoint that was re-orged out is dropped.
+        assertFalse(checkpoints.containsKey(5100));
+        assertFalse(commitments.containsKey(5100));
+        assertEquals(2, commitments.size());
+    }
+}